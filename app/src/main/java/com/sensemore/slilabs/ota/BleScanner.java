@@ -0,0 +1,167 @@
+package com.sensemore.slilabs.ota;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+import com.sensemore.slilabs.ota.engine.scan.Advertisement;
+import com.sensemore.slilabs.ota.engine.scan.DeviceTable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Feeds a {@link DeviceTable} from {@link BluetoothLeScanner}. The service UUID of the
+ * table's filter goes to the controller, results arrive in batches when the controller can
+ * batch, and every batch is handed to the table on its scheduler in one post.
+ * <p>
+ * Low latency scanning keeps the radio listening almost all the time and its windows take
+ * air time from the connection events of running uploads. The owner switches to balanced
+ * scanning while nothing waits for an advertisement. Android ignores a sixth scan started
+ * within 30 s, a mode change that would be one waits until it isn't. Scheduler thread.
+ */
+public class BleScanner {
+
+    // results the controller collects before waking the app
+    private static final long REPORT_DELAY_MILLIS = 500;
+    // scans Android lets an app start per window before it drops the next one
+    private static final int MAX_STARTS = 5;
+    private static final long START_WINDOW_MILLIS = 30_000;
+
+    private final BluetoothAdapter adapter;
+    private final OtaScheduler scheduler;
+    private final DeviceTable table;
+    private BluetoothLeScanner scanner;
+    private boolean lowLatency = true;
+    // mode of the running scan
+    private boolean scanningLowLatency;
+    private final ArrayDeque<Long> starts = new ArrayDeque<>();
+    private final Runnable restart = this::ApplyMode;
+
+    public BleScanner(BluetoothAdapter adapter, OtaScheduler scheduler, DeviceTable table) {
+        this.adapter = adapter;
+        this.scheduler = scheduler;
+        this.table = table;
+    }
+
+    // false when Bluetooth is off
+    public boolean start() {
+        if (scanner != null) {
+            return true;
+        }
+        scanner = adapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            return false;
+        }
+        StartScan();
+        return true;
+    }
+
+    public void stop() {
+        scheduler.removeCallbacks(restart);
+        if (scanner != null) {
+            StopScan();
+            scanner = null;
+        }
+    }
+
+    // true while a session waits for a device to appear or reboot, balanced otherwise
+    public void setLowLatency(boolean lowLatency) {
+        if (this.lowLatency == lowLatency) {
+            return;
+        }
+        this.lowLatency = lowLatency;
+        scheduler.removeCallbacks(restart);
+        ApplyMode();
+    }
+
+    private void ApplyMode() {
+        if (scanner == null || scanningLowLatency == lowLatency) {
+            return;
+        }
+        long now = scheduler.uptimeMillis();
+        while (!starts.isEmpty() && now - starts.peekFirst() >= START_WINDOW_MILLIS) {
+            starts.removeFirst();
+        }
+        if (starts.size() >= MAX_STARTS) {
+            // the running scan keeps its mode until a start is allowed again
+            scheduler.postDelayed(restart, starts.peekFirst() + START_WINDOW_MILLIS - now);
+            return;
+        }
+        StopScan();
+        StartScan();
+    }
+
+    private void StartScan() {
+        List<ScanFilter> filters = new ArrayList<>();
+        UUID service = table.getFilter().getServiceUuid();
+        if (service != null) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(service)).build());
+        }
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(lowLatency ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_BALANCED)
+                .setReportDelay(adapter.isOffloadedScanBatchingSupported() ? REPORT_DELAY_MILLIS : 0)
+                .build();
+        scanner.startScan(filters, settings, callback);
+        scanningLowLatency = lowLatency;
+        starts.addLast(scheduler.uptimeMillis());
+    }
+
+    private void StopScan() {
+        try {
+            scanner.stopScan(callback);
+        } catch (IllegalStateException e) {
+            // adapter was turned off, the scan is gone already
+        }
+    }
+
+    // binder thread, timestamps are taken here so a batch keeps the real sighting times
+    private Advertisement Convert(ScanResult result, long nowMillis, long nowNanos) {
+        ScanRecord record = result.getScanRecord();
+        String name = record != null && record.getDeviceName() != null ? record.getDeviceName() : result.getDevice().getName();
+        List<UUID> services = Collections.emptyList();
+        if (record != null && record.getServiceUuids() != null) {
+            services = new ArrayList<>();
+            for (ParcelUuid uuid : record.getServiceUuids()) {
+                services.add(uuid.getUuid());
+            }
+        }
+        long ageMillis = Math.max(0, (nowNanos - result.getTimestampNanos()) / 1000000);
+        return new Advertisement(result.getDevice().getAddress(), name, result.getRssi(), services, nowMillis - ageMillis);
+    }
+
+    private final ScanCallback callback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            Advertisement advertisement = Convert(result, scheduler.uptimeMillis(), SystemClock.elapsedRealtimeNanos());
+            scheduler.post(() -> table.add(advertisement));
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            long nowMillis = scheduler.uptimeMillis();
+            long nowNanos = SystemClock.elapsedRealtimeNanos();
+            List<Advertisement> batch = new ArrayList<>(results.size());
+            for (ScanResult result : results) {
+                batch.add(Convert(result, nowMillis, nowNanos));
+            }
+            scheduler.post(() -> table.addAll(batch));
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w("OTA", "Scan failed " + errorCode);
+        }
+    };
+}
@@ -0,0 +1,362 @@
+package com.sensemore.slilabs.ota;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.sensemore.slilabs.ota.engine.OperationQueue;
+import com.sensemore.slilabs.ota.engine.OtaProtocol;
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+import com.sensemore.slilabs.ota.engine.OtaTransport;
+import com.sensemore.slilabs.ota.engine.image.GblParser;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * {@link OtaTransport} backed by {@link BluetoothGatt}.
+ * <p>
+ * Runs on the scheduler of its session. Binder callbacks are posted there before they touch
+ * any state, and every request that waits for a response goes through an
+ * {@link OperationQueue} so the stack never sees two of them at once.
+ */
+public class GattTransport implements OtaTransport {
+
+    // backstop for a request the stack never answers, the session has its own timeouts
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final String macAddress;
+    private final OtaScheduler scheduler;
+    private final OperationQueue queue;
+
+    private Callback callback;
+    private BluetoothGatt gatt;
+    // resolved once per connection in onServicesDiscovered
+    private BluetoothGattCharacteristic controlCharacteristic;
+    private BluetoothGattCharacteristic dataCharacteristic;
+    private BluetoothGattCharacteristic progressCharacteristic;
+    private BluetoothGattCharacteristic versionCharacteristic;
+    private boolean discoveryComplete;
+    // queued write with response on the data characteristic is waiting for its callback
+    private boolean awaitingDataResponse;
+
+    // data writes without response complete at packet rate, no lambda per packet
+    private final Runnable dataWritten = () -> OnDataWritten(true);
+    private final Runnable dataFailed = () -> OnDataWritten(false);
+
+    public GattTransport(Context context, BluetoothAdapter adapter, String macAddress, OtaScheduler scheduler) {
+        this.context = context.getApplicationContext();
+        this.adapter = adapter;
+        this.macAddress = macAddress;
+        this.scheduler = scheduler;
+        this.queue = new OperationQueue(scheduler, REQUEST_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return macAddress;
+    }
+
+    @Override
+    public void connect() {
+        BluetoothDevice device = adapter.getRemoteDevice(macAddress);
+        gatt = device.connectGatt(context, false, gattCallback);
+    }
+
+    @Override
+    public void discoverServices() {
+        if (gatt == null) {
+            return;
+        }
+        discoveryComplete = false;
+        queue.<Boolean>enqueue("discovery", () -> gatt != null && gatt.discoverServices()).whenComplete((found, error) -> {
+            if (!(error instanceof CancellationException)) {
+                callback.onServicesDiscovered(error == null && found && controlCharacteristic != null, dataCharacteristic != null);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeControl(byte[] value) {
+        if (gatt == null || controlCharacteristic == null) {
+            return false;
+        }
+        queue.enqueue("control write", () -> {
+            if (gatt == null || controlCharacteristic == null) {
+                return false;
+            }
+            controlCharacteristic.setValue(value);
+            return gatt.writeCharacteristic(controlCharacteristic);
+        }).whenComplete((result, error) -> {
+            if (!(error instanceof CancellationException)) {
+                callback.onControlWritten(value[0], error == null);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeData(byte[] payload) {
+        if (gatt == null || dataCharacteristic == null || queue.isBusy()) {
+            // a queued request goes first, the pipeline retries after the next completion
+            return false;
+        }
+        // stack copies the value inside writeCharacteristic, payload buffer can be reused
+        dataCharacteristic.setValue(payload);
+        return gatt.writeCharacteristic(dataCharacteristic);
+    }
+
+    @Override
+    public boolean writeDataWithResponse(byte[] payload) {
+        if (gatt == null || dataCharacteristic == null) {
+            return false;
+        }
+        // caller reuses the payload after onDataWritten, the stack copies it when the request starts
+        queue.enqueue("data write", () -> {
+            if (gatt == null || dataCharacteristic == null) {
+                return false;
+            }
+            // write type is taken when the request is queued, data writes go back to no-response after it
+            dataCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            dataCharacteristic.setValue(payload);
+            boolean accepted = gatt.writeCharacteristic(dataCharacteristic);
+            dataCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            awaitingDataResponse = accepted;
+            return accepted;
+        }).whenComplete((result, error) -> {
+            if (!(error instanceof CancellationException)) {
+                callback.onDataWritten(error == null);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean hasProgressCharacteristic() {
+        return progressCharacteristic != null;
+    }
+
+    @Override
+    public boolean isDiscoveryComplete() {
+        return discoveryComplete;
+    }
+
+    @Override
+    public boolean hasApplicationVersionCharacteristic() {
+        return versionCharacteristic != null;
+    }
+
+    @Override
+    public boolean readReceivedOffset() {
+        if (gatt == null || progressCharacteristic == null) {
+            return false;
+        }
+        queue.<byte[]>enqueue("progress read", () -> gatt != null && gatt.readCharacteristic(progressCharacteristic)).whenComplete((value, error) -> {
+            if (error instanceof CancellationException) {
+                return;
+            }
+            if (error != null || value == null || value.length < OtaProtocol.PROGRESS_VALUE_SIZE) {
+                callback.onReceivedOffsetRead(0, 0, false);
+                return;
+            }
+            Log.i("OTA", "Device holds " + (GblParser.LittleEndian(value, 0) & 0xFFFFFFFFL) + " bytes");
+            callback.onReceivedOffsetRead(GblParser.LittleEndian(value, 0) & 0xFFFFFFFFL,
+                    GblParser.LittleEndian(value, 4) & 0xFFFFFFFFL, true);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean readApplicationVersion() {
+        if (gatt == null || versionCharacteristic == null) {
+            return false;
+        }
+        queue.<byte[]>enqueue("version read", () -> gatt != null && gatt.readCharacteristic(versionCharacteristic)).whenComplete((value, error) -> {
+            if (error instanceof CancellationException) {
+                return;
+            }
+            boolean success = error == null && value != null && value.length >= 4;
+            callback.onApplicationVersionRead(success ? GblParser.LittleEndian(value, 0) : 0, success);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (gatt == null) {
+            return false;
+        }
+        queue.<Integer>enqueue("mtu exchange", () -> gatt != null && gatt.requestMtu(mtu)).whenComplete((granted, error) -> {
+            if (!(error instanceof CancellationException)) {
+                callback.onMtuChanged(error == null ? granted : DEFAULT_ATT_MTU, error == null);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public void setPreferredPhy(int phy) {
+        if (gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int mask = phy == PHY_LE_2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+            gatt.setPreferredPhy(mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+            gatt = null;
+        }
+        Forget();
+    }
+
+    private void Forget() {
+        controlCharacteristic = null;
+        dataCharacteristic = null;
+        progressCharacteristic = null;
+        versionCharacteristic = null;
+        discoveryComplete = false;
+        awaitingDataResponse = false;
+        // session learns about the link from onDisconnected, not from every dropped request
+        queue.clear(new CancellationException("Link closed"));
+    }
+
+    private void OnDataWritten(boolean success) {
+        if (awaitingDataResponse) {
+            awaitingDataResponse = false;
+            if (success) {
+                queue.complete(null);
+            } else {
+                queue.fail(new IOException("Data write failed"));
+            }
+            return;
+        }
+        callback.onDataWritten(success);
+        // a request refused behind this write can go now
+        queue.onStackIdle();
+    }
+
+    private static IOException Failure(String request, int status) {
+        return new IOException(request + " failed with status " + status);
+    }
+
+    // binder thread, nothing here touches transport state before the post
+    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Log.i("OTA", "state " + newState);
+            scheduler.post(() -> {
+                if (newState == BluetoothProfile.STATE_CONNECTED) {
+                    Log.i("OTA", "Connected " + gatt.getDevice().getName() + " address: " + macAddress);
+                    callback.onConnected();
+                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    Log.i("OTA", "Disconnecting ");
+                    gatt.close();
+                    if (GattTransport.this.gatt == gatt) {
+                        GattTransport.this.gatt = null;
+                        Forget();
+                    }
+                    callback.onDisconnected();
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Log.i("OTA", "onServicesDiscovered status: " + status);
+            scheduler.post(() -> {
+                BluetoothGattService service = gatt.getService(OtaProtocol.OTA_SERVICE);
+                discoveryComplete = status == BluetoothGatt.GATT_SUCCESS;
+                boolean success = discoveryComplete && service != null;
+                if (success) {
+                    controlCharacteristic = service.getCharacteristic(OtaProtocol.OTA_CONTROL_CHARACTERISTIC);
+                    dataCharacteristic = service.getCharacteristic(OtaProtocol.OTA_DATA_CHARACTERISTIC);
+                    progressCharacteristic = service.getCharacteristic(OtaProtocol.OTA_PROGRESS_CHARACTERISTIC);
+                    versionCharacteristic = service.getCharacteristic(OtaProtocol.OTA_APPLICATION_VERSION_CHARACTERISTIC);
+                    if (controlCharacteristic != null) {
+                        controlCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                    }
+                    if (dataCharacteristic != null) {
+                        dataCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    }
+                }
+                //if OTA_SERVICE has OTA_DATA_CHARACTERISTIC target device already in dfu mode
+                queue.complete(success);
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            boolean success = status == BluetoothGatt.GATT_SUCCESS;
+            if (characteristic.getUuid().equals(OtaProtocol.OTA_CONTROL_CHARACTERISTIC)) {
+                Log.i("OTA", "onCharacteristicWrite control status: " + status);
+                scheduler.post(() -> {
+                    if (success) {
+                        queue.complete(null);
+                    } else {
+                        queue.fail(Failure("Control write", status));
+                    }
+                });
+            } else if (characteristic.getUuid().equals(OtaProtocol.OTA_DATA_CHARACTERISTIC)) {
+                scheduler.post(success ? dataWritten : dataFailed);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (!characteristic.getUuid().equals(OtaProtocol.OTA_PROGRESS_CHARACTERISTIC)
+                    && !characteristic.getUuid().equals(OtaProtocol.OTA_APPLICATION_VERSION_CHARACTERISTIC)) {
+                return;
+            }
+            // value is overwritten by the next read, hand a copy to the scheduler
+            byte[] value = characteristic.getValue() != null ? characteristic.getValue().clone() : null;
+            Log.i("OTA", "onCharacteristicRead " + characteristic.getUuid() + " status: " + status);
+            scheduler.post(() -> {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    queue.complete(value);
+                } else {
+                    queue.fail(Failure("Read", status));
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i("OTA", "onMtuChanged mtu: " + mtu);
+            scheduler.post(() -> {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    queue.complete(mtu);
+                } else {
+                    queue.fail(Failure("MTU exchange", status));
+                }
+            });
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.i("OTA", "onPhyUpdate tx: " + txPhy + " rx: " + rxPhy);
+            scheduler.post(() -> callback.onPhyUpdated(txPhy, status == BluetoothGatt.GATT_SUCCESS));
+        }
+    };
+}
@@ -0,0 +1,63 @@
+package com.sensemore.slilabs.ota;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+
+public class HandlerScheduler implements OtaScheduler {
+
+    private final Handler handler;
+    // set when the scheduler started the thread itself
+    private final HandlerThread thread;
+
+    public HandlerScheduler(Handler handler) {
+        this(handler, null);
+    }
+
+    private HandlerScheduler(Handler handler, HandlerThread thread) {
+        this.handler = handler;
+        this.thread = thread;
+    }
+
+    // scheduler on a looper thread of its own, shutdown ends the thread
+    public static HandlerScheduler onNewThread(String name) {
+        HandlerThread thread = new HandlerThread("OTA " + name);
+        thread.start();
+        return new HandlerScheduler(new Handler(thread.getLooper()), thread);
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public long uptimeMicros() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    @Override
+    public void shutdown() {
+        if (thread != null) {
+            // lets due tasks finish, e.g. the close of the link
+            thread.quitSafely();
+        }
+    }
+}
@@ -2,18 +2,14 @@ package com.sensemore.slilabs.ota;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.IBinder;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
@@ -28,72 +24,75 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.IOException;
-import java.io.InputStream;
+import com.sensemore.slilabs.ota.engine.OtaJob;
+import com.sensemore.slilabs.ota.engine.OtaSessionStats;
+import com.sensemore.slilabs.ota.engine.OtaState;
+import com.sensemore.slilabs.ota.engine.OtaVerifier;
+import com.sensemore.slilabs.ota.engine.image.CachedImage;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.UUID;
-
-public class OtaActivity extends AppCompatActivity {
+import java.util.List;
 
-    private static UUID OTA_CONTROL_CHARACTERISTIC = UUID.fromString("F7BF3564-FB6D-4E53-88A4-5E37E0326063");
-    private static UUID OTA_DATA_CHARACTERISTIC = UUID.fromString("984227F3-34FC-4045-A5D0-2C581F81A153");
-    public static UUID OTA_SERVICE = UUID.fromString("1d14d6ee-fd63-4fa1-bfa4-8f47b42119f0");
+public class OtaActivity extends AppCompatActivity implements OtaService.Observer {
 
     private static final int PICKFILE_REQUESTCODE = 1;
     private static final int BLE_PERMISSIO_REQUSETCODE = 3;
     private static final int READ_EXTERNAL_STORAGE_REQUESTCODE = 2;
-    private static final long CONNECT_TIMEOUT = 10000;
 
     private Button browseFileButton;
     private Button startOtaButton;
     private TextView macAddressTextView;
     private TextView fileNameTextView;
+    private TextView bitrateTextView;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private String macAddress;
-    private Timer connectionTimeout;
-    private BluetoothDevice device;
-    private String deviceName;
-    private Handler handler;
-    private int MTU = 247;
-    private byte[] firmwareFile;
-    private int index;
-
-    class State {
-        public static final String Connecting = "Connecting";
-        public static final String ResetDFU = "ResetDFU";
-        public static final String Reconnecting = "Reconnecting";
-        public static final String OtaBegin = "Ota Begin";
-        public static final String OtaUpload = "OtaUpload";
-        public static final String OtaEnd = "OtaEnd";
-        public static final String Disconnecting = "Disconnecting";
-        public static final String Ready = "Ready";
-    }
+    private List<String> macAddresses = new ArrayList<>();
+    // the engine lives in the service, bound for the activity's whole lifetime
+    private OtaService service;
+    // picked before the service connected, handed over in onServiceConnected
+    private Uri pendingUri;
+
+    private HashMap<OtaState, ProgressBar> progressMap = new HashMap<>();
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((OtaService.LocalBinder) binder).getService();
+            service.addObserver(OtaActivity.this);
+            if (pendingUri != null) {
+                service.prepareImage(pendingUri, pendingUri.getLastPathSegment());
+                pendingUri = null;
+            }
+        }
 
-    private HashMap<String, ProgressBar> progressMap = new HashMap<>();
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_ota);
-        handler = new Handler();
         browseFileButton = findViewById(R.id.browseFile);
         startOtaButton = findViewById(R.id.startOta);
         macAddressTextView = findViewById(R.id.macAddress);
         fileNameTextView = findViewById(R.id.fileName);
-
-        progressMap.put(State.Connecting, findViewById(R.id.connectingProgress));
-        progressMap.put(State.ResetDFU, findViewById(R.id.resetDFUProgress));
-        progressMap.put(State.Reconnecting, findViewById(R.id.reconnectingProgress));
-        progressMap.put(State.OtaBegin, findViewById(R.id.otaBeginProgress));
-        progressMap.put(State.OtaUpload, findViewById(R.id.otaUploadProgress));
-        progressMap.put(State.OtaEnd, findViewById(R.id.otaEndProgress));
-        progressMap.put(State.Disconnecting, findViewById(R.id.disconnectingProgress));
-        SetProgress(State.Ready);
+        bitrateTextView = findViewById(R.id.bitrate);
+
+        progressMap.put(OtaState.Connecting, findViewById(R.id.connectingProgress));
+        progressMap.put(OtaState.ResetDFU, findViewById(R.id.resetDFUProgress));
+        progressMap.put(OtaState.Reconnecting, findViewById(R.id.reconnectingProgress));
+        progressMap.put(OtaState.OtaBegin, findViewById(R.id.otaBeginProgress));
+        progressMap.put(OtaState.OtaUpload, findViewById(R.id.otaUploadProgress));
+        progressMap.put(OtaState.OtaEnd, findViewById(R.id.otaEndProgress));
+        progressMap.put(OtaState.Disconnecting, findViewById(R.id.disconnectingProgress));
+        SetProgress(OtaState.Ready);
+        startOtaButton.setEnabled(false);
         browseFileButton.setOnClickListener(view -> {
             if (CheckChooseFilePermission()) {
                 Intent chooseFile = new Intent(Intent.ACTION_GET_CONTENT);
@@ -104,249 +103,67 @@ public class OtaActivity extends AppCompatActivity {
         });
 
         startOtaButton.setOnClickListener(v -> {
-            if (CheckBlePermissions() && CheckBluetoothEnabled() && CheckLocationEnabled() && CheckMacAddress()) {
-
-                Toast.makeText(getApplicationContext(), "BEGIN", Toast.LENGTH_SHORT).show();
-                ConnectDevice();
-            }
-        });
-    }
-
-
-    private void ConnectDevice() {
-        SetProgress(State.Connecting);
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        connectionTimeout = new Timer();
-
-        //create timer for connection timeout
-        connectionTimeout.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ToastMessage("Connection timeout, make sure you write mac address correct and ble device is discoverable");
-            }
-        }, CONNECT_TIMEOUT);
-        device = mBluetoothAdapter.getRemoteDevice(macAddress);
-
-        // Here we are connecting to target device
-        device.connectGatt(getApplicationContext(), false, new BluetoothGattCallback() {
-            @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                Log.i("OTA", "state " + newState);
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    Log.i("OTA", "Connected " + device.getName() + " address: " + device.getAddress());
-                    deviceName = device.getName();
-                    connectionTimeout.cancel();
-                    connectionTimeout.purge();
-                    gatt.discoverServices(); // Directly discovering services
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    Log.i("OTA", "Disconnecting ");
-                    gatt.close();
-                    gatt.disconnect();
+            if (service != null && CheckBlePermissions() && CheckBluetoothEnabled() && CheckLocationEnabled() && CheckMacAddress()) {
+                if (service.start(macAddresses)) {
+                    Toast.makeText(getApplicationContext(), "BEGIN", Toast.LENGTH_SHORT).show();
                 }
             }
-
-            @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.i("OTA", "onServicesDiscovered deviceName: " + deviceName);
-                    //We have connected to device and discovered services
-                    //if OTA_SERVICE has OTA_DATA_CHARACTERISTIC target device already in dfu mode
-                    if (gatt.getService(OTA_SERVICE).getCharacteristic(OTA_DATA_CHARACTERISTIC) != null) {
-                        ConnectOtaDevice(gatt);
-                    } else {
-                        ResetDFU(gatt);
-                    }
-                }
-            }
-
-            @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                Log.i("OTA", "onCharacteristicWrite " + characteristic.getUuid().toString());
-                if (characteristic.getUuid().equals(OTA_CONTROL_CHARACTERISTIC) && characteristic.getValue()[0] == 0x00) {
-                    //target device ´rebooting into OTA
-                    ConnectDelayedForOTA(gatt);//reconnect
-                }
-
-            }
         });
-    }
 
-    private void ResetDFU(BluetoothGatt gatt) {
-        SetProgress(State.ResetDFU);
-        //Writing 0x00 to control characteristic to reboot target device into DFU mode
-        handler.post(() -> {
-            Log.i("OTA", "OTA RESET INTO DFU");
-            BluetoothGattService service = gatt.getService(OTA_SERVICE);
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(OTA_CONTROL_CHARACTERISTIC);
-            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            characteristic.setValue(new byte[]{0x00});
-            gatt.writeCharacteristic(characteristic);// result will be handled in onCharacteristicWrite callback of gatt.
-        });
+        // The file picker stops the activity, staying bound keeps the service and its prepared
+        // image alive. A running rollout keeps going without the activity, binding again picks
+        // up its state.
+        bindService(new Intent(this, OtaService.class), connection, BIND_AUTO_CREATE);
     }
 
-    private void RequestMTU(BluetoothGatt gatt) {
-        gatt.requestMtu(MTU+3);
-    }//I dunno why but we neet to request 3 more for what required :/
-
-    private void OtaBegin(BluetoothGatt gatt) {
-        SetProgress(State.OtaBegin);
-
-        //Writing 0x00 to control characteristic to DFU mode  target device begins OTA process
-        handler.postDelayed(() -> {
-            BluetoothGattService service = gatt.getService(OTA_SERVICE);
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(OTA_CONTROL_CHARACTERISTIC);
-            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            characteristic.setValue(new byte[]{0x00});
-            gatt.writeCharacteristic(characteristic);
-        }, 500);
+    @Override
+    protected void onDestroy() {
+        if (service != null) {
+            service.removeObserver(this);
+            service = null;
+        }
+        unbindService(connection);
+        super.onDestroy();
     }
 
-    private void OtaUpload(BluetoothGatt gatt) {
-        SetProgress(State.OtaUpload);
-
-        ToastMessage("Uploading!");
-
-        index = 0;
-        new Thread(() -> {
-
-            boolean last = false;
-            int packageCount = 0;
-            while (!last) {
-                byte[] payload = new byte[MTU];
-                if (index + MTU >= firmwareFile.length) {
-                    int restSize = firmwareFile.length - index;
-                    System.arraycopy(firmwareFile, index, payload, 0, restSize); //copy rest bytes
-                    last = true;
-                } else {
-                    payload = Arrays.copyOfRange(firmwareFile, index, index + MTU);
-                }
-                BluetoothGattService service = gatt.getService(OTA_SERVICE);
-                BluetoothGattCharacteristic characteristic = service.getCharacteristic(OTA_DATA_CHARACTERISTIC);
-                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                characteristic.setValue(payload);
-                Log.d("OTA", "index :" + index + " firmware lenght:" + firmwareFile.length);
-                while (!gatt.writeCharacteristic(characteristic)) { // attempt to write until getting success
-                    try {
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                packageCount = packageCount + 1;
-                index = index + MTU;
-            }
-            Log.i("OTA", "OTA UPLOAD SEND DONE");
-            OtaEnd(gatt);
-        }).start();
+    @Override
+    public void onStateChanged(OtaJob job, OtaState state) {
+        SetProgress(state);
+        if (state == OtaState.Ready) {
+            bitrateTextView.setText("");
+        }
     }
 
-    private void OtaEnd(BluetoothGatt gatt) {
-        SetProgress(State.OtaEnd);
-
-        handler.postDelayed(() -> {
-            Log.i("OTA", "OTA END");
-            BluetoothGattCharacteristic endCharacteristic = gatt.getService(OTA_SERVICE).getCharacteristic(OTA_CONTROL_CHARACTERISTIC);
-            endCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            endCharacteristic.setValue(new byte[]{0x03});
-            int i = 0;
-            while (!gatt.writeCharacteristic(endCharacteristic)) {
-                i++;
-                Log.i("OTA", "Failed to write end 0x03 retry:" + i);
-            }
-        }, 1500);
+    @Override
+    public void onProgress(double bytesPerSecond, int percent) {
+        bitrateTextView.setText(Math.round(bytesPerSecond * 8 / 1000) + " kbit/s" + (percent >= 0 ? " " + percent + "%" : ""));
     }
 
-    private void ConnectOtaDevice(BluetoothGatt gatt) {
-
-        if (gatt != null) {
-            gatt.close();
-            gatt.disconnect();
+    @Override
+    public void onJobFinished(OtaJob job) {
+        boolean several = service != null && service.getJobCount() > 1;
+        if (job.getStatus() != OtaJob.Status.Succeeded) {
+            ToastMessage(several ? job.getAddress() + ": " + job.getError() : job.getError());
+            return;
         }
-        device = mBluetoothAdapter.getRemoteDevice(macAddress);
-        device.connectGatt(OtaActivity.this, false, new BluetoothGattCallback() {
-            // This is OTA devices callback
-            @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    //Here, we are connected to target device which is in DFU mode
-                    deviceName = device.getName();
-                    gatt.discoverServices(); // Directly discovering services
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    Log.i("OTA", "Disconnecting ");
-                    gatt.close();
-                    gatt.disconnect();
-                }
-            }
-
-            @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.i("OTA", "onServicesDiscovered deviceName: " + deviceName);
-                    //We have connected to device and discovered services
-                    OtaBegin(gatt);
-
-                }
-            }
-
-            @Override
-            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                super.onCharacteristicRead(gatt, characteristic, status);
-            }
-
-            @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                Log.i("OTA", "onCharacteristicWrite " + characteristic.getUuid().toString());
-                if (characteristic.getUuid().equals(OTA_CONTROL_CHARACTERISTIC) && characteristic.getValue()[0] == 0x00) {
-                    //OTA Begin written
-                    RequestMTU(gatt);// will be handled in onMtuChanged callback of gatt
-                } else if (characteristic.getUuid().equals(OTA_CONTROL_CHARACTERISTIC) && characteristic.getValue()[0] == 0x03) {
-                    //OTA End written
-                    SetProgress(State.Disconnecting);
-                    ToastMessage("Upload Done!");// will be handled in onMtuChanged callback of gatt
-                    RebootTargetDevice(gatt);
-                }
-                else if (characteristic.getUuid().equals(OTA_CONTROL_CHARACTERISTIC) && characteristic.getValue()[0] == 0x04) {
-                    //OTA End written
-                    SetProgress(State.Ready);
-                    ToastMessage("Upload Done!");// will be handled in onMtuChanged callback of gatt
-                }
-            }
-
-            @Override
-            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-                super.onMtuChanged(gatt, mtu, status);
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    Log.i("OTA", "onMtuChanged mtu: " + mtu);
-                    //We have successfully request MTU we can start upload process
-                    OtaUpload(gatt);
-
-                }
-            }
-        });
+        OtaSessionStats stats = job.getSession().getStats();
+        Log.i("OTA", "Upload stats " + job.getAddress() + " " + stats);
+        String done = stats.getVerification() == OtaVerifier.Result.Verified ? "Verified v" + stats.getRunningVersion() + "! " : "Upload Done! ";
+        ToastMessage(done + Math.round(stats.getBytesPerSecond() / 1024) + " kB/s, MTU " + stats.getNegotiatedMtu());
     }
 
-    private void RebootTargetDevice(BluetoothGatt gatt) {
-        handler.postDelayed(() -> {
-            BluetoothGattService service = gatt.getService(OTA_SERVICE);
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(OTA_CONTROL_CHARACTERISTIC);
-            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            characteristic.setValue(new byte[]{0x04});
-            gatt.writeCharacteristic(characteristic);
-        }, 500);
+    @Override
+    public void onMessage(String message) {
+        ToastMessage(message);
     }
 
-
-    private void ConnectDelayedForOTA(BluetoothGatt gatt) {
-        SetProgress(State.Reconnecting);
-
-        //after writing 0x00 to target device device will reboot into DFU mode
-        //We are waiting a little bit just to be sure
-        handler.postDelayed(() -> {
-            Log.i("OTA", "CONNECTING FOR OTA");
-            ConnectOtaDevice(gatt);
-        }, 5000);
-
+    @Override
+    public void onImageChanged(CachedImage image, String name) {
+        if (name != null) {
+            fileNameTextView.setText(image != null
+                    ? name + " (app version " + image.getGblInfo().getApplicationVersion() + ")" : name);
+        }
+        startOtaButton.setEnabled(image != null);
     }
 
     private void ToastMessage(String message) {
@@ -356,7 +173,7 @@ public class OtaActivity extends AppCompatActivity {
         });
     }
 
-    private void SetProgress(String state) {
+    private void SetProgress(OtaState state) {
         runOnUiThread(() -> {
             for (ProgressBar bar : progressMap.values()) {
                 bar.setVisibility(View.INVISIBLE);
@@ -368,14 +185,23 @@ public class OtaActivity extends AppCompatActivity {
     }
 
 
+    // one or more addresses separated by commas or whitespace, none updates every device the scan finds
     private boolean CheckMacAddress() {
-        macAddress = macAddressTextView.getText().toString().trim().toUpperCase();
-        if (BluetoothAdapter.checkBluetoothAddress(macAddress)) {
+        macAddresses.clear();
+        String typed = macAddressTextView.getText().toString().trim().toUpperCase();
+        if (typed.isEmpty()) {
             return true;
-        } else {
-            ToastMessage("Mac Address not valid");
-            return false;
         }
+        for (String address : typed.split("[,\\s]+")) {
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+                ToastMessage("Mac Address not valid");
+                return false;
+            }
+            if (!macAddresses.contains(address)) {
+                macAddresses.add(address);
+            }
+        }
+        return true;
     }
 
     private boolean CheckBluetoothEnabled() {
@@ -467,16 +293,12 @@ public class OtaActivity extends AppCompatActivity {
     private void PrepareFile(Uri uri) {
         ToastMessage(uri.getLastPathSegment());
         fileNameTextView.setText(uri.getLastPathSegment());
-        startOtaButton.setEnabled(true);
-        try {
-            InputStream in = getContentResolver().openInputStream(uri);
-
-            firmwareFile = new byte[in.available()];
-            in.read(firmwareFile, 0, in.available());
-            in.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        startOtaButton.setEnabled(false);
+        if (service == null) {
+            pendingUri = uri;
+            return;
         }
+        service.prepareImage(uri, uri.getLastPathSegment());
     }
 
     @Override
@@ -0,0 +1,651 @@
+package com.sensemore.slilabs.ota;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.sensemore.slilabs.ota.engine.CheckpointStore;
+import com.sensemore.slilabs.ota.engine.JobJournal;
+import com.sensemore.slilabs.ota.engine.OtaConfig;
+import com.sensemore.slilabs.ota.engine.OtaJob;
+import com.sensemore.slilabs.ota.engine.OtaJobScheduler;
+import com.sensemore.slilabs.ota.engine.OtaProtocol;
+import com.sensemore.slilabs.ota.engine.OtaSessionReport;
+import com.sensemore.slilabs.ota.engine.OtaState;
+import com.sensemore.slilabs.ota.engine.TuningStore;
+import com.sensemore.slilabs.ota.engine.image.CachedImage;
+import com.sensemore.slilabs.ota.engine.image.ChannelSource;
+import com.sensemore.slilabs.ota.engine.image.FirmwareSource;
+import com.sensemore.slilabs.ota.engine.image.GblCompressingSource;
+import com.sensemore.slilabs.ota.engine.image.ImageCache;
+import com.sensemore.slilabs.ota.engine.image.ReadAheadSource;
+import com.sensemore.slilabs.ota.engine.scan.AdvertisementFilter;
+import com.sensemore.slilabs.ota.engine.scan.DeviceTable;
+import com.sensemore.slilabs.ota.engine.scan.ScannedDevice;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Owns the OTA engine so a rollout outlives the activity: image cache, scanner, job queue
+ * and session threads live here, the activity binds and observes. While a rollout runs the
+ * service is started and in the foreground with a progress notification, so neither the
+ * activity going away nor the screen turning off stops it. A partial wake lock is held only
+ * while a session is running, scanning and idle time run without it.
+ */
+public class OtaService extends Service implements OtaJobScheduler.Listener {
+
+    /** Events of the running rollout, on the main thread. */
+    public interface Observer {
+        // job is null when the rollout went idle
+        void onStateChanged(OtaJob job, OtaState state);
+
+        // aggregate over running sessions, percent of the latest job or -1
+        void onProgress(double bytesPerSecond, int percent);
+
+        void onJobFinished(OtaJob job);
+
+        void onMessage(String message);
+
+        // null while a picked file is being read or when it was rejected
+        void onImageChanged(CachedImage image, String name);
+    }
+
+    public class LocalBinder extends Binder {
+        public OtaService getService() {
+            return OtaService.this;
+        }
+    }
+
+    private static final String CHANNEL_ID = "ota";
+    private static final int NOTIFICATION_ID = 1;
+    private static final long CONNECT_TIMEOUT = 10000;
+    private static final int READ_AHEAD_SIZE = 64 * 1024;
+    // sessions run side by side, below the connection limit of most phone controllers
+    private static final int MAX_CONCURRENT_SESSIONS = 4;
+    private static final long PROGRESS_REFRESH_MILLIS = 250;
+    // notifications are rate limited by the system, and each one costs a binder call
+    private static final long NOTIFICATION_REFRESH_MILLIS = 1000;
+    // picked images kept for later rollouts, least recently used go first
+    private static final long IMAGE_CACHE_BYTES = 32 * 1024 * 1024;
+    // devices heard within this window are updated, strongest signal first
+    private static final long SCAN_WINDOW_MILLIS = 3000;
+    private static final int MIN_RSSI = -90;
+    // renewed while sessions run, a lock leaked by a crash ends on its own
+    private static final long WAKE_LOCK_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private final IBinder binder = new LocalBinder();
+    // changed and called on the main thread, the coordinator only checks for none
+    private final List<Observer> observers = new CopyOnWriteArrayList<>();
+    private Handler main;
+
+    // job queue, scanning and report writing, off the main thread
+    private HandlerScheduler coordinator;
+    // journal flushes, their fsync holds up nothing else
+    private HandlerScheduler journalThread;
+    // opened on the coordinator, null when the files dir can't be written
+    private volatile JobJournal journal;
+    // coordinator thread only, interrupted jobs found on start
+    private boolean resuming;
+    // coordinator thread only
+    private ImageCache imageCache;
+    private DeviceTable deviceTable;
+    private BleScanner scanner;
+    private PowerManager.WakeLock wakeLock;
+    private long wakeLockRenewed;
+    private long lastProgressRefresh;
+    private long lastNotificationRefresh;
+    private Notification.Builder notification;
+
+    // picked image, copied into the cache and validated once
+    private volatile CachedImage firmwareImage;
+    private volatile String firmwareName;
+    private volatile OtaJobScheduler fleet;
+    // size of the fleet's job list, which only the coordinator may read
+    private volatile int jobCount;
+    // off by default, bootloaders without the LZ4 decompressor get the raw image only after a refused upload
+    private volatile boolean compression;
+    // last state and job, replayed to observers that bind later
+    private volatile OtaState state = OtaState.Ready;
+    private volatile OtaJob stateJob;
+    private volatile boolean destroyed;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        main = new Handler(Looper.getMainLooper());
+        coordinator = HandlerScheduler.onNewThread("jobs");
+        journalThread = HandlerScheduler.onNewThread("journal");
+        coordinator.post(() -> {
+            imageCache = new ImageCache(new File(getCacheDir(), "images"), IMAGE_CACHE_BYTES);
+            OpenJournal();
+        });
+        deviceTable = new DeviceTable(new AdvertisementFilter().setServiceUuid(OtaProtocol.OTA_SERVICE).setMinRssi(MIN_RSSI));
+        deviceTable.setListener(device -> {
+            OtaJobScheduler running = fleet;
+            if (running != null) {
+                running.onAdvertising(device.getAddress(), device.isDfuMode());
+            }
+        });
+        PowerManager power = (PowerManager) getSystemService(POWER_SERVICE);
+        wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "OTA:transfer");
+        wakeLock.setReferenceCounted(false);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "Firmware updates",
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // restart after the process was killed, only worth staying for interrupted jobs
+            coordinator.post(() -> {
+                if (!resuming) {
+                    Stop();
+                }
+            });
+        }
+        // restarted after the process is killed, the journal then resumes the interrupted jobs
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        coordinator.post(() -> {
+            if (scanner != null) {
+                scanner.stop();
+            }
+            ReleaseWakeLock();
+        });
+        destroyed = true;
+        if (fleet == null || fleet.isIdle()) {
+            ShutDown();
+        } else {
+            // sessions close their links first, onIdle ends the thread
+            fleet.cancelAll();
+        }
+        super.onDestroy();
+    }
+
+    // Main thread. The observer is brought up to date right away.
+    public void addObserver(Observer observer) {
+        observers.add(observer);
+        observer.onImageChanged(firmwareImage, firmwareName);
+        observer.onStateChanged(stateJob, state);
+    }
+
+    public void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    public CachedImage getImage() {
+        return firmwareImage;
+    }
+
+    // jobs of the current or last rollout
+    public int getJobCount() {
+        return jobCount;
+    }
+
+    // send program data LZ4 compressed from the next rollout on
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+        CachedImage image = firmwareImage;
+        if (compression && image != null) {
+            coordinator.post(() -> Compress(image));
+        }
+    }
+
+    public boolean isRunning() {
+        OtaJobScheduler running = fleet;
+        return running != null && !running.isIdle();
+    }
+
+    // the whole file is read once, off the main thread, and validated on the way into the cache
+    public void prepareImage(Uri uri, String name) {
+        firmwareImage = null;
+        firmwareName = name;
+        Dispatch(observer -> observer.onImageChanged(null, name));
+        coordinator.post(() -> {
+            try {
+                CachedImage image = imageCache.put(OpenFirmware(uri));
+                Log.i("OTA", "Image " + image.getContentHash() + " cached, " + imageCache.size() + " images "
+                        + imageCache.getTotalBytes() + " bytes");
+                firmwareImage = image;
+                Dispatch(observer -> observer.onImageChanged(image, name));
+                if (compression) {
+                    // here rather than in the scan window, the coordinator also takes the scan results
+                    Compress(image);
+                }
+            } catch (IOException e) {
+                Log.w("OTA", "Rejected firmware file", e);
+                Dispatch(observer -> observer.onMessage("Not a valid .gbl file"));
+            }
+        });
+    }
+
+    /**
+     * Scans for a moment and updates the given addresses, every device found when none are
+     * given. False when a rollout is running or no image was prepared.
+     */
+    public boolean start(List<String> addresses) {
+        if (isRunning()) {
+            Message("OTA already running");
+            return false;
+        }
+        // every job of the run reads the one mapped copy in the cache
+        CachedImage image = firmwareImage;
+        if (image == null) {
+            Message("Choose a firmware file");
+            return false;
+        }
+        List<String> selected = new ArrayList<>(addresses);
+        Message("Scanning");
+        Launch(image, () -> SubmitScanned(image, selected));
+        return true;
+    }
+
+    // Main thread. Scans for a moment, then submit runs on the coordinator.
+    private void Launch(CachedImage image, Runnable submit) {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        // the scanner reports the bootloader's advertisement, reconnects wait for it. The
+        // rebooted application's advertisement starts the version check after the update.
+        OtaConfig config = new OtaConfig().setConnectTimeoutMillis(CONNECT_TIMEOUT).setConnectOnAdvertisement(true)
+                .setVerifyAfterUpdate(true);
+        // every connection runs its session and GATT queue on a looper thread of its own
+        jobCount = 0;
+        fleet = new OtaJobScheduler((address, scheduler) -> new GattTransport(this, adapter, address, scheduler),
+                coordinator, HandlerScheduler::onNewThread, config, MAX_CONCURRENT_SESSIONS, this);
+        // survives the app being killed mid-upload
+        fleet.setCheckpointStore(new CheckpointStore.Directory(new File(getFilesDir(), "checkpoints")));
+        // payload size, PHY and window learned per device model and phone
+        fleet.setLinkTuning(new TuningStore.Directory(new File(getFilesDir(), "tuning")), this::TuningKey);
+        // outcome of every job, kept across runs and process deaths
+        fleet.setJournal(journal);
+
+        // started as well as bound, so the rollout goes on when the activity unbinds
+        startService(new Intent(this, OtaService.class));
+        notification = NotificationBuilder().setContentText("Scanning");
+        startForeground(NOTIFICATION_ID, notification.build());
+        coordinator.post(() -> {
+            deviceTable.clear();
+            if (scanner == null) {
+                scanner = new BleScanner(adapter, coordinator, deviceTable);
+            }
+            // the scan window looks for devices, sessions switch the mode once they upload
+            scanner.setLowLatency(true);
+            if (!scanner.start()) {
+                Message("Can't scan, is Bluetooth on?");
+                Stop();
+                return;
+            }
+            // compressed when the image was prepared or compression turned on
+            CachedImage packed = compression ? imageCache.getCompressed(image.getContentHash()) : null;
+            if (packed != null) {
+                fleet.setCompressedImages(raw -> raw == image ? packed : null);
+            }
+            coordinator.postDelayed(submit, SCAN_WINDOW_MILLIS);
+        });
+    }
+
+    public void cancelAll() {
+        OtaJobScheduler running = fleet;
+        if (running != null) {
+            running.cancelAll();
+        }
+    }
+
+    // Coordinator thread. A missing journal only costs recovery and history.
+    private void OpenJournal() {
+        try {
+            journal = new JobJournal(new File(getFilesDir(), "jobs.journal"), journalThread);
+        } catch (IOException e) {
+            Log.w("OTA", "No job journal", e);
+            return;
+        }
+        if (journal.getDroppedLines() > 0) {
+            Log.w("OTA", "Journal had " + journal.getDroppedLines() + " torn lines");
+        }
+        // jobs the last process died under, resumed with the image they had if it is still cached
+        for (JobJournal.Record record : journal.getInterrupted()) {
+            CachedImage image = imageCache.get(record.getImageHash());
+            if (image != null) {
+                resuming = true;
+                main.post(() -> Resume(image));
+                return;
+            }
+        }
+    }
+
+    // Main thread.
+    private void Resume(CachedImage image) {
+        if (isRunning() || destroyed) {
+            return;
+        }
+        firmwareImage = image;
+        firmwareName = "interrupted update";
+        Dispatch(observer -> observer.onImageChanged(image, firmwareName));
+        Message("Resuming interrupted updates");
+        Launch(image, () -> {
+            List<OtaJob> jobs = fleet.resubmitInterrupted(imageCache::get);
+            Log.i("OTA", "Resumed " + jobs.size() + " interrupted jobs");
+            if (jobs.isEmpty()) {
+                scanner.stop();
+                Stop();
+            }
+        });
+    }
+
+    // Coordinator thread, last task of it and of the journal thread.
+    private void ShutDown() {
+        coordinator.post(() -> {
+            JobJournal current = journal;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    Log.w("OTA", "Journal not closed", e);
+                }
+            }
+            journalThread.shutdown();
+        });
+        coordinator.shutdown();
+    }
+
+    // Coordinator thread. Null when the image can't be compressed, e.g. a signed one. An image
+    // compressed before is taken from the cache.
+    private CachedImage Compress(CachedImage image) {
+        CachedImage cached = imageCache.getCompressed(image.getContentHash());
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            CachedImage packed = imageCache.putCompressed(image.getContentHash(), new GblCompressingSource(image.open()));
+            Log.i("OTA", "Compressed " + image.getLength() + " to " + packed.getLength() + " bytes");
+            return packed;
+        } catch (IOException e) {
+            Log.w("OTA", "Sending the image uncompressed", e);
+            return null;
+        }
+    }
+
+    // Coordinator thread. The advertised name stands for model and firmware, the bootloader
+    // exposes nothing better before the upload.
+    private String TuningKey(String address) {
+        ScannedDevice device = deviceTable.get(address);
+        String name = device != null && device.getName() != null ? device.getName() : "unnamed";
+        return name + "@" + Build.MANUFACTURER + " " + Build.MODEL;
+    }
+
+    // Coordinator thread. Devices that did not advertise in the window are reported right away
+    // instead of waiting out a connect timeout, the rest start strongest first.
+    private void SubmitScanned(CachedImage image, List<String> selected) {
+        List<ScannedDevice> found = deviceTable.bySignal(coordinator.uptimeMillis() - SCAN_WINDOW_MILLIS);
+        int priority = found.size();
+        int submitted = 0;
+        int upToDate = 0;
+        for (ScannedDevice device : found) {
+            // updating everything in range skips devices the journal saw take this image
+            if (selected.isEmpty() && journal != null && journal.hasInstalled(device.getAddress(), image.getContentHash())) {
+                upToDate++;
+                continue;
+            }
+            if (selected.isEmpty() || selected.contains(device.getAddress())) {
+                Log.i("OTA", "Queued " + device);
+                fleet.submit(device.getAddress(), image, priority--);
+                submitted++;
+            }
+        }
+        for (String address : selected) {
+            if (deviceTable.get(address) == null) {
+                Message(address + " is not advertising");
+            }
+        }
+        if (upToDate > 0) {
+            Message(upToDate + " devices already run this image");
+        }
+        if (submitted == 0) {
+            Message(upToDate > 0 ? "Every device found is up to date" : "No device found");
+            scanner.stop();
+            Stop();
+        }
+    }
+
+    @Override
+    public void onJobStateChanged(OtaJob job, OtaState state) {
+        this.state = state;
+        this.stateJob = job;
+        jobCount = fleet.getJobs().size();
+        UpdateWakeLock();
+        UpdateScanMode();
+        Dispatch(observer -> observer.onStateChanged(job, state));
+        if (state == OtaState.OtaUpload) {
+            Message(fleet.getJobs().size() > 1 ? "Uploading to " + job.getAddress() : "Uploading!");
+        }
+    }
+
+    @Override
+    public void onJobProgress(OtaJob job, int bytesSent, int totalBytes) {
+        // coalesced per session but still frequent, observers and the notification get a few updates a second
+        long now = SystemClock.uptimeMillis();
+        if (now - lastProgressRefresh < PROGRESS_REFRESH_MILLIS) {
+            return;
+        }
+        lastProgressRefresh = now;
+        UpdateWakeLock();
+        double bytesPerSecond = 0;
+        for (OtaJob running : fleet.getJobs()) {
+            if (running.getStatus() == OtaJob.Status.Running) {
+                bytesPerSecond += running.getSession().getStats().getRunningBytesPerSecond();
+            }
+        }
+        int percent = totalBytes > 0 ? (int) (100L * bytesSent / totalBytes) : -1;
+        double rate = bytesPerSecond;
+        if (!observers.isEmpty()) {
+            Dispatch(observer -> observer.onProgress(rate, percent));
+        }
+        if (now - lastNotificationRefresh >= NOTIFICATION_REFRESH_MILLIS) {
+            lastNotificationRefresh = now;
+            Notify(Math.round(rate * 8 / 1000) + " kbit/s, " + fleet.getRunning() + " running", percent);
+        }
+    }
+
+    @Override
+    public void onJobFinished(OtaJob job) {
+        if (job.getSession() != null) {
+            SaveReport(job);
+        }
+        jobCount = fleet.getJobs().size();
+        UpdateWakeLock();
+        UpdateScanMode();
+        Dispatch(observer -> observer.onJobFinished(job));
+    }
+
+    @Override
+    public void onIdle() {
+        state = OtaState.Ready;
+        stateJob = null;
+        Dispatch(observer -> observer.onStateChanged(null, OtaState.Ready));
+        if (scanner != null) {
+            scanner.stop();
+        }
+        Stop();
+        if (destroyed) {
+            ShutDown();
+        }
+    }
+
+    // Coordinator thread. Held from the first running session to the last verified device.
+    private void UpdateWakeLock() {
+        OtaJobScheduler current = fleet;
+        if (current == null || current.getRunning() + current.getVerifying() == 0) {
+            ReleaseWakeLock();
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (!wakeLock.isHeld() || now - wakeLockRenewed > WAKE_LOCK_TIMEOUT_MILLIS / 2) {
+            wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+            wakeLockRenewed = now;
+        }
+    }
+
+    // Coordinator thread. Scan windows compete with the connection events of running uploads,
+    // low latency only pays while a job waits for a sighting or a reboot advertisement.
+    private void UpdateScanMode() {
+        OtaJobScheduler current = fleet;
+        if (current == null || scanner == null) {
+            return;
+        }
+        boolean waiting = false;
+        boolean uploading = false;
+        for (OtaJob job : current.getJobs()) {
+            if (job.getStatus() == OtaJob.Status.Verifying || job.getState() == OtaState.Reconnecting) {
+                waiting = true;
+            } else if (job.getStatus() == OtaJob.Status.Running) {
+                uploading = true;
+            }
+        }
+        scanner.setLowLatency(waiting || !uploading);
+    }
+
+    private void ReleaseWakeLock() {
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
+    // leaves the foreground, the service lives on while the activity is bound
+    private void Stop() {
+        ReleaseWakeLock();
+        stopForeground(true);
+        stopSelf();
+    }
+
+    private Notification.Builder NotificationBuilder() {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(this, CHANNEL_ID) : new Notification.Builder(this);
+        Intent open = new Intent(this, OtaActivity.class);
+        return builder.setSmallIcon(android.R.drawable.stat_sys_upload)
+                .setContentTitle("Updating firmware")
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setCategory(Notification.CATEGORY_PROGRESS)
+                .setContentIntent(PendingIntent.getActivity(this, 0, open,
+                        PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+    }
+
+    private void Notify(String text, int percent) {
+        Notification.Builder builder = notification;
+        if (builder == null) {
+            return;
+        }
+        builder.setContentText(text).setProgress(100, Math.max(percent, 0), percent < 0);
+        ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_ID, builder.build());
+    }
+
+    // one JSON file per session plus a CSV row per session in sessions.csv, under the app's files
+    private void SaveReport(OtaJob job) {
+        File directory = getExternalFilesDir("reports");
+        if (directory == null) {
+            return;
+        }
+        String name = job.getAddress().replace(":", "") + "-" + System.currentTimeMillis();
+        try (Writer json = new FileWriter(new File(directory, name + ".json"))) {
+            json.write(OtaSessionReport.toJson(job.getAddress(), job.getSession().getStats(), job.getError()));
+        } catch (IOException e) {
+            Log.w("OTA", "Can't write session report", e);
+        }
+        File csv = new File(directory, "sessions.csv");
+        boolean header = !csv.exists();
+        try (Writer out = new FileWriter(csv, true)) {
+            if (header) {
+                out.write(OtaSessionReport.csvHeader() + "\n");
+            }
+            out.write(OtaSessionReport.toCsvRow(job.getAddress(), job.getSession().getStats(), job.getError()) + "\n");
+        } catch (IOException e) {
+            Log.w("OTA", "Can't append session report", e);
+        }
+    }
+
+    private void Message(String message) {
+        Dispatch(observer -> observer.onMessage(message));
+    }
+
+    private interface Event {
+        void deliver(Observer observer);
+    }
+
+    private void Dispatch(Event event) {
+        main.post(() -> {
+            for (Observer observer : observers) {
+                event.deliver(observer);
+            }
+        });
+    }
+
+    // Picked file is read through its file descriptor when the provider gives one, otherwise
+    // read ahead from the stream into a bounded buffer.
+    private FirmwareSource OpenFirmware(Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.w("OTA", "No file descriptor for " + uri + ", streaming instead");
+        }
+        if (descriptor != null && descriptor.getStatSize() >= 0) {
+            FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+            return new ChannelSource(channel);
+        }
+        if (descriptor != null) {
+            descriptor.close();
+        }
+        InputStream in = getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return new ReadAheadSource(in, QueryDeclaredSize(uri), READ_AHEAD_SIZE);
+    }
+
+    private long QueryDeclaredSize(Uri uri) {
+        try (Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int column = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (column >= 0 && !cursor.isNull(column)) {
+                    return cursor.getLong(column);
+                }
+            }
+        }
+        return FirmwareSource.UNKNOWN_LENGTH;
+    }
+}
@@ -0,0 +1,38 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Bounded exponential backoff: the delay doubles after every attempt up to a ceiling and
+ * the number of attempts is limited.
+ */
+public class Backoff {
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final int maxAttempts;
+    private int attempts;
+
+    public Backoff(long initialMillis, long maxMillis, int maxAttempts) {
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public boolean canRetry() {
+        return attempts < maxAttempts;
+    }
+
+    // delay before the next attempt, counts the attempt
+    public long nextDelayMillis() {
+        long delay = initialMillis << Math.min(attempts, 30);
+        attempts++;
+        return Math.min(maxMillis, delay);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+}
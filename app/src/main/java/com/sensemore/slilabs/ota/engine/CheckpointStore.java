@@ -0,0 +1,101 @@
+package com.sensemore.slilabs.ota.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps the last checkpoint of every device so an update interrupted by a lost link, or by
+ * the app being killed, can continue where it stopped.
+ */
+public interface CheckpointStore {
+
+    // null when the device has no unfinished upload
+    OtaCheckpoint load(String address);
+
+    void save(OtaCheckpoint checkpoint);
+
+    void clear(String address);
+
+    class InMemory implements CheckpointStore {
+
+        private final Map<String, OtaCheckpoint> checkpoints = new HashMap<>();
+
+        @Override
+        public synchronized OtaCheckpoint load(String address) {
+            return checkpoints.get(address);
+        }
+
+        @Override
+        public synchronized void save(OtaCheckpoint checkpoint) {
+            checkpoints.put(checkpoint.getAddress(), checkpoint);
+        }
+
+        @Override
+        public synchronized void clear(String address) {
+            checkpoints.remove(address);
+        }
+    }
+
+    // one small properties file per device, replaced atomically on every save
+    class Directory implements CheckpointStore {
+
+        private final File directory;
+
+        public Directory(File directory) {
+            this.directory = directory;
+            directory.mkdirs();
+        }
+
+        private File FileOf(String address) {
+            return new File(directory, address.replace(':', '_') + ".checkpoint");
+        }
+
+        @Override
+        public synchronized OtaCheckpoint load(String address) {
+            File file = FileOf(address);
+            if (!file.isFile()) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                return new OtaCheckpoint(properties.getProperty("address"), properties.getProperty("imageHash"),
+                        Long.parseLong(properties.getProperty("offset")), Long.parseLong(properties.getProperty("savedMillis")));
+            } catch (IOException | RuntimeException e) {
+                // unreadable checkpoint only costs a restart from zero
+                return null;
+            }
+        }
+
+        @Override
+        public synchronized void save(OtaCheckpoint checkpoint) {
+            Properties properties = new Properties();
+            properties.setProperty("address", checkpoint.getAddress());
+            properties.setProperty("imageHash", checkpoint.getImageHash());
+            properties.setProperty("offset", Long.toString(checkpoint.getOffset()));
+            properties.setProperty("savedMillis", Long.toString(checkpoint.getSavedMillis()));
+            File file = FileOf(checkpoint.getAddress());
+            File temp = new File(directory, file.getName() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, null);
+            } catch (IOException e) {
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        }
+
+        @Override
+        public synchronized void clear(String address) {
+            FileOf(address).delete();
+        }
+    }
+}
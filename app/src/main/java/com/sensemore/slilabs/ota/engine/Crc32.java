@@ -0,0 +1,32 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * CRC-32 as in {@link java.util.zip.CRC32} that can continue from any earlier value, so an
+ * upload can go back to the CRC of a confirmed offset without hashing the image again.
+ */
+public final class Crc32 {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLE[n] = c;
+        }
+    }
+
+    private Crc32() {
+    }
+
+    // crc is a value returned earlier, 0 for no data
+    public static long update(long crc, byte[] buffer, int offset, int length) {
+        int c = ~(int) crc;
+        for (int i = offset; i < offset + length; i++) {
+            c = TABLE[(c ^ buffer[i]) & 0xFF] ^ (c >>> 8);
+        }
+        return ~c & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,241 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArraySource;
+import com.sensemore.slilabs.ota.engine.image.FirmwareSource;
+
+import java.io.IOException;
+
+/**
+ * Slices the firmware image into payloads without allocating per packet. Full payloads are
+ * read straight from the source into a ring of reusable buffers, one buffer per write in
+ * flight, the final payload goes into a buffer of exactly the remaining length so no
+ * padding reaches the device.
+ * <p>
+ * With a replay capacity the chunker also keeps a copy of everything read since the last
+ * {@link #mark()}, {@link #reset()} then hands out the same payloads again without going
+ * back to the source.
+ */
+public class FirmwareChunker {
+
+    private final FirmwareSource source;
+    private final int maxPayloadSize;
+    private int payloadSize;
+    private byte[][] pool;
+    // lengths of payloads in flight, oldest first
+    private final int[] inFlightLengths;
+    private byte[] tail;
+
+    private long offset;
+    private int slot;
+    private int oldest;
+    private int outstanding;
+    private byte[] prepared;
+    private boolean endOfImage;
+
+    // bytes read since markOffset, replayPosition of them were handed out by Prepare
+    private final byte[] replay;
+    private int replayLength;
+    private int replayPosition;
+    private long markOffset;
+
+    // bytes read from the source for a payload that was never handed out, read again first
+    private byte[] pushback;
+    private int pushbackPosition;
+
+    public FirmwareChunker(byte[] firmwareFile, int payloadSize, int poolSize) {
+        this(new ByteArraySource(firmwareFile), payloadSize, poolSize);
+    }
+
+    public FirmwareChunker(FirmwareSource source, int payloadSize, int poolSize) {
+        this(source, payloadSize, poolSize, 0);
+    }
+
+    // replayCapacity bounds the bytes between mark and reset, plus one payload read ahead
+    public FirmwareChunker(FirmwareSource source, int payloadSize, int poolSize, int replayCapacity) {
+        this.source = source;
+        this.maxPayloadSize = payloadSize;
+        this.payloadSize = payloadSize;
+        this.pool = new byte[poolSize][payloadSize];
+        this.inFlightLengths = new int[poolSize + 1];
+        this.replay = replayCapacity > 0 ? new byte[replayCapacity + payloadSize] : null;
+    }
+
+    public boolean hasNext() throws IOException {
+        return Prepare() != null;
+    }
+
+    // bytes handed to the transport so far
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Slices the following payloads to a new size, at most the size the chunker was built
+     * with. Every payload handed out must be released first, a peeked one is sliced again.
+     */
+    public void setPayloadSize(int newPayloadSize) {
+        if (newPayloadSize < 1 || newPayloadSize > maxPayloadSize) {
+            throw new IllegalArgumentException("Payload size " + newPayloadSize + " outside 1.." + maxPayloadSize);
+        }
+        if (outstanding > 0) {
+            throw new IllegalStateException(outstanding + " payloads still in flight");
+        }
+        if (newPayloadSize == payloadSize) {
+            return;
+        }
+        if (prepared != null) {
+            if (replay != null) {
+                // the replay buffer holds the peeked bytes already
+                replayPosition -= prepared.length;
+            } else {
+                pushback = prepared.clone();
+                pushbackPosition = 0;
+            }
+            prepared = null;
+        }
+        payloadSize = newPayloadSize;
+        pool = new byte[pool.length][newPayloadSize];
+        slot = 0;
+    }
+
+    // offset reset() returns to
+    public long getMarkOffset() {
+        return markOffset;
+    }
+
+    // bytes before the current offset won't be needed again
+    public void mark() {
+        if (replay == null) {
+            throw new IllegalStateException("Chunker has no replay buffer");
+        }
+        int done = (int) (offset - markOffset);
+        System.arraycopy(replay, done, replay, 0, replayLength - done);
+        replayLength -= done;
+        replayPosition -= done;
+        markOffset = offset;
+    }
+
+    // goes back to the marked offset, every payload handed out must be released first
+    public void reset() {
+        if (replay == null) {
+            throw new IllegalStateException("Chunker has no replay buffer");
+        }
+        if (outstanding > 0) {
+            throw new IllegalStateException(outstanding + " payloads still in flight");
+        }
+        offset = markOffset;
+        replayPosition = 0;
+        prepared = null;
+    }
+
+    // payload at the current offset, stays the same until advance() so a rejected write can retry it
+    public byte[] peek() throws IOException {
+        byte[] payload = Prepare();
+        if (payload == null) {
+            throw new IllegalStateException("No payload left at offset " + offset);
+        }
+        return payload;
+    }
+
+    // marks the peeked payload as handed to the transport
+    public void advance() throws IOException {
+        byte[] payload = peek();
+        offset += payload.length;
+        if (payload != tail) {
+            slot = (slot + 1) % pool.length;
+        }
+        inFlightLengths[(oldest + outstanding) % inFlightLengths.length] = payload.length;
+        outstanding++;
+        prepared = null;
+    }
+
+    // oldest payload in flight completed, its buffer may be reused. Returns its length.
+    public int release() {
+        if (outstanding == 0) {
+            return 0;
+        }
+        int length = inFlightLengths[oldest];
+        oldest = (oldest + 1) % inFlightLengths.length;
+        outstanding--;
+        return length;
+    }
+
+    private byte[] Prepare() throws IOException {
+        if (prepared != null) {
+            return prepared;
+        }
+        boolean replaying = replay != null && replayPosition < replayLength;
+        if (endOfImage && !replaying && pushback == null) {
+            return null;
+        }
+        if (outstanding == pool.length) {
+            throw new IllegalStateException("All " + pool.length + " chunk buffers are in flight");
+        }
+        byte[] buffer = pool[slot];
+        int length;
+        if (replaying) {
+            length = Math.min(payloadSize, replayLength - replayPosition);
+            System.arraycopy(replay, replayPosition, buffer, 0, length);
+            replayPosition += length;
+        } else {
+            length = ReadFully(buffer);
+            if (replay != null) {
+                if (replayLength + length > replay.length) {
+                    throw new IllegalStateException("Replay buffer of " + replay.length + " bytes is full");
+                }
+                System.arraycopy(buffer, 0, replay, replayLength, length);
+                replayLength += length;
+                replayPosition = replayLength;
+            }
+        }
+        if (length < payloadSize) {
+            if (!replaying) {
+                endOfImage = true;
+                ValidateLength();
+            }
+            if (length == 0) {
+                return null;
+            }
+            // final payload, sent with its exact length
+            tail = new byte[length];
+            System.arraycopy(buffer, 0, tail, 0, length);
+            buffer = tail;
+        }
+        prepared = buffer;
+        return prepared;
+    }
+
+    private int ReadFully(byte[] buffer) throws IOException {
+        int filled = 0;
+        if (pushback != null) {
+            filled = Math.min(buffer.length, pushback.length - pushbackPosition);
+            System.arraycopy(pushback, pushbackPosition, buffer, 0, filled);
+            pushbackPosition += filled;
+            if (pushbackPosition == pushback.length) {
+                pushback = null;
+            }
+        }
+        while (filled < buffer.length && !endOfImage) {
+            int read = source.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    private void ValidateLength() throws IOException {
+        long declared = source.getDeclaredLength();
+        if (source.getPosition() == 0) {
+            throw new IOException("Firmware image is empty");
+        }
+        if (declared != FirmwareSource.UNKNOWN_LENGTH && declared != source.getPosition()) {
+            throw new IOException("Firmware image truncated, expected " + declared + " bytes but read " + source.getPosition());
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.GblInfo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only history of jobs that outlives the app: one line per job event, so after a
+ * crash or kill the last state of every device is known, interrupted jobs can be submitted
+ * again and rollouts can be queried, e.g. which devices still miss an image.
+ * <p>
+ * Events are buffered and written with a single fsync at most every {@code flushMillis}, a
+ * rollout of many devices costs a few small writes a second whatever the upload rate.
+ * Progress is not journaled, the {@link CheckpointStore} keeps upload offsets. A line is
+ * {@code millis event address imageHash version detail crc} separated by tabs, the CRC32
+ * covers the rest of the line. A torn or corrupt tail is cut off when the journal opens, a
+ * journal grown past {@code compactBytes} is first rewritten as the few lines that rebuild
+ * each device's record.
+ */
+public class JobJournal implements Closeable {
+
+    public enum Event {
+        Submitted,
+        Started,
+        State,
+        Succeeded,
+        Failed,
+        Cancelled
+    }
+
+    // what the journal knows about one device
+    public static class Record {
+
+        private final String address;
+        private Event lastEvent;
+        private long lastMillis;
+        private String imageHash;
+        private int applicationVersion = -1;
+        private int priority;
+        private OtaState state = OtaState.Ready;
+        private String error;
+        private String installedHash;
+        private int installedVersion = -1;
+
+        Record(String address) {
+            this.address = address;
+        }
+
+        Record(Record other) {
+            address = other.address;
+            lastEvent = other.lastEvent;
+            lastMillis = other.lastMillis;
+            imageHash = other.imageHash;
+            applicationVersion = other.applicationVersion;
+            priority = other.priority;
+            state = other.state;
+            error = other.error;
+            installedHash = other.installedHash;
+            installedVersion = other.installedVersion;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public Event getLastEvent() {
+            return lastEvent;
+        }
+
+        // wall clock time of the last event
+        public long getLastMillis() {
+            return lastMillis;
+        }
+
+        // image of the last job
+        public String getImageHash() {
+            return imageHash;
+        }
+
+        // -1 when the image carried no application version
+        public int getApplicationVersion() {
+            return applicationVersion;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        // last session state of the last job
+        public OtaState getState() {
+            return state;
+        }
+
+        // why the last job failed or was cancelled, null otherwise
+        public String getError() {
+            return error;
+        }
+
+        // image of the last successful job, null when none succeeded
+        public String getInstalledHash() {
+            return installedHash;
+        }
+
+        public int getInstalledVersion() {
+            return installedVersion;
+        }
+
+        // the last job never finished, the app died under it. A job cut short while verifying
+        // had its image accepted already, uploading it again gains nothing.
+        public boolean isInterrupted() {
+            return lastEvent == Event.Submitted || lastEvent == Event.Started
+                    || (lastEvent == Event.State && state != OtaState.Verifying);
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + lastEvent + (error != null ? " (" + error + ")" : "")
+                    + (installedHash != null ? " installed v" + installedVersion : "");
+        }
+    }
+
+    public static final long DEFAULT_FLUSH_MILLIS = 500;
+    public static final long DEFAULT_COMPACT_BYTES = 1024 * 1024;
+    // buffered events written right away above this, without waiting for the timer
+    private static final int MAX_PENDING_CHARS = 64 * 1024;
+
+    private final File file;
+    private final OtaScheduler scheduler;
+    private final long flushMillis;
+    private final Map<String, Record> records = new LinkedHashMap<>();
+    private final StringBuilder pending = new StringBuilder(4096);
+    private final CRC32 crc = new CRC32();
+    private final Runnable flush = this::flush;
+    // held while writing, appends only wait for the buffer swap
+    private final Object writeLock = new Object();
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private boolean flushScheduled;
+    private boolean closed;
+
+    private int events;
+    private int syncs;
+    private long syncNanos;
+    private int writeErrors;
+    private int droppedLines;
+
+    public JobJournal(File file, OtaScheduler scheduler) throws IOException {
+        this(file, scheduler, DEFAULT_FLUSH_MILLIS, DEFAULT_COMPACT_BYTES);
+    }
+
+    // flushes run on the scheduler, keep it off the upload's critical path
+    public JobJournal(File file, OtaScheduler scheduler, long flushMillis, long compactBytes) throws IOException {
+        this.file = file;
+        this.scheduler = scheduler;
+        this.flushMillis = flushMillis;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        long valid = Replay();
+        if (file.length() > compactBytes) {
+            Compact();
+        } else if (file.length() > valid) {
+            // torn last write
+            try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                truncate.setLength(valid);
+            }
+        }
+        out = new FileOutputStream(file, true);
+        channel = out.getChannel();
+    }
+
+    public void submitted(OtaJob job) {
+        Append(Event.Submitted, job.getAddress(), Hash(job), Version(job), Integer.toString(job.getPriority()));
+    }
+
+    public void started(OtaJob job) {
+        Append(Event.Started, job.getAddress(), Hash(job), Version(job), "");
+    }
+
+    public void stateChanged(OtaJob job, OtaState state) {
+        Append(Event.State, job.getAddress(), Hash(job), Version(job), state.name());
+    }
+
+    public void finished(OtaJob job) {
+        Event event = job.getStatus() == OtaJob.Status.Succeeded ? Event.Succeeded
+                : job.getStatus() == OtaJob.Status.Cancelled ? Event.Cancelled : Event.Failed;
+        Append(event, job.getAddress(), Hash(job), Version(job), job.getError() != null ? job.getError() : "");
+    }
+
+    // null for a device the journal never saw
+    public synchronized Record get(String address) {
+        Record record = records.get(address);
+        return record != null ? new Record(record) : null;
+    }
+
+    // every device in order of its first event
+    public synchronized List<Record> getDevices() {
+        List<Record> devices = new ArrayList<>(records.size());
+        for (Record record : records.values()) {
+            devices.add(new Record(record));
+        }
+        return devices;
+    }
+
+    // devices whose last job was cut short by the app dying
+    public synchronized List<Record> getInterrupted() {
+        List<Record> interrupted = new ArrayList<>();
+        for (Record record : records.values()) {
+            if (record.isInterrupted()) {
+                interrupted.add(new Record(record));
+            }
+        }
+        return interrupted;
+    }
+
+    // devices still on other firmware than the image, never updated ones included
+    public synchronized List<Record> getDevicesWithout(String imageHash) {
+        List<Record> without = new ArrayList<>();
+        for (Record record : records.values()) {
+            if (!imageHash.equals(record.installedHash)) {
+                without.add(new Record(record));
+            }
+        }
+        return without;
+    }
+
+    // devices with no successful update to at least the application version
+    public synchronized List<Record> getDevicesBelow(int applicationVersion) {
+        List<Record> below = new ArrayList<>();
+        for (Record record : records.values()) {
+            if (record.installedVersion < applicationVersion) {
+                below.add(new Record(record));
+            }
+        }
+        return below;
+    }
+
+    public synchronized boolean hasInstalled(String address, String imageHash) {
+        Record record = records.get(address);
+        return record != null && imageHash.equals(record.installedHash);
+    }
+
+    public synchronized int getEvents() {
+        return events;
+    }
+
+    // fsyncs so far, far fewer than events while many sessions run
+    public synchronized int getSyncs() {
+        return syncs;
+    }
+
+    // time spent writing and syncing, on the flush scheduler
+    public synchronized long getSyncNanos() {
+        return syncNanos;
+    }
+
+    public synchronized int getWriteErrors() {
+        return writeErrors;
+    }
+
+    // lines skipped when the journal opened, corrupt or torn
+    public int getDroppedLines() {
+        return droppedLines;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // writes and syncs what is buffered, any thread
+    public void flush() {
+        synchronized (writeLock) {
+            byte[] data;
+            synchronized (this) {
+                flushScheduled = false;
+                if (pending.length() == 0 || !channel.isOpen()) {
+                    return;
+                }
+                data = pending.toString().getBytes(StandardCharsets.UTF_8);
+                pending.setLength(0);
+            }
+            long started = System.nanoTime();
+            try {
+                out.write(data);
+                channel.force(false);
+                synchronized (this) {
+                    syncs++;
+                    syncNanos += System.nanoTime() - started;
+                }
+            } catch (IOException e) {
+                // the journal never fails an update, the events are lost
+                synchronized (this) {
+                    writeErrors++;
+                }
+            }
+        }
+    }
+
+    // appends after close are dropped, what came before is written
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        scheduler.removeCallbacks(flush);
+        flush();
+        synchronized (writeLock) {
+            out.close();
+        }
+    }
+
+    private void Append(Event event, String address, String imageHash, int version, String detail) {
+        long now = System.currentTimeMillis();
+        boolean flushNow;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            String line = Line(now, event, address, imageHash, version, detail);
+            pending.append(line).append('\n');
+            Apply(now, event, address, imageHash, version, Clean(detail));
+            events++;
+            flushNow = pending.length() >= MAX_PENDING_CHARS;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                scheduler.postDelayed(flush, flushMillis);
+            }
+        }
+        if (flushNow) {
+            scheduler.removeCallbacks(flush);
+            scheduler.post(flush);
+        }
+    }
+
+    private void Apply(long millis, Event event, String address, String imageHash, int version, String detail) {
+        Record record = records.get(address);
+        if (record == null) {
+            record = new Record(address);
+            records.put(address, record);
+        }
+        record.lastEvent = event;
+        record.lastMillis = millis;
+        record.imageHash = imageHash;
+        record.applicationVersion = version;
+        switch (event) {
+            case Submitted:
+                record.priority = detail.isEmpty() ? 0 : Integer.parseInt(detail);
+                record.state = OtaState.Ready;
+                record.error = null;
+                break;
+            case State:
+                record.state = OtaState.valueOf(detail);
+                break;
+            case Succeeded:
+                record.installedHash = imageHash;
+                record.installedVersion = version;
+                record.error = null;
+                break;
+            case Failed:
+            case Cancelled:
+                record.error = detail;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private String Line(long millis, Event event, String address, String imageHash, int version, String detail) {
+        String body = millis + "\t" + event.name() + "\t" + address + "\t" + imageHash + "\t" + version + "\t" + Clean(detail);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        return body + "\t" + String.format(Locale.ROOT, "%08x", crc.getValue());
+    }
+
+    // reads the journal into records, returns the length of its valid prefix
+    private long Replay() throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        long valid = 0;
+        long position = 0;
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (position > file.length() || !Parse(line)) {
+                    // corrupt or unterminated, nothing after it is trusted
+                    droppedLines++;
+                    while (lines.readLine() != null) {
+                        droppedLines++;
+                    }
+                    break;
+                }
+                valid = position;
+            }
+        }
+        return valid;
+    }
+
+    private boolean Parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 7) {
+            return false;
+        }
+        int end = line.lastIndexOf('\t');
+        byte[] body = line.substring(0, end).getBytes(StandardCharsets.UTF_8);
+        crc.reset();
+        crc.update(body, 0, body.length);
+        try {
+            if (crc.getValue() != Long.parseLong(fields[6], 16)) {
+                return false;
+            }
+            Apply(Long.parseLong(fields[0]), Event.valueOf(fields[1]), fields[2], fields[3], Integer.parseInt(fields[4]), fields[5]);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Rewrites the journal as the lines that rebuild every record, replaced atomically.
+    private void Compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        StringBuilder compact = new StringBuilder(records.size() * 160);
+        for (Record record : records.values()) {
+            if (record.installedHash != null) {
+                compact.append(Line(record.lastMillis, Event.Succeeded, record.address, record.installedHash, record.installedVersion, "")).append('\n');
+            }
+            if (record.lastEvent == Event.Succeeded && record.imageHash.equals(record.installedHash)) {
+                continue;
+            }
+            compact.append(Line(record.lastMillis, Event.Submitted, record.address, record.imageHash, record.applicationVersion,
+                    Integer.toString(record.priority))).append('\n');
+            if (record.lastEvent == Event.Failed || record.lastEvent == Event.Cancelled) {
+                compact.append(Line(record.lastMillis, record.lastEvent, record.address, record.imageHash, record.applicationVersion,
+                        record.error != null ? record.error : "")).append('\n');
+            } else if (record.lastEvent != Event.Submitted) {
+                compact.append(Line(record.lastMillis, Event.State, record.address, record.imageHash, record.applicationVersion,
+                        record.state.name())).append('\n');
+            }
+        }
+        try (FileOutputStream compacted = new FileOutputStream(temp)) {
+            compacted.write(compact.toString().getBytes(StandardCharsets.UTF_8));
+            compacted.getChannel().force(false);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't replace " + file);
+        }
+    }
+
+    private static String Hash(OtaJob job) {
+        try {
+            return job.getImage().getContentHash();
+        } catch (IOException e) {
+            return "-";
+        }
+    }
+
+    // from the session once it read the image's metadata
+    private static int Version(OtaJob job) {
+        GblInfo info = job.getSession() != null ? job.getSession().getGblInfo() : null;
+        if (info == null) {
+            info = job.getImage().getGblInfo();
+        }
+        return info != null && info.hasApplicationInfo() ? info.getApplicationVersion() : -1;
+    }
+
+    private static String Clean(String detail) {
+        return detail.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
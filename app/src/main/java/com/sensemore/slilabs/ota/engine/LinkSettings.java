@@ -0,0 +1,45 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Upload parameters {@link LinkTuner} found best for a device model and phone, with the
+ * throughput they reached.
+ */
+public final class LinkSettings {
+
+    private final int payloadSize;
+    private final boolean twoMegPhy;
+    private final int windowSize;
+    private final long bytesPerSecond;
+
+    public LinkSettings(int payloadSize, boolean twoMegPhy, int windowSize, long bytesPerSecond) {
+        this.payloadSize = payloadSize;
+        this.twoMegPhy = twoMegPhy;
+        this.windowSize = windowSize;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public boolean isTwoMegPhy() {
+        return twoMegPhy;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    LinkSettings withResult(int windowSize, long bytesPerSecond) {
+        return new LinkSettings(payloadSize, twoMegPhy, windowSize, bytesPerSecond);
+    }
+
+    @Override
+    public String toString() {
+        return "payload=" + payloadSize + " phy=" + (twoMegPhy ? "2M" : "1M") + " window=" + windowSize + " " + bytesPerSecond + " B/s";
+    }
+}
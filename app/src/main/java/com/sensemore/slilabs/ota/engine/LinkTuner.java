@@ -0,0 +1,281 @@
+package com.sensemore.slilabs.ota.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Learns payload size, PHY and start window per tuning key, e.g. device model and firmware
+ * plus phone. A session without learned settings probes during the first part of its
+ * upload: the image goes out in short segments, each with another combination of payload
+ * size and PHY, and the fastest one is kept for the rest. The probe segments are part of
+ * the image, probing sends nothing extra.
+ * <p>
+ * Payload candidates are the largest payload the MTU allows and the largest one filling
+ * whole 251 byte LL packets: on a link with data length extension a 247 byte payload needs
+ * two packets where 244 bytes need one. The window is left to the pipeline's adaptation,
+ * the tuner remembers where it ended so the next session starts there.
+ * <p>
+ * After probing, or when starting from learned settings, the upload is measured in
+ * segments. Two segments in a row below {@code degradeRatio} of the reference rate probe
+ * again from the current offset. One tuner per session, used on the session's scheduler.
+ */
+public class LinkTuner {
+
+    public interface Knobs {
+        // takes effect once the writes in flight completed
+        void setPayloadSize(int payloadSize);
+
+        void setTwoMegPhy(boolean twoMegPhy);
+    }
+
+    // LL payload with data length extension and the ATT plus L2CAP headers a write adds
+    private static final int LL_PAYLOAD = 251;
+    private static final int LL_HEADERS = 7;
+    private static final int MAX_REPROBES = 2;
+    // a later candidate must beat the earlier ones by this much, ties keep the larger payload and 2M
+    private static final double WIN_MARGIN = 1.02;
+
+    private final TuningStore store;
+    private final String key;
+    private int settleBytes = 4 * 1024;
+    private int probeBytes = 16 * 1024;
+    private int segmentBytes = 32 * 1024;
+    private double degradeRatio = 0.7;
+
+    // best known settings, null until learned
+    private LinkSettings settings;
+    private LinkSettings applied;
+    private Knobs knobs;
+    private int maxPayloadSize;
+    private boolean twoMegAllowed;
+    // the peer answered a 2M request with 1M
+    private boolean twoMegRefused;
+    private long totalBytes;
+
+    // probe round, null while tracking
+    private List<LinkSettings> candidates;
+    private long[] candidateRates;
+    private int candidate;
+
+    private long segmentStartBytes;
+    // -1 until the segment settled after a change
+    private long measureStartBytes = -1;
+    private long measureStartMillis;
+    private double referenceRate;
+    private int slowSegments;
+    private int probes;
+    private int reprobes;
+
+    public LinkTuner(TuningStore store, String key) {
+        this.store = store;
+        this.key = key;
+        this.settings = store.load(key);
+    }
+
+    // bytes sent after a change before measuring starts
+    public LinkTuner setSettleBytes(int settleBytes) {
+        this.settleBytes = settleBytes;
+        return this;
+    }
+
+    // bytes measured per probe candidate
+    public LinkTuner setProbeBytes(int probeBytes) {
+        this.probeBytes = probeBytes;
+        return this;
+    }
+
+    // bytes per throughput measurement after probing
+    public LinkTuner setSegmentBytes(int segmentBytes) {
+        this.segmentBytes = segmentBytes;
+        return this;
+    }
+
+    public LinkTuner setDegradeRatio(double degradeRatio) {
+        this.degradeRatio = degradeRatio;
+        return this;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    // learned or probed, null before
+    public LinkSettings getSettings() {
+        return settings;
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    // probe rounds started because throughput dropped
+    public int getReprobes() {
+        return reprobes;
+    }
+
+    public boolean isProbing() {
+        return candidates != null;
+    }
+
+    /**
+     * Upload starts at bytesAcked of totalBytes (-1 when unknown) with the largest payload
+     * the MTU allows. Returns what to start with, a window of 0 keeps the configured one.
+     */
+    public LinkSettings onUploadStarted(int maxPayloadSize, boolean twoMegAllowed, long bytesAcked, long totalBytes,
+                                       long nowMillis, Knobs knobs) {
+        this.maxPayloadSize = maxPayloadSize;
+        this.twoMegAllowed = twoMegAllowed;
+        this.totalBytes = totalBytes;
+        this.knobs = knobs;
+        candidates = null;
+        slowSegments = 0;
+        referenceRate = 0;
+        if (settings != null) {
+            applied = Fit(settings);
+            Track(bytesAcked);
+        } else if (CanProbe(bytesAcked)) {
+            applied = StartProbe(bytesAcked);
+        } else {
+            applied = new LinkSettings(maxPayloadSize, twoMegAllowed, 0, 0);
+            Track(bytesAcked);
+        }
+        return applied;
+    }
+
+    public void onProgress(long bytesAcked, long nowMillis) {
+        if (knobs == null) {
+            return;
+        }
+        if (measureStartBytes < 0) {
+            if (bytesAcked >= segmentStartBytes + settleBytes) {
+                measureStartBytes = bytesAcked;
+                measureStartMillis = nowMillis;
+            }
+            return;
+        }
+        long measured = bytesAcked - measureStartBytes;
+        if (candidates != null) {
+            if (measured >= probeBytes) {
+                candidateRates[candidate] = Rate(measured, nowMillis - measureStartMillis);
+                NextCandidate(bytesAcked);
+            }
+        } else if (measured >= segmentBytes) {
+            CheckSegment(Rate(measured, nowMillis - measureStartMillis), bytesAcked, nowMillis);
+        }
+    }
+
+    // PHY the link reports after a change
+    public void onPhyUpdated(int txPhy) {
+        if (applied != null && applied.isTwoMegPhy() && txPhy != OtaTransport.PHY_LE_2M) {
+            twoMegRefused = true;
+        }
+    }
+
+    // saves what the upload ended with, nothing when no settings were learned or probed
+    public void onUploadFinished(int windowSize, long bytesPerSecond) {
+        knobs = null;
+        if (settings != null && candidates == null) {
+            settings = settings.withResult(windowSize, bytesPerSecond);
+            store.save(key, settings);
+        }
+    }
+
+    private LinkSettings Fit(LinkSettings learned) {
+        return new LinkSettings(Math.min(learned.getPayloadSize(), maxPayloadSize), learned.isTwoMegPhy() && twoMegAllowed,
+                learned.getWindowSize(), learned.getBytesPerSecond());
+    }
+
+    private boolean CanProbe(long bytesAcked) {
+        // probing should leave at least as much again to run at the winner
+        return totalBytes > 0 && totalBytes - bytesAcked >= 2L * Candidates().size() * (settleBytes + probeBytes);
+    }
+
+    private List<LinkSettings> Candidates() {
+        List<Integer> payloads = new ArrayList<>();
+        payloads.add(maxPayloadSize);
+        int aligned = (maxPayloadSize + LL_HEADERS) / LL_PAYLOAD * LL_PAYLOAD - LL_HEADERS;
+        if (aligned > 0 && aligned != maxPayloadSize) {
+            payloads.add(aligned);
+        }
+        List<LinkSettings> list = new ArrayList<>();
+        for (boolean twoMeg : twoMegAllowed ? new boolean[]{true, false} : new boolean[]{false}) {
+            for (int payload : payloads) {
+                list.add(new LinkSettings(payload, twoMeg, 0, 0));
+            }
+        }
+        return list;
+    }
+
+    private LinkSettings StartProbe(long bytesAcked) {
+        probes++;
+        candidates = Candidates();
+        candidateRates = new long[candidates.size()];
+        candidate = 0;
+        Segment(bytesAcked);
+        return candidates.get(0);
+    }
+
+    private void NextCandidate(long bytesAcked) {
+        if (++candidate < candidates.size()) {
+            Apply(candidates.get(candidate));
+            Segment(bytesAcked);
+            return;
+        }
+        int best = 0;
+        for (int i = 1; i < candidateRates.length; i++) {
+            if (candidateRates[i] > candidateRates[best] * WIN_MARGIN) {
+                best = i;
+            }
+        }
+        LinkSettings winner = candidates.get(best);
+        int window = settings != null ? settings.getWindowSize() : 0;
+        settings = new LinkSettings(winner.getPayloadSize(), winner.isTwoMegPhy() && !twoMegRefused, window, candidateRates[best]);
+        candidates = null;
+        Apply(settings);
+        Track(bytesAcked);
+    }
+
+    private void CheckSegment(long rate, long bytesAcked, long nowMillis) {
+        if (referenceRate == 0) {
+            referenceRate = rate;
+        } else if (rate < referenceRate * degradeRatio) {
+            if (++slowSegments >= 2 && reprobes < MAX_REPROBES && CanProbe(bytesAcked)) {
+                reprobes++;
+                Apply(StartProbe(bytesAcked));
+                return;
+            }
+        } else {
+            slowSegments = 0;
+            referenceRate = 0.8 * referenceRate + 0.2 * rate;
+        }
+        // next segment follows without settling, nothing changed
+        segmentStartBytes = bytesAcked;
+        measureStartBytes = bytesAcked;
+        measureStartMillis = nowMillis;
+    }
+
+    private void Apply(LinkSettings next) {
+        if (next.getPayloadSize() != applied.getPayloadSize()) {
+            knobs.setPayloadSize(next.getPayloadSize());
+        }
+        if (next.isTwoMegPhy() != applied.isTwoMegPhy()) {
+            knobs.setTwoMegPhy(next.isTwoMegPhy());
+        }
+        applied = next;
+    }
+
+    private void Segment(long bytesAcked) {
+        segmentStartBytes = bytesAcked;
+        measureStartBytes = -1;
+    }
+
+    private void Track(long bytesAcked) {
+        referenceRate = 0;
+        slowSegments = 0;
+        Segment(bytesAcked);
+    }
+
+    private static long Rate(long bytes, long millis) {
+        return bytes * 1000 / Math.max(1, millis);
+    }
+}
@@ -0,0 +1,142 @@
+package com.sensemore.slilabs.ota.engine;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serializes the requests of one link. The stack holds one outstanding GATT request, so
+ * writes with response, reads, MTU exchange and discovery wait here and start one after
+ * another. A request the stack refuses is started again on the next event that frees the
+ * stack, never in a polling loop.
+ * <p>
+ * Results arrive as futures. All methods must be called on the scheduler of the link,
+ * futures complete there too.
+ */
+public class OperationQueue {
+
+    public interface Operation {
+        // issues the request, false when the stack did not take it
+        boolean start();
+    }
+
+    private static class Pending {
+        final String name;
+        final Operation operation;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Pending(String name, Operation operation) {
+            this.name = name;
+            this.operation = operation;
+        }
+    }
+
+    private final OtaScheduler scheduler;
+    private final long timeoutMillis;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    // started and waiting for its callback
+    private Pending current;
+    private boolean stackBusy;
+
+    private final Runnable timeout = this::OnTimeout;
+
+    public OperationQueue(OtaScheduler scheduler, long timeoutMillis) {
+        this.scheduler = scheduler;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> enqueue(String name, Operation operation) {
+        Pending request = new Pending(name, operation);
+        pending.add(request);
+        Next();
+        return (CompletableFuture<T>) (CompletableFuture<?>) request.result;
+    }
+
+    // a request is running or waiting, writes without response must wait too
+    public boolean isBusy() {
+        return current != null || !pending.isEmpty();
+    }
+
+    public int size() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    // callback of the running request
+    public void complete(Object value) {
+        Pending done = Finish();
+        if (done != null) {
+            done.result.complete(value);
+        }
+        Next();
+    }
+
+    public void fail(Throwable error) {
+        Pending done = Finish();
+        if (done != null) {
+            done.result.completeExceptionally(error);
+        }
+        Next();
+    }
+
+    // stack finished something the queue did not start, e.g. a write without response
+    public void onStackIdle() {
+        if (stackBusy) {
+            stackBusy = false;
+            scheduler.removeCallbacks(timeout);
+            Next();
+        }
+    }
+
+    // link is gone, nothing queued will run
+    public void clear(Throwable reason) {
+        scheduler.removeCallbacks(timeout);
+        if (current != null) {
+            current.result.completeExceptionally(reason);
+            current = null;
+        }
+        while (!pending.isEmpty()) {
+            pending.poll().result.completeExceptionally(reason);
+        }
+        stackBusy = false;
+    }
+
+    private Pending Finish() {
+        Pending done = current;
+        current = null;
+        scheduler.removeCallbacks(timeout);
+        return done;
+    }
+
+    private void Next() {
+        if (current != null || pending.isEmpty()) {
+            return;
+        }
+        Pending head = pending.peek();
+        if (!head.operation.start()) {
+            // refused while the stack is busy with a write we did not queue, onStackIdle retries
+            if (!stackBusy) {
+                stackBusy = true;
+                scheduler.postDelayed(timeout, timeoutMillis);
+            }
+            return;
+        }
+        pending.poll();
+        current = head;
+        stackBusy = false;
+        scheduler.removeCallbacks(timeout);
+        scheduler.postDelayed(timeout, timeoutMillis);
+    }
+
+    private void OnTimeout() {
+        if (current != null) {
+            fail(new TimeoutException(current.name + " got no response within " + timeoutMillis + " ms"));
+        } else if (stackBusy && !pending.isEmpty()) {
+            // stack never freed up for the head request
+            stackBusy = false;
+            Pending refused = pending.poll();
+            refused.result.completeExceptionally(new TimeoutException("Stack refused " + refused.name + " for " + timeoutMillis + " ms"));
+            Next();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Progress of an interrupted upload: which device, which image and how far it got.
+ * The offset counts bytes the stack reported written, the device may hold fewer.
+ */
+public class OtaCheckpoint {
+
+    private final String address;
+    private final String imageHash;
+    private final long offset;
+    private final long savedMillis;
+
+    public OtaCheckpoint(String address, String imageHash, long offset, long savedMillis) {
+        this.address = address;
+        this.imageHash = imageHash;
+        this.offset = offset;
+        this.savedMillis = savedMillis;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getSavedMillis() {
+        return savedMillis;
+    }
+
+    public boolean matches(String address, String imageHash) {
+        return this.address.equals(address) && this.imageHash.equals(imageHash);
+    }
+
+    @Override
+    public String toString() {
+        return address + " " + imageHash + " @" + offset;
+    }
+}
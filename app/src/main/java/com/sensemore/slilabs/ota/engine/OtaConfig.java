@@ -0,0 +1,286 @@
+package com.sensemore.slilabs.ota.engine;
+
+public class OtaConfig {
+
+    private int requestedMtu = 517;
+    private long connectTimeoutMillis = 10000;
+    private long responseTimeoutMillis = 5000;
+    private long rebootTimeoutMillis = 20000;
+    private long stallTimeoutMillis = 5000;
+    private long reconnectDelayMillis;
+    private boolean connectOnAdvertisement;
+    private long beginDelayMillis;
+    private long endDelayMillis;
+    private long rebootDelayMillis;
+    private long writeRetryDelayMillis = 5;
+    private int windowSize = 4;
+    private int maxWindowSize = 16;
+    private boolean adaptiveWindow = true;
+    private UploadMode uploadMode = UploadMode.Stream;
+    private int verifyBlockSize = 16 * 1024;
+    private int minVerifyBlockSize = 2 * 1024;
+    private int maxVerifyBlockSize = 64 * 1024;
+    private boolean highPriorityUpload = true;
+    private boolean twoMegPhyUpload = true;
+    private boolean validateGbl = true;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 1000;
+    private long maxRetryDelayMillis = 16000;
+    private int checkpointIntervalBytes = 16 * 1024;
+    private boolean verifyAfterUpdate;
+
+    // OtaJobScheduler confirms the version each device boots after its update, see OtaVerifier
+    public boolean isVerifyAfterUpdate() {
+        return verifyAfterUpdate;
+    }
+
+    public OtaConfig setVerifyAfterUpdate(boolean verifyAfterUpdate) {
+        this.verifyAfterUpdate = verifyAfterUpdate;
+        return this;
+    }
+
+    // ATT MTU asked for in exchange, payload size follows the value the peer accepts
+    public int getRequestedMtu() {
+        return requestedMtu;
+    }
+
+    public OtaConfig setRequestedMtu(int requestedMtu) {
+        this.requestedMtu = requestedMtu;
+        return this;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public OtaConfig setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    // bound on a write response, MTU exchange, read or discovery
+    public long getResponseTimeoutMillis() {
+        return responseTimeoutMillis;
+    }
+
+    public OtaConfig setResponseTimeoutMillis(long responseTimeoutMillis) {
+        this.responseTimeoutMillis = responseTimeoutMillis;
+        return this;
+    }
+
+    // bound on the device rebooting into DFU mode and advertising again
+    public long getRebootTimeoutMillis() {
+        return rebootTimeoutMillis;
+    }
+
+    public OtaConfig setRebootTimeoutMillis(long rebootTimeoutMillis) {
+        this.rebootTimeoutMillis = rebootTimeoutMillis;
+        return this;
+    }
+
+    // upload is considered stalled when no write completes for this long
+    public long getStallTimeoutMillis() {
+        return stallTimeoutMillis;
+    }
+
+    public OtaConfig setStallTimeoutMillis(long stallTimeoutMillis) {
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        return this;
+    }
+
+    // Extra settle time before a step for bootloaders that need it, 0 starts every step as
+    // soon as the device is ready. The former fixed waits were 5000, 500, 1500 and 500 ms.
+    // wait after the DFU reset before connecting to the device in DFU mode
+    public long getReconnectDelayMillis() {
+        return reconnectDelayMillis;
+    }
+
+    public OtaConfig setReconnectDelayMillis(long reconnectDelayMillis) {
+        this.reconnectDelayMillis = reconnectDelayMillis;
+        return this;
+    }
+
+    // A scanner reports advertisements to the session (OtaSession.onAdvertising), so a device
+    // rebooting into DFU mode is connected when its bootloader advertises, not before.
+    // Reconnects after a lost link skip the rest of their backoff once the device advertises.
+    public boolean isConnectOnAdvertisement() {
+        return connectOnAdvertisement;
+    }
+
+    public OtaConfig setConnectOnAdvertisement(boolean connectOnAdvertisement) {
+        this.connectOnAdvertisement = connectOnAdvertisement;
+        return this;
+    }
+
+    public long getBeginDelayMillis() {
+        return beginDelayMillis;
+    }
+
+    public OtaConfig setBeginDelayMillis(long beginDelayMillis) {
+        this.beginDelayMillis = beginDelayMillis;
+        return this;
+    }
+
+    public long getEndDelayMillis() {
+        return endDelayMillis;
+    }
+
+    public OtaConfig setEndDelayMillis(long endDelayMillis) {
+        this.endDelayMillis = endDelayMillis;
+        return this;
+    }
+
+    public long getRebootDelayMillis() {
+        return rebootDelayMillis;
+    }
+
+    public OtaConfig setRebootDelayMillis(long rebootDelayMillis) {
+        this.rebootDelayMillis = rebootDelayMillis;
+        return this;
+    }
+
+    public long getWriteRetryDelayMillis() {
+        return writeRetryDelayMillis;
+    }
+
+    public OtaConfig setWriteRetryDelayMillis(long writeRetryDelayMillis) {
+        this.writeRetryDelayMillis = writeRetryDelayMillis;
+        return this;
+    }
+
+    // data writes kept in flight at upload start
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public OtaConfig setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        return this;
+    }
+
+    public int getMaxWindowSize() {
+        return maxWindowSize;
+    }
+
+    public OtaConfig setMaxWindowSize(int maxWindowSize) {
+        this.maxWindowSize = maxWindowSize;
+        return this;
+    }
+
+    public boolean isAdaptiveWindow() {
+        return adaptiveWindow;
+    }
+
+    public OtaConfig setAdaptiveWindow(boolean adaptiveWindow) {
+        this.adaptiveWindow = adaptiveWindow;
+        return this;
+    }
+
+    public UploadMode getUploadMode() {
+        return uploadMode;
+    }
+
+    public OtaConfig setUploadMode(UploadMode uploadMode) {
+        this.uploadMode = uploadMode;
+        return this;
+    }
+
+    // Bytes streamed between two progress reads in UploadMode.Verified. Doubles after a
+    // confirmed block up to maxVerifyBlockSize, halves after a failed one down to
+    // minVerifyBlockSize. Equal bounds keep it fixed.
+    public int getVerifyBlockSize() {
+        return verifyBlockSize;
+    }
+
+    public OtaConfig setVerifyBlockSize(int verifyBlockSize) {
+        this.verifyBlockSize = verifyBlockSize;
+        return this;
+    }
+
+    public int getMinVerifyBlockSize() {
+        return minVerifyBlockSize;
+    }
+
+    public OtaConfig setMinVerifyBlockSize(int minVerifyBlockSize) {
+        this.minVerifyBlockSize = minVerifyBlockSize;
+        return this;
+    }
+
+    public int getMaxVerifyBlockSize() {
+        return maxVerifyBlockSize;
+    }
+
+    public OtaConfig setMaxVerifyBlockSize(int maxVerifyBlockSize) {
+        this.maxVerifyBlockSize = maxVerifyBlockSize;
+        return this;
+    }
+
+    // CONNECTION_PRIORITY_HIGH while uploading, balanced afterwards
+    public boolean isHighPriorityUpload() {
+        return highPriorityUpload;
+    }
+
+    public OtaConfig setHighPriorityUpload(boolean highPriorityUpload) {
+        this.highPriorityUpload = highPriorityUpload;
+        return this;
+    }
+
+    // 2M PHY while uploading, 1M afterwards
+    public boolean isTwoMegPhyUpload() {
+        return twoMegPhyUpload;
+    }
+
+    public OtaConfig setTwoMegPhyUpload(boolean twoMegPhyUpload) {
+        this.twoMegPhyUpload = twoMegPhyUpload;
+        return this;
+    }
+
+    // parse the image as GBL while it streams, header is checked before touching the device
+    public boolean isValidateGbl() {
+        return validateGbl;
+    }
+
+    public OtaConfig setValidateGbl(boolean validateGbl) {
+        this.validateGbl = validateGbl;
+        return this;
+    }
+
+    // reconnect attempts after the link drops mid-update, 0 fails on the first loss
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public OtaConfig setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    // first reconnect delay, doubled on every further attempt up to maxRetryDelayMillis
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    public OtaConfig setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+        return this;
+    }
+
+    public long getMaxRetryDelayMillis() {
+        return maxRetryDelayMillis;
+    }
+
+    public OtaConfig setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+        return this;
+    }
+
+    // upload progress between two checkpoint saves
+    public int getCheckpointIntervalBytes() {
+        return checkpointIntervalBytes;
+    }
+
+    public OtaConfig setCheckpointIntervalBytes(int checkpointIntervalBytes) {
+        this.checkpointIntervalBytes = checkpointIntervalBytes;
+        return this;
+    }
+}
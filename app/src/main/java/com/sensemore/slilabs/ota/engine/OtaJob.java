@@ -0,0 +1,154 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+
+/**
+ * One device of a rollout queued on {@link OtaJobScheduler}. Higher priority jobs start
+ * first, jobs of equal priority in submission order.
+ */
+public class OtaJob implements Comparable<OtaJob> {
+
+    public enum Status {
+        Queued,
+        Running,
+        // uploaded, waiting for the device to confirm the new version
+        Verifying,
+        Succeeded,
+        Failed,
+        Cancelled
+    }
+
+    private final String address;
+    private final FirmwareImage image;
+    private final int priority;
+    private final long sequence;
+
+    private volatile Status status = Status.Queued;
+    private volatile OtaState state = OtaState.Ready;
+    private volatile int bytesSent;
+    private String error;
+    private boolean cancelRequested;
+    private OtaSession session;
+    private OtaVerifier verifier;
+    private long queuedMillis;
+    private long startedMillis;
+    private long finishedMillis;
+
+    OtaJob(String address, FirmwareImage image, int priority, long sequence) {
+        this.address = address;
+        this.image = image;
+        this.priority = priority;
+        this.sequence = sequence;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public FirmwareImage getImage() {
+        return image;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // state of the device's session, Ready while queued
+    public OtaState getState() {
+        return state;
+    }
+
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    // null unless the job failed
+    public String getError() {
+        return error;
+    }
+
+    // null until the job starts
+    public OtaSession getSession() {
+        return session;
+    }
+
+    // null unless the job reached verification
+    public OtaVerifier getVerifier() {
+        return verifier;
+    }
+
+    public long getQueuedMillis() {
+        return queuedMillis;
+    }
+
+    public long getStartedMillis() {
+        return startedMillis;
+    }
+
+    public long getFinishedMillis() {
+        return finishedMillis;
+    }
+
+    // time from start to success or failure, queueing excluded
+    public long getDurationMillis() {
+        return finishedMillis - startedMillis;
+    }
+
+    public boolean isFinished() {
+        return status == Status.Succeeded || status == Status.Failed || status == Status.Cancelled;
+    }
+
+    void setQueued(long now) {
+        queuedMillis = now;
+    }
+
+    void setRunning(OtaSession session, long now) {
+        this.session = session;
+        this.startedMillis = now;
+        this.status = Status.Running;
+    }
+
+    void setVerifying(OtaVerifier verifier) {
+        this.verifier = verifier;
+        this.status = Status.Verifying;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    void setCancelRequested() {
+        cancelRequested = true;
+    }
+
+    void setState(OtaState state) {
+        this.state = state;
+    }
+
+    void setBytesSent(int bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    void setFinished(Status status, String error, long now) {
+        this.status = status;
+        this.error = error;
+        this.finishedMillis = now;
+    }
+
+    @Override
+    public int compareTo(OtaJob other) {
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public String toString() {
+        return address + " " + status + (error != null ? " (" + error + ")" : "");
+    }
+}
@@ -0,0 +1,376 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.image.GblInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Updates many devices at once. Jobs wait in a priority queue and at most
+ * {@code maxConcurrent} sessions run side by side, each with its own transport and state
+ * machine. Keep the limit at or below the links the adapter can hold, most phone
+ * controllers manage 4 to 7 connections. Sessions of the same image read it through their
+ * own source, the image itself is shared read-only.
+ * <p>
+ * The queue runs on the given scheduler, submit and cancel may be called from any thread.
+ * Sessions run there too unless a scheduler factory is given, then every session gets its
+ * own scheduler, e.g. a looper thread per connection, and its events hop back to the queue's
+ * scheduler. Progress is coalesced on the way, the listener sees the latest count only.
+ * <p>
+ * With {@link OtaConfig#setVerifyAfterUpdate} a job whose upload completed stays in
+ * {@link OtaJob.Status#Verifying} until an {@link OtaVerifier} read the version the device
+ * boots. Verifiers don't count against {@code maxConcurrent}, the next upload starts while
+ * the device reboots.
+ */
+public class OtaJobScheduler {
+
+    public interface Listener {
+        void onJobStateChanged(OtaJob job, OtaState state);
+
+        void onJobProgress(OtaJob job, int bytesSent, int totalBytes);
+
+        void onJobFinished(OtaJob job);
+
+        // queue is empty and no session is running
+        void onIdle();
+    }
+
+    private final OtaTransport.Factory transportFactory;
+    private final OtaScheduler scheduler;
+    // null when sessions share the queue's scheduler
+    private final OtaScheduler.Factory sessionSchedulers;
+    private final OtaConfig config;
+    private final int maxConcurrent;
+    private final Listener listener;
+    private CheckpointStore checkpoints = new CheckpointStore.InMemory();
+    private TuningStore tuning;
+    private Function<String, String> tuningKeys;
+    private Function<FirmwareImage, FirmwareImage> compressedImages;
+    private JobJournal journal;
+
+    private final PriorityQueue<OtaJob> queue = new PriorityQueue<>();
+    // queued or running job of each address, a device is updated by one session at a time
+    private final Map<String, OtaJob> active = new HashMap<>();
+    private final List<OtaJob> jobs = new ArrayList<>();
+    private int running;
+    private int verifying;
+    private int maxRunning;
+    private long sequence;
+
+    public OtaJobScheduler(OtaTransport.Factory transportFactory, OtaScheduler scheduler, OtaConfig config,
+                           int maxConcurrent, Listener listener) {
+        this(transportFactory, scheduler, null, config, maxConcurrent, listener);
+    }
+
+    public OtaJobScheduler(OtaTransport.Factory transportFactory, OtaScheduler scheduler, OtaScheduler.Factory sessionSchedulers,
+                           OtaConfig config, int maxConcurrent, Listener listener) {
+        this.transportFactory = transportFactory;
+        this.scheduler = scheduler;
+        this.sessionSchedulers = sessionSchedulers;
+        this.config = config;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.listener = listener;
+    }
+
+    // shared by all sessions, lets a job resubmitted after a failure continue its upload
+    public void setCheckpointStore(CheckpointStore checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    // Sessions tune their link and share what they learn under the key tuningKeys gives an
+    // address, e.g. device model plus phone. A null key leaves the device untuned.
+    public void setLinkTuning(TuningStore tuning, Function<String, String> tuningKeys) {
+        this.tuning = tuning;
+        this.tuningKeys = tuningKeys;
+    }
+
+    // LZ4 compressed variant of a job's image, null to send that image raw, see OtaSession
+    public void setCompressedImages(Function<FirmwareImage, FirmwareImage> compressedImages) {
+        this.compressedImages = compressedImages;
+    }
+
+    // records every accepted job's events, call before the first submit
+    public void setJournal(JobJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Submits again the jobs the journal shows cut short by the app dying, with their old
+     * priority. images maps a content hash to the image, null skips the device. Checkpoints
+     * let the uploads continue where they stopped.
+     */
+    public List<OtaJob> resubmitInterrupted(Function<String, FirmwareImage> images) {
+        List<OtaJob> resubmitted = new ArrayList<>();
+        for (JobJournal.Record record : journal.getInterrupted()) {
+            FirmwareImage image = images.apply(record.getImageHash());
+            if (image != null) {
+                resubmitted.add(submit(record.getAddress(), image, record.getPriority()));
+            }
+        }
+        return resubmitted;
+    }
+
+    public OtaJob submit(String address, FirmwareImage image, int priority) {
+        OtaJob job;
+        synchronized (this) {
+            job = new OtaJob(address, image, priority, sequence++);
+        }
+        scheduler.post(() -> Enqueue(job));
+        return job;
+    }
+
+    public void cancel(OtaJob job) {
+        scheduler.post(() -> {
+            if (job.getStatus() == OtaJob.Status.Queued && queue.remove(job)) {
+                Finish(job, OtaJob.Status.Cancelled, "Cancelled");
+            } else if (job.getStatus() == OtaJob.Status.Running) {
+                job.setCancelRequested();
+                job.getSession().cancel();
+            } else if (job.getStatus() == OtaJob.Status.Verifying) {
+                job.setCancelRequested();
+                job.getVerifier().cancel();
+            }
+        });
+    }
+
+    // forwards a scanner's sighting to the session updating the device or its verifier, any thread
+    public void onAdvertising(String address, boolean dfuMode) {
+        scheduler.post(() -> {
+            OtaJob job = active.get(address);
+            if (job != null && job.getStatus() == OtaJob.Status.Running) {
+                job.getSession().onAdvertising(dfuMode);
+            } else if (job != null && job.getStatus() == OtaJob.Status.Verifying) {
+                job.getVerifier().onAdvertising(dfuMode);
+            }
+        });
+    }
+
+    public void cancelAll() {
+        scheduler.post(() -> {
+            for (OtaJob job : new ArrayList<>(active.values())) {
+                cancel(job);
+            }
+        });
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    // scheduler thread only
+    public int getRunning() {
+        return running;
+    }
+
+    // scheduler thread only, uploaded jobs waiting for their device to confirm the version
+    public int getVerifying() {
+        return verifying;
+    }
+
+    // scheduler thread only
+    public int getMaxRunningReached() {
+        return maxRunning;
+    }
+
+    // scheduler thread only, every job submitted so far in submission order
+    public List<OtaJob> getJobs() {
+        return jobs;
+    }
+
+    public boolean isIdle() {
+        return running == 0 && verifying == 0 && queue.isEmpty();
+    }
+
+    private void Enqueue(OtaJob job) {
+        jobs.add(job);
+        job.setQueued(scheduler.uptimeMillis());
+        if (active.containsKey(job.getAddress())) {
+            job.setFinished(OtaJob.Status.Failed, "Device already has an update queued", scheduler.uptimeMillis());
+            listener.onJobFinished(job);
+            return;
+        }
+        active.put(job.getAddress(), job);
+        if (journal != null) {
+            journal.submitted(job);
+        }
+        queue.add(job);
+        StartNext();
+    }
+
+    private void StartNext() {
+        while (running < maxConcurrent && !queue.isEmpty()) {
+            Start(queue.poll());
+        }
+        if (isIdle()) {
+            listener.onIdle();
+        }
+    }
+
+    private void Start(OtaJob job) {
+        OtaScheduler sessionScheduler = sessionSchedulers != null ? sessionSchedulers.create(job.getAddress()) : scheduler;
+        OtaSession session = new OtaSession(transportFactory.create(job.getAddress(), sessionScheduler), sessionScheduler,
+                job.getImage(), config, new JobListener(job, sessionScheduler));
+        session.setCheckpointStore(checkpoints);
+        if (compressedImages != null) {
+            session.setCompressedImage(compressedImages.apply(job.getImage()));
+        }
+        String tuningKey = tuning != null ? tuningKeys.apply(job.getAddress()) : null;
+        if (tuningKey != null) {
+            session.setLinkTuner(new LinkTuner(tuning, tuningKey));
+        }
+        running++;
+        maxRunning = Math.max(maxRunning, running);
+        job.setRunning(session, scheduler.uptimeMillis());
+        if (journal != null) {
+            journal.started(job);
+        }
+        session.start();
+    }
+
+    // upload is done, the link slot goes to the next job while the device reboots
+    private void Verify(OtaJob job) {
+        running--;
+        verifying++;
+        OtaScheduler verifierScheduler = sessionSchedulers != null ? sessionSchedulers.create(job.getAddress()) : scheduler;
+        GblInfo info = job.getSession().getGblInfo();
+        int expected = info != null && info.hasApplicationInfo() ? info.getApplicationVersion() : -1;
+        OtaVerifier verifier = new OtaVerifier(transportFactory.create(job.getAddress(), verifierScheduler), verifierScheduler,
+                expected, config, (result, version, millis) -> {
+            Runnable verified = () -> Verified(job, verifierScheduler, result, version, millis);
+            if (verifierScheduler == scheduler) {
+                verified.run();
+            } else {
+                scheduler.post(verified);
+            }
+        });
+        job.setVerifying(verifier);
+        job.setState(OtaState.Verifying);
+        if (journal != null) {
+            journal.stateChanged(job, OtaState.Verifying);
+        }
+        listener.onJobStateChanged(job, OtaState.Verifying);
+        verifier.start();
+    }
+
+    private void Verified(OtaJob job, OtaScheduler verifierScheduler, OtaVerifier.Result result, int version, long millis) {
+        job.getSession().getStats().setVerification(result, version, millis);
+        if (verifierScheduler != scheduler) {
+            verifierScheduler.shutdown();
+        }
+        if (job.isCancelRequested()) {
+            Finish(job, OtaJob.Status.Cancelled, "Cancelled");
+        } else if (result == OtaVerifier.Result.Verified || result == OtaVerifier.Result.Running) {
+            Finish(job, OtaJob.Status.Succeeded, null);
+        } else if (result == OtaVerifier.Result.VersionMismatch) {
+            Finish(job, OtaJob.Status.Failed, "Device runs version " + version + " after update, expected "
+                    + job.getVerifier().getExpectedVersion());
+        } else if (result == OtaVerifier.Result.StuckInDfu) {
+            Finish(job, OtaJob.Status.Failed, "Device stayed in the bootloader after update");
+        } else if (result == OtaVerifier.Result.Unreadable) {
+            Finish(job, OtaJob.Status.Failed, "Device version could not be read after update");
+        } else {
+            Finish(job, OtaJob.Status.Failed, "Device not seen after update");
+        }
+        StartNext();
+    }
+
+    private void Finish(OtaJob job, OtaJob.Status status, String error) {
+        if (job.getStatus() == OtaJob.Status.Running) {
+            running--;
+        } else if (job.getStatus() == OtaJob.Status.Verifying) {
+            verifying--;
+        }
+        active.remove(job.getAddress());
+        job.setFinished(status, error, scheduler.uptimeMillis());
+        if (journal != null) {
+            journal.finished(job);
+        }
+        listener.onJobFinished(job);
+    }
+
+    // called on the session's scheduler, everything the queue owns is touched on its own
+    private class JobListener implements OtaListener {
+
+        private final OtaJob job;
+        private final OtaScheduler sessionScheduler;
+        private final AtomicBoolean progressPosted = new AtomicBoolean();
+        private volatile int totalBytes;
+
+        private final Runnable progress = this::ReportProgress;
+
+        JobListener(OtaJob job, OtaScheduler sessionScheduler) {
+            this.job = job;
+            this.sessionScheduler = sessionScheduler;
+        }
+
+        private void Run(Runnable task) {
+            if (sessionScheduler == scheduler) {
+                task.run();
+            } else {
+                scheduler.post(task);
+            }
+        }
+
+        // session is done with its scheduler once it reported the outcome
+        private void Release() {
+            if (sessionScheduler != scheduler) {
+                sessionScheduler.shutdown();
+            }
+        }
+
+        private void ReportProgress() {
+            progressPosted.set(false);
+            listener.onJobProgress(job, job.getBytesSent(), totalBytes);
+        }
+
+        @Override
+        public void onStateChanged(OtaState state) {
+            Run(() -> {
+                job.setState(state);
+                if (journal != null) {
+                    journal.stateChanged(job, state);
+                }
+                listener.onJobStateChanged(job, state);
+            });
+        }
+
+        @Override
+        public void onProgress(int bytesSent, int totalBytes) {
+            job.setBytesSent(bytesSent);
+            this.totalBytes = totalBytes;
+            if (sessionScheduler == scheduler) {
+                ReportProgress();
+            } else if (progressPosted.compareAndSet(false, true)) {
+                scheduler.post(progress);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            Run(() -> {
+                if (config.isVerifyAfterUpdate()) {
+                    Verify(job);
+                } else {
+                    Finish(job, OtaJob.Status.Succeeded, null);
+                }
+                Release();
+                StartNext();
+            });
+        }
+
+        @Override
+        public void onError(String message) {
+            Run(() -> {
+                Finish(job, job.isCancelRequested() ? OtaJob.Status.Cancelled : OtaJob.Status.Failed, message);
+                Release();
+                StartNext();
+            });
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.sensemore.slilabs.ota.engine;
+
+public interface OtaListener {
+
+    void onStateChanged(OtaState state);
+
+    // totalBytes is -1 when the image length is not known up front
+    void onProgress(int bytesSent, int totalBytes);
+
+    void onComplete();
+
+    void onError(String message);
+}
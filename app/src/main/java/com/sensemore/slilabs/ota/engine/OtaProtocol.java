@@ -0,0 +1,37 @@
+package com.sensemore.slilabs.ota.engine;
+
+import java.util.UUID;
+
+/**
+ * Silicon Labs OTA (AppLoader) GATT layout and control opcodes.
+ */
+public final class OtaProtocol {
+
+    public static final UUID OTA_SERVICE = UUID.fromString("1d14d6ee-fd63-4fa1-bfa4-8f47b42119f0");
+    public static final UUID OTA_CONTROL_CHARACTERISTIC = UUID.fromString("F7BF3564-FB6D-4E53-88A4-5E37E0326063");
+    public static final UUID OTA_DATA_CHARACTERISTIC = UUID.fromString("984227F3-34FC-4045-A5D0-2C581F81A153");
+    // Application version of the running image, uint32 little endian
+    public static final UUID OTA_APPLICATION_VERSION_CHARACTERISTIC = UUID.fromString("0D77CC11-4AC1-49F2-BFA9-CD96AC7A92F8");
+    // Vendor extension, not part of the stock AppLoader. Readable in DFU mode, holds the
+    // number of image bytes received since 0x00 and their CRC32, both uint32 little endian.
+    // Lets a session continue an interrupted upload instead of starting over.
+    public static final UUID OTA_PROGRESS_CHARACTERISTIC = UUID.fromString("5E3B7A10-6C2D-4E8A-9B71-0D4F2C8A1E53");
+    public static final int PROGRESS_VALUE_SIZE = 8;
+
+    // Written to control characteristic. 0x00 reboots an application into DFU mode,
+    // or begins the upload when the device is already in DFU mode.
+    public static final byte CONTROL_BEGIN = 0x00;
+    public static final byte CONTROL_END = 0x03;
+    public static final byte CONTROL_REBOOT = 0x04;
+    // Vendor extension that comes with the progress characteristic. 0x05 followed by a uint32
+    // little endian offset drops every received byte past the offset, the upload continues there.
+    public static final byte CONTROL_REWIND = 0x05;
+    public static final int REWIND_VALUE_SIZE = 5;
+
+    // Name the AppLoader advertises with unless the project configures another, the
+    // application usually advertises its own name so the two modes can be told apart.
+    public static final String DFU_DEVICE_NAME = "AppLoader";
+
+    private OtaProtocol() {
+    }
+}
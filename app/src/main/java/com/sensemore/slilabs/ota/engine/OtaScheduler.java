@@ -0,0 +1,28 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Serial task queue the engine runs on. Mirrors the subset of {@code android.os.Handler}
+ * the OTA flow needs so the same session can run on a looper or on a simulated clock.
+ */
+public interface OtaScheduler {
+
+    // creates the scheduler of one link, e.g. a looper thread per connected device
+    interface Factory {
+        OtaScheduler create(String name);
+    }
+
+    long uptimeMillis();
+
+    // finer clock for latency measurements, only differences are meaningful
+    long uptimeMicros();
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    void removeCallbacks(Runnable task);
+
+    // releases a thread the scheduler owns, tasks posted afterwards may be dropped
+    default void shutdown() {
+    }
+}
@@ -0,0 +1,842 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareSource;
+import com.sensemore.slilabs.ota.engine.image.GblCompression;
+import com.sensemore.slilabs.ota.engine.image.GblDelta;
+import com.sensemore.slilabs.ota.engine.image.GblInfo;
+import com.sensemore.slilabs.ota.engine.image.GblValidatingSource;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Drives one OTA update of one device: connect, reboot into DFU if needed, begin,
+ * upload, end and reboot. All work runs on the given scheduler, transport callbacks
+ * are re-posted onto it so the session never needs locking.
+ * <p>
+ * Every step starts from the event that makes it possible, a write response, the
+ * discovery result or the DFU-mode device coming back, instead of a fixed sleep. Each
+ * wait is bounded by a timeout from {@link OtaConfig}, the upload by a stall watchdog.
+ * <p>
+ * Sessions built from a {@link FirmwareImage} survive a lost link: they reconnect with
+ * bounded exponential backoff, skip the DFU reset while the device stays in DFU mode, and
+ * continue from the offset the bootloader reports when it has the progress characteristic.
+ * Otherwise the image starts over. Progress is saved to the {@link CheckpointStore}.
+ * <p>
+ * With a {@link GblDelta} patch set the session reads the application version first and
+ * uploads the patch when the device runs the patch's base version. A bootloader that
+ * refuses the patch at 0x03 gets the full image in the same session. Likewise an LZ4
+ * compressed variant of the image, see {@link GblCompression}, is sent instead of the image
+ * and the raw image follows when the bootloader lacks the decompressor.
+ */
+public class OtaSession implements OtaTransport.Callback, UploadPipeline.Listener {
+
+    private final OtaTransport transport;
+    private final OtaScheduler scheduler;
+    // null when the session streams a one-shot source, such a session can't start over
+    private final FirmwareImage image;
+    // patch from a known base version to image, null to always send the full image
+    private FirmwareImage patch;
+    private GblInfo patchInfo;
+    private boolean usingPatch;
+    // image with LZ4 compressed program data, null to send it raw
+    private FirmwareImage compressed;
+    private boolean usingCompressed;
+    // 0x03 rejected an image whose blocks ended in a write with response, a silently lost
+    // write broke it, every write is acknowledged from then on
+    private boolean acknowledgeEveryWrite;
+    private boolean versionChecked;
+    private boolean readingVersion;
+    private FirmwareSource firmware;
+    private final OtaConfig config;
+    private final OtaListener listener;
+    private final Backoff backoff;
+    private CheckpointStore checkpoints;
+    private LinkTuner tuner;
+
+    private OtaState state = OtaState.Ready;
+    private boolean dfuMode;
+    private UploadPipeline pipeline;
+    private final OtaSessionStats stats = new OtaSessionStats();
+    private String imageHash;
+    private OtaCheckpoint checkpoint;
+    private boolean firmwareConsumed;
+    private int resumeOffset;
+    private long resumeCrc;
+    private int dfuResets;
+    // 0x00 was written in application mode, the next DFU-mode advertisement is the rebooted device
+    private boolean awaitingDfuReboot;
+    // reconnect is due, an advertisement of the device starts it early
+    private boolean awaitingAdvertisement;
+    private boolean readingOffset;
+    private int lastStallCheckBytes;
+
+    private final Runnable timeout = this::OnTimeout;
+    private final Runnable stallCheck = this::CheckStall;
+    private final Runnable reconnect = this::Reconnect;
+    private final Runnable beginWrite = this::WriteBegin;
+    private final Runnable endWrite = this::WriteEnd;
+    private final Runnable rebootWrite = this::WriteReboot;
+    private final Runnable dataWriteFailed = () -> {
+        if (pipeline != null && state == OtaState.OtaUpload) {
+            pipeline.onDataWriteFailed();
+        } else {
+            Fail("Data write failed");
+        }
+    };
+    private final Runnable dataWritten = () -> {
+        if (pipeline != null && state == OtaState.OtaUpload) {
+            pipeline.onDataWritten();
+        }
+    };
+
+    private final LinkTuner.Knobs tunerKnobs = new LinkTuner.Knobs() {
+        @Override
+        public void setPayloadSize(int payloadSize) {
+            if (pipeline != null) {
+                pipeline.setPayloadSize(payloadSize);
+                stats.setPayloadSize(payloadSize);
+            }
+        }
+
+        @Override
+        public void setTwoMegPhy(boolean twoMegPhy) {
+            transport.setPreferredPhy(twoMegPhy ? OtaTransport.PHY_LE_2M : OtaTransport.PHY_LE_1M);
+        }
+    };
+
+    public OtaSession(OtaTransport transport, OtaScheduler scheduler, byte[] firmwareFile, OtaConfig config, OtaListener listener) {
+        this(transport, scheduler, new ByteArrayImage(firmwareFile), config, listener);
+    }
+
+    public OtaSession(OtaTransport transport, OtaScheduler scheduler, FirmwareImage image, OtaConfig config, OtaListener listener) {
+        this(transport, scheduler, image, null, config, listener);
+    }
+
+    public OtaSession(OtaTransport transport, OtaScheduler scheduler, FirmwareSource firmware, OtaConfig config, OtaListener listener) {
+        this(transport, scheduler, null, firmware, config, listener);
+    }
+
+    private OtaSession(OtaTransport transport, OtaScheduler scheduler, FirmwareImage image, FirmwareSource firmware,
+                       OtaConfig config, OtaListener listener) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.image = image;
+        this.config = config;
+        this.firmware = firmware != null ? Validating(firmware) : null;
+        this.listener = listener;
+        this.backoff = new Backoff(config.getRetryDelayMillis(), config.getMaxRetryDelayMillis(), config.getMaxRetries());
+        transport.setCallback(this);
+    }
+
+    // where checkpoints of this session are kept, call before start
+    public void setCheckpointStore(CheckpointStore checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    // picks payload size and PHY of the upload and learns them for later sessions, call before start
+    public void setLinkTuner(LinkTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    // Patch made with GblDelta from the version the device may run to image, call before
+    // start. Needs a session built from a FirmwareImage.
+    public void setDeltaPatch(FirmwareImage patch) {
+        this.patch = patch;
+    }
+
+    // Same image with its program data compressed, e.g. by GblCompression, call before start.
+    // Needs a session built from a FirmwareImage, ignored when it did not get smaller.
+    public void setCompressedImage(FirmwareImage compressed) {
+        this.compressed = compressed;
+        this.usingCompressed = compressed != null && image != null && compressed.getLength() < image.getLength();
+        stats.setCompressedUpload(usingCompressed);
+    }
+
+    public void start() {
+        scheduler.post(this::ConnectDevice);
+    }
+
+    public void cancel() {
+        scheduler.post(() -> Fail("Cancelled"));
+    }
+
+    // A scanner saw the device advertise, dfuMode when the bootloader sent it. A session
+    // waiting to reconnect connects now, any thread.
+    public void onAdvertising(boolean dfuMode) {
+        scheduler.post(() -> {
+            if (state != OtaState.Reconnecting || !awaitingAdvertisement || (awaitingDfuReboot && !dfuMode)) {
+                return;
+            }
+            scheduler.removeCallbacks(reconnect);
+            Reconnect();
+        });
+    }
+
+    public OtaState getState() {
+        return state;
+    }
+
+    // null when GBL validation is off and the image carries no metadata of its own
+    public GblInfo getGblInfo() {
+        if (firmware instanceof GblValidatingSource) {
+            return ((GblValidatingSource) firmware).getInfo();
+        }
+        return image != null ? Upload().getGblInfo() : null;
+    }
+
+    private FirmwareSource Validating(FirmwareSource source) {
+        return config.isValidateGbl() ? new GblValidatingSource(source) : source;
+    }
+
+    private void ConnectDevice() {
+        SetState(OtaState.Connecting);
+        try {
+            if (image != null) {
+                if (patch != null) {
+                    patchInfo = InspectPatch();
+                }
+                OpenFirmware();
+                LoadCheckpoint();
+            } else if (firmware instanceof GblValidatingSource) {
+                // reject non-GBL files before the device reboots into DFU, the rest is checked while uploading
+                ((GblValidatingSource) firmware).inspectHeader();
+            }
+        } catch (IOException e) {
+            Fail("Invalid firmware file: " + e.getMessage());
+            return;
+        }
+        ArmTimeout(config.getConnectTimeoutMillis());
+        transport.connect();
+    }
+
+    private GblInfo InspectPatch() throws IOException {
+        GblInfo info = patch.getGblInfo();
+        if (info == null) {
+            try (FirmwareSource source = patch.open()) {
+                info = new GblValidatingSource(source).inspectHeader();
+            }
+        }
+        if (!info.isDelta()) {
+            throw new IOException("Delta patch is a full image");
+        }
+        return info;
+    }
+
+    private void LoadCheckpoint() throws IOException {
+        imageHash = Upload().getContentHash();
+        OtaCheckpoint saved = checkpoints != null ? checkpoints.load(transport.getAddress()) : null;
+        checkpoint = saved != null && saved.matches(transport.getAddress(), imageHash) ? saved : null;
+    }
+
+    // what goes over the air, the patch, the compressed or the raw image
+    private FirmwareImage Upload() {
+        if (usingPatch) {
+            return patch;
+        }
+        return usingCompressed ? compressed : image;
+    }
+
+    private void OpenFirmware() throws IOException {
+        CloseFirmware();
+        // an image validated before, e.g. when it entered the ImageCache, is not parsed again
+        firmware = Upload().getGblInfo() != null ? Upload().open() : Validating(Upload().open());
+        firmwareConsumed = false;
+        if (firmware instanceof GblValidatingSource) {
+            ((GblValidatingSource) firmware).inspectHeader();
+        }
+    }
+
+    private void ArmTimeout(long millis) {
+        scheduler.removeCallbacks(timeout);
+        scheduler.postDelayed(timeout, millis);
+    }
+
+    private void OnTimeout() {
+        switch (state) {
+            case Connecting:
+                if (readingVersion) {
+                    OnVersion(0, false);
+                    break;
+                }
+                Fail("Connection timeout, make sure device is discoverable");
+                break;
+            case Reconnecting:
+                Retry(awaitingDfuReboot ? "Device did not come back in DFU mode" : "Reconnect timeout");
+                break;
+            case ResetDFU:
+            case Disconnecting:
+                Fail("No response during " + state.getLabel());
+                break;
+            default:
+                Retry("No response during " + state.getLabel());
+                break;
+        }
+    }
+
+    // write completions stopped arriving, the link is gone without a disconnect event
+    private void CheckStall() {
+        if (state != OtaState.OtaUpload || pipeline == null) {
+            return;
+        }
+        if (pipeline.getAckedBytes() == lastStallCheckBytes) {
+            Retry("Upload stalled");
+            return;
+        }
+        lastStallCheckBytes = pipeline.getAckedBytes();
+        scheduler.postDelayed(stallCheck, config.getStallTimeoutMillis());
+    }
+
+    // decides between patch and full image once per session, before the device enters DFU mode
+    private void CheckVersion() {
+        versionChecked = true;
+        if (patch == null || image == null || !transport.readApplicationVersion()) {
+            ContinueAfterDiscovery();
+            return;
+        }
+        readingVersion = true;
+        ArmTimeout(config.getResponseTimeoutMillis());
+    }
+
+    private void OnVersion(int version, boolean success) {
+        readingVersion = false;
+        if (success && version == patchInfo.getDeltaBaseVersion()) {
+            try {
+                usingPatch = true;
+                OpenFirmware();
+                LoadCheckpoint();
+            } catch (IOException e) {
+                Fail("Invalid delta patch: " + e.getMessage());
+                return;
+            }
+        }
+        stats.setDeltaUpload(usingPatch);
+        stats.setCompressedUpload(usingCompressed && !usingPatch);
+        ContinueAfterDiscovery();
+    }
+
+    private void ContinueAfterDiscovery() {
+        //if OTA_SERVICE has OTA_DATA_CHARACTERISTIC target device already in dfu mode
+        if (dfuMode) {
+            ResumeOrBegin();
+        } else {
+            ResetDFU();
+        }
+    }
+
+    // Bootloader refused the patch, it may lack patch support or hold another base, or it
+    // refused compressed data. The patch falls back to the full image, compressed to raw.
+    private void FallBackToFullImage() {
+        if (usingPatch) {
+            usingPatch = false;
+        } else {
+            usingCompressed = false;
+        }
+        stats.setDeltaUpload(false);
+        stats.setCompressedUpload(usingCompressed);
+        try {
+            OpenFirmware();
+            LoadCheckpoint();
+        } catch (IOException e) {
+            Fail("Can't reopen firmware image: " + e.getMessage());
+            return;
+        }
+        OtaBegin();
+    }
+
+    private void FallBackToAcknowledged() {
+        acknowledgeEveryWrite = true;
+        try {
+            OpenFirmware();
+            LoadCheckpoint();
+        } catch (IOException e) {
+            Fail("Can't reopen firmware image: " + e.getMessage());
+            return;
+        }
+        OtaBegin();
+    }
+
+    private void ResetDFU() {
+        if (++dfuResets > 2) {
+            Fail("Device did not enter DFU mode");
+            return;
+        }
+        SetState(OtaState.ResetDFU);
+        ArmTimeout(config.getResponseTimeoutMillis());
+        //Writing 0x00 to control characteristic to reboot target device into DFU mode
+        if (!transport.writeControl(OtaProtocol.CONTROL_BEGIN)) {
+            Fail("Failed to write DFU reset");
+        }
+    }
+
+    // device is rebooting into DFU mode, connect as soon as it advertises again
+    private void WaitForDfuDevice() {
+        SetState(OtaState.Reconnecting);
+        awaitingDfuReboot = true;
+        transport.disconnect();
+        ArmTimeout(config.getReconnectDelayMillis() + config.getRebootTimeoutMillis());
+        awaitingAdvertisement = true;
+        if (config.isConnectOnAdvertisement()) {
+            // the DFU advertisement starts the connect, the reboot timeout bounds the wait
+            return;
+        }
+        if (config.getReconnectDelayMillis() > 0) {
+            scheduler.postDelayed(reconnect, config.getReconnectDelayMillis());
+        } else {
+            Reconnect();
+        }
+    }
+
+    private void Reconnect() {
+        awaitingAdvertisement = false;
+        ConnectOtaDevice();
+    }
+
+    // connect completes on the device's next connectable advertisement
+    private void ConnectOtaDevice() {
+        transport.disconnect();
+        transport.connect();
+    }
+
+    // device is in DFU mode, continue an interrupted upload when it kept the data
+    private void ResumeOrBegin() {
+        if (image != null && checkpoint != null && checkpoint.getOffset() > 0 && transport.readReceivedOffset()) {
+            readingOffset = true;
+            ArmTimeout(config.getResponseTimeoutMillis());
+            return; // continues in onReceivedOffsetRead
+        }
+        OtaBegin();
+    }
+
+    private void Resume(long offset, long crc) {
+        if (offset == 0 || offset > Upload().getLength() || !SeekFirmware(offset, crc)) {
+            OtaBegin();
+            return;
+        }
+        resumeOffset = (int) offset;
+        resumeCrc = crc;
+        SetState(OtaState.OtaBegin);
+        // 0x00 would discard the download, go straight to the MTU exchange
+        RequestMTU();
+    }
+
+    // positions a fresh source at offset, false when the device holds other bytes than the image
+    private boolean SeekFirmware(long offset, long crc) {
+        try {
+            OpenFirmware();
+            CRC32 check = new CRC32();
+            byte[] buffer = new byte[4096];
+            long remaining = offset;
+            while (remaining > 0) {
+                int read = firmware.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    return false;
+                }
+                check.update(buffer, 0, read);
+                remaining -= read;
+            }
+            firmwareConsumed = true;
+            return check.getValue() == crc;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void OtaBegin() {
+        if (firmwareConsumed) {
+            // starting over, the previous source is partly read
+            try {
+                OpenFirmware();
+            } catch (IOException e) {
+                Fail("Can't reopen firmware image: " + e.getMessage());
+                return;
+            }
+        }
+        resumeOffset = 0;
+        resumeCrc = 0;
+        SetState(OtaState.OtaBegin);
+        ArmTimeout(config.getBeginDelayMillis() + config.getResponseTimeoutMillis());
+        //Writing 0x00 to control characteristic to DFU mode target device begins OTA process
+        if (config.getBeginDelayMillis() > 0) {
+            scheduler.postDelayed(beginWrite, config.getBeginDelayMillis());
+        } else {
+            WriteBegin();
+        }
+    }
+
+    private void WriteBegin() {
+        if (state == OtaState.OtaBegin && !transport.writeControl(OtaProtocol.CONTROL_BEGIN)) {
+            Fail("Failed to write OTA begin");
+        }
+    }
+
+    private void RequestMTU() {
+        // requested value is the ATT MTU, a write command carries 3 bytes of ATT header,
+        // that's why 247 byte payloads need 250
+        ArmTimeout(config.getResponseTimeoutMillis());
+        if (!transport.requestMtu(config.getRequestedMtu())) {
+            // keep going with the default MTU
+            OtaUpload();
+        }
+    }
+
+    private void OtaUpload() {
+        SetState(OtaState.OtaUpload);
+        scheduler.removeCallbacks(timeout);
+        lastStallCheckBytes = resumeOffset;
+        scheduler.postDelayed(stallCheck, config.getStallTimeoutMillis());
+        if (config.isHighPriorityUpload() && transport.requestConnectionPriority(OtaTransport.CONNECTION_PRIORITY_HIGH)) {
+            stats.setConnectionPriority(OtaTransport.CONNECTION_PRIORITY_HIGH);
+        }
+        boolean twoMegPhy = config.isTwoMegPhyUpload();
+        stats.onUploadStarted(resumeOffset, scheduler.uptimeMillis());
+        firmwareConsumed = true;
+        pipeline = new UploadPipeline(transport, scheduler, firmware, stats.getPayloadSize(), resumeOffset, resumeCrc,
+                acknowledgeEveryWrite ? UploadMode.Acknowledged : config.getUploadMode(), config, this);
+        if (tuner != null) {
+            LinkSettings start = tuner.onUploadStarted(stats.getPayloadSize(), twoMegPhy, resumeOffset, firmware.getDeclaredLength(),
+                    scheduler.uptimeMillis(), tunerKnobs);
+            twoMegPhy = start.isTwoMegPhy();
+            pipeline.setPayloadSize(start.getPayloadSize());
+            stats.setPayloadSize(start.getPayloadSize());
+            if (start.getWindowSize() > 0) {
+                pipeline.setWindow(start.getWindowSize());
+            }
+        }
+        if (twoMegPhy) {
+            transport.setPreferredPhy(OtaTransport.PHY_LE_2M);
+        }
+        pipeline.start();
+    }
+
+    private void RestoreLinkParameters() {
+        if (stats.getConnectionPriority() != OtaTransport.CONNECTION_PRIORITY_BALANCED) {
+            transport.requestConnectionPriority(OtaTransport.CONNECTION_PRIORITY_BALANCED);
+        }
+        if (config.isTwoMegPhyUpload()) {
+            transport.setPreferredPhy(OtaTransport.PHY_LE_1M);
+        }
+    }
+
+    public UploadPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public OtaSessionStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void onProgress(int bytesAcked, int totalBytes) {
+        stats.onProgress(bytesAcked, scheduler.uptimeMillis());
+        if (tuner != null) {
+            tuner.onProgress(bytesAcked, scheduler.uptimeMillis());
+        }
+        if (imageHash != null && bytesAcked - (checkpoint != null ? checkpoint.getOffset() : 0) >= config.getCheckpointIntervalBytes()) {
+            SaveCheckpoint(bytesAcked);
+        }
+        listener.onProgress(bytesAcked, totalBytes);
+    }
+
+    private void SaveCheckpoint(long offset) {
+        if (imageHash == null) {
+            return;
+        }
+        checkpoint = new OtaCheckpoint(transport.getAddress(), imageHash, offset, scheduler.uptimeMillis());
+        if (checkpoints != null) {
+            checkpoints.save(checkpoint);
+        }
+    }
+
+    // link dropped mid-update, reconnect later unless attempts are used up
+    private void Retry(String reason) {
+        if (image == null || !backoff.canRetry()) {
+            Fail(reason);
+            return;
+        }
+        CancelPending();
+        if (pipeline != null) {
+            SaveCheckpoint(pipeline.getAckedBytes());
+            pipeline.cancel();
+            if (state == OtaState.OtaUpload) {
+                stats.onAttemptFinished(pipeline);
+            }
+            pipeline = null;
+        }
+        readingOffset = false;
+        readingVersion = false;
+        transport.disconnect();
+        stats.onRetry();
+        SetState(OtaState.Reconnecting);
+        long delay = backoff.nextDelayMillis();
+        ArmTimeout(delay + config.getConnectTimeoutMillis());
+        awaitingAdvertisement = config.isConnectOnAdvertisement();
+        scheduler.postDelayed(reconnect, delay);
+    }
+
+    private void CancelPending() {
+        awaitingAdvertisement = false;
+        scheduler.removeCallbacks(timeout);
+        scheduler.removeCallbacks(stallCheck);
+        scheduler.removeCallbacks(reconnect);
+        scheduler.removeCallbacks(beginWrite);
+        scheduler.removeCallbacks(endWrite);
+        scheduler.removeCallbacks(rebootWrite);
+    }
+
+    @Override
+    public void onUploadComplete() {
+        stats.onUploadFinished(pipeline.getAckedBytes(), scheduler.uptimeMillis());
+        stats.onAttemptFinished(pipeline);
+        if (tuner != null) {
+            tuner.onUploadFinished(pipeline.getWindow(), Math.round(stats.getBytesPerSecond()));
+        }
+        CloseFirmware();
+        RestoreLinkParameters();
+        OtaEnd();
+    }
+
+    @Override
+    public void onUploadFailed(String message) {
+        // bootloader never sees 0x03 so it won't accept the partial image
+        Fail(message);
+    }
+
+    private void CloseFirmware() {
+        if (firmware == null) {
+            return;
+        }
+        try {
+            firmware.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
+    }
+
+    private void OtaEnd() {
+        SetState(OtaState.OtaEnd);
+        scheduler.removeCallbacks(stallCheck);
+        // 0x03 queues behind the data writes, the bootloader sees it after the last byte
+        ArmTimeout(config.getEndDelayMillis() + config.getResponseTimeoutMillis());
+        if (config.getEndDelayMillis() > 0) {
+            scheduler.postDelayed(endWrite, config.getEndDelayMillis());
+        } else {
+            WriteEnd();
+        }
+    }
+
+    private void WriteEnd() {
+        if (state == OtaState.OtaEnd && !transport.writeControl(OtaProtocol.CONTROL_END)) {
+            scheduler.postDelayed(endWrite, config.getWriteRetryDelayMillis());
+        }
+    }
+
+    private void RebootTargetDevice() {
+        SetState(OtaState.Disconnecting);
+        ArmTimeout(config.getRebootDelayMillis() + config.getResponseTimeoutMillis());
+        if (config.getRebootDelayMillis() > 0) {
+            scheduler.postDelayed(rebootWrite, config.getRebootDelayMillis());
+        } else {
+            WriteReboot();
+        }
+    }
+
+    private void WriteReboot() {
+        if (state == OtaState.Disconnecting && !transport.writeControl(OtaProtocol.CONTROL_REBOOT)) {
+            Fail("Failed to write reboot");
+        }
+    }
+
+    private void Complete() {
+        CancelPending();
+        if (checkpoints != null) {
+            checkpoints.clear(transport.getAddress());
+        }
+        SetState(OtaState.Ready);
+        listener.onComplete();
+    }
+
+    private void Fail(String message) {
+        if (state == OtaState.Ready || state == OtaState.Failed) {
+            return;
+        }
+        CancelPending();
+        if (pipeline != null) {
+            if (pipeline.getAckedBytes() > resumeOffset) {
+                // a later session may still continue from here
+                SaveCheckpoint(pipeline.getAckedBytes());
+            }
+            pipeline.cancel();
+            if (state == OtaState.OtaUpload) {
+                stats.onAttemptFinished(pipeline);
+            }
+        }
+        CloseFirmware();
+        transport.disconnect();
+        SetState(OtaState.Failed);
+        listener.onError(message);
+    }
+
+    private void SetState(OtaState newState) {
+        if (state != newState) {
+            stats.onStateChanged(newState, scheduler.uptimeMillis());
+            state = newState;
+            listener.onStateChanged(newState);
+        }
+    }
+
+    @Override
+    public void onConnected() {
+        scheduler.post(() -> {
+            if (state != OtaState.Connecting && state != OtaState.Reconnecting) {
+                return;
+            }
+            ArmTimeout(config.getResponseTimeoutMillis());
+            transport.discoverServices(); // Directly discovering services
+        });
+    }
+
+    @Override
+    public void onDisconnected() {
+        scheduler.post(() -> {
+            if (state == OtaState.ResetDFU) {
+                // device rebooted before its write response went out
+                WaitForDfuDevice();
+            } else if (state == OtaState.Reconnecting) {
+                // link lost before discovery finished, timeout of the phase keeps running
+                ConnectOtaDevice();
+            } else if (state == OtaState.Disconnecting) {
+                // image was accepted with 0x03, the device rebooted before acknowledging 0x04
+                Complete();
+            } else if (state == OtaState.OtaBegin || state == OtaState.OtaUpload || state == OtaState.OtaEnd) {
+                Retry("Disconnected during " + state.getLabel());
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(boolean success, boolean dfuMode) {
+        scheduler.post(() -> {
+            if (!success) {
+                Fail("OTA service not found");
+                return;
+            }
+            this.dfuMode = dfuMode;
+            if (state == OtaState.Connecting) {
+                if (versionChecked) {
+                    ContinueAfterDiscovery();
+                } else {
+                    CheckVersion();
+                }
+            } else if (state == OtaState.Reconnecting) {
+                if (dfuMode) {
+                    awaitingDfuReboot = false;
+                    ResumeOrBegin();
+                } else if (awaitingDfuReboot) {
+                    // caught the application before it went down, try the next advertisement
+                    ConnectOtaDevice();
+                } else {
+                    // device fell back to its application, e.g. after a bootloader timeout
+                    ResetDFU();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onControlWritten(byte opcode, boolean success) {
+        scheduler.post(() -> {
+            if (opcode == OtaProtocol.CONTROL_REWIND) {
+                // the pipeline's own request, it decides what a refusal means
+                if (pipeline != null && state == OtaState.OtaUpload) {
+                    pipeline.onRewound(success);
+                }
+                return;
+            }
+            if (!success && opcode == OtaProtocol.CONTROL_END && (usingPatch || usingCompressed) && state == OtaState.OtaEnd) {
+                FallBackToFullImage();
+                return;
+            }
+            if (!success && opcode == OtaProtocol.CONTROL_END && image != null && pipeline != null && pipeline.isBlockAcknowledged()
+                    && state == OtaState.OtaEnd) {
+                FallBackToAcknowledged();
+                return;
+            }
+            if (!success) {
+                Fail("Control write 0x0" + opcode + " failed");
+                return;
+            }
+            if (opcode == OtaProtocol.CONTROL_BEGIN && state == OtaState.ResetDFU) {
+                //target device rebooting into OTA
+                WaitForDfuDevice();
+            } else if (opcode == OtaProtocol.CONTROL_BEGIN && state == OtaState.OtaBegin && dfuMode) {
+                RequestMTU();
+            } else if (opcode == OtaProtocol.CONTROL_END && state == OtaState.OtaEnd) {
+                RebootTargetDevice();
+            } else if (opcode == OtaProtocol.CONTROL_REBOOT && state == OtaState.Disconnecting) {
+                transport.disconnect();
+                Complete();
+            }
+        });
+    }
+
+    @Override
+    public void onDataWritten(boolean success) {
+        // called once per packet, avoid allocating a task for each one
+        scheduler.post(success ? dataWritten : dataWriteFailed);
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, boolean success) {
+        scheduler.post(() -> {
+            if (state != OtaState.OtaBegin) {
+                return;
+            }
+            //size payloads from what the peer accepted, default MTU when exchange failed
+            stats.setNegotiatedMtu(success ? mtu : OtaTransport.DEFAULT_ATT_MTU);
+            OtaUpload();
+        });
+    }
+
+    @Override
+    public void onReceivedOffsetRead(long offset, long crc, boolean success) {
+        scheduler.post(() -> {
+            if (!readingOffset) {
+                if (pipeline != null && state == OtaState.OtaUpload) {
+                    pipeline.onProgressRead(offset, crc, success);
+                }
+                return;
+            }
+            readingOffset = false;
+            if (success) {
+                Resume(offset, crc);
+            } else {
+                OtaBegin();
+            }
+        });
+    }
+
+    @Override
+    public void onApplicationVersionRead(int version, boolean success) {
+        scheduler.post(() -> {
+            if (readingVersion && state == OtaState.Connecting) {
+                OnVersion(version, success);
+            }
+        });
+    }
+
+    @Override
+    public void onPhyUpdated(int txPhy, boolean success) {
+        scheduler.post(() -> {
+            // stats keep the PHY the upload ran on, not the restored one
+            if (success && state == OtaState.OtaUpload) {
+                stats.setPhy(txPhy);
+                if (tuner != null) {
+                    tuner.onPhyUpdated(txPhy);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,139 @@
+package com.sensemore.slilabs.ota.engine;
+
+import java.util.Locale;
+
+/**
+ * Session metrics as one JSON object or one CSV row. Built once when a session ends, never
+ * on the upload path.
+ */
+public final class OtaSessionReport {
+
+    private static final OtaState[] PHASES = {OtaState.Connecting, OtaState.ResetDFU, OtaState.Reconnecting,
+            OtaState.OtaBegin, OtaState.OtaUpload, OtaState.OtaEnd, OtaState.Disconnecting};
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private OtaSessionReport() {
+    }
+
+    // error is null for a successful session
+    public static String toJson(String address, OtaSessionStats stats, String error) {
+        StringBuilder json = new StringBuilder(512);
+        json.append('{');
+        Field(json, "address").append(Quote(address)).append(',');
+        Field(json, "success").append(error == null).append(',');
+        Field(json, "error").append(error == null ? "null" : Quote(error)).append(',');
+        Field(json, "sessionMillis").append(stats.getSessionMillis()).append(',');
+        Field(json, "phasesMillis").append('{');
+        for (int i = 0; i < PHASES.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            Field(json, PHASES[i].name()).append(stats.getPhaseMillis(PHASES[i]));
+        }
+        json.append("},");
+        Field(json, "imageBytes").append(stats.getImageSize()).append(',');
+        Field(json, "delta").append(stats.isDeltaUpload()).append(',');
+        Field(json, "compressed").append(stats.isCompressedUpload()).append(',');
+        Field(json, "verification").append(stats.getVerification() == null ? "null" : Quote(stats.getVerification().name())).append(',');
+        Field(json, "runningVersion").append(stats.getRunningVersion()).append(',');
+        Field(json, "verifyMillis").append(stats.getVerifyMillis()).append(',');
+        Field(json, "uploadMillis").append(stats.getUploadMillis()).append(',');
+        Field(json, "bytesPerSecond").append(Math.round(stats.getBytesPerSecond())).append(',');
+        Field(json, "mtu").append(stats.getNegotiatedMtu()).append(',');
+        Field(json, "payloadSize").append(stats.getPayloadSize()).append(',');
+        Field(json, "phy").append(stats.getPhy()).append(',');
+        Field(json, "connectionPriority").append(stats.getConnectionPriority()).append(',');
+        Field(json, "retries").append(stats.getRetries()).append(',');
+        Field(json, "resumedBytes").append(stats.getResumedBytes()).append(',');
+        Field(json, "writesRejected").append(stats.getWritesRejected()).append(',');
+        Field(json, "uploadMode").append(Quote(stats.getUploadMode().name())).append(',');
+        Field(json, "blocksRetransmitted").append(stats.getBlocksRetransmitted()).append(',');
+        Field(json, "bytesRetransmitted").append(stats.getBytesRetransmitted()).append(',');
+        LatencyHistogram latency = stats.getWriteLatency();
+        Field(json, "writeLatencyMicros").append('{');
+        Field(json, "count").append(latency.getCount()).append(',');
+        Field(json, "mean").append(Math.round(latency.getMean())).append(',');
+        for (double percentile : PERCENTILES) {
+            Field(json, "p" + (int) percentile).append(latency.getPercentile(percentile)).append(',');
+        }
+        Field(json, "max").append(latency.getMax());
+        json.append("}}");
+        return json.toString();
+    }
+
+    // outcome of a finished job, session is null when none was started
+    public static String toJson(OtaJob job, String image) {
+        StringBuilder json = new StringBuilder(640);
+        json.append('{');
+        Field(json, "address").append(Quote(job.getAddress())).append(',');
+        Field(json, "image").append(image == null ? "null" : Quote(image)).append(',');
+        Field(json, "status").append(Quote(job.getStatus().name())).append(',');
+        Field(json, "error").append(job.getError() == null ? "null" : Quote(job.getError())).append(',');
+        OtaSession session = job.getSession();
+        long waitMillis = (session != null ? job.getStartedMillis() : job.getFinishedMillis()) - job.getQueuedMillis();
+        Field(json, "waitMillis").append(waitMillis).append(',');
+        Field(json, "durationMillis").append(session != null ? job.getDurationMillis() : 0).append(',');
+        Field(json, "session").append(session == null ? "null" : toJson(job.getAddress(), session.getStats(), job.getError()));
+        return json.append('}').toString();
+    }
+
+    public static String csvHeader() {
+        StringBuilder csv = new StringBuilder("address,success,error,session_ms");
+        for (OtaState phase : PHASES) {
+            csv.append(',').append(phase.name()).append("_ms");
+        }
+        csv.append(",image_bytes,delta,upload_ms,bytes_per_second,mtu,payload,phy,priority,retries,resumed_bytes,writes_rejected");
+        csv.append(",upload_mode,blocks_retransmitted,bytes_retransmitted");
+        csv.append(",write_count,write_mean_us");
+        for (double percentile : PERCENTILES) {
+            csv.append(",write_p").append((int) percentile).append("_us");
+        }
+        return csv.append(",write_max_us,compressed,verification,running_version,verify_ms").toString();
+    }
+
+    public static String toCsvRow(String address, OtaSessionStats stats, String error) {
+        StringBuilder csv = new StringBuilder(256);
+        csv.append(address).append(',').append(error == null).append(',')
+                .append(error == null ? "" : '"' + error.replace("\"", "\"\"") + '"').append(',')
+                .append(stats.getSessionMillis());
+        for (OtaState phase : PHASES) {
+            csv.append(',').append(stats.getPhaseMillis(phase));
+        }
+        csv.append(',').append(stats.getImageSize()).append(',').append(stats.isDeltaUpload())
+                .append(',').append(stats.getUploadMillis())
+                .append(',').append(Math.round(stats.getBytesPerSecond())).append(',').append(stats.getNegotiatedMtu())
+                .append(',').append(stats.getPayloadSize()).append(',').append(stats.getPhy())
+                .append(',').append(stats.getConnectionPriority()).append(',').append(stats.getRetries())
+                .append(',').append(stats.getResumedBytes()).append(',').append(stats.getWritesRejected());
+        csv.append(',').append(stats.getUploadMode().name()).append(',').append(stats.getBlocksRetransmitted())
+                .append(',').append(stats.getBytesRetransmitted());
+        LatencyHistogram latency = stats.getWriteLatency();
+        csv.append(',').append(latency.getCount()).append(',').append(Math.round(latency.getMean()));
+        for (double percentile : PERCENTILES) {
+            csv.append(',').append(latency.getPercentile(percentile));
+        }
+        csv.append(',').append(latency.getMax()).append(',').append(stats.isCompressedUpload());
+        csv.append(',').append(stats.getVerification() == null ? "" : stats.getVerification().name())
+                .append(',').append(stats.getRunningVersion()).append(',').append(stats.getVerifyMillis());
+        return csv.toString();
+    }
+
+    private static StringBuilder Field(StringBuilder json, String name) {
+        return json.append('"').append(name).append("\":");
+    }
+
+    private static String Quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
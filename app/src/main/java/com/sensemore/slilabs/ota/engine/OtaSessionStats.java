@@ -0,0 +1,241 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Link parameters negotiated by a session and the throughput they produced, time per phase,
+ * retries and write completion latency. Updated on the session's scheduler without
+ * allocating, see {@link OtaSessionReport} for export.
+ */
+public class OtaSessionStats {
+
+    private int negotiatedMtu = OtaTransport.DEFAULT_ATT_MTU;
+    private int payloadSize = OtaTransport.DEFAULT_ATT_MTU - OtaTransport.ATT_HEADER_SIZE;
+    private int phy = OtaTransport.PHY_LE_1M;
+    private int connectionPriority = OtaTransport.CONNECTION_PRIORITY_BALANCED;
+    private int imageSize;
+    private int uploadStartOffset;
+    private long uploadStartMillis;
+    private long uploadEndMillis;
+    private int retries;
+    private int resumedBytes;
+    // time spent in each state, indexed by ordinal
+    private final long[] phaseMillis = new long[OtaState.values().length];
+    private OtaState phase = OtaState.Ready;
+    private long phaseStartMillis;
+    private long sessionStartMillis;
+    private long sessionEndMillis;
+    private int writesRejected;
+    private UploadMode uploadMode = UploadMode.Stream;
+    private boolean deltaUpload;
+    private boolean compressedUpload;
+    // null until a verifier confirmed the update
+    private OtaVerifier.Result verification;
+    private int runningVersion = -1;
+    private long verifyMillis;
+    private int blocksRetransmitted;
+    private long bytesRetransmitted;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    // running throughput, recomputed once per sample period
+    private static final long RATE_SAMPLE_MILLIS = 250;
+    private volatile double runningBytesPerSecond;
+    private volatile int ackedBytes;
+    private int sampleBytes;
+    private long sampleStartMillis;
+
+    public int getNegotiatedMtu() {
+        return negotiatedMtu;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public int getPhy() {
+        return phy;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    public int getImageSize() {
+        return imageSize;
+    }
+
+    public long getUploadMillis() {
+        return uploadEndMillis - uploadStartMillis;
+    }
+
+    // effective throughput of the attempt that finished the upload, 0 until upload finished
+    public double getBytesPerSecond() {
+        long millis = getUploadMillis();
+        return uploadEndMillis == 0 || millis <= 0 ? 0 : (imageSize - uploadStartOffset) * 1000.0 / millis;
+    }
+
+    // total time spent in the state over the session, every visit counted
+    public long getPhaseMillis(OtaState state) {
+        return phaseMillis[state.ordinal()];
+    }
+
+    // from leaving Ready until Ready or Failed
+    public long getSessionMillis() {
+        return sessionEndMillis - sessionStartMillis;
+    }
+
+    // throughput over the last sample period while uploading, 0 otherwise
+    public double getRunningBytesPerSecond() {
+        return runningBytesPerSecond;
+    }
+
+    public int getAckedBytes() {
+        return ackedBytes;
+    }
+
+    // writes the stack refused because its queue was full
+    public int getWritesRejected() {
+        return writesRejected;
+    }
+
+    // a GblDelta patch went over the air instead of the full image
+    public boolean isDeltaUpload() {
+        return deltaUpload;
+    }
+
+    // program data went over the air LZ4 compressed
+    public boolean isCompressedUpload() {
+        return compressedUpload;
+    }
+
+    // outcome of the check after the reboot, null when none ran
+    public OtaVerifier.Result getVerification() {
+        return verification;
+    }
+
+    // application version the device reported after the update, -1 when not read
+    public int getRunningVersion() {
+        return runningVersion;
+    }
+
+    // from the reboot to the verifier's result
+    public long getVerifyMillis() {
+        return verifyMillis;
+    }
+
+    // mode the last upload attempt ran in
+    public UploadMode getUploadMode() {
+        return uploadMode;
+    }
+
+    // blocks that failed verification, or failed acknowledged writes, and were sent again
+    public int getBlocksRetransmitted() {
+        return blocksRetransmitted;
+    }
+
+    public long getBytesRetransmitted() {
+        return bytesRetransmitted;
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    // reconnects after a lost link
+    public int getRetries() {
+        return retries;
+    }
+
+    // bytes not sent again because the device kept them across a lost link
+    public int getResumedBytes() {
+        return resumedBytes;
+    }
+
+    void setNegotiatedMtu(int negotiatedMtu) {
+        this.negotiatedMtu = negotiatedMtu;
+        this.payloadSize = negotiatedMtu - OtaTransport.ATT_HEADER_SIZE;
+    }
+
+    void setDeltaUpload(boolean deltaUpload) {
+        this.deltaUpload = deltaUpload;
+    }
+
+    void setCompressedUpload(boolean compressedUpload) {
+        this.compressedUpload = compressedUpload;
+    }
+
+    void setVerification(OtaVerifier.Result verification, int runningVersion, long verifyMillis) {
+        this.verification = verification;
+        this.runningVersion = runningVersion;
+        this.verifyMillis = verifyMillis;
+    }
+
+    // payload the upload settled on when it is smaller than the MTU allows
+    void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    void setPhy(int phy) {
+        this.phy = phy;
+    }
+
+    void setConnectionPriority(int connectionPriority) {
+        this.connectionPriority = connectionPriority;
+    }
+
+    void onStateChanged(OtaState next, long nowMillis) {
+        if (phase == OtaState.Ready || phase == OtaState.Failed) {
+            sessionStartMillis = nowMillis;
+        } else {
+            phaseMillis[phase.ordinal()] += nowMillis - phaseStartMillis;
+        }
+        if (next == OtaState.Ready || next == OtaState.Failed) {
+            sessionEndMillis = nowMillis;
+        }
+        phase = next;
+        phaseStartMillis = nowMillis;
+    }
+
+    void onProgress(int ackedBytes, long nowMillis) {
+        this.ackedBytes = ackedBytes;
+        long elapsed = nowMillis - sampleStartMillis;
+        if (elapsed >= RATE_SAMPLE_MILLIS) {
+            runningBytesPerSecond = (ackedBytes - sampleBytes) * 1000.0 / elapsed;
+            sampleBytes = ackedBytes;
+            sampleStartMillis = nowMillis;
+        }
+    }
+
+    // upload attempt ended, successful or not
+    void onAttemptFinished(UploadPipeline pipeline) {
+        writesRejected += pipeline.getWritesRejected();
+        uploadMode = pipeline.getMode();
+        blocksRetransmitted += pipeline.getBlocksRetransmitted();
+        bytesRetransmitted += pipeline.getBytesRetransmitted();
+        writeLatency.add(pipeline.getWriteLatency());
+        runningBytesPerSecond = 0;
+    }
+
+    void onRetry() {
+        retries++;
+    }
+
+    void onUploadStarted(int startOffset, long nowMillis) {
+        this.uploadStartOffset = startOffset;
+        this.resumedBytes += startOffset;
+        this.uploadStartMillis = nowMillis;
+        this.sampleBytes = startOffset;
+        this.sampleStartMillis = nowMillis;
+        this.uploadEndMillis = 0;
+    }
+
+    void onUploadFinished(int imageSize, long nowMillis) {
+        this.imageSize = imageSize;
+        this.uploadEndMillis = nowMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "mtu=" + negotiatedMtu + " payload=" + payloadSize + " phy=" + phy + " priority=" + connectionPriority
+                + " bytes=" + imageSize + " millis=" + getUploadMillis() + " Bps=" + Math.round(getBytesPerSecond())
+                + " retries=" + retries + " resumed=" + resumedBytes + " session=" + getSessionMillis()
+                + " reconnect=" + getPhaseMillis(OtaState.Reconnecting);
+    }
+}
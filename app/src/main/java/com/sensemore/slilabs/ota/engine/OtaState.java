@@ -0,0 +1,25 @@
+package com.sensemore.slilabs.ota.engine;
+
+public enum OtaState {
+    Ready("Ready"),
+    Connecting("Connecting"),
+    ResetDFU("ResetDFU"),
+    Reconnecting("Reconnecting"),
+    OtaBegin("Ota Begin"),
+    OtaUpload("OtaUpload"),
+    OtaEnd("OtaEnd"),
+    Disconnecting("Disconnecting"),
+    // after the session, see OtaVerifier
+    Verifying("Verifying"),
+    Failed("Failed");
+
+    private final String label;
+
+    OtaState(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,100 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Link to a single OTA target. Implementations wrap {@code BluetoothGatt} on a phone or a
+ * simulated bootloader on the JVM. Callbacks may arrive on any thread.
+ */
+public interface OtaTransport {
+
+    // values of BluetoothGatt.CONNECTION_PRIORITY_*
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    // values of BluetoothDevice.PHY_LE_*
+    int PHY_LE_1M = 1;
+    int PHY_LE_2M = 2;
+
+    // ATT header of a write command, payload is negotiated MTU minus this
+    int ATT_HEADER_SIZE = 3;
+    int DEFAULT_ATT_MTU = 23;
+
+    // creates the transport of one device, used when many devices are updated in one run.
+    // The transport runs on the given scheduler, the one its session uses.
+    interface Factory {
+        OtaTransport create(String address, OtaScheduler scheduler);
+    }
+
+    interface Callback {
+        void onConnected();
+
+        void onDisconnected();
+
+        // dfuMode is true when OTA service exposes the data characteristic
+        void onServicesDiscovered(boolean success, boolean dfuMode);
+
+        void onControlWritten(byte opcode, boolean success);
+
+        void onDataWritten(boolean success);
+
+        void onMtuChanged(int mtu, boolean success);
+
+        void onPhyUpdated(int txPhy, boolean success);
+
+        // bytes the bootloader holds of the current download and their CRC32
+        void onReceivedOffsetRead(long offset, long crc, boolean success);
+
+        void onApplicationVersionRead(int version, boolean success);
+    }
+
+    void setCallback(Callback callback);
+
+    // address of the target device
+    String getAddress();
+
+    void connect();
+
+    void discoverServices();
+
+    // returns false when the stack did not accept the write
+    default boolean writeControl(byte opcode) {
+        return writeControl(new byte[]{opcode});
+    }
+
+    // control write with arguments after the opcode, onControlWritten reports value[0]
+    boolean writeControl(byte[] value);
+
+    // WRITE_TYPE_NO_RESPONSE write to data characteristic, false when the stack queue is full.
+    // The whole array is the payload. Caller reuses it once onDataWritten reports the write.
+    boolean writeData(byte[] payload);
+
+    // WRITE_TYPE_DEFAULT write to data characteristic, onDataWritten carries the response status.
+    // Occupies the link like any request until then.
+    boolean writeDataWithResponse(byte[] payload);
+
+    // true once discovery found OTA_PROGRESS_CHARACTERISTIC
+    boolean hasProgressCharacteristic();
+
+    // true when the last discovery got the peer's services, also when the OTA service is not
+    // among them. False before, after a GATT error or timeout, and once the link is gone.
+    boolean isDiscoveryComplete();
+
+    // true once discovery found OTA_APPLICATION_VERSION_CHARACTERISTIC
+    boolean hasApplicationVersionCharacteristic();
+
+    // reads OTA_PROGRESS_CHARACTERISTIC, false when the bootloader does not expose it
+    boolean readReceivedOffset();
+
+    // reads OTA_APPLICATION_VERSION_CHARACTERISTIC, false when the device does not expose it
+    boolean readApplicationVersion();
+
+    boolean requestMtu(int mtu);
+
+    boolean requestConnectionPriority(int priority);
+
+    // preferred tx and rx PHY, result arrives in onPhyUpdated when the stack supports it
+    void setPreferredPhy(int phy);
+
+    // disconnects and releases the link, no further callbacks are delivered
+    void disconnect();
+}
@@ -0,0 +1,220 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * Confirms a device booted the firmware it was just given. After the session's 0x04 the
+ * verifier waits for the device's application advertisement, connects once, reads the
+ * application version and disconnects. No MTU exchange, PHY update or DFU step is repeated,
+ * so the check costs a connection event or two plus discovery.
+ * <p>
+ * Android can't be told to skip {@code discoverServices()}, a read needs the characteristic
+ * handle discovery returns. The stack answers discovery from its GATT cache when it has one,
+ * for bonded devices or peers supporting GATT caching, and then it takes a few milliseconds
+ * instead of a round trip per service. Only the version can be compared: the OTA service
+ * exposes no hash of the running application.
+ * <p>
+ * A GATT error or a failed read proves nothing, the verifier connects again until the
+ * timeout. Only an application that completed discovery without the OTA service or the
+ * version characteristic counts as running without a version.
+ * <p>
+ * Runs on its own scheduler like a session, transport callbacks are re-posted onto it.
+ */
+public class OtaVerifier implements OtaTransport.Callback {
+
+    public enum Result {
+        // runs the expected version
+        Verified,
+        // runs an application of another version, the bootloader did not install the image
+        VersionMismatch,
+        // runs an application that doesn't report its version or none was expected
+        Running,
+        // connected, but discovery or the version read failed until the timeout
+        Unreadable,
+        // only the bootloader advertised until the timeout
+        StuckInDfu,
+        // not seen until the timeout
+        NotSeen
+    }
+
+    public interface Listener {
+        // version is -1 when it was not read, called on the verifier's scheduler
+        void onVerified(Result result, int version, long millis);
+    }
+
+    // pause before connecting again after the bootloader answered or a GATT error
+    static final long RETRY_DELAY_MILLIS = 500;
+
+    private final OtaTransport transport;
+    private final OtaScheduler scheduler;
+    // -1 when the image carries no application version
+    private final int expectedVersion;
+    private final OtaConfig config;
+    private final Listener listener;
+
+    private long startedMillis;
+    private boolean connecting;
+    private boolean readingVersion;
+    private boolean sawDfu;
+    private boolean sawConnection;
+    private boolean finished;
+
+    private final Runnable timeout = this::OnTimeout;
+    private final Runnable connect = this::Connect;
+
+    public OtaVerifier(OtaTransport transport, OtaScheduler scheduler, int expectedVersion, OtaConfig config, Listener listener) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.expectedVersion = expectedVersion;
+        this.config = config;
+        this.listener = listener;
+        transport.setCallback(this);
+    }
+
+    public void start() {
+        scheduler.post(() -> {
+            startedMillis = scheduler.uptimeMillis();
+            scheduler.postDelayed(timeout, config.getReconnectDelayMillis() + config.getRebootTimeoutMillis()
+                    + config.getConnectTimeoutMillis());
+            // A device that went from bootloader to bootloader is no new sighting, its
+            // advertisement never comes. Connect anyway once half the reboot timeout passed.
+            scheduler.postDelayed(connect, config.isConnectOnAdvertisement()
+                    ? config.getRebootTimeoutMillis() / 2 : config.getReconnectDelayMillis());
+        });
+    }
+
+    public void cancel() {
+        scheduler.post(this::OnTimeout);
+    }
+
+    // A scanner saw the device advertise. Its application advertising means it rebooted,
+    // connect now. Any thread.
+    public void onAdvertising(boolean dfuMode) {
+        scheduler.post(() -> {
+            if (finished) {
+                return;
+            }
+            if (dfuMode) {
+                sawDfu = true;
+            } else if (!connecting) {
+                scheduler.removeCallbacks(connect);
+                Connect();
+            }
+        });
+    }
+
+    public int getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    private void Connect() {
+        if (finished) {
+            return;
+        }
+        connecting = true;
+        transport.disconnect();
+        transport.connect();
+    }
+
+    // the link went away, the bootloader answered or GATT failed, try the next advertisement or after a pause
+    private void ConnectLater() {
+        connecting = false;
+        readingVersion = false;
+        transport.disconnect();
+        scheduler.postDelayed(connect, RETRY_DELAY_MILLIS);
+    }
+
+    private void OnTimeout() {
+        Finish(sawDfu ? Result.StuckInDfu : sawConnection ? Result.Unreadable : Result.NotSeen, -1);
+    }
+
+    private void Finish(Result result, int version) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        scheduler.removeCallbacks(timeout);
+        scheduler.removeCallbacks(connect);
+        transport.disconnect();
+        listener.onVerified(result, version, scheduler.uptimeMillis() - startedMillis);
+    }
+
+    @Override
+    public void onConnected() {
+        scheduler.post(() -> {
+            if (!finished && connecting) {
+                sawConnection = true;
+                transport.discoverServices();
+            }
+        });
+    }
+
+    @Override
+    public void onDisconnected() {
+        scheduler.post(() -> {
+            if (!finished && connecting) {
+                ConnectLater();
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(boolean success, boolean dfuMode) {
+        scheduler.post(() -> {
+            if (finished || !connecting) {
+                return;
+            }
+            if (!transport.isDiscoveryComplete()) {
+                // GATT error or timeout, the device may still run anything
+                ConnectLater();
+            } else if (!success) {
+                // the application answered without the OTA service, it runs but can't tell its version
+                Finish(Result.Running, -1);
+            } else if (dfuMode) {
+                sawDfu = true;
+                ConnectLater();
+            } else if (!transport.hasApplicationVersionCharacteristic()) {
+                Finish(Result.Running, -1);
+            } else if (transport.readApplicationVersion()) {
+                readingVersion = true;
+            } else {
+                ConnectLater();
+            }
+        });
+    }
+
+    @Override
+    public void onApplicationVersionRead(int version, boolean success) {
+        scheduler.post(() -> {
+            if (finished || !readingVersion) {
+                return;
+            }
+            readingVersion = false;
+            if (!success) {
+                ConnectLater();
+            } else if (expectedVersion < 0) {
+                Finish(Result.Running, version);
+            } else {
+                Finish(version == expectedVersion ? Result.Verified : Result.VersionMismatch, version);
+            }
+        });
+    }
+
+    @Override
+    public void onControlWritten(byte opcode, boolean success) {
+    }
+
+    @Override
+    public void onDataWritten(boolean success) {
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, boolean success) {
+    }
+
+    @Override
+    public void onPhyUpdated(int txPhy, boolean success) {
+    }
+
+    @Override
+    public void onReceivedOffsetRead(long offset, long crc, boolean success) {
+    }
+}
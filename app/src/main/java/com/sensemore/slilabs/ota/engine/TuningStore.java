@@ -0,0 +1,96 @@
+package com.sensemore.slilabs.ota.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps the {@link LinkSettings} learned for each tuning key, e.g. device model and
+ * firmware plus phone model, so later sessions start where earlier ones ended.
+ */
+public interface TuningStore {
+
+    // null when nothing was learned for the key yet
+    LinkSettings load(String key);
+
+    void save(String key, LinkSettings settings);
+
+    class InMemory implements TuningStore {
+
+        private final Map<String, LinkSettings> settings = new HashMap<>();
+
+        @Override
+        public synchronized LinkSettings load(String key) {
+            return settings.get(key);
+        }
+
+        @Override
+        public synchronized void save(String key, LinkSettings settings) {
+            this.settings.put(key, settings);
+        }
+    }
+
+    // one small properties file per key, replaced atomically on every save
+    class Directory implements TuningStore {
+
+        private final File directory;
+
+        public Directory(File directory) {
+            this.directory = directory;
+            directory.mkdirs();
+        }
+
+        private File FileOf(String key) {
+            return new File(directory, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".tuning");
+        }
+
+        @Override
+        public synchronized LinkSettings load(String key) {
+            File file = FileOf(key);
+            if (!file.isFile()) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                if (!key.equals(properties.getProperty("key"))) {
+                    // another key mapped to the same file name
+                    return null;
+                }
+                return new LinkSettings(Integer.parseInt(properties.getProperty("payloadSize")),
+                        Boolean.parseBoolean(properties.getProperty("twoMegPhy")),
+                        Integer.parseInt(properties.getProperty("windowSize")),
+                        Long.parseLong(properties.getProperty("bytesPerSecond")));
+            } catch (IOException | RuntimeException e) {
+                // unreadable settings only cost a probe
+                return null;
+            }
+        }
+
+        @Override
+        public synchronized void save(String key, LinkSettings settings) {
+            Properties properties = new Properties();
+            properties.setProperty("key", key);
+            properties.setProperty("payloadSize", Integer.toString(settings.getPayloadSize()));
+            properties.setProperty("twoMegPhy", Boolean.toString(settings.isTwoMegPhy()));
+            properties.setProperty("windowSize", Integer.toString(settings.getWindowSize()));
+            properties.setProperty("bytesPerSecond", Long.toString(settings.getBytesPerSecond()));
+            File file = FileOf(key);
+            File temp = new File(directory, file.getName() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, null);
+            } catch (IOException e) {
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        }
+    }
+}
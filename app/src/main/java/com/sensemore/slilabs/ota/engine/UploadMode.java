@@ -0,0 +1,14 @@
+package com.sensemore.slilabs.ota.engine;
+
+/**
+ * How data writes are confirmed during the upload.
+ */
+public enum UploadMode {
+    // WRITE_TYPE_NO_RESPONSE only, a lost packet shows up as a failed 0x03
+    Stream,
+    // every write waits for its response, a failed one is sent again
+    Acknowledged,
+    // no-response blocks, each confirmed with a read of the progress characteristic. When
+    // the bootloader does not expose it, each block ends in one write with response.
+    Verified
+}
@@ -0,0 +1,459 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.FirmwareSource;
+
+import java.io.IOException;
+
+/**
+ * Credit based WRITE_TYPE_NO_RESPONSE upload. Keeps up to {@code window} data writes in
+ * flight and refills the window from write completions instead of sleeping between retries.
+ * <p>
+ * The window adapts additive-increase / multiplicative-decrease: it grows by one packet per
+ * window of completions while the completion rate keeps improving, holds once growing stops
+ * paying off, and halves when the stack rejects a write. The writes in flight when the stack
+ * rejected one are its queue size, the window only probes past it every few rounds.
+ * <p>
+ * In {@link UploadMode#Verified} the image goes out in blocks. After the writes of a block
+ * complete the pipeline reads the progress characteristic and compares offset and CRC32
+ * with what it sent. A mismatch rewinds the device to the start of the block and only that
+ * block is sent again. Blocks grow while they get through and shrink when they don't, so a
+ * clean link pays one read per large block. {@link UploadMode#Acknowledged} sends every
+ * payload as a write with response and repeats the ones that fail.
+ * <p>
+ * A stock AppLoader has neither the progress characteristic nor the rewind. Verified blocks
+ * then end in one write with response, sent once the writes before it completed. A failed
+ * one is sent again, the AppLoader keeps what it received and can't drop back to the start
+ * of the block. A no-response write lost before it is only caught by 0x03, the session
+ * then sends the image again in {@link UploadMode#Acknowledged}.
+ */
+public class UploadPipeline {
+
+    public interface Listener {
+        // totalBytes is -1 when the source does not declare its length
+        void onProgress(int bytesAcked, int totalBytes);
+
+        void onUploadComplete();
+
+        void onUploadFailed(String message);
+    }
+
+    private final OtaTransport transport;
+    private final OtaScheduler scheduler;
+    private final FirmwareChunker chunker;
+    private final int totalBytes;
+    private final OtaConfig config;
+    private final Listener listener;
+    private final UploadMode mode;
+    // Verified on a bootloader without progress characteristic, see above
+    private final boolean blockAcknowledged;
+    // device offset the source position 0 corresponds to
+    private final int baseOffset;
+
+    private int window;
+    // payload size waiting for the writes in flight to complete, 0 when none
+    private int pendingPayloadSize;
+    private int inFlight;
+    private int ackedBytes;
+    private boolean running;
+
+    // completion rate bookkeeping of the current round
+    private int roundCompletions;
+    private long roundStartMillis;
+    private double lastRoundRate;
+    private boolean grewLastRound;
+    private boolean rejectedThisRound;
+    // writes in flight when the stack last rejected one
+    private int stackLimit = Integer.MAX_VALUE;
+    private int roundsAtLimit;
+
+    private int writesRejected;
+    private int maxWindowReached;
+    // accept time of every write in flight, oldest at issuedHead
+    private final long[] issuedMicros;
+    private int issuedHead;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    // Verified and Acknowledged bookkeeping, offsets are chunker offsets
+    private long blockEnd = Long.MAX_VALUE;
+    private int blockSize;
+    private long sentCrc;
+    private long markedCrc;
+    private boolean verifying;
+    private boolean rewinding;
+    // the write with response that ends a block is in flight
+    private boolean acknowledging;
+    private int failedAttempts;
+    private int blocksVerified;
+    private int blocksRetransmitted;
+    private long bytesRetransmitted;
+
+    private static final int MAX_BLOCK_ATTEMPTS = 8;
+    // rounds the window holds at the stack's queue size before trying one more write
+    private static final int PROBE_ROUNDS = 16;
+
+    private final Runnable retry = this::Pump;
+    private final Runnable verify = this::Verify;
+    private final Runnable rewind = this::WriteRewind;
+
+    public UploadPipeline(OtaTransport transport, OtaScheduler scheduler, FirmwareSource source, int payloadSize,
+                          OtaConfig config, Listener listener) {
+        this(transport, scheduler, source, payloadSize, 0, config, listener);
+    }
+
+    // source is positioned at startOffset, the device already holds the bytes before it
+    public UploadPipeline(OtaTransport transport, OtaScheduler scheduler, FirmwareSource source, int payloadSize,
+                          int startOffset, OtaConfig config, Listener listener) {
+        this(transport, scheduler, source, payloadSize, startOffset, 0, config, listener);
+    }
+
+    // startCrc is the CRC32 of the startOffset bytes the device holds, used by Verified mode
+    public UploadPipeline(OtaTransport transport, OtaScheduler scheduler, FirmwareSource source, int payloadSize,
+                          int startOffset, long startCrc, OtaConfig config, Listener listener) {
+        this(transport, scheduler, source, payloadSize, startOffset, startCrc, config.getUploadMode(), config, listener);
+    }
+
+    // mode instead of the configured one, e.g. after a block acknowledged upload was rejected
+    public UploadPipeline(OtaTransport transport, OtaScheduler scheduler, FirmwareSource source, int payloadSize,
+                          int startOffset, long startCrc, UploadMode mode, OtaConfig config, Listener listener) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.totalBytes = (int) source.getDeclaredLength();
+        this.config = config;
+        this.listener = listener;
+        this.mode = mode;
+        this.blockAcknowledged = mode == UploadMode.Verified && !transport.hasProgressCharacteristic();
+        this.baseOffset = startOffset;
+        int replayCapacity = 0;
+        if (mode == UploadMode.Verified) {
+            blockSize = BlockSize(config.getVerifyBlockSize(), payloadSize);
+            blockEnd = blockSize;
+            replayCapacity = BlockSize(config.getMaxVerifyBlockSize(), payloadSize);
+            this.window = Math.max(1, Math.min(config.getWindowSize(), config.getMaxWindowSize()));
+        } else if (mode == UploadMode.Acknowledged) {
+            // one request at a time, the stack allows no more
+            replayCapacity = payloadSize;
+            this.window = 1;
+        } else {
+            this.window = Math.max(1, Math.min(config.getWindowSize(), config.getMaxWindowSize()));
+        }
+        this.chunker = new FirmwareChunker(source, payloadSize, Math.max(window, config.getMaxWindowSize()), replayCapacity);
+        this.issuedMicros = new long[Math.max(window, config.getMaxWindowSize()) + 1];
+        this.maxWindowReached = window;
+        this.ackedBytes = startOffset;
+        this.sentCrc = startCrc;
+        this.markedCrc = startCrc;
+    }
+
+    // whole payloads, at least one
+    private static int BlockSize(int bytes, int payloadSize) {
+        return Math.max(1, bytes / payloadSize) * payloadSize;
+    }
+
+    public void start() {
+        running = true;
+        roundStartMillis = scheduler.uptimeMillis();
+        Pump();
+    }
+
+    public void cancel() {
+        running = false;
+        scheduler.removeCallbacks(retry);
+        scheduler.removeCallbacks(verify);
+        scheduler.removeCallbacks(rewind);
+    }
+
+    public UploadMode getMode() {
+        return mode;
+    }
+
+    // Verified blocks end in a write with response instead of a progress read
+    public boolean isBlockAcknowledged() {
+        return blockAcknowledged;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlocksVerified() {
+        return blocksVerified;
+    }
+
+    // failed blocks in Verified mode, failed writes in Acknowledged mode
+    public int getBlocksRetransmitted() {
+        return blocksRetransmitted;
+    }
+
+    public long getBytesRetransmitted() {
+        return bytesRetransmitted;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    // start window, e.g. one learned by LinkTuner, adaptation goes on from there
+    public void setWindow(int window) {
+        if (mode != UploadMode.Acknowledged) {
+            this.window = Math.max(1, Math.min(window, config.getMaxWindowSize()));
+            maxWindowReached = Math.max(maxWindowReached, this.window);
+        }
+    }
+
+    public int getPayloadSize() {
+        return pendingPayloadSize > 0 ? pendingPayloadSize : chunker.getPayloadSize();
+    }
+
+    // at most the size the pipeline was built with, applies once the writes in flight completed
+    public void setPayloadSize(int payloadSize) {
+        pendingPayloadSize = payloadSize == chunker.getPayloadSize() ? 0 : payloadSize;
+        if (running && inFlight == 0) {
+            Pump();
+        }
+    }
+
+    public int getMaxWindowReached() {
+        return maxWindowReached;
+    }
+
+    public int getWritesRejected() {
+        return writesRejected;
+    }
+
+    public int getAckedBytes() {
+        return ackedBytes;
+    }
+
+    // time from the stack accepting a write to its completion callback
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public void onDataWritten() {
+        if (!running || inFlight == 0) {
+            return;
+        }
+        writeLatency.record(scheduler.uptimeMicros() - issuedMicros[issuedHead]);
+        issuedHead = (issuedHead + 1) % issuedMicros.length;
+        inFlight--;
+        ackedBytes += chunker.release();
+        if (mode == UploadMode.Acknowledged) {
+            // the response confirms the payload, it won't be sent again
+            chunker.mark();
+            failedAttempts = 0;
+        }
+        listener.onProgress(ackedBytes, totalBytes);
+        if (config.isAdaptiveWindow() && mode != UploadMode.Acknowledged) {
+            Adapt();
+        }
+        if (acknowledging) {
+            acknowledging = false;
+            Confirm();
+        } else {
+            Pump();
+        }
+    }
+
+    // write completed with an error status
+    public void onDataWriteFailed() {
+        if (!running) {
+            return;
+        }
+        if ((mode != UploadMode.Acknowledged && !acknowledging) || inFlight == 0) {
+            Fail("Data write failed");
+            return;
+        }
+        issuedHead = (issuedHead + 1) % issuedMicros.length;
+        inFlight--;
+        int length = chunker.release();
+        blocksRetransmitted++;
+        bytesRetransmitted += length;
+        if (++failedAttempts >= MAX_BLOCK_ATTEMPTS) {
+            Fail("Data write at offset " + (baseOffset + chunker.getMarkOffset()) + " failed " + failedAttempts + " times");
+            return;
+        }
+        if (acknowledging) {
+            acknowledging = false;
+            // blocks that lose their last write get shorter, blockEnd still follows the repeated write
+            blockSize = Math.max(BlockSize(config.getMinVerifyBlockSize(), chunker.getPayloadSize()), BlockSize(blockSize / 2, chunker.getPayloadSize()));
+        }
+        chunker.reset();
+        Pump();
+    }
+
+    // result of the progress read that confirms a block
+    public void onProgressRead(long offset, long crc, boolean success) {
+        if (!running || !verifying) {
+            return;
+        }
+        verifying = false;
+        long end = baseOffset + chunker.getOffset();
+        if (success && offset == end && crc == sentCrc) {
+            Confirm();
+        } else {
+            Rewind();
+        }
+    }
+
+    // response of CONTROL_REWIND
+    public void onRewound(boolean success) {
+        if (!running || !rewinding) {
+            return;
+        }
+        rewinding = false;
+        if (!success) {
+            Fail("Device refused to rewind to offset " + (baseOffset + chunker.getMarkOffset()));
+            return;
+        }
+        chunker.reset();
+        sentCrc = markedCrc;
+        ackedBytes = baseOffset + (int) chunker.getMarkOffset();
+        blockEnd = chunker.getMarkOffset() + blockSize;
+        listener.onProgress(ackedBytes, totalBytes);
+        Pump();
+    }
+
+    private void Pump() {
+        if (!running || verifying || rewinding) {
+            return;
+        }
+        if (pendingPayloadSize > 0) {
+            if (inFlight > 0) {
+                return;
+            }
+            chunker.setPayloadSize(pendingPayloadSize);
+            pendingPayloadSize = 0;
+        }
+        try {
+            while (inFlight < window && chunker.getOffset() < blockEnd && chunker.hasNext()) {
+                boolean acknowledged = mode == UploadMode.Acknowledged
+                        || (blockAcknowledged && chunker.getOffset() + chunker.getPayloadSize() >= blockEnd);
+                if (blockAcknowledged && acknowledged) {
+                    if (inFlight > 0) {
+                        // the rest of the block completes first
+                        return;
+                    }
+                    // only this write is sent again when it fails
+                    chunker.mark();
+                }
+                byte[] payload = chunker.peek();
+                boolean accepted = acknowledged ? transport.writeDataWithResponse(payload) : transport.writeData(payload);
+                if (!accepted) {
+                    OnRejected();
+                    return;
+                }
+                if (mode == UploadMode.Verified && !blockAcknowledged) {
+                    sentCrc = Crc32.update(sentCrc, payload, 0, payload.length);
+                }
+                chunker.advance();
+                issuedMicros[(issuedHead + inFlight) % issuedMicros.length] = scheduler.uptimeMicros();
+                inFlight++;
+                if (blockAcknowledged && acknowledged) {
+                    acknowledging = true;
+                }
+            }
+            if (inFlight > 0) {
+                return;
+            }
+            if (mode == UploadMode.Verified && !blockAcknowledged && chunker.getOffset() > chunker.getMarkOffset()) {
+                // block is on its way, confirm it before going on
+                verifying = true;
+                Verify();
+            } else if (!chunker.hasNext()) {
+                running = false;
+                listener.onUploadComplete();
+            }
+        } catch (IOException e) {
+            Fail("Firmware read failed: " + e.getMessage());
+        }
+    }
+
+    private void Verify() {
+        if (running && verifying && !transport.readReceivedOffset()) {
+            // last write still holds the stack
+            scheduler.postDelayed(verify, config.getWriteRetryDelayMillis());
+        }
+    }
+
+    private void Confirm() {
+        blocksVerified++;
+        failedAttempts = 0;
+        chunker.mark();
+        markedCrc = sentCrc;
+        if (blockSize < config.getMaxVerifyBlockSize()) {
+            blockSize = Math.min(BlockSize(config.getMaxVerifyBlockSize(), chunker.getPayloadSize()), blockSize * 2);
+        }
+        blockEnd = chunker.getOffset() + blockSize;
+        Pump();
+    }
+
+    private void Rewind() {
+        blocksRetransmitted++;
+        bytesRetransmitted += chunker.getOffset() - chunker.getMarkOffset();
+        if (++failedAttempts >= MAX_BLOCK_ATTEMPTS) {
+            Fail("Block at offset " + (baseOffset + chunker.getMarkOffset()) + " failed " + failedAttempts + " times");
+            return;
+        }
+        blockSize = Math.max(BlockSize(config.getMinVerifyBlockSize(), chunker.getPayloadSize()), BlockSize(blockSize / 2, chunker.getPayloadSize()));
+        rewinding = true;
+        WriteRewind();
+    }
+
+    private void WriteRewind() {
+        if (!running || !rewinding) {
+            return;
+        }
+        long offset = baseOffset + chunker.getMarkOffset();
+        byte[] value = new byte[OtaProtocol.REWIND_VALUE_SIZE];
+        value[0] = OtaProtocol.CONTROL_REWIND;
+        for (int i = 0; i < 4; i++) {
+            value[1 + i] = (byte) (offset >>> (8 * i));
+        }
+        if (!transport.writeControl(value)) {
+            scheduler.postDelayed(rewind, config.getWriteRetryDelayMillis());
+        }
+    }
+
+    private void Fail(String message) {
+        running = false;
+        listener.onUploadFailed(message);
+    }
+
+    private void OnRejected() {
+        writesRejected++;
+        if (config.isAdaptiveWindow() && !rejectedThisRound && inFlight > 0) {
+            // stack queue is full, it holds fewer writes than our window
+            rejectedThisRound = true;
+            stackLimit = inFlight;
+            window = Math.max(1, Math.max(inFlight, window / 2));
+        }
+        if (inFlight == 0) {
+            // nothing will complete to wake us up, poll the stack again
+            scheduler.postDelayed(retry, config.getWriteRetryDelayMillis());
+        }
+    }
+
+    private void Adapt() {
+        if (++roundCompletions < window) {
+            return;
+        }
+        long now = scheduler.uptimeMillis();
+        double rate = roundCompletions / (double) Math.max(1, now - roundStartMillis);
+        if (rejectedThisRound) {
+            grewLastRound = false;
+        } else if (grewLastRound && rate < lastRoundRate * 1.02) {
+            // larger window did not improve completion rate, link is the bottleneck
+            window = Math.max(1, window - 1);
+            grewLastRound = false;
+        } else if (window < config.getMaxWindowSize() && (window < stackLimit || ++roundsAtLimit >= PROBE_ROUNDS)) {
+            window++;
+            grewLastRound = true;
+            roundsAtLimit = 0;
+        }
+        maxWindowReached = Math.max(maxWindowReached, window);
+        lastRoundRate = rate;
+        rejectedThisRound = false;
+        roundCompletions = 0;
+        roundStartMillis = now;
+    }
+}
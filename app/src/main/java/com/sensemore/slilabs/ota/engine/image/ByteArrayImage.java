@@ -0,0 +1,31 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+
+public class ByteArrayImage implements FirmwareImage {
+
+    private final byte[] image;
+    private String contentHash;
+
+    public ByteArrayImage(byte[] image) {
+        this.image = image;
+    }
+
+    @Override
+    public long getLength() {
+        return image.length;
+    }
+
+    @Override
+    public FirmwareSource open() {
+        return new ByteArraySource(image);
+    }
+
+    @Override
+    public synchronized String getContentHash() throws IOException {
+        if (contentHash == null) {
+            contentHash = ContentHash.sha256(open());
+        }
+        return contentHash;
+    }
+}
@@ -0,0 +1,36 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+public class ByteArraySource implements FirmwareSource {
+
+    private final byte[] image;
+    private int position;
+
+    public ByteArraySource(byte[] image) {
+        this.image = image;
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return image.length;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (position >= image.length) {
+            return -1;
+        }
+        int count = Math.min(length, image.length - position);
+        System.arraycopy(image, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,42 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source over a private view of a shared buffer, typically a memory mapped image.
+ */
+public class ByteBufferSource implements FirmwareSource {
+
+    private final ByteBuffer buffer;
+    private final long length;
+
+    public ByteBufferSource(ByteBuffer shared) {
+        this.buffer = shared.duplicate();
+        this.buffer.rewind();
+        this.length = buffer.remaining();
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return length;
+    }
+
+    @Override
+    public long getPosition() {
+        return buffer.position();
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int length) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(destination, offset, count);
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
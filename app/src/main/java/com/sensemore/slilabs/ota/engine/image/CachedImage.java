@@ -0,0 +1,41 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.nio.MappedByteBuffer;
+
+/**
+ * Image held by an {@link ImageCache}. Validated and hashed when it entered the cache, so
+ * sessions read it without parsing it again. Every session of the image reads the same
+ * mapping.
+ */
+public class CachedImage implements FirmwareImage {
+
+    private final MappedByteBuffer mapped;
+    private final String contentHash;
+    private final GblInfo info;
+
+    CachedImage(MappedByteBuffer mapped, String contentHash, GblInfo info) {
+        this.mapped = mapped;
+        this.contentHash = contentHash;
+        this.info = info;
+    }
+
+    @Override
+    public long getLength() {
+        return mapped.capacity();
+    }
+
+    @Override
+    public FirmwareSource open() {
+        return new ByteBufferSource(mapped);
+    }
+
+    @Override
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public GblInfo getGblInfo() {
+        return info;
+    }
+}
@@ -0,0 +1,67 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads an image through a file channel, memory mapped when the channel allows it so the
+ * page cache backs the image instead of the heap.
+ */
+public class ChannelSource implements FirmwareSource {
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer mapped;
+    private long position;
+
+    public ChannelSource(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException | UnsupportedOperationException e) {
+            // pipes and some providers can't be mapped, read through the channel instead
+            mapped = null;
+        }
+    }
+
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return size;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mapped != null) {
+            if (!mapped.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mapped.remaining());
+            mapped.get(buffer, offset, count);
+            position += count;
+            return count;
+        }
+        int count = channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+        if (count > 0) {
+            position += count;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+}
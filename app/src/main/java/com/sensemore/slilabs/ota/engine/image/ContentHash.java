@@ -0,0 +1,42 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of a firmware image as lower case hex, identifies an image across sessions.
+ */
+public final class ContentHash {
+
+    private ContentHash() {
+    }
+
+    public static String sha256(FirmwareSource source) throws IOException {
+        MessageDigest digest = Sha256();
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = source.read(buffer, 0, buffer.length)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return Hex(digest.digest());
+    }
+
+    static MessageDigest Sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String Hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = digits[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,22 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+
+/**
+ * Read-only firmware image shared by many sessions. Each session opens its own source,
+ * all sources read the same bytes.
+ */
+public interface FirmwareImage {
+
+    long getLength();
+
+    FirmwareSource open() throws IOException;
+
+    // SHA-256 of the content, see ContentHash
+    String getContentHash() throws IOException;
+
+    // metadata of an image validated before, sessions then skip the validating pass
+    default GblInfo getGblInfo() {
+        return null;
+    }
+}
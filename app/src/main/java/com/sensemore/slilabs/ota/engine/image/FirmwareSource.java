@@ -0,0 +1,22 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequential reader of a firmware image. Upload pulls from it chunk by chunk so an image
+ * never has to be fully on heap before the transfer starts.
+ */
+public interface FirmwareSource extends Closeable {
+
+    long UNKNOWN_LENGTH = -1;
+
+    // length reported by the file system or content provider, UNKNOWN_LENGTH when not reported
+    long getDeclaredLength();
+
+    // bytes read so far
+    long getPosition();
+
+    // reads up to length bytes, returns -1 at the end of the image
+    int read(byte[] buffer, int offset, int length) throws IOException;
+}
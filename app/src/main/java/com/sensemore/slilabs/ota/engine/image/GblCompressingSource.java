@@ -0,0 +1,189 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a GBL file and returns it with its program data LZ4 compressed, see
+ * {@link GblCompression}. Compression runs as the upload pulls bytes, one chunk ahead, so
+ * the compressed file is never held whole. The source is validated on the way like
+ * {@link GblValidatingSource} does, a corrupt source fails the read at its end tag.
+ */
+public class GblCompressingSource implements FirmwareSource {
+
+    private final FirmwareSource source;
+    private final GblParser parser = new GblParser();
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[GblParser.TAG_HEADER_SIZE];
+    private final byte[] chunk = new byte[GblCompression.CHUNK_SIZE];
+    private final int[] table = new int[1 << GblCompression.HASH_BITS];
+    // compressed bytes not read yet
+    private final byte[] pending = new byte[GblParser.TAG_HEADER_SIZE + 4 + GblCompression.MaxCompressedLength(GblCompression.CHUNK_SIZE)];
+    private int pendingStart;
+    private int pendingEnd;
+
+    // program tag being cut into chunks, address of its next chunk
+    private long programRemaining;
+    private int programAddress;
+    // other tag being copied
+    private long copyRemaining;
+    private boolean ended;
+    private long position;
+
+    private long programBytes;
+    private long compressedProgramBytes;
+    private long compressNanos;
+
+    public GblCompressingSource(FirmwareSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return UNKNOWN_LENGTH;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    // program data read from the source so far
+    public long getProgramBytes() {
+        return programBytes;
+    }
+
+    // what that program data became, compressed or raw chunks with their tag headers
+    public long getCompressedProgramBytes() {
+        return compressedProgramBytes;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        while (pendingStart == pendingEnd) {
+            if (ended) {
+                return -1;
+            }
+            Fill();
+        }
+        int count = Math.min(length, pendingEnd - pendingStart);
+        System.arraycopy(pending, pendingStart, buffer, offset, count);
+        pendingStart += count;
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    // produces the next piece of output: a chunk, a slice of a copied tag or a tag header
+    private void Fill() throws IOException {
+        pendingStart = 0;
+        pendingEnd = 0;
+        if (programRemaining > 0) {
+            CompressChunk();
+            return;
+        }
+        if (copyRemaining > 0) {
+            int count = (int) Math.min(chunk.length, copyRemaining);
+            ReadSource(chunk, count);
+            Emit(chunk, 0, count);
+            copyRemaining -= count;
+            return;
+        }
+        ReadSource(header, header.length);
+        int id = GblParser.LittleEndian(header, 0);
+        long length = GblParser.LittleEndian(header, 4) & 0xFFFFFFFFL;
+        if (id == GblParser.TAG_END) {
+            ReadSource(chunk, 4);
+            parser.finish();
+            Emit(header, 0, header.length);
+            int value = (int) crc.getValue();
+            Put(value);
+            ended = true;
+            return;
+        }
+        if (id == GblParser.TAG_PROG && length >= 4) {
+            ReadSource(chunk, 4);
+            programAddress = GblParser.LittleEndian(chunk, 0);
+            programRemaining = length - 4;
+            if (programRemaining > 0) {
+                CompressChunk();
+            }
+            return;
+        }
+        Emit(header, 0, header.length);
+        copyRemaining = length;
+        if (id == GblParser.TAG_HEADER) {
+            // the header's type flags decide, read it before anything goes out
+            ReadSource(chunk, (int) length);
+            int type = GblParser.LittleEndian(chunk, 4);
+            if ((type & (GblParser.TYPE_SIGNED | GblParser.TYPE_ENCRYPTED)) != 0) {
+                throw new GblFormatException("Signed or encrypted GBL files can't be recompressed", source.getPosition());
+            }
+            Emit(chunk, 0, (int) length);
+            copyRemaining = 0;
+        }
+    }
+
+    private void CompressChunk() throws IOException {
+        int count = (int) Math.min(chunk.length, programRemaining);
+        ReadSource(chunk, count);
+        long started = System.nanoTime();
+        int tagStart = pendingEnd;
+        int body = tagStart + GblParser.TAG_HEADER_SIZE + 4;
+        int compressed = GblCompression.compressBlock(chunk, 0, count, pending, body, table);
+        compressNanos += System.nanoTime() - started;
+        boolean raw = compressed >= count;
+        if (raw) {
+            System.arraycopy(chunk, 0, pending, body, count);
+        }
+        int bodyLength = raw ? count : compressed;
+        PutInt(pending, tagStart, raw ? GblParser.TAG_PROG : GblParser.TAG_PROG_LZ4);
+        PutInt(pending, tagStart + 4, 4 + bodyLength);
+        PutInt(pending, tagStart + 8, programAddress);
+        pendingEnd = body + bodyLength;
+        crc.update(pending, tagStart, pendingEnd - tagStart);
+        programBytes += count;
+        compressedProgramBytes += pendingEnd - tagStart;
+        programAddress += count;
+        programRemaining -= count;
+    }
+
+    private void ReadSource(byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = source.read(buffer, filled, length - filled);
+            if (read < 0) {
+                throw new GblFormatException("GBL file truncated", source.getPosition());
+            }
+            filled += read;
+        }
+        parser.update(buffer, 0, length);
+    }
+
+    private void Emit(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, pending, pendingEnd, length);
+        crc.update(data, offset, length);
+        pendingEnd += length;
+    }
+
+    // end tag CRC, not part of the checksum itself
+    private void Put(int value) {
+        PutInt(pending, pendingEnd, value);
+        pendingEnd += 4;
+    }
+
+    private static void PutInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,253 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * LZ4 recompression of the program data of a GBL file, for bootloaders built with LZ4
+ * support. Every program data tag is cut into chunks of at most {@link #CHUNK_SIZE} bytes
+ * and each chunk becomes a TAG_PROG_LZ4 tag holding its flash address and one LZ4 block,
+ * or stays a TAG_PROG tag when it does not shrink. All other tags are copied, the end tag
+ * CRC is computed anew. Memory is a chunk, its compressed form and a hash table, whatever
+ * the image size. See {@link GblCompressingSource} for compressing while uploading.
+ * <p>
+ * Signed and encrypted files are refused: the signature covers the original tags and
+ * encrypted program data does not compress.
+ */
+public final class GblCompression {
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    // LZ4 block format limits
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    static final int HASH_BITS = 12;
+
+    private GblCompression() {
+    }
+
+    // writes the compressed file, returns its length
+    public static long writeCompressed(FirmwareImage image, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        long written = 0;
+        try (FirmwareSource source = new GblCompressingSource(image.open())) {
+            int read;
+            while ((read = source.read(buffer, 0, buffer.length)) >= 0) {
+                out.write(buffer, 0, read);
+                written += read;
+            }
+        }
+        out.flush();
+        return written;
+    }
+
+    // Turns the compressed tags of a file back into program data tags. Chunks stay separate
+    // tags, a file whose program tags were at most CHUNK_SIZE comes back byte for byte.
+    public static void decompress(FirmwareSource compressed, OutputStream out) throws IOException {
+        GblWriter writer = new GblWriter(out);
+        byte[] header = new byte[GblParser.TAG_HEADER_SIZE];
+        byte[] body = new byte[4 + MaxCompressedLength(CHUNK_SIZE)];
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (true) {
+            if (!ReadFully(compressed, header, header.length)) {
+                throw new GblFormatException("Compressed file has no end tag", compressed.getPosition());
+            }
+            int id = GblParser.LittleEndian(header, 0);
+            long length = GblParser.LittleEndian(header, 4) & 0xFFFFFFFFL;
+            if (id == GblParser.TAG_END) {
+                writer.writeEnd();
+                return;
+            }
+            if (id != GblParser.TAG_PROG_LZ4) {
+                writer.writeTagHeader(id, length);
+                Copy(compressed, writer, body, length);
+                continue;
+            }
+            if (length < 4 || length > body.length) {
+                throw new GblFormatException("Bad LZ4 tag length " + length, compressed.getPosition());
+            }
+            ReadBody(compressed, body, (int) length);
+            int count = decompressBlock(body, 4, (int) length - 4, chunk, 0, chunk.length);
+            if (count < 0) {
+                throw new GblFormatException("Corrupt LZ4 block", compressed.getPosition());
+            }
+            writer.writeProgramData(GblParser.LittleEndian(body, 0), chunk, 0, count);
+        }
+    }
+
+    static int MaxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses one LZ4 block into dst, which holds at least MaxCompressedLength(length)
+     * bytes. The table is reused between calls, it holds 1 << HASH_BITS entries.
+     */
+    static int compressBlock(byte[] src, int offset, int length, byte[] dst, int dstOffset, int[] table) {
+        int end = offset + length;
+        int matchLimit = end - LAST_LITERALS;
+        int findLimit = end - MATCH_FIND_LIMIT;
+        int out = dstOffset;
+        int anchor = offset;
+        int position = offset;
+        if (length >= MATCH_FIND_LIMIT + 1) {
+            Arrays.fill(table, -1);
+            position++;
+            while (position < findLimit) {
+                int hash = Hash(src, position);
+                int candidate = table[hash];
+                table[hash] = position;
+                if (candidate < 0 || position - candidate > MAX_OFFSET || !Equal4(src, candidate, position)) {
+                    position++;
+                    continue;
+                }
+                // extend backwards over literals that match too
+                while (position > anchor && candidate > offset && src[position - 1] == src[candidate - 1]) {
+                    position--;
+                    candidate--;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchLimit && src[position + matchLength] == src[candidate + matchLength]) {
+                    matchLength++;
+                }
+                out = Sequence(src, anchor, position - anchor, position - candidate, matchLength, dst, out);
+                position += matchLength;
+                anchor = position;
+                if (position < findLimit) {
+                    // keep the position two back findable, runs of short repeats are common
+                    table[Hash(src, position - 2)] = position - 2;
+                }
+            }
+        }
+        return Literals(src, anchor, end - anchor, dst, out) - dstOffset;
+    }
+
+    // returns the bytes written, -1 for a malformed block or one that does not fit
+    static int decompressBlock(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength) {
+        int in = offset;
+        int end = offset + length;
+        int out = dstOffset;
+        int outEnd = dstOffset + dstLength;
+        while (in < end) {
+            int token = src[in++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int more;
+                do {
+                    if (in >= end) {
+                        return -1;
+                    }
+                    more = src[in++] & 0xFF;
+                    literals += more;
+                } while (more == 255);
+            }
+            if (in + literals > end || out + literals > outEnd) {
+                return -1;
+            }
+            System.arraycopy(src, in, dst, out, literals);
+            in += literals;
+            out += literals;
+            if (in == end) {
+                break;
+            }
+            if (in + 2 > end) {
+                return -1;
+            }
+            int distance = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+            in += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int more;
+                do {
+                    if (in >= end) {
+                        return -1;
+                    }
+                    more = src[in++] & 0xFF;
+                    matchLength += more;
+                } while (more == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (distance == 0 || out - distance < dstOffset || out + matchLength > outEnd) {
+                return -1;
+            }
+            // byte by byte, a match may overlap the bytes it produces
+            for (int i = 0; i < matchLength; i++) {
+                dst[out] = dst[out - distance];
+                out++;
+            }
+        }
+        return out - dstOffset;
+    }
+
+    private static int Sequence(byte[] src, int literalStart, int literals, int distance, int matchLength, byte[] dst, int out) {
+        int token = out++;
+        int match = matchLength - MIN_MATCH;
+        dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(match, 15));
+        out = Length(literals, dst, out);
+        System.arraycopy(src, literalStart, dst, out, literals);
+        out += literals;
+        dst[out++] = (byte) distance;
+        dst[out++] = (byte) (distance >>> 8);
+        return Length(match, dst, out);
+    }
+
+    // last sequence, literals only
+    private static int Literals(byte[] src, int literalStart, int literals, byte[] dst, int out) {
+        dst[out++] = (byte) (Math.min(literals, 15) << 4);
+        out = Length(literals, dst, out);
+        System.arraycopy(src, literalStart, dst, out, literals);
+        return out + literals;
+    }
+
+    // extra length bytes of a token field that reached 15
+    private static int Length(int length, byte[] dst, int out) {
+        if (length < 15) {
+            return out;
+        }
+        length -= 15;
+        while (length >= 255) {
+            dst[out++] = (byte) 255;
+            length -= 255;
+        }
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    private static int Hash(byte[] src, int position) {
+        return (GblParser.LittleEndian(src, position) * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static boolean Equal4(byte[] src, int a, int b) {
+        return src[a] == src[b] && src[a + 1] == src[b + 1] && src[a + 2] == src[b + 2] && src[a + 3] == src[b + 3];
+    }
+
+    private static boolean ReadFully(FirmwareSource source, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = source.read(buffer, filled, length - filled);
+            if (read < 0) {
+                return false;
+            }
+            filled += read;
+        }
+        return true;
+    }
+
+    private static void ReadBody(FirmwareSource source, byte[] buffer, int length) throws IOException {
+        if (!ReadFully(source, buffer, length)) {
+            throw new GblFormatException("Compressed file truncated", source.getPosition());
+        }
+    }
+
+    private static void Copy(FirmwareSource source, GblWriter writer, byte[] buffer, long length) throws IOException {
+        while (length > 0) {
+            int count = (int) Math.min(buffer.length, length);
+            ReadBody(source, buffer, count);
+            writer.write(buffer, 0, count);
+            length -= count;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Patch that turns one GBL file into another. The patch is a GBL file itself, so the
+ * AppLoader receives and checks it like a full image:
+ * <pre>
+ * header, application (of the target)
+ * TAG_DELTA_BASE  base application version, base length, base CRC32, target length
+ * TAG_DELTA ...   ops, 0x01 copy: u32 base offset, u32 length
+ *                      0x02 add:  u32 length, literal bytes
+ * end
+ * </pre>
+ * Generation streams both files. The base is indexed by a rolling and a CRC32 hash of every
+ * {@link #BLOCK_SIZE} byte block, the target slides through a fixed window looking for
+ * those blocks. Memory is the index plus fixed buffers, whatever the image size.
+ */
+public final class GblDelta {
+
+    public static final int BLOCK_SIZE = 32;
+    static final byte OP_COPY = 0x01;
+    static final byte OP_ADD = 0x02;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_LITERAL = 4096;
+    private static final int MAX_TAG_BODY = 16 * 1024;
+
+    private GblDelta() {
+    }
+
+    // writes the patch from base to target, returns its length
+    public static long writePatch(FirmwareImage base, FirmwareImage target, OutputStream out) throws IOException {
+        GblInfo targetInfo = Validate(target);
+        Index index = new Index(base);
+        if (!index.info.hasApplicationInfo()) {
+            throw new GblFormatException("Base GBL file has no application tag", 0);
+        }
+        GblWriter writer = new GblWriter(out);
+        writer.writeHeader(0);
+        writer.writeApplicationInfo(targetInfo.getApplicationType(), targetInfo.getApplicationVersion(),
+                targetInfo.getApplicationCapabilities(), targetInfo.getProductId());
+        writer.writeTagHeader(GblParser.TAG_DELTA_BASE, GblParser.DELTA_BASE_BODY_SIZE);
+        writer.writeInt(index.info.getApplicationVersion());
+        writer.writeInt((int) index.length);
+        writer.writeInt((int) index.crc);
+        writer.writeInt((int) targetInfo.getLength());
+        try (FirmwareSource source = target.open()) {
+            new Encoder(index, writer).encode(source);
+        }
+        writer.writeEnd();
+        return writer.getWritten();
+    }
+
+    private static GblInfo Validate(FirmwareImage image) throws IOException {
+        GblParser parser = new GblParser();
+        byte[] buffer = new byte[8192];
+        try (FirmwareSource source = image.open()) {
+            int read;
+            while ((read = source.read(buffer, 0, buffer.length)) >= 0) {
+                parser.update(buffer, 0, read);
+            }
+        }
+        GblInfo info = parser.finish();
+        if (!info.hasApplicationInfo()) {
+            throw new GblFormatException("Target GBL file has no application tag", 0);
+        }
+        return info;
+    }
+
+    // rebuilds the target from the base a device holds and a patch, checks the base first
+    public static void apply(byte[] base, FirmwareSource patch, OutputStream target) throws IOException {
+        byte[] header = new byte[GblParser.TAG_HEADER_SIZE];
+        byte[] buffer = new byte[MAX_LITERAL];
+        long targetLength = -1;
+        long written = 0;
+        while (true) {
+            if (!ReadFully(patch, header, GblParser.TAG_HEADER_SIZE)) {
+                throw new GblFormatException("Patch has no end tag", patch.getPosition());
+            }
+            int id = GblParser.LittleEndian(header, 0);
+            long length = GblParser.LittleEndian(header, 4) & 0xFFFFFFFFL;
+            if (id == GblParser.TAG_END) {
+                break;
+            } else if (id == GblParser.TAG_DELTA_BASE) {
+                ReadBody(patch, buffer, (int) length);
+                CRC32 crc = new CRC32();
+                crc.update(base, 0, base.length);
+                if (GblParser.LittleEndian(buffer, 4) != base.length || GblParser.LittleEndian(buffer, 8) != (int) crc.getValue()) {
+                    throw new GblFormatException("Patch was made for another base image", patch.getPosition());
+                }
+                targetLength = GblParser.LittleEndian(buffer, 12) & 0xFFFFFFFFL;
+            } else if (id == GblParser.TAG_DELTA) {
+                if (targetLength < 0) {
+                    throw new GblFormatException("Delta tag before delta base tag", patch.getPosition());
+                }
+                written += ApplyOps(base, patch, length, buffer, target);
+            } else {
+                Skip(patch, buffer, length);
+            }
+        }
+        if (targetLength < 0 || written != targetLength) {
+            throw new GblFormatException("Patch rebuilt " + written + " bytes, expected " + targetLength, patch.getPosition());
+        }
+    }
+
+    private static long ApplyOps(byte[] base, FirmwareSource patch, long length, byte[] buffer, OutputStream target) throws IOException {
+        long remaining = length;
+        long written = 0;
+        while (remaining > 0) {
+            ReadBody(patch, buffer, 1);
+            byte op = buffer[0];
+            if (op == OP_COPY) {
+                ReadBody(patch, buffer, 8);
+                long offset = GblParser.LittleEndian(buffer, 0) & 0xFFFFFFFFL;
+                int count = GblParser.LittleEndian(buffer, 4);
+                if (count < 0 || offset + count > base.length) {
+                    throw new GblFormatException("Copy outside base image", patch.getPosition());
+                }
+                target.write(base, (int) offset, count);
+                written += count;
+                remaining -= 9;
+            } else if (op == OP_ADD) {
+                ReadBody(patch, buffer, 4);
+                int count = GblParser.LittleEndian(buffer, 0);
+                if (count < 0 || count > buffer.length) {
+                    throw new GblFormatException("Bad literal length " + count, patch.getPosition());
+                }
+                ReadBody(patch, buffer, count);
+                target.write(buffer, 0, count);
+                written += count;
+                remaining -= 5 + count;
+            } else {
+                throw new GblFormatException("Unknown patch op 0x" + Integer.toHexString(op & 0xFF), patch.getPosition());
+            }
+        }
+        if (remaining != 0) {
+            throw new GblFormatException("Patch op crosses its tag", patch.getPosition());
+        }
+        return written;
+    }
+
+    private static boolean ReadFully(FirmwareSource source, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = source.read(buffer, filled, length - filled);
+            if (read < 0) {
+                return false;
+            }
+            filled += read;
+        }
+        return true;
+    }
+
+    private static void ReadBody(FirmwareSource source, byte[] buffer, int length) throws IOException {
+        if (!ReadFully(source, buffer, length)) {
+            throw new GblFormatException("Patch truncated", source.getPosition());
+        }
+    }
+
+    private static void Skip(FirmwareSource source, byte[] buffer, long length) throws IOException {
+        while (length > 0) {
+            int count = (int) Math.min(buffer.length, length);
+            ReadBody(source, buffer, count);
+            length -= count;
+        }
+    }
+
+    // rsync style weak hash of a block, updated in O(1) when the window moves by one byte
+    private static int Weak(int a, int b) {
+        return (b << 16) | a;
+    }
+
+    /**
+     * Weak and strong hash of every full block of the base, chained in an open hash table.
+     */
+    private static final class Index {
+        final GblInfo info;
+        final long length;
+        final long crc;
+        final int blocks;
+        final int[] weak;
+        final int[] strong;
+        final int[] heads;
+        final int[] next;
+
+        Index(FirmwareImage base) throws IOException {
+            blocks = (int) (base.getLength() / BLOCK_SIZE);
+            weak = new int[blocks];
+            strong = new int[blocks];
+            next = new int[blocks];
+            heads = new int[Integer.highestOneBit(Math.max(1, blocks)) * 2];
+            Arrays.fill(heads, -1);
+            GblParser parser = new GblParser();
+            CRC32 whole = new CRC32();
+            CRC32 block = new CRC32();
+            byte[] buffer = new byte[BLOCK_SIZE];
+            long total = 0;
+            try (FirmwareSource source = base.open()) {
+                for (int i = 0; ; i++) {
+                    int filled = 0;
+                    int read;
+                    while (filled < BLOCK_SIZE && (read = source.read(buffer, filled, BLOCK_SIZE - filled)) >= 0) {
+                        filled += read;
+                    }
+                    parser.update(buffer, 0, filled);
+                    whole.update(buffer, 0, filled);
+                    total += filled;
+                    if (filled < BLOCK_SIZE) {
+                        break;
+                    }
+                    int a = 0;
+                    int b = 0;
+                    for (int k = 0; k < BLOCK_SIZE; k++) {
+                        a += buffer[k] & 0xFF;
+                        b += (BLOCK_SIZE - k) * (buffer[k] & 0xFF);
+                    }
+                    weak[i] = Weak(a & 0xFFFF, b & 0xFFFF);
+                    block.reset();
+                    block.update(buffer, 0, BLOCK_SIZE);
+                    strong[i] = (int) block.getValue();
+                    int slot = Slot(weak[i]);
+                    next[i] = heads[slot];
+                    heads[slot] = i;
+                }
+            }
+            info = parser.finish();
+            length = total;
+            crc = whole.getValue();
+        }
+
+        int Slot(int weakHash) {
+            return (weakHash * 0x9E3779B1 >>> 7) & (heads.length - 1);
+        }
+    }
+
+    /**
+     * Slides a window over the target and writes copy and add ops into bounded delta tags.
+     */
+    private static final class Encoder {
+        private final Index index;
+        private final GblWriter writer;
+        private final CRC32 windowCrc = new CRC32();
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private final byte[] literal = new byte[MAX_LITERAL];
+        private final byte[] ops = new byte[MAX_TAG_BODY + 9 + 5 + MAX_LITERAL];
+        private int literalLength;
+        private int opsLength;
+        // copy op being extended, -1 when none
+        private long copyOffset = -1;
+        private long copyLength;
+
+        Encoder(Index index, GblWriter writer) {
+            this.index = index;
+            this.writer = writer;
+        }
+
+        void encode(FirmwareSource source) throws IOException {
+            int start = 0;
+            int fill = 0;
+            boolean endOfSource = false;
+            boolean hashed = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (fill - start <= BLOCK_SIZE && !endOfSource) {
+                    // keep a block plus the next byte in the window
+                    System.arraycopy(window, start, window, 0, fill - start);
+                    fill -= start;
+                    start = 0;
+                    int read;
+                    while (fill < window.length && (read = source.read(window, fill, window.length - fill)) >= 0) {
+                        fill += read;
+                        if (read == 0) {
+                            break;
+                        }
+                    }
+                    endOfSource = fill < window.length;
+                }
+                if (fill - start < BLOCK_SIZE) {
+                    break;
+                }
+                if (!hashed) {
+                    a = 0;
+                    b = 0;
+                    for (int k = 0; k < BLOCK_SIZE; k++) {
+                        a += window[start + k] & 0xFF;
+                        b += (BLOCK_SIZE - k) * (window[start + k] & 0xFF);
+                    }
+                    a &= 0xFFFF;
+                    b &= 0xFFFF;
+                    hashed = true;
+                }
+                int match = Find(Weak(a, b), start);
+                if (match >= 0) {
+                    Copy((long) match * BLOCK_SIZE);
+                    start += BLOCK_SIZE;
+                    hashed = false;
+                    continue;
+                }
+                Literal(window[start]);
+                if (fill - start > BLOCK_SIZE) {
+                    int out = window[start] & 0xFF;
+                    int in = window[start + BLOCK_SIZE] & 0xFF;
+                    a = (a - out + in) & 0xFFFF;
+                    b = (b - BLOCK_SIZE * out + a) & 0xFFFF;
+                } else {
+                    hashed = false;
+                }
+                start++;
+            }
+            for (int i = start; i < fill; i++) {
+                Literal(window[i]);
+            }
+            FlushCopy();
+            FlushLiteral();
+            FlushTag();
+        }
+
+        private int Find(int weak, int start) throws IOException {
+            boolean strongKnown = false;
+            int strong = 0;
+            // the block after the current copy first, runs of unchanged code stay one op
+            int expected = copyOffset >= 0 ? (int) ((copyOffset + copyLength) / BLOCK_SIZE) : -1;
+            if (expected >= 0 && expected < index.blocks && (copyOffset + copyLength) % BLOCK_SIZE == 0
+                    && index.weak[expected] == weak) {
+                strong = Strong(start);
+                strongKnown = true;
+                if (index.strong[expected] == strong) {
+                    return expected;
+                }
+            }
+            for (int i = index.heads[index.Slot(weak)]; i >= 0; i = index.next[i]) {
+                if (index.weak[i] != weak) {
+                    continue;
+                }
+                if (!strongKnown) {
+                    strong = Strong(start);
+                    strongKnown = true;
+                }
+                if (index.strong[i] == strong) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int Strong(int start) {
+            windowCrc.reset();
+            windowCrc.update(window, start, BLOCK_SIZE);
+            return (int) windowCrc.getValue();
+        }
+
+        private void Copy(long offset) throws IOException {
+            FlushLiteral();
+            if (copyOffset >= 0 && copyOffset + copyLength == offset) {
+                copyLength += BLOCK_SIZE;
+                return;
+            }
+            FlushCopy();
+            copyOffset = offset;
+            copyLength = BLOCK_SIZE;
+        }
+
+        private void Literal(byte value) throws IOException {
+            FlushCopy();
+            if (literalLength == literal.length) {
+                FlushLiteral();
+            }
+            literal[literalLength++] = value;
+        }
+
+        private void FlushCopy() throws IOException {
+            if (copyOffset < 0) {
+                return;
+            }
+            ops[opsLength++] = OP_COPY;
+            PutInt((int) copyOffset);
+            PutInt((int) copyLength);
+            copyOffset = -1;
+            MaybeFlushTag();
+        }
+
+        private void FlushLiteral() throws IOException {
+            if (literalLength == 0) {
+                return;
+            }
+            ops[opsLength++] = OP_ADD;
+            PutInt(literalLength);
+            System.arraycopy(literal, 0, ops, opsLength, literalLength);
+            opsLength += literalLength;
+            literalLength = 0;
+            MaybeFlushTag();
+        }
+
+        private void PutInt(int value) {
+            for (int i = 0; i < 4; i++) {
+                ops[opsLength++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        private void MaybeFlushTag() throws IOException {
+            if (opsLength >= MAX_TAG_BODY) {
+                FlushTag();
+            }
+        }
+
+        private void FlushTag() throws IOException {
+            if (opsLength > 0) {
+                writer.writeTag(GblParser.TAG_DELTA, ops, 0, opsLength);
+                opsLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+
+public class GblFormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+
+    public GblFormatException(String message, long offset) {
+        super(message + " at offset " + offset);
+        this.offset = offset;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,145 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metadata collected from the tags of a GBL file.
+ */
+public class GblInfo {
+
+    // position of one tag in the file, header included
+    public static class Tag {
+        final int id;
+        final long offset;
+        final long length;
+
+        Tag(int id, long offset, long length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // body length, the tag takes 8 bytes more
+        public long getLength() {
+            return length;
+        }
+    }
+
+    int version;
+    int type;
+    boolean applicationInfo;
+    int applicationType;
+    int applicationVersion;
+    int applicationCapabilities;
+    final byte[] productId = new byte[16];
+    long programBytes;
+    boolean compressed;
+    boolean signature;
+    boolean delta;
+    int deltaBaseVersion;
+    long deltaBaseLength;
+    int deltaBaseCrc;
+    long deltaTargetLength;
+    int tagCount;
+    final List<Tag> tags = new ArrayList<>();
+    long length;
+    int crc;
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isEncrypted() {
+        return (type & GblParser.TYPE_ENCRYPTED) != 0;
+    }
+
+    public boolean isSigned() {
+        return (type & GblParser.TYPE_SIGNED) != 0;
+    }
+
+    public boolean hasApplicationInfo() {
+        return applicationInfo;
+    }
+
+    public int getApplicationType() {
+        return applicationType;
+    }
+
+    public int getApplicationVersion() {
+        return applicationVersion;
+    }
+
+    public int getApplicationCapabilities() {
+        return applicationCapabilities;
+    }
+
+    public byte[] getProductId() {
+        return productId.clone();
+    }
+
+    // bytes of flash content carried by program data tags, compressed size for compressed tags
+    public long getProgramBytes() {
+        return programBytes;
+    }
+
+    // image carries LZ4 or LZMA compressed program data
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public boolean hasSignature() {
+        return signature;
+    }
+
+    // file is a patch against the base below instead of a full image
+    public boolean isDelta() {
+        return delta;
+    }
+
+    // application version the patch applies to
+    public int getDeltaBaseVersion() {
+        return deltaBaseVersion;
+    }
+
+    public long getDeltaBaseLength() {
+        return deltaBaseLength;
+    }
+
+    public int getDeltaBaseCrc() {
+        return deltaBaseCrc;
+    }
+
+    // length of the GBL file the patch rebuilds
+    public long getDeltaTargetLength() {
+        return deltaTargetLength;
+    }
+
+    public int getTagCount() {
+        return tagCount;
+    }
+
+    // layout of the file in tag order, empty unless the parser recorded it
+    public List<Tag> getTags() {
+        return Collections.unmodifiableList(tags);
+    }
+
+    // total file length, known after the end tag
+    public long getLength() {
+        return length;
+    }
+
+    // CRC32 stored in the end tag
+    public int getCrc() {
+        return crc;
+    }
+}
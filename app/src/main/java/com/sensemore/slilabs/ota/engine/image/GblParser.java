@@ -0,0 +1,275 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.util.zip.CRC32;
+
+/**
+ * Single pass push parser of the Gecko bootloader GBL format. Bytes are fed as they stream
+ * towards the device; tag structure is checked on the fly and the end tag CRC32, computed
+ * over the file up to and including the end tag header, is verified when it arrives.
+ * Only the few bytes of tag headers and small metadata tags are buffered.
+ */
+public class GblParser {
+
+    public static final int TAG_HEADER = 0x03A617EB;
+    public static final int TAG_BOOTLOADER = 0xF50909F5;
+    public static final int TAG_APPLICATION = 0xF40A0AF4;
+    public static final int TAG_METADATA = 0xF60808F6;
+    public static final int TAG_PROG = 0xFE0101FE;
+    public static final int TAG_ERASEPROG = 0xFD0303FD;
+    public static final int TAG_PROG_LZ4 = 0xFD0505FD;
+    public static final int TAG_PROG_LZMA = 0xFD0707FD;
+    public static final int TAG_SE_UPGRADE = 0x5EA617EB;
+    public static final int TAG_VERSION_DEPENDENCY = 0x76A617EB;
+    public static final int TAG_CERTIFICATE = 0xF30B0BF3;
+    public static final int TAG_ENCRYPTION_DATA = 0xF80808F8;
+    public static final int TAG_ENCRYPTION_INIT = 0xF90707F9;
+    public static final int TAG_SIGNATURE = 0xF70A0AF7;
+    public static final int TAG_END = 0xFC0404FC;
+    // Vendor tags of a delta patch, see GblDelta. Need a bootloader built with patch support.
+    public static final int TAG_DELTA_BASE = 0xF10C0CF1;
+    public static final int TAG_DELTA = 0xF10D0DF1;
+
+    public static final int TYPE_ENCRYPTED = 0x00000001;
+    public static final int TYPE_SIGNED = 0x00000100;
+
+    static final int TAG_HEADER_SIZE = 8;
+    private static final int HEADER_BODY_SIZE = 8;
+    private static final int APPLICATION_BODY_SIZE = 28;
+    private static final int END_BODY_SIZE = 4;
+    static final int DELTA_BASE_BODY_SIZE = 16;
+    private static final int MAJOR_VERSION = 3;
+
+    private final long maxTagLength;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[APPLICATION_BODY_SIZE];
+    private final GblInfo info = new GblInfo();
+    private boolean recordTags;
+
+    private boolean inBody;
+    private int scratchFill;
+    private int tagId;
+    private long tagLength;
+    private long tagRemaining;
+    private long offset;
+    private boolean headerSeen;
+    private boolean endSeen;
+    private boolean endComplete;
+    private long crcAtEnd;
+
+    public GblParser() {
+        this(16 * 1024 * 1024);
+    }
+
+    public GblParser(long maxTagLength) {
+        this.maxTagLength = maxTagLength;
+    }
+
+    // keeps the offset of every tag in GblInfo, grows with the tag count
+    public void setRecordTags(boolean recordTags) {
+        this.recordTags = recordTags;
+    }
+
+    public GblInfo getInfo() {
+        return info;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isHeaderSeen() {
+        return headerSeen;
+    }
+
+    public boolean isComplete() {
+        return endComplete;
+    }
+
+    public void update(byte[] buffer, int off, int len) throws GblFormatException {
+        while (len > 0) {
+            if (endComplete) {
+                throw new GblFormatException("Data after GBL end tag", offset);
+            }
+            int n;
+            if (!inBody) {
+                n = Math.min(TAG_HEADER_SIZE - scratchFill, len);
+                System.arraycopy(buffer, off, scratch, scratchFill, n);
+                crc.update(buffer, off, n);
+                scratchFill += n;
+                if (scratchFill == TAG_HEADER_SIZE) {
+                    StartTag(LittleEndian(scratch, 0), LittleEndian(scratch, 4) & 0xFFFFFFFFL, offset + n - TAG_HEADER_SIZE);
+                }
+            } else {
+                n = (int) Math.min(tagRemaining, len);
+                int capture = Math.min(n, CaptureSize() - scratchFill);
+                if (capture > 0) {
+                    System.arraycopy(buffer, off, scratch, scratchFill, capture);
+                    scratchFill += capture;
+                }
+                if (tagId != TAG_END) {
+                    crc.update(buffer, off, n);
+                }
+                tagRemaining -= n;
+            }
+            off += n;
+            len -= n;
+            offset += n;
+            if (inBody && tagRemaining == 0) {
+                EndTag();
+            }
+        }
+    }
+
+    // call at end of stream, throws unless a complete GBL file was seen
+    public GblInfo finish() throws GblFormatException {
+        if (!headerSeen) {
+            throw new GblFormatException("Not a GBL file", offset);
+        }
+        if (!endComplete) {
+            throw new GblFormatException(inBody || scratchFill > 0
+                    ? "GBL file truncated inside tag 0x" + Integer.toHexString(tagId)
+                    : "GBL file has no end tag", offset);
+        }
+        return info;
+    }
+
+    private void StartTag(int id, long length, long tagOffset) throws GblFormatException {
+        if (!headerSeen && id != TAG_HEADER) {
+            throw new GblFormatException("Not a GBL file, first tag is 0x" + Integer.toHexString(id), tagOffset);
+        }
+        if (headerSeen && id == TAG_HEADER) {
+            throw new GblFormatException("Duplicate GBL header tag", tagOffset);
+        }
+        if (!IsKnownTag(id)) {
+            throw new GblFormatException("Unknown GBL tag 0x" + Integer.toHexString(id), tagOffset);
+        }
+        if (length > maxTagLength) {
+            throw new GblFormatException("GBL tag 0x" + Integer.toHexString(id) + " too long: " + length, tagOffset);
+        }
+        if ((id == TAG_HEADER && length != HEADER_BODY_SIZE)
+                || (id == TAG_APPLICATION && length != APPLICATION_BODY_SIZE)
+                || (id == TAG_END && length != END_BODY_SIZE)
+                || (id == TAG_DELTA_BASE && length != DELTA_BASE_BODY_SIZE)) {
+            throw new GblFormatException("Bad length " + length + " of GBL tag 0x" + Integer.toHexString(id), tagOffset);
+        }
+        if (id == TAG_END) {
+            endSeen = true;
+            crcAtEnd = crc.getValue();
+        }
+        tagId = id;
+        tagLength = length;
+        tagRemaining = length;
+        scratchFill = 0;
+        inBody = true;
+        info.tagCount++;
+        if (recordTags) {
+            info.tags.add(new GblInfo.Tag(id, tagOffset, length));
+        }
+        if (length == 0) {
+            EndTag();
+        }
+    }
+
+    private int CaptureSize() {
+        switch (tagId) {
+            case TAG_HEADER:
+                return HEADER_BODY_SIZE;
+            case TAG_APPLICATION:
+                return APPLICATION_BODY_SIZE;
+            case TAG_END:
+                return END_BODY_SIZE;
+            case TAG_DELTA_BASE:
+                return DELTA_BASE_BODY_SIZE;
+            default:
+                return 0;
+        }
+    }
+
+    private void EndTag() throws GblFormatException {
+        switch (tagId) {
+            case TAG_HEADER:
+                info.version = LittleEndian(scratch, 0);
+                info.type = LittleEndian(scratch, 4);
+                if ((info.version >>> 24) != MAJOR_VERSION) {
+                    throw new GblFormatException("Unsupported GBL version 0x" + Integer.toHexString(info.version), offset);
+                }
+                headerSeen = true;
+                break;
+            case TAG_APPLICATION:
+                info.applicationInfo = true;
+                info.applicationType = LittleEndian(scratch, 0);
+                info.applicationVersion = LittleEndian(scratch, 4);
+                info.applicationCapabilities = LittleEndian(scratch, 8);
+                System.arraycopy(scratch, 12, info.productId, 0, info.productId.length);
+                break;
+            case TAG_PROG:
+            case TAG_ERASEPROG:
+            case TAG_ENCRYPTION_DATA:
+                info.programBytes += Math.max(0, tagLength - 4);
+                break;
+            case TAG_PROG_LZ4:
+            case TAG_PROG_LZMA:
+                info.compressed = true;
+                info.programBytes += Math.max(0, tagLength - 4);
+                break;
+            case TAG_SIGNATURE:
+                info.signature = true;
+                break;
+            case TAG_DELTA_BASE:
+                info.delta = true;
+                info.deltaBaseVersion = LittleEndian(scratch, 0);
+                info.deltaBaseLength = LittleEndian(scratch, 4) & 0xFFFFFFFFL;
+                info.deltaBaseCrc = LittleEndian(scratch, 8);
+                info.deltaTargetLength = LittleEndian(scratch, 12) & 0xFFFFFFFFL;
+                break;
+            case TAG_END:
+                info.crc = LittleEndian(scratch, 0);
+                if (info.crc != (int) crcAtEnd) {
+                    throw new GblFormatException("GBL CRC mismatch, file says 0x" + Integer.toHexString(info.crc)
+                            + " computed 0x" + Long.toHexString(crcAtEnd), offset);
+                }
+                if (info.isSigned() && !info.signature) {
+                    throw new GblFormatException("GBL header announces a signature but none was found", offset);
+                }
+                info.length = offset;
+                endComplete = true;
+                break;
+            default:
+                break;
+        }
+        inBody = false;
+        scratchFill = 0;
+    }
+
+    private static boolean IsKnownTag(int id) {
+        switch (id) {
+            case TAG_HEADER:
+            case TAG_BOOTLOADER:
+            case TAG_APPLICATION:
+            case TAG_METADATA:
+            case TAG_PROG:
+            case TAG_ERASEPROG:
+            case TAG_PROG_LZ4:
+            case TAG_PROG_LZMA:
+            case TAG_SE_UPGRADE:
+            case TAG_VERSION_DEPENDENCY:
+            case TAG_CERTIFICATE:
+            case TAG_ENCRYPTION_DATA:
+            case TAG_ENCRYPTION_INIT:
+            case TAG_SIGNATURE:
+            case TAG_DELTA_BASE:
+            case TAG_DELTA:
+            case TAG_END:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static int LittleEndian(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | (buffer[offset + 1] & 0xFF) << 8
+                | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+}
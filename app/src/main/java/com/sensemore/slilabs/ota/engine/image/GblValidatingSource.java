@@ -0,0 +1,89 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+
+/**
+ * Feeds every byte the upload reads through a {@link GblParser}, so the image is validated
+ * on the same pass that sends it. {@link #inspectHeader()} reads only the first tags, which
+ * is enough to reject non-GBL files before the device is rebooted into DFU mode.
+ */
+public class GblValidatingSource implements FirmwareSource {
+
+    // header tag, application tag and the delta base tag of a patch
+    private static final int PREFIX_SIZE = 3 * GblParser.TAG_HEADER_SIZE + 8 + 28 + GblParser.DELTA_BASE_BODY_SIZE;
+
+    private final FirmwareSource source;
+    private final GblParser parser;
+    private byte[] prefix;
+    private int prefixLength;
+    private int prefixPosition;
+    private long position;
+    private boolean finished;
+
+    public GblValidatingSource(FirmwareSource source) {
+        this(source, new GblParser());
+    }
+
+    public GblValidatingSource(FirmwareSource source, GblParser parser) {
+        this.source = source;
+        this.parser = parser;
+    }
+
+    public GblInfo getInfo() {
+        return parser.getInfo();
+    }
+
+    // reads and checks the leading tags, kept in memory for the following reads
+    public GblInfo inspectHeader() throws IOException {
+        if (prefix == null && position == 0) {
+            prefix = new byte[PREFIX_SIZE];
+            while (prefixLength < prefix.length) {
+                int read = source.read(prefix, prefixLength, prefix.length - prefixLength);
+                if (read < 0) {
+                    break;
+                }
+                prefixLength += read;
+            }
+            parser.update(prefix, 0, prefixLength);
+        }
+        if (!parser.isHeaderSeen()) {
+            throw new GblFormatException("Not a GBL file", parser.getOffset());
+        }
+        return parser.getInfo();
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return source.getDeclaredLength();
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (prefix != null && prefixPosition < prefixLength) {
+            int count = Math.min(length, prefixLength - prefixPosition);
+            System.arraycopy(prefix, prefixPosition, buffer, offset, count);
+            prefixPosition += count;
+            position += count;
+            return count;
+        }
+        int read = source.read(buffer, offset, length);
+        if (read > 0) {
+            parser.update(buffer, offset, read);
+            position += read;
+        } else if (read < 0 && !finished) {
+            finished = true;
+            parser.finish();
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
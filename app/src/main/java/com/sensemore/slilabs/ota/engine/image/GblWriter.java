@@ -0,0 +1,85 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Streams GBL tags to an output and closes the file with the CRC32 end tag.
+ */
+public class GblWriter {
+
+    public static final int VERSION = 0x03000000;
+
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final byte[] word = new byte[4];
+    private long written;
+
+    public GblWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public void writeHeader(int type) throws IOException {
+        writeTagHeader(GblParser.TAG_HEADER, 8);
+        writeInt(VERSION);
+        writeInt(type);
+    }
+
+    public void writeApplicationInfo(int type, int version, int capabilities, byte[] productId) throws IOException {
+        writeTagHeader(GblParser.TAG_APPLICATION, 28);
+        writeInt(type);
+        writeInt(version);
+        writeInt(capabilities);
+        byte[] id = new byte[16];
+        System.arraycopy(productId, 0, id, 0, Math.min(productId.length, id.length));
+        write(id, 0, id.length);
+    }
+
+    public void writeProgramData(int address, byte[] data, int offset, int length) throws IOException {
+        writeTagHeader(GblParser.TAG_PROG, 4 + length);
+        writeInt(address);
+        write(data, offset, length);
+    }
+
+    public void writeTag(int tagId, byte[] body, int offset, int length) throws IOException {
+        writeTagHeader(tagId, length);
+        write(body, offset, length);
+    }
+
+    // tag header only, body follows through write()
+    public void writeTagHeader(int tagId, long length) throws IOException {
+        writeInt(tagId);
+        writeInt((int) length);
+    }
+
+    public void writeInt(int value) throws IOException {
+        word[0] = (byte) value;
+        word[1] = (byte) (value >>> 8);
+        word[2] = (byte) (value >>> 16);
+        word[3] = (byte) (value >>> 24);
+        write(word, 0, 4);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        crc.update(data, offset, length);
+        written += length;
+    }
+
+    public void writeEnd() throws IOException {
+        writeTagHeader(GblParser.TAG_END, 4);
+        int value = (int) crc.getValue();
+        word[0] = (byte) value;
+        word[1] = (byte) (value >>> 8);
+        word[2] = (byte) (value >>> 16);
+        word[3] = (byte) (value >>> 24);
+        out.write(word, 0, 4);
+        written += 4;
+        out.flush();
+    }
+}
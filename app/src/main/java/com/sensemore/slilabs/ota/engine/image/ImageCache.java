@@ -0,0 +1,381 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Firmware images kept on disk under their SHA-256, so a rollout that picks the same image
+ * again neither copies nor parses it again. An image enters the cache in one pass that
+ * copies, hashes and validates it, its {@link GblInfo} and tag layout are stored beside it.
+ * Each cached image is mapped once and the same {@link CachedImage} goes to every session.
+ * <p>
+ * Files are synced before they are renamed into place. An image whose file does not have
+ * the length its info recorded, e.g. cut short by a power loss, is dropped when opened.
+ * <p>
+ * Least recently used images are evicted once the files exceed the size limit. A session
+ * still reading an evicted image keeps its mapping, only the file is removed.
+ * <p>
+ * A compressed copy remembers the hash of the image it was made from, so an image is
+ * compressed once and later rollouts find the copy with {@link #getCompressed}.
+ */
+public class ImageCache {
+
+    private static final String IMAGE_SUFFIX = ".gbl";
+    private static final String INFO_SUFFIX = ".properties";
+    private static final String TEMP_PREFIX = "incoming-";
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private static class Entry {
+        final String hash;
+        final long length;
+        // hash of the image this is the compressed copy of, null for any other
+        String compressedFrom;
+        // mapped on first use
+        CachedImage image;
+
+        Entry(String hash, long length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    // access order, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    public ImageCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+        Load();
+    }
+
+    // null when no image with this hash is cached
+    public synchronized CachedImage get(String contentHash) {
+        Entry entry = entries.get(contentHash);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        try {
+            CachedImage image = Open(entry);
+            hits++;
+            return image;
+        } catch (IOException e) {
+            // unreadable entry only costs a copy of the image
+            Remove(entry);
+            misses++;
+            return null;
+        }
+    }
+
+    // compressed copy of the image with this hash, null when none is cached
+    public synchronized CachedImage getCompressed(String contentHash) {
+        for (Entry entry : entries.values()) {
+            if (contentHash.equals(entry.compressedFrom)) {
+                return get(entry.hash);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    // Copies, hashes and validates the source in one pass and closes it. Throws
+    // GblFormatException when the source is not a complete GBL file.
+    public CachedImage put(FirmwareSource source) throws IOException {
+        return Put(source, null);
+    }
+
+    // like put, the result is remembered as the compressed copy of the image with sourceHash
+    public CachedImage putCompressed(String sourceHash, FirmwareSource compressed) throws IOException {
+        return Put(compressed, sourceHash);
+    }
+
+    private CachedImage Put(FirmwareSource source, String compressedFrom) throws IOException {
+        File temp = File.createTempFile(TEMP_PREFIX, IMAGE_SUFFIX, directory);
+        String hash;
+        GblInfo info;
+        try (FirmwareSource in = source; FileOutputStream out = new FileOutputStream(temp)) {
+            MessageDigest digest = ContentHash.Sha256();
+            GblParser parser = new GblParser();
+            parser.setRecordTags(true);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+                parser.update(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+            info = parser.finish();
+            hash = ContentHash.Hex(digest.digest());
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(hash);
+            if (entry != null) {
+                try {
+                    CachedImage image = Open(entry);
+                    temp.delete();
+                    hits++;
+                    if (compressedFrom != null && !compressedFrom.equals(entry.compressedFrom)) {
+                        WriteInfo(hash, image.getGblInfo(), compressedFrom);
+                        entry.compressedFrom = compressedFrom;
+                    }
+                    return image;
+                } catch (IOException e) {
+                    // damaged copy, the new one takes its place
+                    Remove(entry);
+                }
+            }
+            misses++;
+            // info first, Load ignores an image without one
+            WriteInfo(hash, info, compressedFrom);
+            File file = ImageFile(hash);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                InfoFile(hash).delete();
+                throw new IOException("Can't move image into " + directory);
+            }
+            entry = new Entry(hash, file.length());
+            entry.compressedFrom = compressedFrom;
+            entry.image = Map(file, hash, info);
+            entries.put(hash, entry);
+            totalBytes += entry.length;
+            Trim(entry);
+            return entry.image;
+        }
+    }
+
+    public synchronized boolean contains(String contentHash) {
+        return entries.containsKey(contentHash);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // bytes of all cached image files
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    private File ImageFile(String hash) {
+        return new File(directory, hash + IMAGE_SUFFIX);
+    }
+
+    private File InfoFile(String hash) {
+        return new File(directory, hash + INFO_SUFFIX);
+    }
+
+    private CachedImage Open(Entry entry) throws IOException {
+        if (entry.image == null) {
+            File file = ImageFile(entry.hash);
+            GblInfo info = ReadInfo(entry.hash);
+            if (file.length() != info.length) {
+                throw new IOException("Cached image " + entry.hash + " has " + file.length() + " of " + info.length + " bytes");
+            }
+            entry.image = Map(file, entry.hash, info);
+        }
+        // keeps the order across restarts, Load sorts by it
+        ImageFile(entry.hash).setLastModified(System.currentTimeMillis());
+        return entry.image;
+    }
+
+    private static CachedImage Map(File file, String hash, GblInfo info) throws IOException {
+        // FileChannel.open needs API 26, the app runs from 24
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            return new CachedImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), hash, info);
+        }
+    }
+
+    // evicts least recently used images until the rest fits, never the one just added
+    private void Trim(Entry keep) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (entry == keep) {
+                continue;
+            }
+            eldest.remove();
+            Delete(entry);
+            evictions++;
+        }
+    }
+
+    private void Remove(Entry entry) {
+        entries.remove(entry.hash);
+        Delete(entry);
+    }
+
+    private void Delete(Entry entry) {
+        totalBytes -= entry.length;
+        ImageFile(entry.hash).delete();
+        InfoFile(entry.hash).delete();
+    }
+
+    // entries of an earlier run, least recently used first; leftovers of interrupted puts go
+    private void Load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> images = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX)) {
+                file.delete();
+            } else if (name.endsWith(IMAGE_SUFFIX)) {
+                if (InfoFile(name.substring(0, name.length() - IMAGE_SUFFIX.length())).isFile()) {
+                    images.add(file);
+                } else {
+                    file.delete();
+                }
+            } else if (name.endsWith(INFO_SUFFIX)
+                    && !ImageFile(name.substring(0, name.length() - INFO_SUFFIX.length())).isFile()) {
+                file.delete();
+            }
+        }
+        images.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : images) {
+            String name = file.getName();
+            Entry entry = new Entry(name.substring(0, name.length() - IMAGE_SUFFIX.length()), file.length());
+            entry.compressedFrom = ReadCompressedFrom(entry.hash);
+            entries.put(entry.hash, entry);
+            totalBytes += entry.length;
+        }
+        if (!entries.isEmpty()) {
+            Trim(null);
+        }
+    }
+
+    private void WriteInfo(String hash, GblInfo info, String compressedFrom) throws IOException {
+        Properties properties = new Properties();
+        if (compressedFrom != null) {
+            properties.setProperty("compressedFrom", compressedFrom);
+        }
+        properties.setProperty("version", Integer.toString(info.version));
+        properties.setProperty("type", Integer.toString(info.type));
+        properties.setProperty("applicationInfo", Boolean.toString(info.applicationInfo));
+        properties.setProperty("applicationType", Integer.toString(info.applicationType));
+        properties.setProperty("applicationVersion", Integer.toString(info.applicationVersion));
+        properties.setProperty("applicationCapabilities", Integer.toString(info.applicationCapabilities));
+        properties.setProperty("productId", ContentHash.Hex(info.productId));
+        properties.setProperty("programBytes", Long.toString(info.programBytes));
+        properties.setProperty("compressed", Boolean.toString(info.compressed));
+        properties.setProperty("signature", Boolean.toString(info.signature));
+        properties.setProperty("delta", Boolean.toString(info.delta));
+        properties.setProperty("deltaBaseVersion", Integer.toString(info.deltaBaseVersion));
+        properties.setProperty("deltaBaseLength", Long.toString(info.deltaBaseLength));
+        properties.setProperty("deltaBaseCrc", Integer.toString(info.deltaBaseCrc));
+        properties.setProperty("deltaTargetLength", Long.toString(info.deltaTargetLength));
+        properties.setProperty("length", Long.toString(info.length));
+        properties.setProperty("crc", Integer.toString(info.crc));
+        // id,offset,length of every tag
+        StringBuilder tags = new StringBuilder();
+        for (GblInfo.Tag tag : info.tags) {
+            if (tags.length() > 0) {
+                tags.append(' ');
+            }
+            tags.append(tag.id).append(',').append(tag.offset).append(',').append(tag.length);
+        }
+        properties.setProperty("tags", tags.toString());
+        File file = InfoFile(hash);
+        File temp = new File(directory, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, null);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't write " + file);
+        }
+    }
+
+    private Properties ReadProperties(String hash) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(InfoFile(hash))) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    // an unreadable info file shows when the image is opened
+    private String ReadCompressedFrom(String hash) {
+        try {
+            return ReadProperties(hash).getProperty("compressedFrom");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private GblInfo ReadInfo(String hash) throws IOException {
+        Properties properties = ReadProperties(hash);
+        try {
+            GblInfo info = new GblInfo();
+            info.version = Integer.parseInt(properties.getProperty("version"));
+            info.type = Integer.parseInt(properties.getProperty("type"));
+            info.applicationInfo = Boolean.parseBoolean(properties.getProperty("applicationInfo"));
+            info.applicationType = Integer.parseInt(properties.getProperty("applicationType"));
+            info.applicationVersion = Integer.parseInt(properties.getProperty("applicationVersion"));
+            info.applicationCapabilities = Integer.parseInt(properties.getProperty("applicationCapabilities"));
+            String productId = properties.getProperty("productId");
+            for (int i = 0; i < info.productId.length; i++) {
+                info.productId[i] = (byte) Integer.parseInt(productId.substring(2 * i, 2 * i + 2), 16);
+            }
+            info.programBytes = Long.parseLong(properties.getProperty("programBytes"));
+            info.compressed = Boolean.parseBoolean(properties.getProperty("compressed"));
+            info.signature = Boolean.parseBoolean(properties.getProperty("signature"));
+            info.delta = Boolean.parseBoolean(properties.getProperty("delta"));
+            info.deltaBaseVersion = Integer.parseInt(properties.getProperty("deltaBaseVersion"));
+            info.deltaBaseLength = Long.parseLong(properties.getProperty("deltaBaseLength"));
+            info.deltaBaseCrc = Integer.parseInt(properties.getProperty("deltaBaseCrc"));
+            info.deltaTargetLength = Long.parseLong(properties.getProperty("deltaTargetLength"));
+            info.length = Long.parseLong(properties.getProperty("length"));
+            info.crc = Integer.parseInt(properties.getProperty("crc"));
+            String tags = properties.getProperty("tags");
+            for (String tag : tags.isEmpty() ? new String[0] : tags.split(" ")) {
+                String[] fields = tag.split(",");
+                info.tags.add(new GblInfo.Tag(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+            info.tagCount = info.tags.size();
+            return info;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt cache entry " + hash, e);
+        }
+    }
+}
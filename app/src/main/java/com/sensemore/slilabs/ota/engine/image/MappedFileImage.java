@@ -0,0 +1,46 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Image file mapped once, concurrent sessions read it through independent buffer views.
+ */
+public class MappedFileImage implements FirmwareImage {
+
+    private final MappedByteBuffer mapped;
+    private String contentHash;
+
+    public MappedFileImage(File file) throws IOException {
+        // FileChannel.open needs API 26
+        this(new RandomAccessFile(file, "r").getChannel());
+    }
+
+    // closes the channel, the mapping stays valid
+    public MappedFileImage(FileChannel channel) throws IOException {
+        try (FileChannel owned = channel) {
+            this.mapped = owned.map(FileChannel.MapMode.READ_ONLY, 0, owned.size());
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return mapped.capacity();
+    }
+
+    @Override
+    public FirmwareSource open() {
+        return new ByteBufferSource(mapped);
+    }
+
+    @Override
+    public synchronized String getContentHash() throws IOException {
+        if (contentHash == null) {
+            contentHash = ContentHash.sha256(open());
+        }
+        return contentHash;
+    }
+}
@@ -0,0 +1,124 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Fallback for streams that can't be mapped. A reader thread fills a bounded ring buffer
+ * ahead of the upload, so a slow content provider overlaps with the transfer and at most
+ * {@code capacity} bytes of the image are on heap.
+ */
+public class ReadAheadSource implements FirmwareSource {
+
+    private final InputStream in;
+    private final long declaredLength;
+    private final byte[] ring;
+    private final Thread reader;
+
+    // guarded by this
+    private int head;
+    private int count;
+    private boolean eof;
+    private boolean closed;
+    private IOException error;
+
+    private long position;
+
+    public ReadAheadSource(InputStream in, long declaredLength, int capacity) {
+        this.in = in;
+        this.declaredLength = declaredLength;
+        this.ring = new byte[capacity];
+        this.reader = new Thread(this::ReadLoop, "ota-read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return declaredLength;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int copied;
+        synchronized (this) {
+            while (count == 0 && !eof && error == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (count == 0) {
+                return -1;
+            }
+            copied = Math.min(length, count);
+            int first = Math.min(copied, ring.length - head);
+            System.arraycopy(ring, head, buffer, offset, first);
+            System.arraycopy(ring, 0, buffer, offset + first, copied - first);
+            head = (head + copied) % ring.length;
+            count -= copied;
+            notifyAll();
+        }
+        position += copied;
+        return copied;
+    }
+
+    private void ReadLoop() {
+        byte[] scratch = new byte[Math.min(ring.length, 8192)];
+        try {
+            while (true) {
+                int space;
+                synchronized (this) {
+                    while (count == ring.length && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    space = ring.length - count;
+                }
+                int read = in.read(scratch, 0, Math.min(space, scratch.length));
+                synchronized (this) {
+                    if (read < 0) {
+                        eof = true;
+                        notifyAll();
+                        return;
+                    }
+                    int tail = (head + count) % ring.length;
+                    int first = Math.min(read, ring.length - tail);
+                    System.arraycopy(scratch, 0, ring, tail, first);
+                    System.arraycopy(scratch, first, ring, 0, read - first);
+                    count += read;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,330 @@
+package com.sensemore.slilabs.ota.engine.runner;
+
+import com.sensemore.slilabs.ota.engine.JobJournal;
+import com.sensemore.slilabs.ota.engine.OtaConfig;
+import com.sensemore.slilabs.ota.engine.OtaJob;
+import com.sensemore.slilabs.ota.engine.OtaJobScheduler;
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+import com.sensemore.slilabs.ota.engine.OtaSessionReport;
+import com.sensemore.slilabs.ota.engine.OtaState;
+import com.sensemore.slilabs.ota.engine.UploadMode;
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.image.GblCompression;
+import com.sensemore.slilabs.ota.engine.image.MappedFileImage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless rollout on the JVM: reads a manifest of targets, updates them through the links
+ * of a {@link TransportProvider} with a bounded number of sessions side by side, writes one
+ * JSON line per device as it finishes and returns the {@link RunSummary}. Each image file
+ * is mapped once and shared by every session that installs it.
+ * <p>
+ * Manifest lines are {@code address image [priority]}, separated by whitespace, {@code #}
+ * starts a comment. Relative image paths resolve against the manifest's folder.
+ */
+public class OtaRunner implements OtaJobScheduler.Listener {
+
+    public static class Target {
+        public final String address;
+        public final File image;
+        public final int priority;
+
+        public Target(String address, File image, int priority) {
+            this.address = address;
+            this.image = image;
+            this.priority = priority;
+        }
+    }
+
+    // left to sessions cancelled on timeout to report
+    private static final long CANCEL_GRACE_MILLIS = 30000;
+
+    private static final String USAGE = "usage: OtaRunner [options] manifest\n"
+            + "  --transport NAME   transport provider (default sim)\n"
+            + "  --concurrency N    sessions side by side (default 4)\n"
+            + "  --mode MODE        Stream, Acknowledged or Verified (default Stream)\n"
+            + "  --timeout SECONDS  whole run, link time on a simulated clock (default 3600)\n"
+            + "  --compress         send program data LZ4 compressed, raw to bootloaders without LZ4\n"
+            + "  --verify           read the version each device boots after its update\n"
+            + "  --results FILE     JSON line per device (default stdout)\n"
+            + "  --journal FILE     append job events to a job journal, see JobJournal\n"
+            + "  -o KEY=VALUE       transport option, repeatable\n";
+
+    private final TransportProvider.Links links;
+    private final OtaConfig config;
+    private final int concurrency;
+    private final Appendable results;
+    private boolean compress;
+    private JobJournal journal;
+
+    private final Map<OtaJob, String> imageNames = new ConcurrentHashMap<>();
+    private final AtomicInteger finished = new AtomicInteger();
+    private volatile IOException resultsError;
+
+    public OtaRunner(TransportProvider.Links links, OtaConfig config, int concurrency, Appendable results) {
+        this.links = links;
+        this.config = config;
+        this.concurrency = concurrency;
+        this.results = results;
+    }
+
+    // recompresses each image once before the run, see GblCompression
+    public OtaRunner setCompression(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    // records the run's job events, the caller closes it
+    public OtaRunner setJournal(JobJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    // blocks until every target finished, targets still running after the timeout are cancelled
+    public RunSummary run(List<Target> targets, long timeoutMillis) throws IOException, InterruptedException {
+        Map<File, FirmwareImage> images = new HashMap<>();
+        for (Target target : targets) {
+            File file = target.image.getCanonicalFile();
+            if (!images.containsKey(file)) {
+                images.put(file, new MappedFileImage(file));
+            }
+        }
+        OtaScheduler scheduler = links.getScheduler();
+        OtaJobScheduler fleet = new OtaJobScheduler(links.getTransportFactory(), scheduler, links.getSessionSchedulers(),
+                config, concurrency, this);
+        fleet.setJournal(journal);
+        if (compress) {
+            Map<FirmwareImage, FirmwareImage> compressed = new HashMap<>();
+            for (FirmwareImage image : images.values()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) image.getLength());
+                GblCompression.writeCompressed(image, out);
+                compressed.put(image, new ByteArrayImage(out.toByteArray()));
+            }
+            fleet.setCompressedImages(compressed::get);
+        }
+        List<OtaJob> jobs = new ArrayList<>(targets.size());
+        long start = scheduler.uptimeMillis();
+        for (Target target : targets) {
+            OtaJob job = fleet.submit(target.address, images.get(target.image.getCanonicalFile()), target.priority);
+            imageNames.put(job, target.image.getPath());
+            jobs.add(job);
+        }
+        int total = targets.size();
+        if (!links.runUntil(() -> finished.get() >= total, timeoutMillis)) {
+            fleet.cancelAll();
+            links.runUntil(() -> finished.get() >= total, CANCEL_GRACE_MILLIS);
+        }
+        RunSummary summary = new RunSummary(jobs, start, scheduler.uptimeMillis());
+        if (resultsError != null) {
+            throw resultsError;
+        }
+        return summary;
+    }
+
+    @Override
+    public void onJobStateChanged(OtaJob job, OtaState state) {
+    }
+
+    @Override
+    public void onJobProgress(OtaJob job, int bytesSent, int totalBytes) {
+    }
+
+    @Override
+    public void onJobFinished(OtaJob job) {
+        try {
+            results.append(OtaSessionReport.toJson(job, imageNames.get(job))).append('\n');
+        } catch (IOException e) {
+            if (resultsError == null) {
+                resultsError = e;
+            }
+        }
+        finished.incrementAndGet();
+        synchronized (links) {
+            links.notifyAll();
+        }
+    }
+
+    @Override
+    public void onIdle() {
+    }
+
+    public static List<Target> readManifest(File manifest) throws IOException {
+        try (Reader reader = new FileReader(manifest)) {
+            return readManifest(reader, manifest.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    public static List<Target> readManifest(Reader reader, File baseDir) throws IOException {
+        List<Target> targets = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            int comment = line.indexOf('#');
+            String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                continue;
+            }
+            if (fields.length < 2 || fields.length > 3) {
+                throw new IOException("Manifest line " + number + ": expected address, image and optional priority");
+            }
+            File image = new File(fields[1]);
+            if (!image.isAbsolute()) {
+                image = new File(baseDir, fields[1]);
+            }
+            int priority = 0;
+            if (fields.length == 3) {
+                try {
+                    priority = Integer.parseInt(fields[2]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Manifest line " + number + ": bad priority " + fields[2]);
+                }
+            }
+            targets.add(new Target(fields[0], image, priority));
+        }
+        return targets;
+    }
+
+    public static TransportProvider findProvider(String name) {
+        List<String> names = new ArrayList<>();
+        for (TransportProvider provider : ServiceLoader.load(TransportProvider.class)) {
+            if (provider.getName().equals(name)) {
+                return provider;
+            }
+            names.add(provider.getName());
+        }
+        throw new IllegalArgumentException("No transport " + name + ", available: " + names);
+    }
+
+    public static void main(String[] args) {
+        System.exit(Execute(args, System.out, System.err));
+    }
+
+    // exit status: 0 every device updated, 1 some failed, 2 bad arguments or input
+    static int Execute(String[] args, PrintStream out, PrintStream err) {
+        String transport = "sim";
+        int concurrency = 4;
+        UploadMode mode = UploadMode.Stream;
+        long timeoutSeconds = 3600;
+        boolean compress = false;
+        boolean verify = false;
+        String resultsPath = null;
+        String journalPath = null;
+        String manifestPath = null;
+        Map<String, String> options = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-")) {
+                    manifestPath = arg;
+                    continue;
+                }
+                if (arg.equals("--compress")) {
+                    compress = true;
+                    continue;
+                }
+                if (arg.equals("--verify")) {
+                    verify = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException(arg + " needs a value");
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--transport":
+                        transport = value;
+                        break;
+                    case "--concurrency":
+                        concurrency = Integer.parseInt(value);
+                        break;
+                    case "--mode":
+                        mode = UploadMode.valueOf(value);
+                        break;
+                    case "--timeout":
+                        timeoutSeconds = Long.parseLong(value);
+                        break;
+                    case "--results":
+                        resultsPath = value;
+                        break;
+                    case "--journal":
+                        journalPath = value;
+                        break;
+                    case "-o":
+                        int split = value.indexOf('=');
+                        if (split <= 0) {
+                            throw new IllegalArgumentException("-o expects key=value, got " + value);
+                        }
+                        options.put(value.substring(0, split), value.substring(split + 1));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (manifestPath == null) {
+                throw new IllegalArgumentException("No manifest given");
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.print(USAGE);
+            return 2;
+        }
+
+        try (TransportProvider.Links links = findProvider(transport).open(options);
+             Writer results = new BufferedWriter(new OutputStreamWriter(
+                     resultsPath != null ? new FileOutputStream(resultsPath) : Unclosable(out), StandardCharsets.UTF_8))) {
+            List<Target> targets = readManifest(new File(manifestPath));
+            OtaRunner runner = new OtaRunner(links, new OtaConfig().setUploadMode(mode).setVerifyAfterUpdate(verify), concurrency, results)
+                    .setCompression(compress);
+            RunSummary summary;
+            if (journalPath != null) {
+                try (JobJournal journal = new JobJournal(new File(journalPath), links.getScheduler())) {
+                    summary = runner.setJournal(journal).run(targets, timeoutSeconds * 1000);
+                }
+            } else {
+                summary = runner.run(targets, timeoutSeconds * 1000);
+            }
+            results.flush();
+            // summary goes where it does not mix with the per device lines
+            (resultsPath != null ? out : err).println(summary.toJson());
+            return summary.isSuccess() ? 0 : 1;
+        } catch (IOException | IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    private static PrintStream Unclosable(PrintStream stream) {
+        return new PrintStream(stream) {
+            @Override
+            public void close() {
+                flush();
+            }
+        };
+    }
+}
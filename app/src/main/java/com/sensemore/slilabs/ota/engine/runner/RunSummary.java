@@ -0,0 +1,149 @@
+package com.sensemore.slilabs.ota.engine.runner;
+
+import com.sensemore.slilabs.ota.engine.OtaJob;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Totals of one runner pass: outcome counts, aggregate throughput over the wall time of the
+ * whole run and exact nearest-rank percentiles of the per-device times. Completion is
+ * measured from the start of the run, so it includes the time a job waited for a slot.
+ */
+public class RunSummary {
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final int devices;
+    private final int succeeded;
+    private final int failed;
+    private final int cancelled;
+    private final int unfinished;
+    private final long wallMillis;
+    private final long bytes;
+    private final long[] completionMillis;
+    private final long[] sessionMillis;
+
+    RunSummary(List<OtaJob> jobs, long startMillis, long endMillis) {
+        int succeeded = 0;
+        int failed = 0;
+        int cancelled = 0;
+        int unfinished = 0;
+        long bytes = 0;
+        long[] completion = new long[jobs.size()];
+        long[] session = new long[jobs.size()];
+        int finished = 0;
+        int started = 0;
+        for (OtaJob job : jobs) {
+            if (!job.isFinished()) {
+                unfinished++;
+                continue;
+            }
+            switch (job.getStatus()) {
+                case Succeeded:
+                    succeeded++;
+                    bytes += job.getImage().getLength();
+                    break;
+                case Cancelled:
+                    cancelled++;
+                    break;
+                default:
+                    failed++;
+            }
+            completion[finished] = job.getFinishedMillis() - startMillis;
+            finished++;
+            if (job.getSession() != null) {
+                session[started++] = job.getDurationMillis();
+            }
+        }
+        this.devices = jobs.size();
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.cancelled = cancelled;
+        this.unfinished = unfinished;
+        this.wallMillis = endMillis - startMillis;
+        this.bytes = bytes;
+        this.completionMillis = Arrays.copyOf(completion, finished);
+        this.sessionMillis = Arrays.copyOf(session, started);
+        Arrays.sort(completionMillis);
+        Arrays.sort(sessionMillis);
+    }
+
+    public int getDevices() {
+        return devices;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getCancelled() {
+        return cancelled;
+    }
+
+    // still queued or running when the run timed out
+    public int getUnfinished() {
+        return unfinished;
+    }
+
+    public boolean isSuccess() {
+        return devices > 0 && succeeded == devices;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    // image bytes installed
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getBytesPerSecond() {
+        return wallMillis <= 0 ? 0 : bytes * 1000.0 / wallMillis;
+    }
+
+    public long getCompletionPercentile(double percentile) {
+        return Percentile(completionMillis, percentile);
+    }
+
+    // jobs that never got a session, e.g. a duplicate address, are left out
+    public long getSessionPercentile(double percentile) {
+        return Percentile(sessionMillis, percentile);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"devices\":").append(devices)
+                .append(",\"succeeded\":").append(succeeded)
+                .append(",\"failed\":").append(failed)
+                .append(",\"cancelled\":").append(cancelled)
+                .append(",\"unfinished\":").append(unfinished)
+                .append(",\"wallMillis\":").append(wallMillis)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"bytesPerSecond\":").append(Math.round(getBytesPerSecond()));
+        Distribution(json.append(",\"completionMillis\":"), completionMillis);
+        Distribution(json.append(",\"sessionMillis\":"), sessionMillis);
+        return json.append('}').toString();
+    }
+
+    private static void Distribution(StringBuilder json, long[] sorted) {
+        json.append('{');
+        for (double percentile : PERCENTILES) {
+            json.append("\"p").append((int) percentile).append("\":").append(Percentile(sorted, percentile)).append(',');
+        }
+        json.append("\"max\":").append(sorted.length == 0 ? 0 : sorted[sorted.length - 1]).append('}');
+    }
+
+    private static long Percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(1, rank) - 1];
+    }
+}
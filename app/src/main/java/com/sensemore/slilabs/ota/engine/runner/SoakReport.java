@@ -0,0 +1,155 @@
+package com.sensemore.slilabs.ota.engine.runner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Soak results as CSV, one row per scenario, for comparing builds. The columns are fixed and
+ * new ones are only ever appended, a reader matches them by header name so reports of older
+ * and newer builds compare. Fault columns count what the transport injected during the
+ * scenario, empty when it injects nothing of that kind.
+ */
+public class SoakReport {
+
+    public static final List<String> COLUMNS = Arrays.asList("scenario", "devices", "succeeded", "success_rate",
+            "p50_ms", "p90_ms", "p99_ms", "max_ms", "bytes_per_second",
+            "disconnects", "saturations", "slow_reboots", "mtu_failures", "control_drops");
+
+    private final Map<String, Map<String, String>> rows = new LinkedHashMap<>();
+
+    // injected maps fault columns to counts
+    public SoakReport add(String scenario, RunSummary summary, Map<String, Integer> injected) {
+        if (scenario.indexOf(',') >= 0 || scenario.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Bad scenario name " + scenario);
+        }
+        Map<String, String> row = new LinkedHashMap<>();
+        row.put("scenario", scenario);
+        row.put("devices", Integer.toString(summary.getDevices()));
+        row.put("succeeded", Integer.toString(summary.getSucceeded()));
+        double rate = summary.getDevices() == 0 ? 0 : (double) summary.getSucceeded() / summary.getDevices();
+        row.put("success_rate", String.format(Locale.ROOT, "%.4f", rate));
+        row.put("p50_ms", Long.toString(summary.getCompletionPercentile(50)));
+        row.put("p90_ms", Long.toString(summary.getCompletionPercentile(90)));
+        row.put("p99_ms", Long.toString(summary.getCompletionPercentile(99)));
+        row.put("max_ms", Long.toString(summary.getCompletionPercentile(100)));
+        row.put("bytes_per_second", Long.toString(Math.round(summary.getBytesPerSecond())));
+        for (Map.Entry<String, Integer> fault : injected.entrySet()) {
+            if (COLUMNS.indexOf(fault.getKey()) < COLUMNS.indexOf("disconnects")) {
+                throw new IllegalArgumentException("No fault column " + fault.getKey());
+            }
+            row.put(fault.getKey(), Integer.toString(fault.getValue()));
+        }
+        rows.put(scenario, row);
+        return this;
+    }
+
+    public List<String> getScenarios() {
+        return new ArrayList<>(rows.keySet());
+    }
+
+    // null when the scenario or column is missing, e.g. a column newer than the report
+    public String get(String scenario, String column) {
+        Map<String, String> row = rows.get(scenario);
+        return row == null ? null : row.get(column);
+    }
+
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder(128 * (rows.size() + 1));
+        csv.append(String.join(",", COLUMNS)).append('\n');
+        for (Map<String, String> row : rows.values()) {
+            for (int i = 0; i < COLUMNS.size(); i++) {
+                String value = row.get(COLUMNS.get(i));
+                csv.append(i == 0 ? "" : ",").append(value != null ? value : "");
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    public static SoakReport readCsv(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String header = lines.readLine();
+        if (header == null) {
+            throw new IOException("Empty soak report");
+        }
+        String[] names = header.split(",", -1);
+        if (!"scenario".equals(names[0])) {
+            throw new IOException("Soak report header must start with scenario");
+        }
+        SoakReport report = new SoakReport();
+        String line;
+        int number = 1;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] values = line.split(",", -1);
+            if (values.length != names.length) {
+                throw new IOException("Soak report line " + number + ": expected " + names.length + " values");
+            }
+            Map<String, String> row = new LinkedHashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                if (!values[i].isEmpty()) {
+                    row.put(names[i], values[i]);
+                }
+            }
+            report.rows.put(values[0], row);
+        }
+        return report;
+    }
+
+    /**
+     * Regressions against a baseline, one message per finding: success rate down, throughput
+     * down or p90 completion up by more than tolerance, e.g. 0.05. Scenarios missing on either
+     * side are not compared.
+     */
+    public List<String> compare(SoakReport baseline, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for (String scenario : rows.keySet()) {
+            if (!baseline.rows.containsKey(scenario)) {
+                continue;
+            }
+            double rate = Value(this, scenario, "success_rate");
+            double baseRate = Value(baseline, scenario, "success_rate");
+            if (rate < baseRate - tolerance) {
+                regressions.add(Finding(scenario, "success_rate", baseRate, rate));
+            }
+            double throughput = Value(this, scenario, "bytes_per_second");
+            double baseThroughput = Value(baseline, scenario, "bytes_per_second");
+            if (throughput < baseThroughput * (1 - tolerance)) {
+                regressions.add(Finding(scenario, "bytes_per_second", baseThroughput, throughput));
+            }
+            double p90 = Value(this, scenario, "p90_ms");
+            double baseP90 = Value(baseline, scenario, "p90_ms");
+            if (baseP90 > 0 && p90 > baseP90 * (1 + tolerance)) {
+                regressions.add(Finding(scenario, "p90_ms", baseP90, p90));
+            }
+        }
+        return regressions;
+    }
+
+    private static double Value(SoakReport report, String scenario, String column) {
+        String value = report.get(scenario, column);
+        try {
+            return value == null ? 0 : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String Finding(String scenario, String column, double baseline, double current) {
+        return String.format(Locale.ROOT, "%s %s %s -> %s", scenario, column, Format(baseline), Format(current));
+    }
+
+    private static String Format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : String.format(Locale.ROOT, "%.4f", value);
+    }
+}
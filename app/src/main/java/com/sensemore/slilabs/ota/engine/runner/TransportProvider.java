@@ -0,0 +1,44 @@
+package com.sensemore.slilabs.ota.engine.runner;
+
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+import com.sensemore.slilabs.ota.engine.OtaTransport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Where {@link OtaRunner} gets its links from. Providers are found with
+ * {@link java.util.ServiceLoader} under
+ * {@code META-INF/services/com.sensemore.slilabs.ota.engine.runner.TransportProvider} and
+ * picked by name, so a host adapter or a simulator drives the same runner.
+ */
+public interface TransportProvider {
+
+    String getName();
+
+    // options are the runner's -o key=value pairs, unknown keys are ignored
+    Links open(Map<String, String> options) throws IOException;
+
+    interface Links extends Closeable {
+        // queue scheduler of the run, the runner's listener is called here
+        OtaScheduler getScheduler();
+
+        OtaTransport.Factory getTransportFactory();
+
+        // per connection schedulers, null when sessions share the queue's scheduler
+        OtaScheduler.Factory getSessionSchedulers();
+
+        /**
+         * Runs the scheduler until done holds or the timeout passes, returns done. A provider
+         * on a virtual clock advances it here, one on real threads blocks, polling done each
+         * time the runner notifies this object.
+         */
+        boolean runUntil(BooleanSupplier done, long timeoutMillis) throws InterruptedException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+}
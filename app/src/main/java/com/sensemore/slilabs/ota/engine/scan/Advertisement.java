@@ -0,0 +1,46 @@
+package com.sensemore.slilabs.ota.engine.scan;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One advertisement seen by a scanner, detached from the platform's scan result types.
+ */
+public class Advertisement {
+
+    private final String address;
+    private final String name;
+    private final int rssi;
+    private final List<UUID> serviceUuids;
+    private final long timeMillis;
+
+    // name may be null, timeMillis on the clock of the table the advertisement goes to
+    public Advertisement(String address, String name, int rssi, List<UUID> serviceUuids, long timeMillis) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.serviceUuids = serviceUuids != null ? serviceUuids : Collections.<UUID>emptyList();
+        this.timeMillis = timeMillis;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public List<UUID> getServiceUuids() {
+        return serviceUuids;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+}
@@ -0,0 +1,52 @@
+package com.sensemore.slilabs.ota.engine.scan;
+
+import java.util.UUID;
+
+/**
+ * Which advertisements a scan keeps. Unset criteria match everything. The service UUID can
+ * also be handed to the controller so unrelated advertisements never wake the app.
+ */
+public class AdvertisementFilter {
+
+    private UUID serviceUuid;
+    private int minRssi = Integer.MIN_VALUE;
+    private String namePrefix;
+
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public AdvertisementFilter setServiceUuid(UUID serviceUuid) {
+        this.serviceUuid = serviceUuid;
+        return this;
+    }
+
+    public int getMinRssi() {
+        return minRssi;
+    }
+
+    // weaker advertisements are dropped, a link that far out would crawl anyway
+    public AdvertisementFilter setMinRssi(int minRssi) {
+        this.minRssi = minRssi;
+        return this;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public AdvertisementFilter setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+        return this;
+    }
+
+    public boolean matches(Advertisement advertisement) {
+        if (advertisement.getRssi() < minRssi) {
+            return false;
+        }
+        if (serviceUuid != null && !advertisement.getServiceUuids().contains(serviceUuid)) {
+            return false;
+        }
+        return namePrefix == null || (advertisement.getName() != null && advertisement.getName().startsWith(namePrefix));
+    }
+}
@@ -0,0 +1,126 @@
+package com.sensemore.slilabs.ota.engine.scan;
+
+import com.sensemore.slilabs.ota.engine.OtaProtocol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices a scan found, one entry per address however often it advertises. Scanners hand
+ * over advertisements in batches, the table filters them, keeps signal statistics and tells
+ * the listener when a device shows up: the first time, after being silent for a while, or
+ * after switching between application and bootloader. An update waiting for a device to
+ * come back connects on that event instead of after a fixed delay.
+ * <p>
+ * Not thread safe, use it from one scheduler.
+ */
+public class DeviceTable {
+
+    public interface Listener {
+        void onDeviceAppeared(ScannedDevice device);
+    }
+
+    private final AdvertisementFilter filter;
+    private final Map<String, ScannedDevice> devices = new HashMap<>();
+    private String dfuName = OtaProtocol.DFU_DEVICE_NAME;
+    private long lostAfterMillis = 3000;
+    private Listener listener;
+
+    public DeviceTable(AdvertisementFilter filter) {
+        this.filter = filter;
+    }
+
+    public AdvertisementFilter getFilter() {
+        return filter;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // name the bootloader advertises with, tells a device in DFU mode from its application
+    public void setDfuName(String dfuName) {
+        this.dfuName = dfuName;
+    }
+
+    // silence after which the next advertisement counts as the device appearing again
+    public void setLostAfterMillis(long lostAfterMillis) {
+        this.lostAfterMillis = lostAfterMillis;
+    }
+
+    // returns the advertisements the filter kept
+    public int addAll(Collection<Advertisement> batch) {
+        int kept = 0;
+        for (Advertisement advertisement : batch) {
+            if (add(advertisement)) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    public boolean add(Advertisement advertisement) {
+        if (!filter.matches(advertisement)) {
+            return false;
+        }
+        ScannedDevice device = devices.get(advertisement.getAddress());
+        boolean appeared;
+        boolean dfuMode;
+        if (device == null) {
+            device = new ScannedDevice(advertisement.getAddress());
+            devices.put(device.getAddress(), device);
+            appeared = true;
+            dfuMode = dfuName.equals(advertisement.getName());
+        } else {
+            // scan responses carry the name, an advertisement without one keeps the last mode
+            dfuMode = advertisement.getName() != null ? dfuName.equals(advertisement.getName()) : device.isDfuMode();
+            appeared = advertisement.getTimeMillis() - device.getLastSeenMillis() > lostAfterMillis || dfuMode != device.isDfuMode();
+        }
+        device.update(advertisement, dfuMode);
+        if (appeared && listener != null) {
+            listener.onDeviceAppeared(device);
+        }
+        return true;
+    }
+
+    // null when the address was not seen
+    public ScannedDevice get(String address) {
+        return devices.get(address);
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    // devices seen since the given time, strongest smoothed signal first
+    public List<ScannedDevice> bySignal(long sinceMillis) {
+        List<ScannedDevice> recent = new ArrayList<>();
+        for (ScannedDevice device : devices.values()) {
+            if (device.getLastSeenMillis() >= sinceMillis) {
+                recent.add(device);
+            }
+        }
+        recent.sort((a, b) -> Double.compare(b.getSmoothedRssi(), a.getSmoothedRssi()));
+        return recent;
+    }
+
+    // forgets devices silent since the given time, returns how many
+    public int prune(long silentSinceMillis) {
+        int removed = 0;
+        for (Iterator<ScannedDevice> it = devices.values().iterator(); it.hasNext(); ) {
+            if (it.next().getLastSeenMillis() < silentSinceMillis) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        devices.clear();
+    }
+}
@@ -0,0 +1,96 @@
+package com.sensemore.slilabs.ota.engine.scan;
+
+/**
+ * Entry of a {@link DeviceTable}, everything seen of one address so far. The smoothed RSSI
+ * evens out the few dB advertisements jump between channels and is what devices are ranked by.
+ */
+public class ScannedDevice {
+
+    // weight of a new sample in the smoothed RSSI
+    private static final double RSSI_SMOOTHING = 0.25;
+
+    private final String address;
+    private String name;
+    private boolean dfuMode;
+    private int sightings;
+    private long firstSeenMillis;
+    private long lastSeenMillis;
+    private int lastRssi;
+    private int minRssi;
+    private int maxRssi;
+    private double smoothedRssi;
+
+    ScannedDevice(String address) {
+        this.address = address;
+    }
+
+    void update(Advertisement advertisement, boolean dfuMode) {
+        if (advertisement.getName() != null) {
+            name = advertisement.getName();
+        }
+        this.dfuMode = dfuMode;
+        int rssi = advertisement.getRssi();
+        if (sightings == 0) {
+            firstSeenMillis = advertisement.getTimeMillis();
+            minRssi = rssi;
+            maxRssi = rssi;
+            smoothedRssi = rssi;
+        } else {
+            minRssi = Math.min(minRssi, rssi);
+            maxRssi = Math.max(maxRssi, rssi);
+            smoothedRssi += RSSI_SMOOTHING * (rssi - smoothedRssi);
+        }
+        lastRssi = rssi;
+        // batches may deliver sightings out of order
+        lastSeenMillis = Math.max(lastSeenMillis, advertisement.getTimeMillis());
+        sightings++;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // last name advertised, null when the device never sent one
+    public String getName() {
+        return name;
+    }
+
+    // last advertisement came from the bootloader
+    public boolean isDfuMode() {
+        return dfuMode;
+    }
+
+    public int getSightings() {
+        return sightings;
+    }
+
+    public long getFirstSeenMillis() {
+        return firstSeenMillis;
+    }
+
+    public long getLastSeenMillis() {
+        return lastSeenMillis;
+    }
+
+    public int getLastRssi() {
+        return lastRssi;
+    }
+
+    public int getMinRssi() {
+        return minRssi;
+    }
+
+    public int getMaxRssi() {
+        return maxRssi;
+    }
+
+    public double getSmoothedRssi() {
+        return smoothedRssi;
+    }
+
+    @Override
+    public String toString() {
+        return address + (name != null ? " " + name : "") + (dfuMode ? " dfu" : "") + " rssi " + Math.round(smoothedRssi)
+                + " (" + minRssi + ".." + maxRssi + ") seen " + sightings + "x";
+    }
+}
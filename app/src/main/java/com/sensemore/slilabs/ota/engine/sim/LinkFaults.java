@@ -0,0 +1,170 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import java.util.Random;
+
+/**
+ * Faults injected into simulated links for soak runs, each with its own rate, drawn from
+ * one seeded generator so a run is repeatable. Set on a {@link LinkProfile}, every link and
+ * bootloader of the profile consults it and counts what it injected.
+ */
+public class LinkFaults {
+
+    private final Random random;
+
+    private double disconnectRate;
+    private double saturationRate;
+    private long saturationMicros = 200000;
+    private double slowRebootRate;
+    private double slowRebootFactor = 8;
+    private double mtuFailureRate;
+    private double controlDropRate;
+    private double bootFailureRate;
+    private double gattErrorRate;
+
+    private int disconnects;
+    private int saturations;
+    private int slowReboots;
+    private int mtuFailures;
+    private int controlDrops;
+    private int bootFailures;
+    private int gattErrors;
+
+    public LinkFaults(long seed) {
+        this.random = new Random(seed);
+    }
+
+    // chance per delivered data packet that the link drops, like a supervision timeout
+    public LinkFaults setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+        return this;
+    }
+
+    // chance per accepted data write that the stack queue stays full for saturationMicros,
+    // e.g. another app's traffic, every data write meanwhile is refused
+    public LinkFaults setSaturation(double saturationRate, long saturationMicros) {
+        this.saturationRate = saturationRate;
+        this.saturationMicros = saturationMicros;
+        return this;
+    }
+
+    // chance that a reboot takes slowRebootFactor times as long, e.g. a flash erase first
+    public LinkFaults setSlowReboot(double slowRebootRate, double slowRebootFactor) {
+        this.slowRebootRate = slowRebootRate;
+        this.slowRebootFactor = slowRebootFactor;
+        return this;
+    }
+
+    // chance that an MTU exchange fails, the link keeps the default MTU
+    public LinkFaults setMtuFailureRate(double mtuFailureRate) {
+        this.mtuFailureRate = mtuFailureRate;
+        return this;
+    }
+
+    // chance that a control write is lost on air, the device never sees it and no response comes
+    public LinkFaults setControlDropRate(double controlDropRate) {
+        this.controlDropRate = controlDropRate;
+        return this;
+    }
+
+    // Chance that an accepted image doesn't boot, the bootloader falls back to the previous
+    // application or stays in DFU mode when there is none. Only a check after the reboot sees it.
+    public LinkFaults setBootFailureRate(double bootFailureRate) {
+        this.bootFailureRate = bootFailureRate;
+        return this;
+    }
+
+    // chance that a service discovery or a characteristic read ends with a GATT error, e.g. 133
+    public LinkFaults setGattErrorRate(double gattErrorRate) {
+        this.gattErrorRate = gattErrorRate;
+        return this;
+    }
+
+    public int getDisconnects() {
+        return disconnects;
+    }
+
+    public int getSaturations() {
+        return saturations;
+    }
+
+    public int getSlowReboots() {
+        return slowReboots;
+    }
+
+    public int getMtuFailures() {
+        return mtuFailures;
+    }
+
+    public int getControlDrops() {
+        return controlDrops;
+    }
+
+    public int getBootFailures() {
+        return bootFailures;
+    }
+
+    public int getGattErrors() {
+        return gattErrors;
+    }
+
+    boolean disconnect() {
+        if (!Draw(disconnectRate)) {
+            return false;
+        }
+        disconnects++;
+        return true;
+    }
+
+    // how long the stack stays full after this write, 0 for not at all
+    long saturation() {
+        if (!Draw(saturationRate)) {
+            return 0;
+        }
+        saturations++;
+        return saturationMicros;
+    }
+
+    long rebootMicros(long rebootMicros) {
+        if (!Draw(slowRebootRate)) {
+            return rebootMicros;
+        }
+        slowReboots++;
+        return (long) (rebootMicros * slowRebootFactor);
+    }
+
+    boolean mtuFailure() {
+        if (!Draw(mtuFailureRate)) {
+            return false;
+        }
+        mtuFailures++;
+        return true;
+    }
+
+    boolean controlDrop() {
+        if (!Draw(controlDropRate)) {
+            return false;
+        }
+        controlDrops++;
+        return true;
+    }
+
+    boolean bootFailure() {
+        if (!Draw(bootFailureRate)) {
+            return false;
+        }
+        bootFailures++;
+        return true;
+    }
+
+    boolean gattError() {
+        if (!Draw(gattErrorRate)) {
+            return false;
+        }
+        gattErrors++;
+        return true;
+    }
+
+    private boolean Draw(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+}
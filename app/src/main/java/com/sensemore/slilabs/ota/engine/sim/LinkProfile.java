@@ -0,0 +1,306 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+/**
+ * Timing and buffer model of a BLE link between a phone and an EFR32 running the
+ * Gecko bootloader AppLoader.
+ */
+public class LinkProfile {
+
+    private long connectionIntervalMicros = 15000;
+    private int packetsPerInterval = 4;
+    private long highPriorityIntervalMicros = 7500;
+    private long lowPowerIntervalMicros = 100000;
+    private boolean twoMegPhySupported = true;
+    private int packetsPerInterval2M = 7;
+    private int maxAttMtu = 250;
+    private int stackQueueCapacity = 1;
+    private int controllerBuffers = 8;
+    private int llPayloadSize;
+    private long hostLatencyMicros = 500;
+    private long advertisingIntervalMicros = 100000;
+    private long connectMicros = 50000;
+    private long discoveryMicros = 300000;
+    private boolean gattCached;
+    private long cachedDiscoveryMicros = 20000;
+    private long dfuRebootMicros = 1200000;
+    private long appRebootMicros = 800000;
+    private long beginMicros = 30000;
+    private long endMicros = 150000;
+    private int maxImageSize = 512 * 1024;
+    private boolean resumeSupported;
+    private boolean deltaSupported;
+    private boolean lz4Supported;
+    private double packetLossRate;
+    private long lossSeed = 1;
+    private LinkFaults faults;
+
+    // interval with balanced connection priority
+    public long getConnectionIntervalMicros() {
+        return connectionIntervalMicros;
+    }
+
+    public LinkProfile setConnectionIntervalMicros(long connectionIntervalMicros) {
+        this.connectionIntervalMicros = connectionIntervalMicros;
+        return this;
+    }
+
+    // number of packets the controllers exchange in one connection event
+    public int getPacketsPerInterval() {
+        return packetsPerInterval;
+    }
+
+    public LinkProfile setPacketsPerInterval(int packetsPerInterval) {
+        this.packetsPerInterval = packetsPerInterval;
+        return this;
+    }
+
+    // interval granted for CONNECTION_PRIORITY_HIGH, 0 when the peripheral rejects the update
+    public long getHighPriorityIntervalMicros() {
+        return highPriorityIntervalMicros;
+    }
+
+    public LinkProfile setHighPriorityIntervalMicros(long highPriorityIntervalMicros) {
+        this.highPriorityIntervalMicros = highPriorityIntervalMicros;
+        return this;
+    }
+
+    public long getLowPowerIntervalMicros() {
+        return lowPowerIntervalMicros;
+    }
+
+    public LinkProfile setLowPowerIntervalMicros(long lowPowerIntervalMicros) {
+        this.lowPowerIntervalMicros = lowPowerIntervalMicros;
+        return this;
+    }
+
+    // whether both phone and device support LE 2M PHY
+    public boolean isTwoMegPhySupported() {
+        return twoMegPhySupported;
+    }
+
+    public LinkProfile setTwoMegPhySupported(boolean twoMegPhySupported) {
+        this.twoMegPhySupported = twoMegPhySupported;
+        return this;
+    }
+
+    // packets per connection event on 2M PHY, shorter airtime fits more in one event
+    public int getPacketsPerInterval2M() {
+        return packetsPerInterval2M;
+    }
+
+    public LinkProfile setPacketsPerInterval2M(int packetsPerInterval2M) {
+        this.packetsPerInterval2M = packetsPerInterval2M;
+        return this;
+    }
+
+    // largest ATT MTU the bootloader accepts during exchange
+    public int getMaxAttMtu() {
+        return maxAttMtu;
+    }
+
+    public LinkProfile setMaxAttMtu(int maxAttMtu) {
+        this.maxAttMtu = maxAttMtu;
+        return this;
+    }
+
+    // writes the phone stack accepts before their onCharacteristicWrite, writeCharacteristic
+    // returns false beyond that. Android keeps a single outstanding GATT operation.
+    public int getStackQueueCapacity() {
+        return stackQueueCapacity;
+    }
+
+    public LinkProfile setStackQueueCapacity(int stackQueueCapacity) {
+        this.stackQueueCapacity = stackQueueCapacity;
+        return this;
+    }
+
+    // ACL buffers of the phone controller waiting for a connection event
+    public int getControllerBuffers() {
+        return controllerBuffers;
+    }
+
+    public LinkProfile setControllerBuffers(int controllerBuffers) {
+        this.controllerBuffers = controllerBuffers;
+        return this;
+    }
+
+    // LL data payload after length negotiation, 251 with data length extension and 27
+    // without. A write needs ceil((payload + 7) / llPayloadSize) LL packets because of its
+    // ATT and L2CAP headers, so 247 byte payloads take two packets where 244 take one.
+    // 0 sends every write as one packet.
+    public int getLlPayloadSize() {
+        return llPayloadSize;
+    }
+
+    public LinkProfile setLlPayloadSize(int llPayloadSize) {
+        this.llPayloadSize = llPayloadSize;
+        return this;
+    }
+
+    // time from handing a write to the controller until the app sees onCharacteristicWrite
+    public long getHostLatencyMicros() {
+        return hostLatencyMicros;
+    }
+
+    public LinkProfile setHostLatencyMicros(long hostLatencyMicros) {
+        this.hostLatencyMicros = hostLatencyMicros;
+        return this;
+    }
+
+    public long getAdvertisingIntervalMicros() {
+        return advertisingIntervalMicros;
+    }
+
+    public LinkProfile setAdvertisingIntervalMicros(long advertisingIntervalMicros) {
+        this.advertisingIntervalMicros = advertisingIntervalMicros;
+        return this;
+    }
+
+    public long getConnectMicros() {
+        return connectMicros;
+    }
+
+    public LinkProfile setConnectMicros(long connectMicros) {
+        this.connectMicros = connectMicros;
+        return this;
+    }
+
+    public long getDiscoveryMicros() {
+        return discoveryMicros;
+    }
+
+    public LinkProfile setDiscoveryMicros(long discoveryMicros) {
+        this.discoveryMicros = discoveryMicros;
+        return this;
+    }
+
+    // The phone keeps the device's attribute table, bonded or GATT caching peer. Discovery of
+    // a layout seen before takes cachedDiscoveryMicros instead of discoveryMicros.
+    public boolean isGattCached() {
+        return gattCached;
+    }
+
+    public LinkProfile setGattCached(boolean gattCached) {
+        this.gattCached = gattCached;
+        return this;
+    }
+
+    public long getCachedDiscoveryMicros() {
+        return cachedDiscoveryMicros;
+    }
+
+    public LinkProfile setCachedDiscoveryMicros(long cachedDiscoveryMicros) {
+        this.cachedDiscoveryMicros = cachedDiscoveryMicros;
+        return this;
+    }
+
+    // application to bootloader reboot until DFU advertising starts
+    public long getDfuRebootMicros() {
+        return dfuRebootMicros;
+    }
+
+    public LinkProfile setDfuRebootMicros(long dfuRebootMicros) {
+        this.dfuRebootMicros = dfuRebootMicros;
+        return this;
+    }
+
+    // bootloader to new application reboot until advertising starts
+    public long getAppRebootMicros() {
+        return appRebootMicros;
+    }
+
+    public LinkProfile setAppRebootMicros(long appRebootMicros) {
+        this.appRebootMicros = appRebootMicros;
+        return this;
+    }
+
+    public long getBeginMicros() {
+        return beginMicros;
+    }
+
+    public LinkProfile setBeginMicros(long beginMicros) {
+        this.beginMicros = beginMicros;
+        return this;
+    }
+
+    // image verification time after 0x03
+    public long getEndMicros() {
+        return endMicros;
+    }
+
+    public LinkProfile setEndMicros(long endMicros) {
+        this.endMicros = endMicros;
+        return this;
+    }
+
+    // download slot size of the bootloader
+    public int getMaxImageSize() {
+        return maxImageSize;
+    }
+
+    public LinkProfile setMaxImageSize(int maxImageSize) {
+        this.maxImageSize = maxImageSize;
+        return this;
+    }
+
+    // bootloader exposes the vendor progress characteristic and keeps its download across a lost link
+    public boolean isResumeSupported() {
+        return resumeSupported;
+    }
+
+    public LinkProfile setResumeSupported(boolean resumeSupported) {
+        this.resumeSupported = resumeSupported;
+        return this;
+    }
+
+    // bootloader applies GblDelta patches against the installed application
+    public boolean isDeltaSupported() {
+        return deltaSupported;
+    }
+
+    public LinkProfile setDeltaSupported(boolean deltaSupported) {
+        this.deltaSupported = deltaSupported;
+        return this;
+    }
+
+    // bootloader built with LZ4 support, it inflates TAG_PROG_LZ4 tags while flashing
+    public boolean isLz4Supported() {
+        return lz4Supported;
+    }
+
+    public LinkProfile setLz4Supported(boolean lz4Supported) {
+        this.lz4Supported = lz4Supported;
+        return this;
+    }
+
+    // Share of data packets the bootloader drops, e.g. on a full flash write buffer. A dropped
+    // write without response vanishes, a write with response gets an error status.
+    public double getPacketLossRate() {
+        return packetLossRate;
+    }
+
+    public LinkProfile setPacketLossRate(double packetLossRate) {
+        this.packetLossRate = packetLossRate;
+        return this;
+    }
+
+    // seed of the loss pattern, mixed with the device address so each link drops its own packets
+    public long getLossSeed() {
+        return lossSeed;
+    }
+
+    public LinkProfile setLossSeed(long lossSeed) {
+        this.lossSeed = lossSeed;
+        return this;
+    }
+
+    // injected faults, null for a well behaved link
+    public LinkFaults getFaults() {
+        return faults;
+    }
+
+    public LinkProfile setFaults(LinkFaults faults) {
+        this.faults = faults;
+        return this;
+    }
+}
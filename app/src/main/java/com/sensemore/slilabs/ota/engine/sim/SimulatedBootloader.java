@@ -0,0 +1,304 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import com.sensemore.slilabs.ota.engine.OtaProtocol;
+import com.sensemore.slilabs.ota.engine.image.ByteArraySource;
+import com.sensemore.slilabs.ota.engine.image.GblCompression;
+import com.sensemore.slilabs.ota.engine.image.GblDelta;
+import com.sensemore.slilabs.ota.engine.image.GblFormatException;
+import com.sensemore.slilabs.ota.engine.image.GblInfo;
+import com.sensemore.slilabs.ota.engine.image.GblParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory model of an EFR32 device: an application exposing the OTA control
+ * characteristic and the Gecko bootloader AppLoader that receives the image in DFU mode.
+ */
+public class SimulatedBootloader {
+
+    public enum Mode {
+        Application,
+        Dfu,
+        Rebooting
+    }
+
+    private static final AtomicInteger addresses = new AtomicInteger();
+
+    private final VirtualScheduler scheduler;
+    private final LinkProfile profile;
+    private final String address;
+
+    private Mode mode = Mode.Application;
+    private byte[] application;
+    private byte[] verifiedImage;
+    private final ByteArrayOutputStream download = new ByteArrayOutputStream();
+    private boolean downloading;
+    private boolean overflow;
+    private Runnable linkListener;
+    // layouts the phone discovered, application and bootloader expose different tables
+    private final EnumSet<Mode> discovered = EnumSet.noneOf(Mode.class);
+
+    private int dfuResets;
+    private int installs;
+
+    public SimulatedBootloader(VirtualScheduler scheduler, LinkProfile profile, byte[] application) {
+        this(scheduler, profile, application, NextAddress());
+    }
+
+    public SimulatedBootloader(VirtualScheduler scheduler, LinkProfile profile, byte[] application, String address) {
+        this.scheduler = scheduler;
+        this.profile = profile;
+        this.application = application;
+        this.address = address;
+    }
+
+    private static String NextAddress() {
+        int n = addresses.incrementAndGet();
+        return String.format(Locale.ROOT, "0B:00:00:%02X:%02X:%02X", (n >> 16) & 0xFF, (n >> 8) & 0xFF, n & 0xFF);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // link loss without a reboot, like a supervision timeout
+    public void dropLink() {
+        if (linkListener != null) {
+            linkListener.run();
+        }
+    }
+
+    // device that is already waiting in the bootloader
+    public void bootIntoDfu() {
+        mode = Mode.Dfu;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isAdvertising() {
+        return mode != Mode.Rebooting;
+    }
+
+    public boolean isDfuMode() {
+        return mode == Mode.Dfu;
+    }
+
+    public byte[] getApplication() {
+        return application;
+    }
+
+    public int getReceivedBytes() {
+        return download.size();
+    }
+
+    public int getDfuResets() {
+        return dfuResets;
+    }
+
+    public int getInstalls() {
+        return installs;
+    }
+
+    // value of the vendor progress characteristic, null when the bootloader has none
+    byte[] readProgress() {
+        if (!profile.isResumeSupported() || mode != Mode.Dfu) {
+            return null;
+        }
+        byte[] received = downloading ? download.toByteArray() : new byte[0];
+        CRC32 crc = new CRC32();
+        crc.update(received, 0, received.length);
+        byte[] value = new byte[8];
+        PutInt(value, 0, received.length);
+        PutInt(value, 4, (int) crc.getValue());
+        return value;
+    }
+
+    // time the phone takes to discover the current layout
+    long discoveryMicros() {
+        boolean cached = !discovered.add(mode) && profile.isGattCached();
+        return cached ? profile.getCachedDiscoveryMicros() : profile.getDiscoveryMicros();
+    }
+
+    // the application exposes its version when it is a GBL with application info
+    boolean hasApplicationVersion() {
+        GblInfo info = ParseGbl(application);
+        return mode == Mode.Application && info != null && info.hasApplicationInfo();
+    }
+
+    // application version characteristic, null when the application is no GBL with version
+    byte[] readApplicationVersion() {
+        GblInfo info = ParseGbl(application);
+        if (mode == Mode.Rebooting || info == null || !info.hasApplicationInfo()) {
+            return null;
+        }
+        byte[] value = new byte[4];
+        PutInt(value, 0, info.getApplicationVersion());
+        return value;
+    }
+
+    private static void PutInt(byte[] buffer, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    // notified when the device drops the link to reboot
+    void setLinkListener(Runnable linkListener) {
+        this.linkListener = linkListener;
+    }
+
+    long controlProcessingMicros(byte opcode) {
+        if (mode != Mode.Dfu) {
+            return 0;
+        }
+        if (opcode == OtaProtocol.CONTROL_BEGIN) {
+            return profile.getBeginMicros();
+        } else if (opcode == OtaProtocol.CONTROL_END) {
+            return profile.getEndMicros();
+        }
+        return 0;
+    }
+
+    // returns the write response status of a control write
+    boolean onControl(byte[] value) {
+        byte opcode = value[0];
+        if (mode == Mode.Application) {
+            if (opcode != OtaProtocol.CONTROL_BEGIN) {
+                return false;
+            }
+            dfuResets++;
+            RebootAfterResponse(Mode.Dfu, profile.getDfuRebootMicros());
+            return true;
+        } else if (mode != Mode.Dfu) {
+            return false;
+        }
+        switch (opcode) {
+            case OtaProtocol.CONTROL_BEGIN:
+                download.reset();
+                downloading = true;
+                overflow = false;
+                verifiedImage = null;
+                return true;
+            case OtaProtocol.CONTROL_END:
+                if (!downloading || overflow || download.size() == 0) {
+                    return false;
+                }
+                downloading = false;
+                byte[] image = download.toByteArray();
+                GblInfo info = ParseGbl(image);
+                if (info != null && info.isDelta()) {
+                    image = profile.isDeltaSupported() ? ApplyPatch(image) : null;
+                    info = image != null ? ParseGbl(image) : null;
+                }
+                if (info != null && info.isCompressed()) {
+                    // a bootloader without the decompressor stops at the first compressed tag
+                    image = profile.isLz4Supported() ? Decompress(image) : null;
+                    info = image != null ? ParseGbl(image) : null;
+                }
+                if (info == null) {
+                    return false;
+                }
+                verifiedImage = image;
+                return true;
+            case OtaProtocol.CONTROL_REWIND:
+                return Rewind(value);
+            case OtaProtocol.CONTROL_REBOOT:
+                Mode target = Mode.Application;
+                if (verifiedImage != null && profile.getFaults() != null && profile.getFaults().bootFailure()) {
+                    verifiedImage = null;
+                    if (ParseGbl(application) == null) {
+                        // nothing to fall back to
+                        target = Mode.Dfu;
+                    }
+                } else if (verifiedImage != null) {
+                    application = verifiedImage;
+                    verifiedImage = null;
+                    installs++;
+                }
+                RebootAfterResponse(target, profile.getAppRebootMicros());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean Rewind(byte[] value) {
+        if (!profile.isResumeSupported() || !downloading || value.length < OtaProtocol.REWIND_VALUE_SIZE) {
+            return false;
+        }
+        long offset = GblParser.LittleEndian(value, 1) & 0xFFFFFFFFL;
+        if (offset > download.size()) {
+            return false;
+        }
+        byte[] kept = download.toByteArray();
+        download.reset();
+        download.write(kept, 0, (int) offset);
+        overflow = false;
+        return true;
+    }
+
+    void onData(byte[] payload) {
+        if (mode != Mode.Dfu || !downloading) {
+            return;
+        }
+        if (download.size() + payload.length > profile.getMaxImageSize()) {
+            overflow = true;
+            return;
+        }
+        download.write(payload, 0, payload.length);
+    }
+
+    // AppLoader parses the GBL file and checks its CRC before accepting it, null when invalid
+    private static GblInfo ParseGbl(byte[] image) {
+        GblParser parser = new GblParser();
+        try {
+            parser.update(image, 0, image.length);
+            return parser.finish();
+        } catch (GblFormatException e) {
+            return null;
+        }
+    }
+
+    // rebuilds the new image from the installed one, null when the patch is for another base
+    private byte[] ApplyPatch(byte[] patch) {
+        ByteArrayOutputStream target = new ByteArrayOutputStream(patch.length * 4);
+        try {
+            GblDelta.apply(application, new ByteArraySource(patch), target);
+            return target.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // flash content of a compressed file, kept as the equivalent uncompressed file
+    private static byte[] Decompress(byte[] compressed) {
+        ByteArrayOutputStream image = new ByteArrayOutputStream(compressed.length * 2);
+        try {
+            GblCompression.decompress(new ByteArraySource(compressed), image);
+            return image.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void RebootAfterResponse(Mode target, long rebootMicros) {
+        // response goes out in the next connection event, then the link drops
+        scheduler.postDelayedMicros(() -> {
+            mode = Mode.Rebooting;
+            downloading = false;
+            download.reset();
+            if (linkListener != null) {
+                linkListener.run();
+            }
+            long delay = profile.getFaults() != null ? profile.getFaults().rebootMicros(rebootMicros) : rebootMicros;
+            scheduler.postDelayedMicros(() -> mode = target, delay);
+        }, 2 * profile.getConnectionIntervalMicros());
+    }
+}
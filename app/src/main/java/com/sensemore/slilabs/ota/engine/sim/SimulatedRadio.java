@@ -0,0 +1,75 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import com.sensemore.slilabs.ota.engine.OtaTransport;
+
+/**
+ * Controller of the phone shared by every simulated link. It holds a limited number of
+ * connections and splits its airtime between them, each connection event gets an equal
+ * share of the interval.
+ */
+public class SimulatedRadio {
+
+    private int maxConnections = 7;
+    // one full length LL data packet including inter frame spaces and the empty ack
+    private long packetAirtimeMicros = 2200;
+    private long packetAirtimeMicros2M = 1100;
+
+    private int connections;
+    private int maxConnectionsReached;
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public SimulatedRadio setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public long getPacketAirtimeMicros() {
+        return packetAirtimeMicros;
+    }
+
+    public SimulatedRadio setPacketAirtimeMicros(long packetAirtimeMicros) {
+        this.packetAirtimeMicros = packetAirtimeMicros;
+        return this;
+    }
+
+    public long getPacketAirtimeMicros2M() {
+        return packetAirtimeMicros2M;
+    }
+
+    public SimulatedRadio setPacketAirtimeMicros2M(long packetAirtimeMicros2M) {
+        this.packetAirtimeMicros2M = packetAirtimeMicros2M;
+        return this;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getMaxConnectionsReached() {
+        return maxConnectionsReached;
+    }
+
+    // false when the controller already holds all the links it can
+    boolean acquireConnection() {
+        if (connections >= maxConnections) {
+            return false;
+        }
+        connections++;
+        maxConnectionsReached = Math.max(maxConnectionsReached, connections);
+        return true;
+    }
+
+    void releaseConnection() {
+        connections = Math.max(0, connections - 1);
+    }
+
+    // packets a connection event of the given interval may carry next to the other links
+    int packetsPerEvent(long intervalMicros, int phy, int linkLimit) {
+        long airtime = phy == OtaTransport.PHY_LE_2M ? packetAirtimeMicros2M : packetAirtimeMicros;
+        long share = intervalMicros / Math.max(1, connections);
+        return (int) Math.max(1, Math.min(linkLimit, share / airtime));
+    }
+}
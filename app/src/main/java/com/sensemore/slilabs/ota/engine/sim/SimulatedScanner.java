@@ -0,0 +1,107 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import com.sensemore.slilabs.ota.engine.OtaProtocol;
+import com.sensemore.slilabs.ota.engine.scan.Advertisement;
+import com.sensemore.slilabs.ota.engine.scan.DeviceTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Scanner over simulated devices. Every advertising interval each advertising device sends
+ * one advertisement with a few dB of jitter, the application under its own name and the
+ * bootloader as {@link OtaProtocol#DFU_DEVICE_NAME}. Advertisements reach the table in
+ * batches, like a controller with offloaded scan batching.
+ */
+public class SimulatedScanner {
+
+    private static final int RSSI_JITTER = 3;
+    private static final List<UUID> SERVICES = Collections.singletonList(OtaProtocol.OTA_SERVICE);
+
+    private static class Target {
+        final SimulatedBootloader device;
+        final String name;
+        final int rssi;
+
+        Target(SimulatedBootloader device, String name, int rssi) {
+            this.device = device;
+            this.name = name;
+            this.rssi = rssi;
+        }
+    }
+
+    private final VirtualScheduler scheduler;
+    private final DeviceTable table;
+    private final long advertisingIntervalMicros;
+    private final long reportDelayMicros;
+    private final List<Target> targets = new ArrayList<>();
+    private final List<Advertisement> batch = new ArrayList<>();
+    private final Random jitter = new Random(1);
+    private boolean scanning;
+    private int advertisements;
+    private int batches;
+
+    private final Runnable advertise = this::Advertise;
+    private final Runnable report = this::Report;
+
+    public SimulatedScanner(VirtualScheduler scheduler, DeviceTable table, long advertisingIntervalMicros, long reportDelayMicros) {
+        this.scheduler = scheduler;
+        this.table = table;
+        this.advertisingIntervalMicros = advertisingIntervalMicros;
+        this.reportDelayMicros = reportDelayMicros;
+    }
+
+    // rssi is the mean the device is heard with
+    public void addDevice(SimulatedBootloader device, String name, int rssi) {
+        targets.add(new Target(device, name, rssi));
+    }
+
+    public void start() {
+        if (scanning) {
+            return;
+        }
+        scanning = true;
+        scheduler.post(advertise);
+        scheduler.postDelayedMicros(report, reportDelayMicros);
+    }
+
+    public void stop() {
+        scanning = false;
+        scheduler.removeCallbacks(advertise);
+        scheduler.removeCallbacks(report);
+        batch.clear();
+    }
+
+    public int getAdvertisements() {
+        return advertisements;
+    }
+
+    public int getBatches() {
+        return batches;
+    }
+
+    private void Advertise() {
+        for (Target target : targets) {
+            if (target.device.isAdvertising()) {
+                String name = target.device.isDfuMode() ? OtaProtocol.DFU_DEVICE_NAME : target.name;
+                int rssi = target.rssi + jitter.nextInt(2 * RSSI_JITTER + 1) - RSSI_JITTER;
+                batch.add(new Advertisement(target.device.getAddress(), name, rssi, SERVICES, scheduler.uptimeMillis()));
+                advertisements++;
+            }
+        }
+        scheduler.postDelayedMicros(advertise, advertisingIntervalMicros);
+    }
+
+    private void Report() {
+        if (!batch.isEmpty()) {
+            List<Advertisement> delivered = new ArrayList<>(batch);
+            batch.clear();
+            batches++;
+            table.addAll(delivered);
+        }
+        scheduler.postDelayedMicros(report, reportDelayMicros);
+    }
+}
@@ -0,0 +1,469 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import com.sensemore.slilabs.ota.engine.OtaTransport;
+import com.sensemore.slilabs.ota.engine.image.GblParser;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * {@link OtaTransport} over a simulated link. Accepted writes move from the host stack into
+ * a bounded set of controller buffers which connection events drain, a fixed number of
+ * packets per connection interval, a write longer than one LL packet takes several. A
+ * write keeps its stack slot until its completion callback, a write with response until
+ * the response arrives. Data packets are dropped
+ * at the rate of {@link LinkProfile#getPacketLossRate()}.
+ * <p>
+ * Links built with a {@link SimulatedRadio} share its connection slots and airtime with
+ * the other links of the same radio, otherwise the link has the controller to itself.
+ */
+public class SimulatedTransport implements OtaTransport {
+
+    private enum Kind {
+        Control,
+        Data,
+        DataWithResponse,
+        // read request of the progress characteristic
+        ProgressRead,
+        VersionRead
+    }
+
+    private static class Packet {
+        final Kind kind;
+        final byte[] value;
+
+        Packet(Kind kind, byte[] value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    private final VirtualScheduler scheduler;
+    private final SimulatedBootloader device;
+    private final LinkProfile profile;
+    private final SimulatedRadio radio;
+    private final ArrayDeque<Packet> hostQueue = new ArrayDeque<>();
+    private final ArrayDeque<Packet> controllerQueue = new ArrayDeque<>();
+    private final Random loss;
+
+    private Callback callback;
+    private boolean connecting;
+    private boolean connected;
+    private boolean requestPending;
+    private boolean discoveryComplete;
+    private int pendingCallbacks;
+    private int attMtu = DEFAULT_ATT_MTU;
+    private long intervalMicros;
+    private int phy = PHY_LE_1M;
+    // LL packets of the head of controllerQueue already on air
+    private int fragmentsSent;
+    // injected queue saturation, data writes are refused until then
+    private long saturatedUntilMicros;
+    // bumped on every link loss so callbacks scheduled for an old link are dropped
+    private int generation;
+
+    private long packetsSent;
+    private long writesRejected;
+    private long packetsLost;
+
+    private final Runnable tryConnect = this::TryConnect;
+    private final Runnable connectionEvent = this::ConnectionEvent;
+    private final Runnable dataCallback = this::DataCallback;
+
+    public SimulatedTransport(VirtualScheduler scheduler, SimulatedBootloader device, LinkProfile profile) {
+        this(scheduler, device, profile, null);
+    }
+
+    public SimulatedTransport(VirtualScheduler scheduler, SimulatedBootloader device, LinkProfile profile, SimulatedRadio radio) {
+        this.scheduler = scheduler;
+        this.device = device;
+        this.profile = profile;
+        this.radio = radio;
+        // every device loses its own packets, links of one profile are independent samples
+        this.loss = new Random(profile.getLossSeed() * 31 + device.getAddress().hashCode());
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getAttMtu() {
+        return attMtu;
+    }
+
+    public long getIntervalMicros() {
+        return intervalMicros;
+    }
+
+    public int getPhy() {
+        return phy;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getWritesRejected() {
+        return writesRejected;
+    }
+
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    @Override
+    public void connect() {
+        if (connected || connecting) {
+            return;
+        }
+        connecting = true;
+        scheduler.post(tryConnect);
+    }
+
+    private void TryConnect() {
+        if (!connecting) {
+            return;
+        }
+        if (!device.isAdvertising()) {
+            // connection completes on the next advertisement of the device
+            scheduler.postDelayedMicros(tryConnect, profile.getAdvertisingIntervalMicros());
+            return;
+        }
+        int link = generation;
+        scheduler.postDelayedMicros(() -> {
+            if (link != generation || !connecting || !device.isAdvertising()) {
+                scheduler.post(tryConnect);
+                return;
+            }
+            if (radio != null && !radio.acquireConnection()) {
+                // controller is out of links, the connect stays pending like on a phone
+                scheduler.postDelayedMicros(tryConnect, profile.getAdvertisingIntervalMicros());
+                return;
+            }
+            connecting = false;
+            connected = true;
+            attMtu = DEFAULT_ATT_MTU;
+            intervalMicros = profile.getConnectionIntervalMicros();
+            phy = PHY_LE_1M;
+            device.setLinkListener(this::LinkLost);
+            scheduler.postDelayedMicros(connectionEvent, intervalMicros);
+            callback.onConnected();
+        }, profile.getConnectMicros());
+    }
+
+    @Override
+    public void discoverServices() {
+        if (!connected) {
+            return;
+        }
+        int link = generation;
+        discoveryComplete = false;
+        scheduler.postDelayedMicros(() -> {
+            if (link == generation && connected) {
+                discoveryComplete = profile.getFaults() == null || !profile.getFaults().gattError();
+                callback.onServicesDiscovered(discoveryComplete, device.isDfuMode());
+            }
+        }, device.discoveryMicros());
+    }
+
+    private boolean IsBusy() {
+        return !connected || requestPending || hostQueue.size() + pendingCallbacks >= profile.getStackQueueCapacity();
+    }
+
+    @Override
+    public boolean writeControl(byte[] value) {
+        if (IsBusy()) {
+            writesRejected++;
+            return false;
+        }
+        requestPending = true;
+        hostQueue.add(new Packet(Kind.Control, value.clone()));
+        Feed();
+        return true;
+    }
+
+    @Override
+    public boolean writeData(byte[] payload) {
+        return QueueData(payload, false);
+    }
+
+    @Override
+    public boolean writeDataWithResponse(byte[] payload) {
+        return QueueData(payload, true);
+    }
+
+    @Override
+    public boolean hasProgressCharacteristic() {
+        return connected && device.isDfuMode() && profile.isResumeSupported();
+    }
+
+    @Override
+    public boolean isDiscoveryComplete() {
+        return connected && discoveryComplete;
+    }
+
+    @Override
+    public boolean hasApplicationVersionCharacteristic() {
+        return isDiscoveryComplete() && device.hasApplicationVersion();
+    }
+
+    private boolean QueueData(byte[] payload, boolean acknowledged) {
+        if (IsBusy() || !device.isDfuMode() || scheduler.nowMicros() < saturatedUntilMicros) {
+            writesRejected++;
+            return false;
+        }
+        LinkFaults faults = profile.getFaults();
+        if (faults != null) {
+            saturatedUntilMicros = scheduler.nowMicros() + faults.saturation();
+        }
+        // stack copies the value and silently truncates it to the negotiated MTU
+        int length = Math.min(payload.length, attMtu - 3);
+        byte[] value = new byte[length];
+        System.arraycopy(payload, 0, value, 0, length);
+        requestPending = acknowledged;
+        hostQueue.add(new Packet(acknowledged ? Kind.DataWithResponse : Kind.Data, value));
+        Feed();
+        return true;
+    }
+
+    // moves writes from the host stack into free controller buffers
+    private void Feed() {
+        while (!hostQueue.isEmpty() && controllerQueue.size() < profile.getControllerBuffers()) {
+            Packet packet = hostQueue.poll();
+            controllerQueue.add(packet);
+            if (packet.kind == Kind.Data) {
+                pendingCallbacks++;
+                scheduler.postDelayedMicros(dataCallback, profile.getHostLatencyMicros());
+            }
+        }
+    }
+
+    private void DataCallback() {
+        if (pendingCallbacks > 0) {
+            pendingCallbacks--;
+            callback.onDataWritten(true);
+        }
+    }
+
+    @Override
+    public boolean readReceivedOffset() {
+        if (IsBusy() || !profile.isResumeSupported()) {
+            return false;
+        }
+        // goes out behind the data already queued, like the ATT read request
+        requestPending = true;
+        hostQueue.add(new Packet(Kind.ProgressRead, null));
+        Feed();
+        return true;
+    }
+
+    @Override
+    public boolean readApplicationVersion() {
+        if (IsBusy()) {
+            return false;
+        }
+        requestPending = true;
+        hostQueue.add(new Packet(Kind.VersionRead, null));
+        Feed();
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!connected || requestPending) {
+            return false;
+        }
+        requestPending = true;
+        int link = generation;
+        scheduler.postDelayedMicros(() -> {
+            if (link != generation) {
+                return;
+            }
+            requestPending = false;
+            if (profile.getFaults() != null && profile.getFaults().mtuFailure()) {
+                callback.onMtuChanged(attMtu, false);
+                return;
+            }
+            attMtu = Math.max(DEFAULT_ATT_MTU, Math.min(mtu, profile.getMaxAttMtu()));
+            callback.onMtuChanged(attMtu, true);
+        }, 2 * intervalMicros);
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (!connected) {
+            return false;
+        }
+        long requested;
+        if (priority == CONNECTION_PRIORITY_HIGH) {
+            requested = profile.getHighPriorityIntervalMicros();
+        } else if (priority == CONNECTION_PRIORITY_LOW_POWER) {
+            requested = profile.getLowPowerIntervalMicros();
+        } else {
+            requested = profile.getConnectionIntervalMicros();
+        }
+        if (requested <= 0) {
+            return true; // peripheral rejects the update, interval stays
+        }
+        int link = generation;
+        // connection update takes effect at an instant a few events ahead
+        scheduler.postDelayedMicros(() -> {
+            if (link == generation) {
+                intervalMicros = requested;
+            }
+        }, 6 * intervalMicros);
+        return true;
+    }
+
+    @Override
+    public void setPreferredPhy(int preferredPhy) {
+        if (!connected) {
+            return;
+        }
+        int link = generation;
+        scheduler.postDelayedMicros(() -> {
+            if (link == generation) {
+                phy = preferredPhy == PHY_LE_2M && profile.isTwoMegPhySupported() ? PHY_LE_2M : PHY_LE_1M;
+                callback.onPhyUpdated(phy, true);
+            }
+        }, 2 * intervalMicros);
+    }
+
+    @Override
+    public void disconnect() {
+        connecting = false;
+        scheduler.removeCallbacks(tryConnect);
+        TearDown();
+    }
+
+    private void LinkLost() {
+        if (connected) {
+            TearDown();
+            callback.onDisconnected();
+        }
+    }
+
+    private void TearDown() {
+        if (connected && radio != null) {
+            radio.releaseConnection();
+        }
+        generation++;
+        connected = false;
+        discoveryComplete = false;
+        requestPending = false;
+        pendingCallbacks = 0;
+        hostQueue.clear();
+        controllerQueue.clear();
+        fragmentsSent = 0;
+        saturatedUntilMicros = 0;
+        scheduler.removeCallbacks(connectionEvent);
+        scheduler.removeCallbacks(dataCallback);
+        device.setLinkListener(null);
+    }
+
+    private void ConnectionEvent() {
+        if (!connected) {
+            return;
+        }
+        int link = generation;
+        int packets = phy == PHY_LE_2M ? profile.getPacketsPerInterval2M() : profile.getPacketsPerInterval();
+        if (radio != null) {
+            packets = radio.packetsPerEvent(intervalMicros, phy, packets);
+        }
+        for (int i = 0; i < packets && !controllerQueue.isEmpty(); i++) {
+            Packet packet = controllerQueue.peek();
+            // a write longer than one LL packet is delivered with its last fragment
+            if (++fragmentsSent < Fragments(packet)) {
+                continue;
+            }
+            fragmentsSent = 0;
+            controllerQueue.poll();
+            packetsSent++;
+            if (packet.kind == Kind.Control && profile.getFaults() != null && profile.getFaults().controlDrop()) {
+                // lost on air, the stack waits for a response that never comes
+                continue;
+            }
+            if (packet.kind == Kind.Control) {
+                byte opcode = packet.value[0];
+                long responseDelay = device.controlProcessingMicros(opcode) + intervalMicros;
+                boolean success = device.onControl(packet.value);
+                scheduler.postDelayedMicros(() -> {
+                    if (link == generation) {
+                        requestPending = false;
+                        callback.onControlWritten(opcode, success);
+                    }
+                }, responseDelay);
+            } else if (packet.kind == Kind.ProgressRead) {
+                // device answers from the bytes received so far, the response takes an event
+                byte[] value = device.readProgress();
+                scheduler.postDelayedMicros(() -> {
+                    if (link != generation) {
+                        return;
+                    }
+                    requestPending = false;
+                    if (value == null) {
+                        callback.onReceivedOffsetRead(0, 0, false);
+                    } else {
+                        callback.onReceivedOffsetRead(GblParser.LittleEndian(value, 0) & 0xFFFFFFFFL,
+                                GblParser.LittleEndian(value, 4) & 0xFFFFFFFFL, true);
+                    }
+                }, intervalMicros);
+            } else if (packet.kind == Kind.VersionRead) {
+                byte[] value = profile.getFaults() != null && profile.getFaults().gattError() ? null : device.readApplicationVersion();
+                scheduler.postDelayedMicros(() -> {
+                    if (link == generation) {
+                        requestPending = false;
+                        callback.onApplicationVersionRead(value != null ? GblParser.LittleEndian(value, 0) : 0, value != null);
+                    }
+                }, intervalMicros);
+            } else {
+                DeliverData(packet, link);
+            }
+            if (link != generation) {
+                return;
+            }
+        }
+        Feed();
+        scheduler.postDelayedMicros(connectionEvent, intervalMicros);
+    }
+
+    private int Fragments(Packet packet) {
+        int llPayload = profile.getLlPayloadSize();
+        if (llPayload <= 0 || packet.value == null) {
+            return 1;
+        }
+        // 3 bytes ATT header and 4 bytes L2CAP header
+        return (packet.value.length + 7 + llPayload - 1) / llPayload;
+    }
+
+    private void DeliverData(Packet packet, int link) {
+        boolean lost = profile.getPacketLossRate() > 0 && loss.nextDouble() < profile.getPacketLossRate();
+        if (lost) {
+            packetsLost++;
+        } else {
+            device.onData(packet.value);
+        }
+        if (profile.getFaults() != null && profile.getFaults().disconnect()) {
+            device.dropLink();
+        }
+        if (packet.kind == Kind.DataWithResponse) {
+            scheduler.postDelayedMicros(() -> {
+                if (link == generation) {
+                    requestPending = false;
+                    callback.onDataWritten(!lost);
+                }
+            }, intervalMicros);
+        }
+    }
+}
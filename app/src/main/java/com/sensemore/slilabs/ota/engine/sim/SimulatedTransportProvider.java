@@ -0,0 +1,132 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+import com.sensemore.slilabs.ota.engine.OtaTransport;
+import com.sensemore.slilabs.ota.engine.runner.TransportProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runner links to simulated bootloaders on a virtual clock, named {@code sim}. A device is
+ * created the first time its address is connected, empty and in application mode, and all
+ * links share one phone radio. A run of hours of link time takes seconds.
+ * <p>
+ * Options: {@code loss} packet loss rate, {@code seed} loss seed, {@code mtu} largest ATT MTU
+ * of the devices, {@code phy2m} 2M PHY support, {@code resume}, {@code delta} and {@code lz4}
+ * bootloader features, {@code gattCache} the phone caching attribute tables,
+ * {@code connections} links the radio holds. Injected faults, see {@link LinkFaults}:
+ * {@code disconnect}, {@code saturation}, {@code slowReboot}, {@code mtuFailure},
+ * {@code controlDrop}, {@code bootFailure} and {@code gattError} rates, {@code faultSeed}.
+ */
+public class SimulatedTransportProvider implements TransportProvider {
+
+    @Override
+    public String getName() {
+        return "sim";
+    }
+
+    @Override
+    public SimulatedLinks open(Map<String, String> options) {
+        LinkProfile profile = new LinkProfile();
+        if (options.containsKey("loss")) {
+            profile.setPacketLossRate(Double.parseDouble(options.get("loss")));
+        }
+        if (options.containsKey("seed")) {
+            profile.setLossSeed(Long.parseLong(options.get("seed")));
+        }
+        if (options.containsKey("mtu")) {
+            profile.setMaxAttMtu(Integer.parseInt(options.get("mtu")));
+        }
+        if (options.containsKey("phy2m")) {
+            profile.setTwoMegPhySupported(Boolean.parseBoolean(options.get("phy2m")));
+        }
+        if (options.containsKey("resume")) {
+            profile.setResumeSupported(Boolean.parseBoolean(options.get("resume")));
+        }
+        if (options.containsKey("delta")) {
+            profile.setDeltaSupported(Boolean.parseBoolean(options.get("delta")));
+        }
+        if (options.containsKey("lz4")) {
+            profile.setLz4Supported(Boolean.parseBoolean(options.get("lz4")));
+        }
+        if (options.containsKey("gattCache")) {
+            profile.setGattCached(Boolean.parseBoolean(options.get("gattCache")));
+        }
+        if (options.containsKey("disconnect") || options.containsKey("saturation") || options.containsKey("slowReboot")
+                || options.containsKey("mtuFailure") || options.containsKey("controlDrop") || options.containsKey("bootFailure")
+                || options.containsKey("gattError")) {
+            LinkFaults faults = new LinkFaults(Long.parseLong(options.getOrDefault("faultSeed", "1")));
+            faults.setDisconnectRate(Rate(options, "disconnect"))
+                    .setSaturation(Rate(options, "saturation"), 200000)
+                    .setSlowReboot(Rate(options, "slowReboot"), 8)
+                    .setMtuFailureRate(Rate(options, "mtuFailure"))
+                    .setControlDropRate(Rate(options, "controlDrop"))
+                    .setBootFailureRate(Rate(options, "bootFailure"))
+                    .setGattErrorRate(Rate(options, "gattError"));
+            profile.setFaults(faults);
+        }
+        SimulatedRadio radio = new SimulatedRadio();
+        if (options.containsKey("connections")) {
+            radio.setMaxConnections(Integer.parseInt(options.get("connections")));
+        }
+        return new SimulatedLinks(new VirtualScheduler(), profile, radio);
+    }
+
+    private static double Rate(Map<String, String> options, String name) {
+        return Double.parseDouble(options.getOrDefault(name, "0"));
+    }
+
+    public static class SimulatedLinks implements TransportProvider.Links {
+
+        private final VirtualScheduler scheduler;
+        private final LinkProfile profile;
+        private final SimulatedRadio radio;
+        private final Map<String, SimulatedBootloader> devices = new HashMap<>();
+
+        public SimulatedLinks(VirtualScheduler scheduler, LinkProfile profile, SimulatedRadio radio) {
+            this.scheduler = scheduler;
+            this.profile = profile;
+            this.radio = radio;
+        }
+
+        // created on first use, scheduler thread
+        public SimulatedBootloader getDevice(String address) {
+            SimulatedBootloader device = devices.get(address);
+            if (device == null) {
+                device = new SimulatedBootloader(scheduler, profile, new byte[0], address);
+                devices.put(address, device);
+            }
+            return device;
+        }
+
+        public LinkProfile getProfile() {
+            return profile;
+        }
+
+        public SimulatedRadio getRadio() {
+            return radio;
+        }
+
+        @Override
+        public VirtualScheduler getScheduler() {
+            return scheduler;
+        }
+
+        @Override
+        public OtaTransport.Factory getTransportFactory() {
+            return (address, linkScheduler) -> new SimulatedTransport(scheduler, getDevice(address), profile, radio);
+        }
+
+        @Override
+        public OtaScheduler.Factory getSessionSchedulers() {
+            return null;
+        }
+
+        @Override
+        public boolean runUntil(BooleanSupplier done, long timeoutMillis) {
+            return scheduler.runUntil(done, timeoutMillis * 1000);
+        }
+    }
+}
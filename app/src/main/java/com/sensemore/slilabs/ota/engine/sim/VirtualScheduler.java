@@ -0,0 +1,110 @@
+package com.sensemore.slilabs.ota.engine.sim;
+
+import com.sensemore.slilabs.ota.engine.OtaScheduler;
+
+import java.util.PriorityQueue;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Single threaded discrete event scheduler with a virtual clock in microseconds.
+ * Simulated sessions run as fast as the CPU allows while reporting link time.
+ */
+public class VirtualScheduler implements OtaScheduler {
+
+    private static class Task implements Comparable<Task> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private long nowMicros;
+    private long sequence;
+
+    public long nowMicros() {
+        return nowMicros;
+    }
+
+    public void postAtMicros(Runnable task, long timeMicros) {
+        queue.add(new Task(Math.max(timeMicros, nowMicros), sequence++, task));
+    }
+
+    public void postDelayedMicros(Runnable task, long delayMicros) {
+        postAtMicros(task, nowMicros + delayMicros);
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return nowMicros / 1000;
+    }
+
+    @Override
+    public long uptimeMicros() {
+        return nowMicros;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postAtMicros(task, nowMicros);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        postAtMicros(task, nowMicros + delayMillis * 1000);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        queue.removeIf(t -> t.runnable == task);
+    }
+
+    public boolean isIdle() {
+        return queue.isEmpty();
+    }
+
+    // runs a single task, false when nothing is scheduled
+    public boolean runNext() {
+        Task task = queue.poll();
+        if (task == null) {
+            return false;
+        }
+        nowMicros = task.time;
+        task.runnable.run();
+        return true;
+    }
+
+    // runs until condition holds, queue drains or the virtual deadline passes
+    public boolean runUntil(BooleanSupplier condition, long timeoutMicros) {
+        long deadline = nowMicros + timeoutMicros;
+        while (!condition.getAsBoolean()) {
+            Task next = queue.peek();
+            if (next == null || next.time > deadline) {
+                return false;
+            }
+            runNext();
+        }
+        return true;
+    }
+
+    public void runFor(long durationMicros) {
+        long deadline = nowMicros + durationMicros;
+        while (!queue.isEmpty() && queue.peek().time <= deadline) {
+            runNext();
+        }
+        nowMicros = Math.max(nowMicros, deadline);
+    }
+}
@@ -0,0 +1,34 @@
+package com.sensemore.slilabs.ota.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void delayDoublesUpToCeiling() {
+        Backoff backoff = new Backoff(500, 3000, 5);
+        assertEquals(500, backoff.nextDelayMillis());
+        assertEquals(1000, backoff.nextDelayMillis());
+        assertEquals(2000, backoff.nextDelayMillis());
+        assertEquals(3000, backoff.nextDelayMillis());
+        assertTrue(backoff.canRetry());
+        assertEquals(3000, backoff.nextDelayMillis());
+        assertFalse(backoff.canRetry());
+    }
+
+    @Test
+    public void checkpointDirectoryRoundTrips() throws Exception {
+        java.io.File directory = java.nio.file.Files.createTempDirectory("checkpoints").toFile();
+        CheckpointStore store = new CheckpointStore.Directory(directory);
+        store.save(new OtaCheckpoint("AA:BB:CC:DD:EE:FF", "abc123", 4096, 77));
+
+        OtaCheckpoint loaded = new CheckpointStore.Directory(directory).load("AA:BB:CC:DD:EE:FF");
+        assertTrue(loaded.matches("AA:BB:CC:DD:EE:FF", "abc123"));
+        assertEquals(4096, loaded.getOffset());
+
+        store.clear("AA:BB:CC:DD:EE:FF");
+        assertNull(store.load("AA:BB:CC:DD:EE:FF"));
+    }
+}
@@ -0,0 +1,105 @@
+package com.sensemore.slilabs.ota.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Heap allocated and GC runs per MB of firmware sliced into payloads, former
+ * per-packet copy against {@link FirmwareChunker}.
+ */
+public class ChunkAllocationBenchmark {
+
+    private static final int IMAGE_SIZE = 1024 * 1024;
+    private static final int PAYLOAD = 247;
+    private static final int ROUNDS = 50;
+
+    private long sink;
+
+    private void SliceWithCopies(byte[] firmware) {
+        int index = 0;
+        while (index < firmware.length) {
+            byte[] payload = new byte[PAYLOAD];
+            if (index + PAYLOAD >= firmware.length) {
+                System.arraycopy(firmware, index, payload, 0, firmware.length - index);
+            } else {
+                payload = Arrays.copyOfRange(firmware, index, index + PAYLOAD);
+            }
+            sink += payload[0];
+            index += PAYLOAD;
+        }
+    }
+
+    private void SliceWithChunker(byte[] firmware) throws IOException {
+        FirmwareChunker chunker = new FirmwareChunker(firmware, PAYLOAD, 16);
+        while (chunker.hasNext()) {
+            sink += chunker.peek()[0];
+            chunker.advance();
+            chunker.release();
+        }
+    }
+
+    private static long AllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long GcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    interface Slice {
+        void run() throws IOException;
+    }
+
+    private long[] Measure(Slice slice) throws IOException {
+        for (int i = 0; i < 5; i++) {
+            slice.run(); // warm up
+        }
+        long gc = GcCount();
+        long allocated = AllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            slice.run();
+        }
+        long nanos = System.nanoTime() - start;
+        return new long[]{(AllocatedBytes() - allocated) / ROUNDS, (GcCount() - gc), nanos / ROUNDS};
+    }
+
+    @Test
+    public void chunkerAllocatesNothingPerPacket() throws IOException {
+        byte[] firmware = TestImages.random(IMAGE_SIZE);
+        long[] copies = Measure(() -> SliceWithCopies(firmware));
+        long[] chunker = Measure(() -> SliceWithChunker(firmware));
+        System.out.println("variant,bytes_allocated_per_MB,gc_runs,nanos_per_MB");
+        System.out.println("per_packet_copy," + copies[0] + "," + copies[1] + "," + copies[2]);
+        System.out.println("chunker," + chunker[0] + "," + chunker[1] + "," + chunker[2]);
+        // chunker only allocates its buffer ring once per image
+        assertTrue(chunker[0] < 16 * 1024);
+    }
+
+    @Test
+    public void finalPayloadIsNotPadded() throws IOException {
+        byte[] firmware = TestImages.random(PAYLOAD * 3 + 10);
+        FirmwareChunker chunker = new FirmwareChunker(firmware, PAYLOAD, 2);
+        int total = 0;
+        byte[] last = null;
+        while (chunker.hasNext()) {
+            last = chunker.peek();
+            total += last.length;
+            chunker.advance();
+            chunker.release();
+        }
+        assertEquals(firmware.length, total);
+        assertEquals(10, last.length);
+        assertArrayEquals(Arrays.copyOfRange(firmware, PAYLOAD * 3, firmware.length), last);
+    }
+}
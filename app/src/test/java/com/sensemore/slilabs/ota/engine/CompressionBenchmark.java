@@ -0,0 +1,81 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.ByteArraySource;
+import com.sensemore.slilabs.ota.engine.image.GblCompressingSource;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compression ratio and host CPU time of LZ4 recompression, and the upload time it saves on
+ * the simulated link, for firmware-like program data and for incompressible data. The raw
+ * fallback row is the cost of offering a compressed image to a bootloader without LZ4.
+ */
+public class CompressionBenchmark {
+
+    static OtaSessionStats Update(byte[] firmware, byte[] compressed, boolean lz4Supported) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LinkProfile profile = new LinkProfile().setLz4Supported(lz4Supported);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+        OtaSession session = new OtaSession(new SimulatedTransport(scheduler, device, profile), scheduler, firmware, new OtaConfig(), listener);
+        if (compressed != null) {
+            session.setCompressedImage(new ByteArrayImage(compressed));
+        }
+        session.start();
+        assertTrue(scheduler.runUntil(listener::finished, 600_000_000));
+        assertNull(listener.error);
+        assertArrayEquals(firmware, device.getApplication());
+        return session.getStats();
+    }
+
+    @Test
+    public void compressionCutsUploadTime() throws IOException {
+        System.out.println("program,image_bytes,compressed_bytes,ratio,compress_ms,compress_mb_per_s,raw_session_ms,lz4_session_ms,fallback_session_ms,saved_ms");
+        for (int size : new int[]{128 * 1024, 480 * 1024}) {
+            for (boolean firmwareLike : new boolean[]{true, false}) {
+                byte[] firmware = TestImages.gbl(firmwareLike ? TestImages.firmwareLike(size) : TestImages.random(size), 2);
+                // warm up, then time one pass
+                OtaSessionTest.Compressed(firmware);
+                byte[] compressed = OtaSessionTest.Compressed(firmware);
+                long compressNanos;
+                try (GblCompressingSource source = new GblCompressingSource(new ByteArraySource(firmware))) {
+                    byte[] buffer = new byte[8192];
+                    while (source.read(buffer, 0, buffer.length) >= 0) {
+                        // drain
+                    }
+                    compressNanos = source.getCompressNanos();
+                }
+
+                OtaSessionStats raw = Update(firmware, null, true);
+                OtaSessionStats lz4 = Update(firmware, compressed, true);
+                OtaSessionStats fallback = Update(firmware, compressed, false);
+                System.out.printf(Locale.ROOT, "%s,%d,%d,%.3f,%d,%.1f,%d,%d,%d,%d%n",
+                        firmwareLike ? "firmware" : "random", firmware.length, compressed.length,
+                        (double) compressed.length / firmware.length, compressNanos / 1_000_000,
+                        size / 1048576.0 * 1e9 / Math.max(1, compressNanos),
+                        raw.getSessionMillis(), lz4.getSessionMillis(), fallback.getSessionMillis(),
+                        raw.getSessionMillis() - lz4.getSessionMillis() - compressNanos / 1_000_000);
+
+                assertFalse(fallback.isCompressedUpload());
+                assertEquals(firmwareLike, lz4.isCompressedUpload());
+                if (firmwareLike) {
+                    assertTrue(compressed.length < firmware.length * 3 / 4);
+                    assertTrue(lz4.getSessionMillis() < raw.getSessionMillis());
+                } else {
+                    // chunks that don't shrink stay raw, the session sends the original
+                    assertEquals(firmware.length, compressed.length);
+                }
+            }
+        }
+    }
+}
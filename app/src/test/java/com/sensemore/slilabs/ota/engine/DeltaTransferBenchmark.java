@@ -0,0 +1,58 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bytes over the air and session time of a full image against a patch from the installed
+ * build, in virtual link time, plus the host time to generate the patch.
+ */
+public class DeltaTransferBenchmark {
+
+    static OtaSessionStats Update(byte[] base, byte[] target, byte[] patch) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LinkProfile profile = new LinkProfile().setDeltaSupported(true);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, base);
+        OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+        OtaSession session = new OtaSession(new SimulatedTransport(scheduler, device, profile), scheduler, target, new OtaConfig(), listener);
+        if (patch != null) {
+            session.setDeltaPatch(new ByteArrayImage(patch));
+        }
+        session.start();
+        assertTrue(scheduler.runUntil(listener::finished, 600_000_000));
+        assertNull(listener.error);
+        assertArrayEquals(target, device.getApplication());
+        return session.getStats();
+    }
+
+    @Test
+    public void patchCutsBytesAndTime() throws IOException {
+        System.out.println("image_bytes,transfer,bytes_sent,upload_ms,session_ms,patch_generation_ms");
+        for (int size : new int[]{128 * 1024, 480 * 1024}) {
+            byte[] program = TestImages.random(size);
+            byte[] base = TestImages.gbl(program, 1);
+            byte[] target = TestImages.gbl(TestImages.nextBuild(program), 2);
+            long started = System.nanoTime();
+            byte[] patch = OtaSessionTest.Patch(base, target);
+            long generationMillis = (System.nanoTime() - started) / 1_000_000;
+
+            OtaSessionStats full = Update(base, target, null);
+            OtaSessionStats delta = Update(base, target, patch);
+            System.out.println(target.length + ",full," + full.getImageSize() + "," + full.getUploadMillis() + "," + full.getSessionMillis() + ",");
+            System.out.println(target.length + ",delta," + delta.getImageSize() + "," + delta.getUploadMillis() + "," + delta.getSessionMillis() + "," + generationMillis);
+
+            assertTrue(delta.isDeltaUpload());
+            assertTrue(delta.getImageSize() * 10 < full.getImageSize());
+            assertTrue(delta.getSessionMillis() < full.getSessionMillis());
+        }
+    }
+}
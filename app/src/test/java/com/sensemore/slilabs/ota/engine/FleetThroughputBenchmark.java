@@ -0,0 +1,86 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedRadio;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Aggregate throughput of a rollout to many virtual devices sharing one phone radio,
+ * by number of concurrent sessions. Measured in virtual link time.
+ */
+public class FleetThroughputBenchmark {
+
+    private static final int DEVICES = 24;
+    private static final int PROGRAM_SIZE = 128 * 1024;
+
+    static class Counter implements OtaJobScheduler.Listener {
+        int finished;
+        int failed;
+
+        @Override
+        public void onJobStateChanged(OtaJob job, OtaState state) {
+        }
+
+        @Override
+        public void onJobProgress(OtaJob job, int bytesSent, int totalBytes) {
+        }
+
+        @Override
+        public void onJobFinished(OtaJob job) {
+            finished++;
+            if (job.getStatus() != OtaJob.Status.Succeeded) {
+                failed++;
+            }
+        }
+
+        @Override
+        public void onIdle() {
+        }
+    }
+
+    // seconds of virtual time to update every device
+    static double Rollout(FirmwareImage image, int concurrency) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LinkProfile profile = new LinkProfile();
+        SimulatedRadio radio = new SimulatedRadio();
+        Map<String, SimulatedBootloader> devices = new HashMap<>();
+        for (int i = 0; i < DEVICES; i++) {
+            devices.put("DEVICE-" + i, new SimulatedBootloader(scheduler, profile, new byte[0]));
+        }
+        Counter counter = new Counter();
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address), profile, radio),
+                scheduler, new OtaConfig(), concurrency, counter);
+        for (String address : devices.keySet()) {
+            fleet.submit(address, image, 0);
+        }
+        assertTrue(scheduler.runUntil(() -> counter.finished == DEVICES, 3_600_000_000L));
+        assertEquals(0, counter.failed);
+        return scheduler.nowMicros() / 1e6;
+    }
+
+    @Test
+    public void concurrentSessionsRaiseAggregateThroughput() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(PROGRAM_SIZE));
+        System.out.println("concurrency,devices,wall_s,aggregate_Bps,per_device_s");
+        double previous = Double.MAX_VALUE;
+        for (int concurrency : new int[]{1, 2, 4, 7}) {
+            double seconds = Rollout(image, concurrency);
+            System.out.printf("%d,%d,%.1f,%.0f,%.2f%n", concurrency, DEVICES, seconds,
+                    DEVICES * image.getLength() / seconds, seconds / DEVICES);
+            // sessions overlap reboots and connects, the shared radio limits the gain of uploads
+            assertTrue(seconds < previous);
+            previous = seconds;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedRadio;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JobJournalTest {
+
+    private VirtualScheduler scheduler;
+    private LinkProfile profile;
+    // MISSING never answers a connect
+    private LinkProfile unreachable;
+    private SimulatedRadio radio;
+    private Map<String, SimulatedBootloader> devices;
+    private OtaJobSchedulerTest.RecordingListener listener;
+    private CheckpointStore checkpoints;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = new VirtualScheduler();
+        profile = new LinkProfile();
+        unreachable = new LinkProfile().setConnectMicros(60_000_000);
+        radio = new SimulatedRadio();
+        devices = new HashMap<>();
+        listener = new OtaJobSchedulerTest.RecordingListener();
+        checkpoints = new CheckpointStore.InMemory();
+        file = new File(Files.createTempDirectory("journal").toFile(), "jobs.journal");
+        for (int i = 0; i < 6; i++) {
+            devices.put("DEVICE-" + i, new SimulatedBootloader(scheduler, profile, new byte[0]));
+        }
+        devices.put("MISSING", new SimulatedBootloader(scheduler, unreachable, new byte[0]));
+    }
+
+    private OtaJobScheduler Fleet(JobJournal journal) {
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address),
+                address.equals("MISSING") ? unreachable : profile, radio),
+                scheduler, new OtaConfig(), 3, listener);
+        fleet.setCheckpointStore(checkpoints);
+        fleet.setJournal(journal);
+        return fleet;
+    }
+
+    @Test
+    public void reopenedJournalKnowsEveryOutcome() throws IOException {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(20000, 3));
+        try (JobJournal journal = new JobJournal(file, scheduler)) {
+            OtaJobScheduler fleet = Fleet(journal);
+            for (int i = 0; i < 4; i++) {
+                fleet.submit("DEVICE-" + i, image, 0);
+            }
+            fleet.submit("MISSING", image, 0);
+            assertTrue(scheduler.runUntil(() -> listener.finished.size() == 5, 600_000_000));
+
+            // a few batched syncs for dozens of events
+            assertTrue(journal.getEvents() > 40);
+            assertTrue(journal.getSyncs() + " syncs", journal.getSyncs() * 4 < journal.getEvents());
+        }
+
+        try (JobJournal reopened = new JobJournal(file, scheduler)) {
+            assertEquals(5, reopened.getDevices().size());
+            assertTrue(reopened.getInterrupted().isEmpty());
+            assertEquals(0, reopened.getDroppedLines());
+            JobJournal.Record updated = reopened.get("DEVICE-2");
+            assertEquals(JobJournal.Event.Succeeded, updated.getLastEvent());
+            assertEquals(image.getContentHash(), updated.getInstalledHash());
+            assertEquals(3, updated.getInstalledVersion());
+            JobJournal.Record missing = reopened.get("MISSING");
+            assertEquals(JobJournal.Event.Failed, missing.getLastEvent());
+            assertNotNull(missing.getError());
+            assertTrue(reopened.hasInstalled("DEVICE-0", image.getContentHash()));
+
+            List<JobJournal.Record> old = reopened.getDevicesWithout(image.getContentHash());
+            assertEquals(1, old.size());
+            assertEquals("MISSING", old.get(0).getAddress());
+            assertEquals(1, reopened.getDevicesBelow(3).size());
+            assertEquals(5, reopened.getDevicesBelow(4).size());
+        }
+    }
+
+    @Test
+    public void interruptedJobsResumeAfterRestart() throws IOException {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(100000, 2));
+        JobJournal journal = new JobJournal(file, scheduler);
+        OtaJobScheduler fleet = Fleet(journal);
+        for (int i = 0; i < 6; i++) {
+            fleet.submit("DEVICE-" + i, image, 0);
+        }
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+        // the app dies mid-rollout: the last batch reached the disk, nothing after it does
+        journal.close();
+        fleet.cancelAll();
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 6, 600_000_000));
+
+        listener = new OtaJobSchedulerTest.RecordingListener();
+        try (JobJournal recovered = new JobJournal(file, scheduler)) {
+            assertEquals(4, recovered.getInterrupted().size());
+            OtaJobScheduler next = Fleet(recovered);
+
+            String hash = image.getContentHash();
+            List<OtaJob> resumed = next.resubmitInterrupted(wanted -> wanted.equals(hash) ? image : null);
+
+            assertEquals(4, resumed.size());
+            assertTrue(scheduler.runUntil(() -> listener.finished.size() == 4, 600_000_000));
+            assertTrue(recovered.getInterrupted().isEmpty());
+            assertTrue(recovered.getDevicesWithout(hash).isEmpty());
+        }
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000));
+        try (JobJournal journal = new JobJournal(file, scheduler)) {
+            Fleet(journal).submit("DEVICE-0", image, 7);
+            assertTrue(scheduler.runUntil(() -> listener.finished.size() == 1, 600_000_000));
+        }
+        long complete = file.length();
+        try (FileOutputStream append = new FileOutputStream(file, true)) {
+            append.write("1700000000000\tFailed\tDEVICE-0\tab".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (JobJournal reopened = new JobJournal(file, scheduler)) {
+            assertEquals(1, reopened.getDroppedLines());
+            assertEquals(complete, file.length());
+            assertEquals(JobJournal.Event.Succeeded, reopened.get("DEVICE-0").getLastEvent());
+            assertEquals(7, reopened.get("DEVICE-0").getPriority());
+        }
+    }
+
+    @Test
+    public void corruptLineEndsReplay() throws IOException {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000));
+        try (JobJournal journal = new JobJournal(file, scheduler)) {
+            Fleet(journal).submit("DEVICE-0", image, 0);
+            assertTrue(scheduler.runUntil(() -> listener.finished.size() == 1, 600_000_000));
+        }
+        byte[] content = Files.readAllBytes(file.toPath());
+        // flip a digit of the last line's timestamp
+        int last = new String(content, StandardCharsets.UTF_8).lastIndexOf('\n', content.length - 2) + 1;
+        content[last] = (byte) (content[last] == '1' ? '2' : '1');
+        Files.write(file.toPath(), content);
+
+        try (JobJournal reopened = new JobJournal(file, scheduler)) {
+            assertEquals(1, reopened.getDroppedLines());
+            // the Succeeded line was the corrupt one
+            assertTrue(reopened.get("DEVICE-0").isInterrupted());
+        }
+    }
+
+    @Test
+    public void compactionKeepsRecords() throws IOException {
+        FirmwareImage first = new ByteArrayImage(TestImages.gbl(5000, 1));
+        FirmwareImage second = new ByteArrayImage(TestImages.gbl(6000, 2));
+        try (JobJournal journal = new JobJournal(file, scheduler)) {
+            OtaJobScheduler fleet = Fleet(journal);
+            for (int i = 0; i < 6; i++) {
+                fleet.submit("DEVICE-" + i, first, i);
+            }
+            assertTrue(scheduler.runUntil(() -> listener.finished.size() == 6, 600_000_000));
+            for (int i = 0; i < 3; i++) {
+                fleet.submit("DEVICE-" + i, second, 0);
+            }
+            fleet.submit("MISSING", second, 0);
+            assertTrue(scheduler.runUntil(() -> listener.finished.size() == 10, 600_000_000));
+        }
+        List<JobJournal.Record> before;
+        try (JobJournal journal = new JobJournal(file, scheduler)) {
+            before = journal.getDevices();
+        }
+        long grown = file.length();
+
+        try (JobJournal compacted = new JobJournal(file, scheduler, JobJournal.DEFAULT_FLUSH_MILLIS, 1024)) {
+            assertTrue(file.length() * 4 < grown);
+            List<JobJournal.Record> after = compacted.getDevices();
+            assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); i++) {
+                assertEquals(before.get(i).toString(), after.get(i).toString());
+                assertEquals(before.get(i).getInstalledHash(), after.get(i).getInstalledHash());
+                assertEquals(before.get(i).getPriority(), after.get(i).getPriority());
+            }
+            assertEquals(4, compacted.getDevicesWithout(second.getContentHash()).size());
+        }
+    }
+}
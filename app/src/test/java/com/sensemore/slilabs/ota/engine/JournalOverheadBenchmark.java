@@ -0,0 +1,88 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedRadio;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A rollout with and without the job journal: link time on the virtual clock, host time,
+ * events journaled against fsyncs and the time those took.
+ */
+public class JournalOverheadBenchmark {
+
+    private static final int DEVICES = 40;
+    private static final int CONCURRENCY = 7;
+
+    static class Result {
+        double linkSeconds;
+        long hostMillis;
+    }
+
+    static Result Rollout(FirmwareImage image, JobJournal journal, VirtualScheduler scheduler) {
+        LinkProfile profile = new LinkProfile();
+        SimulatedRadio radio = new SimulatedRadio();
+        Map<String, SimulatedBootloader> devices = new HashMap<>();
+        for (int i = 0; i < DEVICES; i++) {
+            devices.put("DEVICE-" + i, new SimulatedBootloader(scheduler, profile, new byte[0]));
+        }
+        FleetThroughputBenchmark.Counter counter = new FleetThroughputBenchmark.Counter();
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address), profile, radio),
+                scheduler, new OtaConfig(), CONCURRENCY, counter);
+        fleet.setJournal(journal);
+        long started = System.nanoTime();
+        for (String address : devices.keySet()) {
+            fleet.submit(address, image, 0);
+        }
+        assertTrue(scheduler.runUntil(() -> counter.finished == DEVICES, 3_600_000_000L));
+        assertEquals(0, counter.failed);
+        Result result = new Result();
+        result.hostMillis = (System.nanoTime() - started) / 1_000_000;
+        result.linkSeconds = scheduler.nowMicros() / 1e6;
+        return result;
+    }
+
+    @Test
+    public void journalCostsNoLinkTimeAndFewSyncs() throws IOException {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(64 * 1024));
+        // warm up
+        Rollout(image, null, new VirtualScheduler());
+
+        Result plain = Rollout(image, null, new VirtualScheduler());
+        File file = new File(Files.createTempDirectory("journal").toFile(), "jobs.journal");
+        VirtualScheduler scheduler = new VirtualScheduler();
+        Result journaled;
+        JobJournal journal = new JobJournal(file, scheduler);
+        try {
+            journaled = Rollout(image, journal, scheduler);
+        } finally {
+            journal.close();
+        }
+
+        System.out.println("journal,devices,link_s,host_ms,events,syncs,journal_bytes,sync_ms");
+        System.out.printf("off,%d,%.1f,%d,,,,%n", DEVICES, plain.linkSeconds, plain.hostMillis);
+        System.out.printf("on,%d,%.1f,%d,%d,%d,%d,%d%n", DEVICES, journaled.linkSeconds, journaled.hostMillis,
+                journal.getEvents(), journal.getSyncs(), file.length(), journal.getSyncNanos() / 1_000_000);
+
+        assertEquals(plain.linkSeconds, journaled.linkSeconds, 0.001);
+        assertTrue(journal.getSyncs() * 3 < journal.getEvents());
+        assertEquals(0, journal.getWriteErrors());
+        try (JobJournal reopened = new JobJournal(file, new VirtualScheduler())) {
+            assertEquals(DEVICES, reopened.getDevices().size());
+            assertTrue(reopened.getDevicesWithout(image.getContentHash()).isEmpty());
+        }
+    }
+}
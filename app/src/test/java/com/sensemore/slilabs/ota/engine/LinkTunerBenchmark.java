@@ -0,0 +1,55 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upload time of a 480 KB image on links that favour different settings: without tuning,
+ * in the session that probes, and in a later session starting from what was learned.
+ * Measured in virtual link time.
+ */
+public class LinkTunerBenchmark {
+
+    private static long UploadMillis(LinkProfile profile, byte[] firmware, LinkTuner tuner) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = new OtaSession(new SimulatedTransport(scheduler, device, profile), scheduler, firmware,
+                new OtaConfig(), listener);
+        session.setLinkTuner(tuner);
+        session.start();
+        assertTrue(scheduler.runUntil(listener::finished, 600_000_000));
+        assertTrue(listener.error, listener.complete);
+        return session.getStats().getUploadMillis();
+    }
+
+    @Test
+    public void learnedSettingsNeverLoseToDefaults() {
+        String[] names = {"default", "dle_251", "weak_2m", "dle_251_weak_2m", "no_2m_mtu_517"};
+        LinkProfile[] links = {
+                new LinkProfile(),
+                new LinkProfile().setLlPayloadSize(251),
+                new LinkProfile().setPacketsPerInterval2M(2),
+                new LinkProfile().setLlPayloadSize(251).setPacketsPerInterval2M(2),
+                new LinkProfile().setLlPayloadSize(251).setTwoMegPhySupported(false).setMaxAttMtu(517)};
+        byte[] firmware = TestImages.gbl(480 * 1024);
+        System.out.println("link,untuned_ms,probing_ms,learned_ms,learned_settings");
+        for (int i = 0; i < links.length; i++) {
+            TuningStore store = new TuningStore.InMemory();
+            long untuned = UploadMillis(links[i], firmware, null);
+            long probing = UploadMillis(links[i], firmware, new LinkTuner(store, names[i]));
+            long learned = UploadMillis(links[i], firmware, new LinkTuner(store, names[i]));
+            System.out.println(names[i] + "," + untuned + "," + probing + "," + learned + "," + store.load(names[i]));
+
+            assertTrue(learned <= untuned * 1.02);
+            // probing costs a few short segments at worse settings
+            assertTrue(probing <= untuned * 1.25);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LinkTunerTest {
+
+    private static final String KEY = "Thunderboard 1.2@Phone";
+
+    private VirtualScheduler scheduler;
+    private LinkProfile profile;
+    private TuningStore store;
+    private byte[] firmware;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        profile = new LinkProfile();
+        store = new TuningStore.InMemory();
+        firmware = TestImages.gbl(480 * 1024);
+    }
+
+    private OtaSession Start(LinkTuner tuner, OtaSessionTest.RecordingListener listener) {
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = new OtaSession(new SimulatedTransport(scheduler, device, profile), scheduler, firmware,
+                new OtaConfig(), listener);
+        session.setLinkTuner(tuner);
+        session.start();
+        return session;
+    }
+
+    private OtaSessionStats Upload(LinkTuner tuner) {
+        OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+        OtaSession session = Start(tuner, listener);
+        assertTrue(scheduler.runUntil(listener::finished, 600_000_000));
+        assertTrue(listener.error, listener.complete);
+        return session.getStats();
+    }
+
+    @Test
+    public void probesToTheAlignedPayloadAndTheFasterPhy() {
+        // data length extension, and a phone that sends fewer packets per event on 2M
+        profile.setLlPayloadSize(251).setPacketsPerInterval2M(2);
+        OtaSessionStats untuned = Upload(null);
+        LinkTuner tuner = new LinkTuner(store, KEY);
+        OtaSessionStats tuned = Upload(tuner);
+
+        assertEquals(1, tuner.getProbes());
+        LinkSettings learned = store.load(KEY);
+        assertNotNull(learned);
+        assertEquals(244, learned.getPayloadSize());
+        assertFalse(learned.isTwoMegPhy());
+        assertTrue(learned.getWindowSize() > 0);
+        assertEquals(244, tuned.getPayloadSize());
+        assertEquals(OtaTransport.PHY_LE_1M, tuned.getPhy());
+        // 247 byte payloads on 2M send one write per event, 244 on 1M four
+        assertTrue(tuned.getUploadMillis() * 2 < untuned.getUploadMillis());
+    }
+
+    @Test
+    public void laterSessionsStartAtTheLearnedSettings() {
+        profile.setLlPayloadSize(251).setPacketsPerInterval2M(2);
+        OtaSessionStats probing = Upload(new LinkTuner(store, KEY));
+        LinkTuner tuner = new LinkTuner(store, KEY);
+        OtaSessionStats learned = Upload(tuner);
+
+        assertEquals(0, tuner.getProbes());
+        assertEquals(244, learned.getPayloadSize());
+        assertEquals(OtaTransport.PHY_LE_1M, learned.getPhy());
+        assertTrue(learned.getUploadMillis() < probing.getUploadMillis());
+
+        // another phone learns on its own
+        LinkTuner other = new LinkTuner(store, "Thunderboard 1.2@Other phone");
+        Upload(other);
+        assertEquals(1, other.getProbes());
+    }
+
+    @Test
+    public void probesAgainWhenThroughputDrops() {
+        LinkTuner tuner = new LinkTuner(store, KEY);
+        OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+        OtaSession session = Start(tuner, listener);
+        assertTrue(scheduler.runUntil(() -> tuner.getSettings() != null && !tuner.isProbing(), 600_000_000));
+        assertTrue(tuner.getSettings().isTwoMegPhy());
+        int probed = listener.bytesSent;
+        assertTrue(probed < firmware.length / 4);
+        // first segment after probing sets the reference
+        assertTrue(scheduler.runUntil(() -> listener.bytesSent > probed + 48 * 1024, 600_000_000));
+
+        // 2M falls apart midway, e.g. the phone moved away
+        profile.setPacketsPerInterval2M(1);
+        assertTrue(scheduler.runUntil(listener::finished, 600_000_000));
+
+        assertTrue(listener.error, listener.complete);
+        assertEquals(1, tuner.getReprobes());
+        assertFalse(tuner.getSettings().isTwoMegPhy());
+        assertEquals(OtaTransport.PHY_LE_1M, session.getStats().getPhy());
+    }
+
+    @Test
+    public void smallImagesAreNotProbed() {
+        firmware = TestImages.gbl(64 * 1024);
+        LinkTuner tuner = new LinkTuner(store, KEY);
+        Upload(tuner);
+        assertEquals(0, tuner.getProbes());
+        assertNull(store.load(KEY));
+    }
+
+    @Test
+    public void directoryStoreKeepsSettingsAcrossInstances() throws IOException {
+        File directory = Files.createTempDirectory("tuning").toFile();
+        new TuningStore.Directory(directory).save(KEY, new LinkSettings(244, false, 6, 51000));
+        TuningStore reopened = new TuningStore.Directory(directory);
+        LinkSettings settings = reopened.load(KEY);
+        assertEquals(244, settings.getPayloadSize());
+        assertFalse(settings.isTwoMegPhy());
+        assertEquals(6, settings.getWindowSize());
+        assertEquals(51000, settings.getBytesPerSecond());
+        // same file name, another key
+        assertNull(reopened.load("Thunderboard 1.2/Phone"));
+        assertEquals(Arrays.asList(KEY.replaceAll("[^A-Za-z0-9._-]", "_") + ".tuning"), Arrays.asList(directory.list()));
+    }
+}
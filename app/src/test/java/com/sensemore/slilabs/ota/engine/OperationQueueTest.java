@@ -0,0 +1,117 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class OperationQueueTest {
+
+    private VirtualScheduler scheduler;
+    private OperationQueue queue;
+    private List<String> started;
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        queue = new OperationQueue(scheduler, 1000);
+        started = new ArrayList<>();
+    }
+
+    private OperationQueue.Operation Request(String name) {
+        return () -> started.add(name);
+    }
+
+    // error the result handlers see, null when the request succeeded
+    private static Throwable Cause(CompletableFuture<?> future) throws Exception {
+        return future.handle((value, error) -> error).get();
+    }
+
+    @Test
+    public void startsOneRequestAtATime() throws Exception {
+        CompletableFuture<Integer> mtu = queue.enqueue("mtu", Request("mtu"));
+        CompletableFuture<byte[]> read = queue.enqueue("read", Request("read"));
+
+        assertEquals(1, started.size());
+        assertEquals(2, queue.size());
+        queue.complete(247);
+
+        assertEquals(247, (int) mtu.get());
+        assertEquals(2, started.size());
+        assertFalse(read.isDone());
+        queue.complete(new byte[]{1});
+
+        assertArrayEquals(new byte[]{1}, read.get());
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void resultHandlerCanQueueTheNextRequest() throws Exception {
+        CompletableFuture<Object> second = new CompletableFuture<>();
+        queue.enqueue("first", Request("first")).whenComplete((value, error) ->
+                queue.enqueue("second", Request("second")).whenComplete((v, e) -> second.complete(v)));
+        queue.complete(null);
+
+        assertEquals(2, started.size());
+        queue.complete("done");
+        assertEquals("done", second.get());
+    }
+
+    @Test
+    public void refusedRequestStartsWhenStackIsIdle() {
+        boolean[] stackFree = {false};
+        queue.enqueue("control", () -> stackFree[0] && started.add("control"));
+
+        assertTrue(started.isEmpty());
+        assertTrue(queue.isBusy());
+        stackFree[0] = true;
+        queue.onStackIdle();
+
+        assertEquals(1, started.size());
+    }
+
+    @Test
+    public void requestWithoutResponseTimesOut() throws Exception {
+        CompletableFuture<Object> lost = queue.enqueue("lost", Request("lost"));
+        CompletableFuture<Object> next = queue.enqueue("next", Request("next"));
+
+        scheduler.runFor(1_000_000);
+
+        assertTrue(Cause(lost) instanceof TimeoutException);
+        assertEquals(2, started.size());
+        assertFalse(next.isDone());
+    }
+
+    @Test
+    public void requestRefusedForTooLongFails() throws Exception {
+        CompletableFuture<Object> refused = queue.enqueue("refused", () -> false);
+
+        scheduler.runFor(1_000_000);
+
+        assertTrue(Cause(refused) instanceof TimeoutException);
+        assertFalse(queue.isBusy());
+    }
+
+    @Test
+    public void clearFailsEveryRequest() throws Exception {
+        CompletableFuture<Object> running = queue.enqueue("running", Request("running"));
+        CompletableFuture<Object> waiting = queue.enqueue("waiting", Request("waiting"));
+        queue.clear(new CancellationException("Link closed"));
+
+        assertTrue(Cause(running) instanceof CancellationException);
+        assertTrue(Cause(waiting) instanceof CancellationException);
+        assertEquals(1, started.size());
+        assertFalse(queue.isBusy());
+        // nothing left to time out
+        scheduler.runFor(2_000_000);
+        assertEquals(1, started.size());
+    }
+}
@@ -0,0 +1,372 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.image.GblWriter;
+import com.sensemore.slilabs.ota.engine.scan.AdvertisementFilter;
+import com.sensemore.slilabs.ota.engine.scan.DeviceTable;
+import com.sensemore.slilabs.ota.engine.sim.LinkFaults;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedRadio;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedScanner;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OtaJobSchedulerTest {
+
+    private VirtualScheduler scheduler;
+    private LinkProfile profile;
+    private SimulatedRadio radio;
+    private Map<String, SimulatedBootloader> devices;
+    private RecordingListener listener;
+
+    static class RecordingListener implements OtaJobScheduler.Listener {
+        final List<String> started = new ArrayList<>();
+        final List<OtaJob> finished = new ArrayList<>();
+        final Map<String, Integer> lastProgress = new HashMap<>();
+
+        @Override
+        public void onJobStateChanged(OtaJob job, OtaState state) {
+            if (state == OtaState.Connecting) {
+                started.add(job.getAddress());
+            }
+        }
+
+        @Override
+        public void onJobProgress(OtaJob job, int bytesSent, int totalBytes) {
+            lastProgress.put(job.getAddress(), bytesSent);
+        }
+
+        @Override
+        public void onJobFinished(OtaJob job) {
+            finished.add(job);
+        }
+
+        @Override
+        public void onIdle() {
+        }
+    }
+
+    // scheduler of one link on the shared virtual clock, counts what runs on it
+    static class LinkScheduler implements OtaScheduler {
+        final VirtualScheduler clock;
+        int tasks;
+        boolean shutdown;
+
+        LinkScheduler(VirtualScheduler clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return clock.uptimeMillis();
+        }
+
+        @Override
+        public long uptimeMicros() {
+            return clock.uptimeMicros();
+        }
+
+        @Override
+        public void post(Runnable task) {
+            tasks++;
+            clock.post(task);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            tasks++;
+            clock.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            clock.removeCallbacks(task);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        profile = new LinkProfile();
+        radio = new SimulatedRadio();
+        devices = new HashMap<>();
+        listener = new RecordingListener();
+    }
+
+    private void AddDevices(int count) {
+        for (int i = 0; i < count; i++) {
+            devices.put("DEVICE-" + i, new SimulatedBootloader(scheduler, profile, new byte[0]));
+        }
+    }
+
+    private OtaJobScheduler Fleet(int devicesCount, int maxConcurrent) {
+        AddDevices(devicesCount);
+        return new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address), profile, radio),
+                scheduler, new OtaConfig(), maxConcurrent, listener);
+    }
+
+    @Test
+    public void runsAtMostMaxConcurrentSessions() {
+        byte[] firmware = TestImages.gbl(20000);
+        FirmwareImage image = new ByteArrayImage(firmware);
+        OtaJobScheduler fleet = Fleet(8, 3);
+        for (String address : devices.keySet()) {
+            fleet.submit(address, image, 0);
+        }
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 8, 600_000_000));
+
+        assertEquals(3, fleet.getMaxRunningReached());
+        assertTrue(radio.getMaxConnectionsReached() <= 3);
+        for (OtaJob job : fleet.getJobs()) {
+            assertEquals(job.toString(), OtaJob.Status.Succeeded, job.getStatus());
+            assertArrayEquals(firmware, devices.get(job.getAddress()).getApplication());
+        }
+        assertTrue(fleet.isIdle());
+    }
+
+    @Test
+    public void higherPriorityJobsStartFirst() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000));
+        OtaJobScheduler fleet = Fleet(4, 1);
+        fleet.submit("DEVICE-0", image, 0);
+        fleet.submit("DEVICE-1", image, 0);
+        fleet.submit("DEVICE-2", image, 5);
+        fleet.submit("DEVICE-3", image, 1);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 4, 600_000_000));
+
+        // first job starts before the others are queued
+        assertEquals(Arrays.asList("DEVICE-0", "DEVICE-2", "DEVICE-3", "DEVICE-1"), listener.started);
+    }
+
+    @Test
+    public void failedDeviceDoesNotBlockQueue() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000));
+        AddDevices(1);
+        LinkProfile unreachable = new LinkProfile().setConnectMicros(60_000_000);
+        devices.put("GONE", new SimulatedBootloader(scheduler, unreachable, new byte[0]));
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address),
+                address.equals("GONE") ? unreachable : profile, radio), scheduler, new OtaConfig(), 1, listener);
+        fleet.submit("GONE", image, 0);
+        fleet.submit("DEVICE-0", image, 0);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+
+        assertEquals(OtaJob.Status.Failed, listener.finished.get(0).getStatus());
+        assertEquals(OtaJob.Status.Succeeded, listener.finished.get(1).getStatus());
+    }
+
+    @Test
+    public void secondJobForSameDeviceIsRejected() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000));
+        OtaJobScheduler fleet = Fleet(1, 2);
+        OtaJob first = fleet.submit("DEVICE-0", image, 0);
+        OtaJob second = fleet.submit("DEVICE-0", image, 0);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+
+        assertEquals(OtaJob.Status.Failed, second.getStatus());
+        assertEquals(OtaJob.Status.Succeeded, first.getStatus());
+        assertEquals(1, devices.get("DEVICE-0").getInstalls());
+    }
+
+    @Test
+    public void queuedJobCanBeCancelled() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000));
+        OtaJobScheduler fleet = Fleet(2, 1);
+        fleet.submit("DEVICE-0", image, 0);
+        OtaJob queued = fleet.submit("DEVICE-1", image, 0);
+        fleet.cancel(queued);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+
+        assertEquals(OtaJob.Status.Cancelled, queued.getStatus());
+        assertEquals(0, devices.get("DEVICE-1").getInstalls());
+    }
+
+    @Test
+    public void sessionsRunOnTheirOwnSchedulers() {
+        byte[] firmware = TestImages.gbl(20000);
+        FirmwareImage image = new ByteArrayImage(firmware);
+        AddDevices(3);
+        Map<String, LinkScheduler> links = new HashMap<>();
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address), profile, radio),
+                scheduler, name -> {
+                    LinkScheduler link = new LinkScheduler(scheduler);
+                    links.put(name, link);
+                    return link;
+                }, new OtaConfig(), 3, listener);
+        for (String address : devices.keySet()) {
+            fleet.submit(address, image, 0);
+        }
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 3, 600_000_000));
+
+        assertEquals(devices.keySet(), links.keySet());
+        for (OtaJob job : fleet.getJobs()) {
+            assertEquals(job.toString(), OtaJob.Status.Succeeded, job.getStatus());
+            assertArrayEquals(firmware, devices.get(job.getAddress()).getApplication());
+            assertTrue(links.get(job.getAddress()).tasks > 0);
+            assertTrue(links.get(job.getAddress()).shutdown);
+            assertEquals(firmware.length, (int) listener.lastProgress.get(job.getAddress()));
+        }
+        assertTrue(fleet.isIdle());
+    }
+
+    // fleet that verifies every update, a scanner reports the devices' advertisements to it
+    private OtaJobScheduler VerifyingFleet(int maxConcurrent, String... addresses) {
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address), profile, radio),
+                scheduler, new OtaConfig().setConnectOnAdvertisement(true).setVerifyAfterUpdate(true), maxConcurrent, listener);
+        DeviceTable table = new DeviceTable(new AdvertisementFilter().setServiceUuid(OtaProtocol.OTA_SERVICE));
+        table.setListener(seen -> fleet.onAdvertising(seen.getAddress(), seen.isDfuMode()));
+        SimulatedScanner scanner = new SimulatedScanner(scheduler, table, 100_000, 200_000);
+        for (String address : addresses) {
+            scanner.addDevice(devices.get(address), "Sensor", -60);
+        }
+        scanner.start();
+        return fleet;
+    }
+
+    // GBL file without application info, the device can't tell which version it runs
+    private static byte[] Unversioned(int programSize) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GblWriter writer = new GblWriter(out);
+            writer.writeHeader(0);
+            writer.writeProgramData(0x4000, TestImages.random(programSize), 0, programSize);
+            writer.writeEnd();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void AddDevice(String address, byte[] application) {
+        devices.put(address, new SimulatedBootloader(scheduler, profile, application, address));
+    }
+
+    @Test
+    public void verificationOverlapsNextUpload() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(20000, 5));
+        String[] addresses = {"0C:00:00:00:00:01", "0C:00:00:00:00:02", "0C:00:00:00:00:03"};
+        for (String address : addresses) {
+            AddDevice(address, TestImages.gbl(1000, 4));
+        }
+        OtaJobScheduler fleet = VerifyingFleet(1, addresses);
+        for (String address : addresses) {
+            fleet.submit(address, image, 0);
+        }
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 3, 600_000_000));
+
+        List<OtaJob> jobs = fleet.getJobs();
+        for (OtaJob job : jobs) {
+            assertEquals(job.toString(), OtaJob.Status.Succeeded, job.getStatus());
+            OtaSessionStats stats = job.getSession().getStats();
+            assertEquals(OtaVerifier.Result.Verified, stats.getVerification());
+            assertEquals(5, stats.getRunningVersion());
+            assertTrue(stats.getVerifyMillis() > 0);
+        }
+        // the next upload started while the previous device rebooted
+        assertTrue(jobs.get(1).getStartedMillis() < jobs.get(0).getFinishedMillis());
+        assertEquals(1, fleet.getMaxRunningReached());
+        assertTrue(fleet.isIdle());
+        assertEquals(0, fleet.getVerifying());
+    }
+
+    @Test
+    public void failedBootIsCaughtByVerification() {
+        profile.setFaults(new LinkFaults(1).setBootFailureRate(1));
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000, 2));
+        AddDevice("0C:00:00:00:00:01", TestImages.gbl(1000, 1));
+        AddDevice("0C:00:00:00:00:02", new byte[0]);
+        OtaJobScheduler fleet = VerifyingFleet(2, "0C:00:00:00:00:01", "0C:00:00:00:00:02");
+        OtaJob rolledBack = fleet.submit("0C:00:00:00:00:01", image, 0);
+        OtaJob stuck = fleet.submit("0C:00:00:00:00:02", image, 0);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+
+        // both sessions saw their image accepted, only the check after the reboot tells
+        assertEquals(OtaJob.Status.Failed, rolledBack.getStatus());
+        assertEquals(OtaVerifier.Result.VersionMismatch, rolledBack.getSession().getStats().getVerification());
+        assertEquals(1, rolledBack.getSession().getStats().getRunningVersion());
+        assertEquals("Device runs version 1 after update, expected 2", rolledBack.getError());
+        assertEquals(OtaJob.Status.Failed, stuck.getStatus());
+        assertEquals(OtaVerifier.Result.StuckInDfu, stuck.getSession().getStats().getVerification());
+        assertEquals(2, profile.getFaults().getBootFailures());
+    }
+
+    @Test
+    public void unseenDeviceFailsAndUnversionedImageOnlyRuns() {
+        // no scanner, verifiers connect after the reconnect delay
+        FirmwareImage versioned = new ByteArrayImage(TestImages.gbl(5000, 3));
+        FirmwareImage unversioned = new ByteArrayImage(Unversioned(5000));
+        LinkProfile slowBoot = new LinkProfile().setAppRebootMicros(120_000_000);
+        devices.put("SLOW", new SimulatedBootloader(scheduler, slowBoot, new byte[0]));
+        AddDevices(1);
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address),
+                address.equals("SLOW") ? slowBoot : profile, radio), scheduler, new OtaConfig().setVerifyAfterUpdate(true), 2, listener);
+        OtaJob unseen = fleet.submit("SLOW", versioned, 0);
+        OtaJob running = fleet.submit("DEVICE-0", unversioned, 0);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+
+        assertEquals(OtaJob.Status.Failed, unseen.getStatus());
+        assertEquals("Device not seen after update", unseen.getError());
+        assertEquals(OtaVerifier.Result.NotSeen, unseen.getSession().getStats().getVerification());
+        // nothing to compare against, the device answering from its application is enough
+        assertEquals(OtaJob.Status.Succeeded, running.getStatus());
+        assertEquals(OtaVerifier.Result.Running, running.getSession().getStats().getVerification());
+    }
+
+    @Test
+    public void gattErrorsAfterUpdateAreRetriedNotPassed() {
+        FirmwareImage image = new ByteArrayImage(TestImages.gbl(5000, 2));
+        LinkProfile flaky = new LinkProfile();
+        LinkProfile broken = new LinkProfile();
+        devices.put("FLAKY", new SimulatedBootloader(scheduler, flaky, TestImages.gbl(1000, 1)));
+        devices.put("BROKEN", new SimulatedBootloader(scheduler, broken, TestImages.gbl(1000, 1)));
+        OtaJobScheduler fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address),
+                address.equals("FLAKY") ? flaky : broken, radio), scheduler, new OtaConfig().setVerifyAfterUpdate(true), 2, listener);
+        OtaJob recovers = fleet.submit("FLAKY", image, 0);
+        OtaJob fails = fleet.submit("BROKEN", image, 0);
+        assertTrue(scheduler.runUntil(() -> recovers.getStatus() == OtaJob.Status.Verifying
+                && fails.getStatus() == OtaJob.Status.Verifying, 600_000_000));
+
+        // every discovery and read after the upload ends with a GATT error, FLAKY's only for a while
+        flaky.setFaults(new LinkFaults(1).setGattErrorRate(1));
+        broken.setFaults(new LinkFaults(2).setGattErrorRate(1));
+        scheduler.postDelayed(() -> flaky.setFaults(null), 5000);
+
+        assertTrue(scheduler.runUntil(() -> listener.finished.size() == 2, 600_000_000));
+
+        assertEquals(OtaJob.Status.Succeeded, recovers.getStatus());
+        assertEquals(OtaVerifier.Result.Verified, recovers.getSession().getStats().getVerification());
+        assertTrue(recovers.getSession().getStats().getVerifyMillis() >= 5000);
+        assertEquals(OtaJob.Status.Failed, fails.getStatus());
+        assertEquals(OtaVerifier.Result.Unreadable, fails.getSession().getStats().getVerification());
+        assertEquals("Device version could not be read after update", fails.getError());
+        assertTrue(broken.getFaults().getGattErrors() > 1);
+    }
+}
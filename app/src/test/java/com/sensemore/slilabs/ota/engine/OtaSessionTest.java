@@ -0,0 +1,514 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.ByteArraySource;
+import com.sensemore.slilabs.ota.engine.image.CachedImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.image.GblCompression;
+import com.sensemore.slilabs.ota.engine.image.GblDelta;
+import com.sensemore.slilabs.ota.engine.image.ImageCache;
+import com.sensemore.slilabs.ota.engine.scan.AdvertisementFilter;
+import com.sensemore.slilabs.ota.engine.scan.DeviceTable;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedScanner;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OtaSessionTest {
+
+    private VirtualScheduler scheduler;
+    private LinkProfile profile;
+    private RecordingListener listener;
+
+    static class RecordingListener implements OtaListener {
+        final List<OtaState> states = new ArrayList<>();
+        boolean complete;
+        String error;
+        int bytesSent;
+
+        @Override
+        public void onStateChanged(OtaState state) {
+            states.add(state);
+        }
+
+        @Override
+        public void onProgress(int bytesSent, int totalBytes) {
+            this.bytesSent = bytesSent;
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+
+        @Override
+        public void onError(String message) {
+            error = message;
+        }
+
+        boolean finished() {
+            return complete || error != null;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        profile = new LinkProfile();
+        listener = new RecordingListener();
+    }
+
+    // session with a fresh listener, not started
+    private OtaSession Session(SimulatedBootloader device, FirmwareImage image, OtaConfig config) {
+        listener = new RecordingListener();
+        return new OtaSession(new SimulatedTransport(scheduler, device, profile), scheduler, image, config, listener);
+    }
+
+    private OtaSession Session(SimulatedBootloader device, byte[] firmware, OtaConfig config) {
+        return Session(device, new ByteArrayImage(firmware), config);
+    }
+
+    private OtaSession RunToCompletion(OtaSession session) {
+        session.start();
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+        assertNull(listener.error);
+        return session;
+    }
+
+    private OtaSession RunToCompletion(SimulatedBootloader device, byte[] firmware, OtaConfig config) {
+        return RunToCompletion(Session(device, firmware, config));
+    }
+
+    private OtaSession RunToFailure(OtaSession session) {
+        session.start();
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+        assertNotNull(listener.error);
+        return session;
+    }
+
+    @Test
+    public void uploadsImageFromApplicationMode() {
+        byte[] firmware = TestImages.gbl(40000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+
+        RunToCompletion(session);
+
+        assertEquals(1, device.getDfuResets());
+        assertEquals(1, device.getInstalls());
+        assertArrayEquals(firmware, device.getApplication());
+        assertEquals(Arrays.asList(OtaState.Connecting, OtaState.ResetDFU, OtaState.Reconnecting, OtaState.OtaBegin,
+                OtaState.OtaUpload, OtaState.OtaEnd, OtaState.Disconnecting, OtaState.Ready), listener.states);
+        scheduler.runFor(5_000_000);
+        assertEquals(SimulatedBootloader.Mode.Application, device.getMode());
+    }
+
+    @Test
+    public void phaseTimesAddUpToSession() {
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+
+        OtaSessionStats stats = RunToCompletion(device, TestImages.gbl(20000), new OtaConfig()).getStats();
+
+        long phases = 0;
+        for (OtaState state : OtaState.values()) {
+            phases += stats.getPhaseMillis(state);
+        }
+        assertEquals(stats.getSessionMillis(), phases);
+        // reconnect covers the reboot into DFU and nothing more than an advertising interval
+        long reconnect = stats.getPhaseMillis(OtaState.Reconnecting);
+        assertTrue(reconnect >= profile.getDfuRebootMicros() / 1000);
+        assertTrue(reconnect < (profile.getDfuRebootMicros() + profile.getAdvertisingIntervalMicros() + profile.getConnectMicros()
+                + profile.getDiscoveryMicros()) / 1000 + 50);
+    }
+
+    @Test
+    public void sessionReportsUploadMetrics() {
+        byte[] firmware = TestImages.gbl(200000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+
+        session.start();
+        // running rate needs one full sample period of upload
+        assertTrue(scheduler.runUntil(() -> listener.bytesSent > 150000, 120_000_000));
+        assertTrue(session.getStats().getRunningBytesPerSecond() > 0);
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+
+        OtaSessionStats stats = session.getStats();
+        int payloads = (firmware.length + stats.getPayloadSize() - 1) / stats.getPayloadSize();
+        assertEquals(payloads, stats.getWriteLatency().getCount());
+        assertTrue(stats.getWriteLatency().getPercentile(50) > 0);
+        assertTrue(stats.getWritesRejected() > 0);
+
+        String json = OtaSessionReport.toJson(device.getAddress(), stats, null);
+        assertTrue(json.startsWith("{\"address\":\"" + device.getAddress() + "\",\"success\":true"));
+        assertTrue(json.contains("\"mtu\":250"));
+        assertTrue(json.contains("\"writeLatencyMicros\":{\"count\":" + payloads));
+        String row = OtaSessionReport.toCsvRow(device.getAddress(), stats, "said \"no\", twice");
+        assertEquals(OtaSessionReport.csvHeader().split(",").length, row.replace("\"said \"\"no\"\", twice\"", "x").split(",").length);
+    }
+
+    @Test
+    public void payloadFollowsNegotiatedMtu() {
+        profile.setMaxAttMtu(104);
+        byte[] firmware = TestImages.gbl(30000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+
+        OtaSession session = RunToCompletion(device, firmware, new OtaConfig());
+
+        assertEquals(104, session.getStats().getNegotiatedMtu());
+        assertEquals(101, session.getStats().getPayloadSize());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void highPriorityAnd2MPhySpeedUpUpload() {
+        byte[] firmware = TestImages.gbl(100000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+
+        OtaSessionStats plain = RunToCompletion(device, firmware,
+                new OtaConfig().setHighPriorityUpload(false).setTwoMegPhyUpload(false)).getStats();
+        OtaSessionStats tuned = RunToCompletion(device, firmware, new OtaConfig()).getStats();
+
+        assertEquals(OtaTransport.PHY_LE_1M, plain.getPhy());
+        assertEquals(OtaTransport.PHY_LE_2M, tuned.getPhy());
+        assertEquals(OtaTransport.CONNECTION_PRIORITY_HIGH, tuned.getConnectionPriority());
+        assertTrue(tuned.getBytesPerSecond() > 2 * plain.getBytesPerSecond());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void nonGblFileIsRejectedBeforeDfuReset() {
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, TestImages.random(20000), new OtaConfig());
+
+        RunToFailure(session);
+
+        assertEquals(0, device.getDfuResets());
+    }
+
+    @Test
+    public void corruptGblIsNotCommitted() {
+        byte[] firmware = TestImages.gbl(50000);
+        firmware[30000] ^= 0x55;
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+
+        RunToFailure(session);
+
+        assertTrue(listener.error.contains("CRC"));
+        assertEquals(0, device.getInstalls());
+        assertFalse(listener.states.contains(OtaState.OtaEnd));
+    }
+
+    @Test
+    public void connectTimeoutFailsSession() {
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        profile.setConnectMicros(60_000_000);
+        OtaSession session = Session(device, TestImages.gbl(1000), new OtaConfig().setConnectTimeoutMillis(2000));
+
+        RunToFailure(session);
+
+        assertEquals(OtaState.Failed, session.getState());
+    }
+
+    // drops the link once the device holds more than the given number of bytes
+    private void DropLinkAfter(SimulatedBootloader device, int receivedBytes) {
+        assertTrue(scheduler.runUntil(() -> device.getReceivedBytes() > receivedBytes, 120_000_000));
+        device.dropLink();
+    }
+
+    @Test
+    public void resumesFromDeviceOffsetAfterLinkLoss() {
+        profile.setResumeSupported(true);
+        byte[] firmware = TestImages.gbl(100000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+
+        session.start();
+        DropLinkAfter(device, 60000);
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+
+        assertNull(listener.error);
+        assertEquals(1, session.getStats().getRetries());
+        assertTrue(session.getStats().getResumedBytes() > 50000);
+        assertEquals(1, device.getDfuResets());
+        assertEquals(1, device.getInstalls());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void restartsImageWithoutDfuResetWhenBootloaderCannotResume() {
+        byte[] firmware = TestImages.gbl(60000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+
+        session.start();
+        DropLinkAfter(device, 30000);
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+
+        assertNull(listener.error);
+        assertEquals(1, session.getStats().getRetries());
+        assertEquals(0, session.getStats().getResumedBytes());
+        assertEquals(1, device.getDfuResets());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() {
+        byte[] firmware = TestImages.gbl(60000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig().setMaxRetries(2));
+
+        session.start();
+        for (int i = 0; i < 3; i++) {
+            int retries = i;
+            assertTrue(scheduler.runUntil(() -> session.getStats().getRetries() == retries
+                    && session.getState() == OtaState.OtaUpload && device.getReceivedBytes() > 5000, 120_000_000));
+            device.dropLink();
+        }
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+
+        assertNotNull(listener.error);
+        assertEquals(2, session.getStats().getRetries());
+        assertEquals(0, device.getInstalls());
+    }
+
+    @Test
+    public void checkpointLetsNextSessionContinue() {
+        profile.setResumeSupported(true);
+        byte[] firmware = TestImages.gbl(100000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        CheckpointStore store = new CheckpointStore.InMemory();
+        OtaSession first = Session(device, firmware, new OtaConfig().setMaxRetries(0));
+        first.setCheckpointStore(store);
+
+        first.start();
+        DropLinkAfter(device, 50000);
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+        assertNotNull(listener.error);
+        assertNotNull(store.load(device.getAddress()));
+
+        OtaSession second = Session(device, firmware, new OtaConfig());
+        second.setCheckpointStore(store);
+        RunToCompletion(second);
+
+        // device stayed in DFU mode, no second reset
+        assertEquals(1, device.getDfuResets());
+        assertTrue(second.getStats().getResumedBytes() > 40000);
+        assertArrayEquals(firmware, device.getApplication());
+        assertNull(store.load(device.getAddress()));
+    }
+
+    @Test
+    public void verifiedUploadResendsOnlyFailedBlocks() {
+        profile.setResumeSupported(true).setPacketLossRate(0.002);
+        byte[] firmware = TestImages.gbl(200000);
+        // the address seeds the loss pattern, this one drops packets in one block
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0], "0B:00:00:00:01:02");
+
+        OtaSessionStats stats = RunToCompletion(device, firmware, new OtaConfig().setUploadMode(UploadMode.Verified)).getStats();
+
+        assertEquals(UploadMode.Verified, stats.getUploadMode());
+        assertTrue(stats.getBlocksRetransmitted() > 0);
+        assertTrue(stats.getBytesRetransmitted() < firmware.length);
+        assertEquals(0, stats.getRetries());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void verifiedUploadAcknowledgesBlocksWithoutProgressCharacteristic() {
+        byte[] firmware = TestImages.gbl(100000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        SimulatedBootloader other = new SimulatedBootloader(scheduler, profile, new byte[0]);
+
+        long start = scheduler.uptimeMillis();
+        OtaSession session = RunToCompletion(device, firmware, new OtaConfig().setUploadMode(UploadMode.Verified));
+        long blockMillis = scheduler.uptimeMillis() - start;
+        start = scheduler.uptimeMillis();
+        RunToCompletion(other, firmware, new OtaConfig().setUploadMode(UploadMode.Acknowledged));
+        long acknowledgedMillis = scheduler.uptimeMillis() - start;
+
+        assertEquals(UploadMode.Verified, session.getStats().getUploadMode());
+        assertArrayEquals(firmware, device.getApplication());
+        // one response per block instead of one per write
+        assertTrue(blockMillis * 2 < acknowledgedMillis);
+    }
+
+    @Test
+    public void rejectedBlockAcknowledgedImageIsSentAgainAcknowledged() {
+        profile.setPacketLossRate(0.01);
+        byte[] firmware = TestImages.gbl(50000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0], "0B:00:00:00:01:03");
+
+        OtaSessionStats stats = RunToCompletion(device, firmware, new OtaConfig().setUploadMode(UploadMode.Verified)).getStats();
+
+        assertEquals(UploadMode.Acknowledged, stats.getUploadMode());
+        assertEquals(0, stats.getRetries());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void streamedUploadWithLostPacketIsRejectedByBootloader() {
+        profile.setPacketLossRate(0.01);
+        byte[] firmware = TestImages.gbl(60000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+
+        RunToFailure(session);
+
+        assertEquals(0, device.getInstalls());
+    }
+
+    static byte[] Patch(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GblDelta.writePatch(new ByteArrayImage(base), new ByteArrayImage(target), out);
+        return out.toByteArray();
+    }
+
+    private long InstallWithReconnectDelay(long reconnectDelayMillis, boolean scan) {
+        byte[] firmware = TestImages.gbl(20000);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware,
+                new OtaConfig().setReconnectDelayMillis(reconnectDelayMillis).setConnectOnAdvertisement(scan));
+        DeviceTable table = new DeviceTable(new AdvertisementFilter().setServiceUuid(OtaProtocol.OTA_SERVICE));
+        table.setListener(seen -> session.onAdvertising(seen.isDfuMode()));
+        SimulatedScanner scanner = new SimulatedScanner(scheduler, table, 100_000, 200_000);
+        scanner.addDevice(device, "Sensor", -60);
+        if (scan) {
+            scanner.start();
+        }
+        long start = scheduler.uptimeMillis();
+
+        RunToCompletion(session);
+        scanner.stop();
+
+        assertEquals(1, device.getDfuResets());
+        assertArrayEquals(firmware, device.getApplication());
+        return scheduler.uptimeMillis() - start;
+    }
+
+    @Test
+    public void reconnectsWhenBootloaderAdvertises() {
+        long fixedDelay = InstallWithReconnectDelay(2000, false);
+        setUp();
+        long advertised = InstallWithReconnectDelay(0, true);
+
+        // the 1.2 s reboot is waited out by the advertisement, not by a guessed delay
+        assertTrue(advertised + 500 < fixedDelay);
+    }
+
+    @Test
+    public void cachedImageUploadsWithItsStoredMetadata() throws IOException {
+        byte[] firmware = TestImages.gbl(30000, 4);
+        ImageCache cache = new ImageCache(Files.createTempDirectory("images").toFile(), 1024 * 1024);
+        CachedImage image = cache.put(new ByteArraySource(firmware));
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, image, new OtaConfig());
+
+        RunToCompletion(session);
+
+        assertSame(image.getGblInfo(), session.getGblInfo());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void uploadsPatchWhenDeviceRunsBaseVersion() throws IOException {
+        profile.setDeltaSupported(true);
+        byte[] program = TestImages.random(100000);
+        byte[] base = TestImages.gbl(program, 1);
+        byte[] target = TestImages.gbl(TestImages.nextBuild(program), 2);
+        byte[] patch = Patch(base, target);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, base);
+        OtaSession session = Session(device, target, new OtaConfig());
+        session.setDeltaPatch(new ByteArrayImage(patch));
+
+        RunToCompletion(session);
+
+        assertTrue(session.getStats().isDeltaUpload());
+        assertEquals(patch.length, session.getStats().getImageSize());
+        assertArrayEquals(target, device.getApplication());
+    }
+
+    @Test
+    public void sendsFullImageToOtherVersions() throws IOException {
+        profile.setDeltaSupported(true);
+        byte[] program = TestImages.random(50000);
+        byte[] target = TestImages.gbl(TestImages.nextBuild(program), 3);
+        byte[] patch = Patch(TestImages.gbl(program, 2), target);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, TestImages.gbl(program, 1));
+        OtaSession session = Session(device, target, new OtaConfig());
+        session.setDeltaPatch(new ByteArrayImage(patch));
+
+        RunToCompletion(session);
+
+        assertFalse(session.getStats().isDeltaUpload());
+        assertEquals(target.length, session.getStats().getImageSize());
+        assertArrayEquals(target, device.getApplication());
+    }
+
+    @Test
+    public void fallsBackToFullImageWhenBootloaderRefusesPatch() throws IOException {
+        byte[] program = TestImages.random(50000);
+        byte[] base = TestImages.gbl(program, 1);
+        byte[] target = TestImages.gbl(TestImages.nextBuild(program), 2);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, base);
+        OtaSession session = Session(device, target, new OtaConfig());
+        session.setDeltaPatch(new ByteArrayImage(Patch(base, target)));
+
+        RunToCompletion(session);
+
+        assertFalse(session.getStats().isDeltaUpload());
+        assertEquals(1, device.getDfuResets());
+        assertArrayEquals(target, device.getApplication());
+    }
+
+    static byte[] Compressed(byte[] gbl) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GblCompression.writeCompressed(new ByteArrayImage(gbl), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void uploadsCompressedImageWhenBootloaderDecompresses() throws IOException {
+        profile.setLz4Supported(true);
+        byte[] firmware = TestImages.gbl(TestImages.firmwareLike(100000), 2);
+        byte[] compressed = Compressed(firmware);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+        session.setCompressedImage(new ByteArrayImage(compressed));
+
+        RunToCompletion(session);
+
+        assertTrue(session.getStats().isCompressedUpload());
+        assertEquals(compressed.length, session.getStats().getImageSize());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+
+    @Test
+    public void fallsBackToRawImageWhenBootloaderRefusesCompression() throws IOException {
+        byte[] firmware = TestImages.gbl(TestImages.firmwareLike(60000), 2);
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSession session = Session(device, firmware, new OtaConfig());
+        session.setCompressedImage(new ByteArrayImage(Compressed(firmware)));
+
+        RunToCompletion(session);
+
+        assertFalse(session.getStats().isCompressedUpload());
+        assertEquals(firmware.length, session.getStats().getImageSize());
+        assertEquals(1, device.getDfuResets());
+        assertArrayEquals(firmware, device.getApplication());
+    }
+}
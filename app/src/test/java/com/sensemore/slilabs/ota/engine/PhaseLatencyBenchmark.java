@@ -0,0 +1,61 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time per phase of a full update with the former fixed waits against event driven
+ * transitions, in virtual link time.
+ */
+public class PhaseLatencyBenchmark {
+
+    private static final OtaState[] PHASES = {OtaState.Connecting, OtaState.ResetDFU, OtaState.Reconnecting,
+            OtaState.OtaBegin, OtaState.OtaUpload, OtaState.OtaEnd, OtaState.Disconnecting};
+
+    static OtaSessionStats Update(OtaConfig config) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LinkProfile profile = new LinkProfile();
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+        OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+        OtaSession session = new OtaSession(new SimulatedTransport(scheduler, device, profile), scheduler,
+                TestImages.gbl(128 * 1024), config, listener);
+        session.start();
+        assertTrue(scheduler.runUntil(listener::finished, 120_000_000));
+        assertNull(listener.error);
+        assertEquals(1, device.getInstalls());
+        return session.getStats();
+    }
+
+    static void Print(String name, OtaSessionStats stats) {
+        StringBuilder line = new StringBuilder(name);
+        for (OtaState phase : PHASES) {
+            line.append(',').append(stats.getPhaseMillis(phase));
+        }
+        System.out.println(line.append(',').append(stats.getSessionMillis()));
+    }
+
+    @Test
+    public void eventDrivenFlowRemovesIdleTime() {
+        OtaSessionStats fixed = Update(new OtaConfig().setReconnectDelayMillis(5000).setBeginDelayMillis(500)
+                .setEndDelayMillis(1500).setRebootDelayMillis(500));
+        OtaSessionStats events = Update(new OtaConfig());
+
+        StringBuilder header = new StringBuilder("flow");
+        for (OtaState phase : PHASES) {
+            header.append(',').append(phase.name()).append("_ms");
+        }
+        System.out.println(header.append(",total_ms"));
+        Print("fixed_delays", fixed);
+        Print("event_driven", events);
+
+        // fixed waits add up to 7.5 s, the device reboot they covered takes 1.2 s
+        assertTrue(fixed.getSessionMillis() - events.getSessionMillis() > 6000);
+        assertTrue(events.getPhaseMillis(OtaState.OtaBegin) < 200);
+    }
+}
@@ -0,0 +1,96 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time until a 256 KB image is installed with each upload mode while the bootloader drops
+ * data packets, in virtual link time. A streamed upload that loses a packet is only caught
+ * by 0x03, it is repeated from scratch with a new session. {@code Verified_stock} runs
+ * Verified against a stock AppLoader without progress characteristic, each block ends in
+ * a write with response.
+ */
+public class ReliableUploadBenchmark {
+
+    private static final int MAX_SESSIONS = 20;
+
+    static class Result {
+        int sessions;
+        long millis;
+        long packets;
+        boolean installed;
+    }
+
+    static Result Install(UploadMode mode, boolean progress, double lossRate) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LinkProfile profile = new LinkProfile().setResumeSupported(progress).setPacketLossRate(lossRate);
+        byte[] firmware = TestImages.gbl(256 * 1024);
+        // same address for every mode, the loss pattern only changes with the session
+        SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, new byte[0], "0B:00:00:00:02:00");
+        Result result = new Result();
+        long start = scheduler.uptimeMillis();
+        while (!result.installed && result.sessions < MAX_SESSIONS) {
+            OtaSessionTest.RecordingListener listener = new OtaSessionTest.RecordingListener();
+            // a new link loses other packets than the last one
+            profile.setLossSeed(result.sessions + 1);
+            SimulatedTransport transport = new SimulatedTransport(scheduler, device, profile);
+            OtaSession session = new OtaSession(transport, scheduler, firmware,
+                    new OtaConfig().setUploadMode(mode).setMaxRetries(0), listener);
+            session.start();
+            assertTrue(scheduler.runUntil(listener::finished, 600_000_000));
+            result.sessions++;
+            result.packets += transport.getPacketsSent();
+            result.installed = listener.complete;
+        }
+        result.millis = scheduler.uptimeMillis() - start;
+        assertEquals(result.installed, Arrays.equals(firmware, device.getApplication()));
+        return result;
+    }
+
+    @Test
+    public void verifiedBlocksKeepStreamingSpeedUnderLoss() {
+        double[] lossRates = {0, 0.0005, 0.002, 0.01};
+        UploadMode[] modes = {UploadMode.Stream, UploadMode.Acknowledged, UploadMode.Verified, UploadMode.Verified};
+        String[] names = {"Stream", "Acknowledged", "Verified", "Verified_stock"};
+        Result[][] results = new Result[lossRates.length][modes.length];
+        System.out.println("loss_rate,mode,installed,sessions,total_ms,packets_sent");
+        for (int i = 0; i < lossRates.length; i++) {
+            for (int m = 0; m < modes.length; m++) {
+                Result result = Install(modes[m], m != 3, lossRates[i]);
+                results[i][m] = result;
+                System.out.println(lossRates[i] + "," + names[m] + "," + result.installed + "," + result.sessions
+                        + "," + result.millis + "," + result.packets);
+            }
+        }
+
+        int stream = 0;
+        int acknowledged = 1;
+        int verified = 2;
+        int stock = 3;
+        // clean link: block reads cost little next to streaming, waiting for every response a lot
+        assertTrue(results[0][verified].millis < results[0][stream].millis * 1.25);
+        assertTrue(results[0][verified].millis * 2 < results[0][acknowledged].millis);
+        // a stock AppLoader pays one response per block, not one per write
+        assertTrue(results[0][stock].millis < results[0][stream].millis * 1.25);
+        assertTrue(results[0][stock].millis * 2 < results[0][acknowledged].millis);
+        for (int i = 0; i < lossRates.length; i++) {
+            assertTrue(results[i][verified].installed);
+            assertTrue(results[i][acknowledged].installed);
+            // a rejected image is sent again with every write acknowledged, in the same session
+            assertTrue(results[i][stock].installed);
+            assertEquals(1, results[i][stock].sessions);
+            assertEquals(1, results[i][verified].sessions);
+            assertTrue(results[i][verified].millis < results[i][acknowledged].millis);
+        }
+        // at 1 % a 256 KB stream practically never arrives whole
+        assertTrue(results[3][verified].millis < results[3][stream].millis);
+    }
+}
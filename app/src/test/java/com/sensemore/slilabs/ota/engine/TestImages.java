@@ -0,0 +1,110 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.GblWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public final class TestImages {
+
+    private TestImages() {
+    }
+
+    public static byte[] random(int size) {
+        byte[] image = new byte[size];
+        new Random(size).nextBytes(image);
+        return image;
+    }
+
+    // Program that compresses like real Cortex-M code: repeated instruction patterns with
+    // varying registers and offsets, literal pools, string tables and erased 0xFF padding.
+    public static byte[] firmwareLike(int size) {
+        Random random = new Random(size);
+        byte[] program = new byte[size];
+        byte[][] vocabulary = new byte[64][];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = new byte[2 + 2 * random.nextInt(4)];
+            random.nextBytes(vocabulary[i]);
+        }
+        String[] words = {"error", "sensor", "timeout", "config", "invalid ", "state", "ble_", "flash", "%d\n", "init"};
+        int position = 0;
+        while (position < size) {
+            int kind = random.nextInt(20);
+            if (kind < 15) {
+                // a run of instructions, an operand byte varies
+                for (int n = 4 + random.nextInt(24); n > 0 && position < size; n--) {
+                    byte[] instruction = vocabulary[random.nextInt(vocabulary.length)];
+                    for (int i = 0; i < instruction.length && position < size; i++) {
+                        program[position++] = i == 0 ? (byte) random.nextInt(16) : instruction[i];
+                    }
+                }
+            } else if (kind < 17) {
+                // literal pool, addresses into flash and RAM
+                for (int n = 1 + random.nextInt(6); n > 0 && position + 4 <= size; n--) {
+                    int literal = (random.nextBoolean() ? 0x00004000 : 0x20000000) + random.nextInt(0x10000);
+                    for (int i = 0; i < 4; i++) {
+                        program[position++] = (byte) (literal >>> (8 * i));
+                    }
+                }
+            } else if (kind < 19) {
+                for (int n = 1 + random.nextInt(4); n > 0 && position < size; n--) {
+                    byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII);
+                    for (int i = 0; i < word.length && position < size; i++) {
+                        program[position++] = word[i];
+                    }
+                }
+                if (position < size) {
+                    program[position++] = 0;
+                }
+            } else {
+                for (int n = random.nextInt(256); n > 0 && position < size; n--) {
+                    program[position++] = (byte) 0xFF;
+                }
+            }
+        }
+        return program;
+    }
+
+    // GBL file with application info and programSize bytes of random program data
+    public static byte[] gbl(int programSize) {
+        return gbl(programSize, 1);
+    }
+
+    public static byte[] gbl(int programSize, int applicationVersion) {
+        return gbl(random(programSize), applicationVersion);
+    }
+
+    public static byte[] gbl(byte[] program, int applicationVersion) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(program.length + 128);
+            GblWriter writer = new GblWriter(out);
+            writer.writeHeader(0);
+            writer.writeApplicationInfo(0x20, applicationVersion, 0, new byte[16]);
+            int address = 0x4000;
+            for (int offset = 0; offset < program.length; offset += 8192) {
+                int length = Math.min(8192, program.length - offset);
+                writer.writeProgramData(address + offset, program, offset, length);
+            }
+            writer.writeEnd();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // program of the next firmware build: a changed function and inserted code that shifts the rest
+    public static byte[] nextBuild(byte[] program) {
+        byte[] next = new byte[program.length + 512];
+        int insertAt = program.length / 3;
+        System.arraycopy(program, 0, next, 0, insertAt);
+        byte[] inserted = random(512);
+        System.arraycopy(inserted, 0, next, insertAt, inserted.length);
+        System.arraycopy(program, insertAt, next, insertAt + inserted.length, program.length - insertAt);
+        byte[] changed = random(2048 + 1);
+        System.arraycopy(changed, 0, next, next.length * 2 / 3, 2048);
+        return next;
+    }
+}
@@ -0,0 +1,194 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArraySource;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upload phase throughput of the credit based pipeline against the former
+ * sleep-and-retry loop, measured in virtual link time. The last profiles are ones a fixed
+ * window of 4 gets wrong: a stack queue of 2 refuses every other write, a link draining
+ * 20 packets per event behind 5 ms of write callback latency is left idle.
+ */
+public class UploadThroughputBenchmark {
+
+    private static final int IMAGE_SIZE = 256 * 1024;
+    private static final int PAYLOAD = 247;
+
+    // former OtaUpload: write until rejected, then sleep 5 ms
+    static class SleepRetryUpload implements Runnable {
+        final OtaTransport transport;
+        final VirtualScheduler scheduler;
+        final byte[] firmware;
+        int index;
+
+        SleepRetryUpload(OtaTransport transport, VirtualScheduler scheduler, byte[] firmware) {
+            this.transport = transport;
+            this.scheduler = scheduler;
+            this.firmware = firmware;
+        }
+
+        @Override
+        public void run() {
+            while (index < firmware.length) {
+                byte[] payload = new byte[PAYLOAD];
+                if (index + PAYLOAD >= firmware.length) {
+                    System.arraycopy(firmware, index, payload, 0, firmware.length - index);
+                } else {
+                    payload = Arrays.copyOfRange(firmware, index, index + PAYLOAD);
+                }
+                if (!transport.writeData(payload)) {
+                    scheduler.postDelayed(this, 5);
+                    return;
+                }
+                index += PAYLOAD;
+            }
+        }
+    }
+
+    static class Link implements OtaTransport.Callback {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedBootloader device;
+        final SimulatedTransport transport;
+        Runnable onData;
+        boolean ready;
+
+        Link(LinkProfile profile) {
+            device = new SimulatedBootloader(scheduler, profile, new byte[0]);
+            device.bootIntoDfu();
+            transport = new SimulatedTransport(scheduler, device, profile);
+            transport.setCallback(this);
+            transport.connect();
+            scheduler.runUntil(() -> ready, 10_000_000);
+        }
+
+        @Override
+        public void onConnected() {
+            transport.writeControl(OtaProtocol.CONTROL_BEGIN);
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onServicesDiscovered(boolean success, boolean dfuMode) {
+        }
+
+        @Override
+        public void onControlWritten(byte opcode, boolean success) {
+            transport.requestMtu(PAYLOAD + 3);
+        }
+
+        @Override
+        public void onDataWritten(boolean success) {
+            if (onData != null) {
+                onData.run();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, boolean success) {
+            ready = true;
+        }
+
+        @Override
+        public void onPhyUpdated(int txPhy, boolean success) {
+        }
+
+        @Override
+        public void onReceivedOffsetRead(long offset, long crc, boolean success) {
+        }
+
+        @Override
+        public void onApplicationVersionRead(int version, boolean success) {
+        }
+    }
+
+    static double SleepRetryBytesPerSecond(LinkProfile profile, byte[] firmware) {
+        Link link = new Link(profile);
+        long start = link.scheduler.nowMicros();
+        SleepRetryUpload upload = new SleepRetryUpload(link.transport, link.scheduler, firmware);
+        link.scheduler.post(upload);
+        link.scheduler.runUntil(() -> link.device.getReceivedBytes() >= firmware.length, 600_000_000);
+        return firmware.length * 1e6 / (link.scheduler.nowMicros() - start);
+    }
+
+    static class Result {
+        double bytesPerSecond;
+        int writesRejected;
+    }
+
+    static Result Pipeline(LinkProfile profile, byte[] firmware, OtaConfig config) {
+        Link link = new Link(profile);
+        long start = link.scheduler.nowMicros();
+        boolean[] done = new boolean[1];
+        UploadPipeline pipeline = new UploadPipeline(link.transport, link.scheduler, new ByteArraySource(firmware), PAYLOAD, config, new UploadPipeline.Listener() {
+            @Override
+            public void onProgress(int bytesAcked, int totalBytes) {
+            }
+
+            @Override
+            public void onUploadComplete() {
+                done[0] = true;
+            }
+
+            @Override
+            public void onUploadFailed(String message) {
+                fail(message);
+            }
+        });
+        link.onData = pipeline::onDataWritten;
+        pipeline.start();
+        link.scheduler.runUntil(() -> done[0] && link.device.getReceivedBytes() >= firmware.length, 600_000_000);
+        assertEquals(firmware.length, link.device.getReceivedBytes());
+        Result result = new Result();
+        result.bytesPerSecond = firmware.length * 1e6 / (link.scheduler.nowMicros() - start);
+        result.writesRejected = pipeline.getWritesRejected();
+        return result;
+    }
+
+    @Test
+    public void pipelineOutperformsSleepRetry() {
+        byte[] firmware = TestImages.random(IMAGE_SIZE);
+        LinkProfile[] profiles = {
+                new LinkProfile().setConnectionIntervalMicros(7500).setPacketsPerInterval(6),
+                new LinkProfile().setConnectionIntervalMicros(15000).setPacketsPerInterval(4),
+                new LinkProfile().setConnectionIntervalMicros(30000).setPacketsPerInterval(4),
+                new LinkProfile().setConnectionIntervalMicros(7500).setPacketsPerInterval(6).setStackQueueCapacity(8),
+                new LinkProfile().setConnectionIntervalMicros(15000).setPacketsPerInterval(4).setStackQueueCapacity(8),
+                new LinkProfile().setConnectionIntervalMicros(7500).setPacketsPerInterval(6).setStackQueueCapacity(2),
+                new LinkProfile().setConnectionIntervalMicros(7500).setPacketsPerInterval(20).setStackQueueCapacity(16)
+                        .setHostLatencyMicros(5000),
+        };
+        Result[] fixed = new Result[profiles.length];
+        Result[] adaptive = new Result[profiles.length];
+        System.out.println("interval_us,packets,stack_queue,host_latency_us,sleep_retry_Bps,pipeline_fixed4_Bps,pipeline_adaptive_Bps,"
+                + "fixed4_rejected,adaptive_rejected");
+        for (int i = 0; i < profiles.length; i++) {
+            LinkProfile profile = profiles[i];
+            double legacy = SleepRetryBytesPerSecond(profile, firmware);
+            fixed[i] = Pipeline(profile, firmware, new OtaConfig().setAdaptiveWindow(false));
+            adaptive[i] = Pipeline(profile, firmware, new OtaConfig());
+            System.out.printf("%d,%d,%d,%d,%.0f,%.0f,%.0f,%d,%d%n", profile.getConnectionIntervalMicros(), profile.getPacketsPerInterval(),
+                    profile.getStackQueueCapacity(), profile.getHostLatencyMicros(), legacy, fixed[i].bytesPerSecond,
+                    adaptive[i].bytesPerSecond, fixed[i].writesRejected, adaptive[i].writesRejected);
+            assertTrue(adaptive[i].bytesPerSecond >= legacy);
+            assertTrue(adaptive[i].bytesPerSecond >= fixed[i].bytesPerSecond * 0.99);
+        }
+        // stack queue smaller than the window: the window shrinks to it instead of hitting it
+        int small = profiles.length - 2;
+        assertTrue(adaptive[small].writesRejected * 10 < fixed[small].writesRejected);
+        // fast link: the window grows until the link is the bottleneck
+        int fast = profiles.length - 1;
+        assertTrue(adaptive[fast].bytesPerSecond > fixed[fast].bytesPerSecond * 1.2);
+    }
+}
@@ -0,0 +1,157 @@
+package com.sensemore.slilabs.ota.engine;
+
+import com.sensemore.slilabs.ota.engine.image.ByteArrayImage;
+import com.sensemore.slilabs.ota.engine.image.FirmwareImage;
+import com.sensemore.slilabs.ota.engine.scan.AdvertisementFilter;
+import com.sensemore.slilabs.ota.engine.scan.DeviceTable;
+import com.sensemore.slilabs.ota.engine.sim.LinkProfile;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedBootloader;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedRadio;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedScanner;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransport;
+import com.sensemore.slilabs.ota.engine.sim.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * A batch updated one device at a time: without a check, verifying each device before the
+ * next upload starts, and verifying while the next upload runs, with the phone discovering
+ * the rebooted application from scratch or from its GATT cache.
+ */
+public class VerificationBenchmark {
+
+    private static final int DEVICES = 8;
+
+    static class Result {
+        double wallSeconds;
+        long verifyMillis;
+        int verified;
+    }
+
+    static class Batch implements OtaJobScheduler.Listener {
+        final List<String> pending;
+        final boolean serial;
+        final FirmwareImage image;
+        OtaJobScheduler fleet;
+        int finished;
+        int failed;
+
+        Batch(List<String> addresses, boolean serial, FirmwareImage image) {
+            this.pending = new ArrayList<>(addresses);
+            this.serial = serial;
+            this.image = image;
+        }
+
+        void SubmitNext() {
+            if (!pending.isEmpty()) {
+                fleet.submit(pending.remove(0), image, 0);
+            }
+        }
+
+        @Override
+        public void onJobStateChanged(OtaJob job, OtaState state) {
+        }
+
+        @Override
+        public void onJobProgress(OtaJob job, int bytesSent, int totalBytes) {
+        }
+
+        @Override
+        public void onJobFinished(OtaJob job) {
+            finished++;
+            if (job.getStatus() != OtaJob.Status.Succeeded) {
+                failed++;
+            }
+            if (serial) {
+                SubmitNext();
+            }
+        }
+
+        @Override
+        public void onIdle() {
+        }
+    }
+
+    // serial submits the next device once the previous one is verified
+    static Result Run(boolean verify, boolean serial, boolean gattCached) {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        LinkProfile profile = new LinkProfile().setGattCached(gattCached);
+        SimulatedRadio radio = new SimulatedRadio();
+        Map<String, SimulatedBootloader> devices = new HashMap<>();
+        List<String> addresses = new ArrayList<>();
+        DeviceTable table = new DeviceTable(new AdvertisementFilter().setServiceUuid(OtaProtocol.OTA_SERVICE));
+        SimulatedScanner scanner = new SimulatedScanner(scheduler, table, 100_000, 200_000);
+        for (int i = 0; i < DEVICES; i++) {
+            String address = String.format(Locale.ROOT, "0D:00:00:00:00:%02X", i);
+            SimulatedBootloader device = new SimulatedBootloader(scheduler, profile, TestImages.gbl(1000, 1), address);
+            devices.put(address, device);
+            addresses.add(address);
+            scanner.addDevice(device, "Sensor", -60);
+        }
+        Batch batch = new Batch(addresses, serial, new ByteArrayImage(TestImages.gbl(64 * 1024, 2)));
+        OtaConfig config = new OtaConfig().setConnectOnAdvertisement(true).setVerifyAfterUpdate(verify);
+        batch.fleet = new OtaJobScheduler((address, linkScheduler) -> new SimulatedTransport(scheduler, devices.get(address), profile, radio),
+                scheduler, config, 1, batch);
+        table.setListener(seen -> batch.fleet.onAdvertising(seen.getAddress(), seen.isDfuMode()));
+        scanner.start();
+
+        if (serial) {
+            batch.SubmitNext();
+        } else {
+            while (!batch.pending.isEmpty()) {
+                batch.SubmitNext();
+            }
+        }
+        assertTrue(scheduler.runUntil(() -> batch.finished == DEVICES, 3_600_000_000L));
+        scanner.stop();
+        assertEquals(0, batch.failed);
+
+        Result result = new Result();
+        result.wallSeconds = scheduler.uptimeMillis() / 1000.0;
+        for (OtaJob job : batch.fleet.getJobs()) {
+            OtaSessionStats stats = job.getSession().getStats();
+            result.verifyMillis += stats.getVerifyMillis();
+            if (stats.getVerification() == OtaVerifier.Result.Verified) {
+                result.verified++;
+            }
+        }
+        result.verifyMillis /= DEVICES;
+        return result;
+    }
+
+    @Test
+    public void overlappedVerificationAddsLittleToTheBatch() {
+        Result none = Run(false, false, false);
+        Result serial = Run(true, true, false);
+        Result overlapped = Run(true, false, false);
+        Result cached = Run(true, false, true);
+
+        System.out.println("verification,devices,wall_s,verify_ms,verified");
+        Print("none", none);
+        Print("serial_full_discovery", serial);
+        Print("overlapped_full_discovery", overlapped);
+        Print("overlapped_cached_discovery", cached);
+
+        assertEquals(0, none.verified);
+        assertEquals(DEVICES, serial.verified);
+        assertEquals(DEVICES, overlapped.verified);
+        assertEquals(DEVICES, cached.verified);
+        // only the last device's check is left once its upload is done
+        assertTrue(overlapped.wallSeconds < serial.wallSeconds);
+        assertTrue(overlapped.wallSeconds - none.wallSeconds < serial.wallSeconds - none.wallSeconds);
+        // the layout cached from the connect before the DFU reset spares a discovery
+        assertTrue(cached.verifyMillis < overlapped.verifyMillis);
+    }
+
+    private static void Print(String name, Result result) {
+        System.out.printf(Locale.ROOT, "%s,%d,%.1f,%d,%d%n", name, DEVICES, result.wallSeconds, result.verifyMillis, result.verified);
+    }
+}
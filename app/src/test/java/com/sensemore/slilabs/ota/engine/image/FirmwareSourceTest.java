@@ -0,0 +1,150 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import com.sensemore.slilabs.ota.engine.FirmwareChunker;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FirmwareSourceTest {
+
+    private static byte[] image(int size) {
+        byte[] image = new byte[size];
+        new Random(size).nextBytes(image);
+        return image;
+    }
+
+    private static byte[] Drain(FirmwareSource source, int payloadSize) throws IOException {
+        FirmwareChunker chunker = new FirmwareChunker(source, payloadSize, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (chunker.hasNext()) {
+            byte[] payload = chunker.peek();
+            out.write(payload, 0, payload.length);
+            chunker.advance();
+            chunker.release();
+        }
+        return out.toByteArray();
+    }
+
+    // provider stream that hands out a few bytes per read and under-reports available()
+    static class TrickleStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        TrickleStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, 100), data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return Math.min(100, data.length - position);
+        }
+    }
+
+    @Test
+    public void channelSourceMapsFile() throws IOException {
+        byte[] firmware = image(100_000);
+        File file = File.createTempFile("firmware", ".gbl");
+        file.deleteOnExit();
+        Files.write(file.toPath(), firmware);
+
+        try (ChannelSource source = new ChannelSource(FileChannel.open(file.toPath(), StandardOpenOption.READ))) {
+            assertTrue(source.isMapped());
+            assertEquals(firmware.length, source.getDeclaredLength());
+            assertArrayEquals(firmware, Drain(source, 244));
+        }
+    }
+
+    @Test
+    public void mappedImageSourcesReadIndependently() throws IOException {
+        byte[] firmware = image(50_000);
+        File file = File.createTempFile("firmware", ".gbl");
+        file.deleteOnExit();
+        Files.write(file.toPath(), firmware);
+
+        MappedFileImage image = new MappedFileImage(file);
+        FirmwareSource first = image.open();
+        FirmwareSource second = image.open();
+        byte[] head = new byte[1000];
+        assertEquals(1000, first.read(head, 0, head.length));
+        // second source starts at zero regardless of the first one's position
+        assertArrayEquals(firmware, Drain(second, 247));
+        assertEquals(1000, first.getPosition());
+        assertEquals(firmware.length, image.getLength());
+    }
+
+    @Test
+    public void readAheadSourceReadsWholeStreamWithSmallBuffer() throws IOException {
+        byte[] firmware = image(70_001);
+        try (ReadAheadSource source = new ReadAheadSource(new TrickleStream(firmware), firmware.length, 1024)) {
+            assertArrayEquals(firmware, Drain(source, 247));
+        }
+    }
+
+    @Test
+    public void chunkerResizesPayloadsWithoutLosingPeekedBytes() throws IOException {
+        byte[] firmware = image(10_000);
+        for (int replay : new int[]{0, 4096}) {
+            FirmwareChunker chunker = new FirmwareChunker(new ByteArraySource(firmware), 247, 4, replay);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int payloads = 0;
+            while (chunker.hasNext()) {
+                if (payloads % 7 == 3) {
+                    // peeked payload is sliced again at the new size
+                    chunker.peek();
+                    chunker.setPayloadSize(payloads % 2 == 0 ? 247 : 100 + payloads);
+                }
+                byte[] payload = chunker.peek();
+                assertTrue(payload.length <= chunker.getPayloadSize());
+                out.write(payload, 0, payload.length);
+                chunker.advance();
+                chunker.release();
+                if (replay > 0 && payloads % 5 == 0) {
+                    chunker.mark();
+                }
+                payloads++;
+            }
+            assertArrayEquals(firmware, out.toByteArray());
+            assertEquals(firmware.length, chunker.getOffset());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedStreamIsRejected() throws IOException {
+        byte[] firmware = image(5000);
+        try (ReadAheadSource source = new ReadAheadSource(new ByteArrayInputStream(firmware, 0, 4000), firmware.length, 1024)) {
+            Drain(source, 247);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyImageIsRejected() throws IOException {
+        Drain(new ByteArraySource(new byte[0]), 247);
+    }
+}
@@ -0,0 +1,147 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import com.sensemore.slilabs.ota.engine.TestImages;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GblCompressionTest {
+
+    private static byte[] Compress(byte[] gbl) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long length = GblCompression.writeCompressed(new ByteArrayImage(gbl), out);
+        assertEquals(out.size(), length);
+        return out.toByteArray();
+    }
+
+    private static byte[] Decompress(byte[] compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GblCompression.decompress(new ByteArraySource(compressed), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void compressedFileRebuildsOriginal() throws IOException {
+        byte[] gbl = TestImages.gbl(TestImages.firmwareLike(300000), 2);
+
+        byte[] compressed = Compress(gbl);
+
+        assertArrayEquals(gbl, Decompress(compressed));
+        assertTrue("compressed " + compressed.length + " of " + gbl.length, compressed.length < gbl.length * 3 / 4);
+    }
+
+    @Test
+    public void compressedFileIsValidGbl() throws IOException {
+        byte[] compressed = Compress(TestImages.gbl(TestImages.firmwareLike(50000), 7));
+
+        GblParser parser = new GblParser();
+        parser.update(compressed, 0, compressed.length);
+        GblInfo info = parser.finish();
+
+        assertTrue(info.isCompressed());
+        assertEquals(7, info.getApplicationVersion());
+    }
+
+    @Test
+    public void incompressibleChunksStayRaw() throws IOException {
+        byte[] gbl = TestImages.gbl(40000);
+
+        byte[] compressed = Compress(gbl);
+
+        // same tags, only the end tag CRC could differ and doesn't
+        assertArrayEquals(gbl, compressed);
+    }
+
+    @Test
+    public void largeProgramTagsAreSplitIntoChunks() throws IOException {
+        byte[] program = TestImages.firmwareLike(100000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GblWriter writer = new GblWriter(out);
+        writer.writeHeader(0);
+        writer.writeProgramData(0x4000, program, 0, program.length);
+        writer.writeEnd();
+
+        byte[] rebuilt = Decompress(Compress(out.toByteArray()));
+
+        // the program comes back whole, cut into chunk sized tags
+        assertArrayEquals(program, Program(rebuilt));
+        assertEquals(GblParser.TAG_PROG, GblParser.LittleEndian(rebuilt, 16));
+        assertEquals(4 + GblCompression.CHUNK_SIZE, GblParser.LittleEndian(rebuilt, 20));
+        assertEquals(0x4000, GblParser.LittleEndian(rebuilt, 24));
+    }
+
+    @Test
+    public void byteByByteReadsGiveSameFile() throws IOException {
+        byte[] gbl = TestImages.gbl(TestImages.firmwareLike(60000), 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] one = new byte[1];
+        try (GblCompressingSource source = new GblCompressingSource(new ByteArraySource(gbl))) {
+            while (source.read(one, 0, 1) >= 0) {
+                out.write(one[0]);
+            }
+            assertEquals(60000, source.getProgramBytes());
+            assertEquals(out.size(), source.getPosition());
+        }
+
+        assertArrayEquals(Compress(gbl), out.toByteArray());
+    }
+
+    @Test(expected = GblFormatException.class)
+    public void refusesSignedFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GblWriter writer = new GblWriter(out);
+        writer.writeHeader(GblParser.TYPE_SIGNED);
+        writer.writeProgramData(0x4000, new byte[100], 0, 100);
+        writer.writeEnd();
+
+        Compress(out.toByteArray());
+    }
+
+    @Test(expected = GblFormatException.class)
+    public void corruptSourceFailsAtEndTag() throws IOException {
+        byte[] gbl = TestImages.gbl(TestImages.firmwareLike(20000), 1);
+        gbl[gbl.length / 2] ^= 1;
+
+        Compress(gbl);
+    }
+
+    @Test
+    public void blocksRoundTripAndBadBlocksAreRefused() {
+        byte[] data = TestImages.firmwareLike(GblCompression.CHUNK_SIZE);
+        byte[] block = new byte[GblCompression.MaxCompressedLength(data.length)];
+        int length = GblCompression.compressBlock(data, 0, data.length, block, 0, new int[1 << GblCompression.HASH_BITS]);
+        byte[] restored = new byte[data.length];
+
+        assertEquals(data.length, GblCompression.decompressBlock(block, 0, length, restored, 0, restored.length));
+        assertArrayEquals(data, restored);
+        // too small a destination and a cut block
+        assertEquals(-1, GblCompression.decompressBlock(block, 0, length, restored, 0, restored.length - 1));
+        assertTrue(GblCompression.decompressBlock(block, 0, length / 2, restored, 0, restored.length) < data.length);
+        // short inputs are all literals
+        byte[] tiny = {1, 2, 3};
+        byte[] tinyBlock = new byte[GblCompression.MaxCompressedLength(tiny.length)];
+        int tinyLength = GblCompression.compressBlock(tiny, 0, tiny.length, tinyBlock, 0, new int[1 << GblCompression.HASH_BITS]);
+        assertEquals(3, GblCompression.decompressBlock(tinyBlock, 0, tinyLength, restored, 0, restored.length));
+        assertArrayEquals(tiny, Arrays.copyOf(restored, 3));
+    }
+
+    // program data of a file, concatenated in tag order
+    private static byte[] Program(byte[] gbl) {
+        ByteArrayOutputStream program = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < gbl.length) {
+            int id = GblParser.LittleEndian(gbl, offset);
+            int length = GblParser.LittleEndian(gbl, offset + 4);
+            if (id == GblParser.TAG_PROG) {
+                program.write(gbl, offset + 12, length - 4);
+            }
+            offset += 8 + length;
+        }
+        return program.toByteArray();
+    }
+}
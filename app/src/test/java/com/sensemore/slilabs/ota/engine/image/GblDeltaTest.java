@@ -0,0 +1,73 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import com.sensemore.slilabs.ota.engine.TestImages;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class GblDeltaTest {
+
+    private static byte[] Patch(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long length = GblDelta.writePatch(new ByteArrayImage(base), new ByteArrayImage(target), out);
+        assertEquals(out.size(), length);
+        return out.toByteArray();
+    }
+
+    private static byte[] Apply(byte[] base, byte[] patch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GblDelta.apply(base, new ByteArraySource(patch), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void patchRebuildsTargetAndIsSmall() throws IOException {
+        byte[] program = TestImages.random(200000);
+        byte[] base = TestImages.gbl(program, 1);
+        byte[] target = TestImages.gbl(TestImages.nextBuild(program), 2);
+
+        byte[] patch = Patch(base, target);
+
+        assertArrayEquals(target, Apply(base, patch));
+        assertTrue("patch " + patch.length + " bytes", patch.length < target.length / 20);
+    }
+
+    @Test
+    public void patchIsGblFileDescribingItsBase() throws IOException {
+        byte[] program = TestImages.random(50000);
+        byte[] base = TestImages.gbl(program, 3);
+        byte[] target = TestImages.gbl(TestImages.nextBuild(program), 4);
+
+        GblParser parser = new GblParser();
+        byte[] patch = Patch(base, target);
+        parser.update(patch, 0, patch.length);
+        GblInfo info = parser.finish();
+
+        assertTrue(info.isDelta());
+        assertEquals(4, info.getApplicationVersion());
+        assertEquals(3, info.getDeltaBaseVersion());
+        assertEquals(base.length, info.getDeltaBaseLength());
+        assertEquals(target.length, info.getDeltaTargetLength());
+    }
+
+    @Test
+    public void unrelatedImagesStillRoundTrip() throws IOException {
+        byte[] base = TestImages.gbl(30000, 1);
+        byte[] target = TestImages.gbl(TestImages.random(40001), 2);
+
+        assertArrayEquals(target, Apply(base, Patch(base, target)));
+    }
+
+    @Test(expected = GblFormatException.class)
+    public void rejectsPatchForOtherBase() throws IOException {
+        byte[] program = TestImages.random(30000);
+        byte[] target = TestImages.gbl(TestImages.nextBuild(program), 2);
+        byte[] patch = Patch(TestImages.gbl(program, 1), target);
+
+        Apply(TestImages.gbl(TestImages.random(30001), 1), patch);
+    }
+}
@@ -0,0 +1,50 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import com.sensemore.slilabs.ota.engine.TestImages;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cost of validating a GBL file in payload sized pieces, as done while uploading.
+ */
+public class GblParseBenchmark {
+
+    private static final int PROGRAM_SIZE = 4 * 1024 * 1024;
+    private static final int PAYLOAD = 244;
+    private static final int ROUNDS = 20;
+
+    private static long AllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void Parse(byte[] file) throws GblFormatException {
+        GblParser parser = new GblParser();
+        for (int offset = 0; offset < file.length; offset += PAYLOAD) {
+            parser.update(file, offset, Math.min(PAYLOAD, file.length - offset));
+        }
+        parser.finish();
+    }
+
+    @Test
+    public void parseCostPerMegabyte() throws GblFormatException {
+        byte[] file = TestImages.gbl(PROGRAM_SIZE);
+        for (int i = 0; i < 5; i++) {
+            Parse(file);
+        }
+        long allocated = AllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Parse(file);
+        }
+        long nanos = System.nanoTime() - start;
+        double megabytes = file.length * (double) ROUNDS / (1024 * 1024);
+        long allocatedPerParse = (AllocatedBytes() - allocated) / ROUNDS;
+        System.out.println("gbl_parse,micros_per_MB," + Math.round(nanos / 1000.0 / megabytes) + ",bytes_allocated_per_parse," + allocatedPerParse);
+        // parser state is a few fixed buffers, nothing scales with image size
+        assertTrue(allocatedPerParse < 4096);
+    }
+}
@@ -0,0 +1,65 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import com.sensemore.slilabs.ota.engine.TestImages;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GblParserTest {
+
+    private static GblInfo Parse(byte[] file, int step) throws GblFormatException {
+        GblParser parser = new GblParser();
+        for (int offset = 0; offset < file.length; offset += step) {
+            parser.update(file, offset, Math.min(step, file.length - offset));
+        }
+        return parser.finish();
+    }
+
+    @Test
+    public void parsesTagsInAnyChunking() throws GblFormatException {
+        byte[] file = TestImages.gbl(20000, 7);
+        for (int step : new int[]{1, 3, 8, 247, file.length}) {
+            GblInfo info = Parse(file, step);
+            assertEquals(GblWriter.VERSION, info.getVersion());
+            assertTrue(info.hasApplicationInfo());
+            assertEquals(7, info.getApplicationVersion());
+            assertEquals(20000, info.getProgramBytes());
+            assertEquals(file.length, info.getLength());
+            assertEquals(6, info.getTagCount());
+        }
+    }
+
+    @Test(expected = GblFormatException.class)
+    public void rejectsNonGbl() throws GblFormatException {
+        Parse(TestImages.random(1000), 100);
+    }
+
+    @Test(expected = GblFormatException.class)
+    public void rejectsTruncatedFile() throws GblFormatException {
+        byte[] file = TestImages.gbl(20000);
+        Parse(Arrays.copyOf(file, file.length - 10), 247);
+    }
+
+    @Test(expected = GblFormatException.class)
+    public void rejectsCorruptedProgramData() throws GblFormatException {
+        byte[] file = TestImages.gbl(20000);
+        file[5000] ^= 1;
+        Parse(file, 247);
+    }
+
+    @Test
+    public void headerInspectionRejectsEarly() throws Exception {
+        GblValidatingSource source = new GblValidatingSource(new ByteArraySource(TestImages.random(100000)));
+        try {
+            source.inspectHeader();
+            fail("random data accepted as GBL");
+        } catch (GblFormatException e) {
+            assertEquals(0, e.getOffset());
+        }
+        GblValidatingSource valid = new GblValidatingSource(new ByteArraySource(TestImages.gbl(1000, 3)));
+        assertEquals(3, valid.inspectHeader().getApplicationVersion());
+    }
+}
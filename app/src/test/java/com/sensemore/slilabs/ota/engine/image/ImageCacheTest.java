@@ -0,0 +1,156 @@
+package com.sensemore.slilabs.ota.engine.image;
+
+import com.sensemore.slilabs.ota.engine.TestImages;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImageCacheTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("images").toFile();
+    }
+
+    private static byte[] Read(FirmwareImage image) throws IOException {
+        byte[] content = new byte[(int) image.getLength()];
+        try (FirmwareSource source = image.open()) {
+            int filled = 0;
+            int read;
+            while ((read = source.read(content, filled, content.length - filled)) > 0) {
+                filled += read;
+            }
+        }
+        return content;
+    }
+
+    @Test
+    public void cachedImageIsValidatedOnceAndShared() throws IOException {
+        byte[] firmware = TestImages.gbl(50000, 7);
+        ImageCache cache = new ImageCache(directory, 1024 * 1024);
+
+        CachedImage image = cache.put(new ByteArraySource(firmware));
+
+        assertEquals(ContentHash.sha256(new ByteArraySource(firmware)), image.getContentHash());
+        assertSame(image, cache.get(image.getContentHash()));
+        assertArrayEquals(firmware, Read(image));
+        assertEquals(7, image.getGblInfo().getApplicationVersion());
+        List<GblInfo.Tag> tags = image.getGblInfo().getTags();
+        assertEquals(GblParser.TAG_HEADER, tags.get(0).getId());
+        assertEquals(GblParser.TAG_END, tags.get(tags.size() - 1).getId());
+        assertEquals(firmware.length - 12, tags.get(tags.size() - 1).getOffset());
+    }
+
+    @Test
+    public void sameImageIsNotStoredTwice() throws IOException {
+        byte[] firmware = TestImages.gbl(20000);
+        ImageCache cache = new ImageCache(directory, 1024 * 1024);
+
+        CachedImage first = cache.put(new ByteArraySource(firmware));
+        CachedImage second = cache.put(new ByteArraySource(firmware));
+
+        assertSame(first, second);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void invalidFileLeavesNothingBehind() throws IOException {
+        ImageCache cache = new ImageCache(directory, 1024 * 1024);
+
+        try {
+            cache.put(new ByteArraySource(TestImages.random(5000)));
+            fail();
+        } catch (GblFormatException expected) {
+        }
+
+        assertEquals(0, cache.size());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedImage() throws IOException {
+        byte[] a = TestImages.gbl(40000, 1);
+        byte[] b = TestImages.gbl(40000, 2);
+        byte[] c = TestImages.gbl(40000, 3);
+        // room for two of them
+        ImageCache cache = new ImageCache(directory, 100000);
+        CachedImage first = cache.put(new ByteArraySource(a));
+        CachedImage second = cache.put(new ByteArraySource(b));
+        cache.get(first.getContentHash());
+
+        CachedImage third = cache.put(new ByteArraySource(c));
+
+        assertTrue(cache.contains(first.getContentHash()));
+        assertFalse(cache.contains(second.getContentHash()));
+        assertTrue(cache.contains(third.getContentHash()));
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getTotalBytes() <= 100000);
+        // a session still holding the evicted image reads it from its mapping
+        assertArrayEquals(b, Read(second));
+    }
+
+    @Test
+    public void imagesSurviveRestart() throws IOException {
+        byte[] firmware = TestImages.gbl(30000, 5);
+        CachedImage stored = new ImageCache(directory, 1024 * 1024).put(new ByteArraySource(firmware));
+
+        ImageCache reopened = new ImageCache(directory, 1024 * 1024);
+        CachedImage loaded = reopened.get(stored.getContentHash());
+
+        assertNotNull(loaded);
+        assertArrayEquals(firmware, Read(loaded));
+        GblInfo info = loaded.getGblInfo();
+        assertEquals(5, info.getApplicationVersion());
+        assertEquals(stored.getGblInfo().getCrc(), info.getCrc());
+        assertArrayEquals(stored.getGblInfo().getProductId(), info.getProductId());
+        assertEquals(stored.getGblInfo().getTags().size(), info.getTags().size());
+        assertEquals(stored.getGblInfo().getTags().get(2).getOffset(), info.getTags().get(2).getOffset());
+    }
+
+    @Test
+    public void truncatedImageIsDroppedAfterRestart() throws IOException {
+        byte[] firmware = TestImages.gbl(30000);
+        CachedImage stored = new ImageCache(directory, 1024 * 1024).put(new ByteArraySource(firmware));
+        // power lost before the file reached the disk, its info file made it
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, stored.getContentHash() + ".gbl"), "rw")) {
+            file.setLength(firmware.length / 2);
+        }
+
+        ImageCache reopened = new ImageCache(directory, 1024 * 1024);
+
+        assertNull(reopened.get(stored.getContentHash()));
+        assertFalse(reopened.contains(stored.getContentHash()));
+        assertEquals(0, directory.listFiles().length);
+        CachedImage again = reopened.put(new ByteArraySource(firmware));
+        assertArrayEquals(firmware, Read(again));
+    }
+
+    @Test
+    public void compressedCopyIsFoundByItsSourceAcrossRestarts() throws IOException {
+        ImageCache cache = new ImageCache(directory, 1024 * 1024);
+        CachedImage raw = cache.put(new ByteArraySource(TestImages.gbl(TestImages.firmwareLike(30000), 1)));
+        assertNull(cache.getCompressed(raw.getContentHash()));
+
+        CachedImage packed = cache.putCompressed(raw.getContentHash(), new GblCompressingSource(raw.open()));
+
+        assertNotEquals(raw.getContentHash(), packed.getContentHash());
+        assertSame(packed, cache.getCompressed(raw.getContentHash()));
+        assertNull(cache.getCompressed(packed.getContentHash()));
+        CachedImage loaded = new ImageCache(directory, 1024 * 1024).getCompressed(raw.getContentHash());
+        assertNotNull(loaded);
+        assertEquals(packed.getContentHash(), loaded.getContentHash());
+        assertArrayEquals(Read(packed), Read(loaded));
+    }
+}
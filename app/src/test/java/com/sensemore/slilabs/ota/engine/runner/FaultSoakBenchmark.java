@@ -0,0 +1,141 @@
+package com.sensemore.slilabs.ota.engine.runner;
+
+import com.sensemore.slilabs.ota.engine.OtaConfig;
+import com.sensemore.slilabs.ota.engine.TestImages;
+import com.sensemore.slilabs.ota.engine.UploadMode;
+import com.sensemore.slilabs.ota.engine.sim.LinkFaults;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransportProvider;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Full updates of a fleet of simulated devices, once on a clean link and once per injected
+ * fault, printed as a {@link SoakReport}. With {@code -Dsoak.report=FILE} the report is
+ * written there, with {@code -Dsoak.baseline=FILE} it is compared against an earlier build's
+ * report and regressions fail the run.
+ */
+public class FaultSoakBenchmark {
+
+    private static final int DEVICES = 40;
+    private static final int CONCURRENCY = 4;
+    private static final double TOLERANCE = 0.05;
+
+    private static String[][] Scenarios() {
+        return new String[][]{
+                {"clean"},
+                {"disconnects", "disconnect=0.0002"},
+                {"saturation", "saturation=0.01"},
+                {"slow_reboot", "slowReboot=0.3"},
+                {"mtu_failure", "mtuFailure=0.3"},
+                {"control_drop", "controlDrop=0.02"},
+                {"combined", "disconnect=0.0001", "saturation=0.005", "slowReboot=0.2", "mtuFailure=0.2", "controlDrop=0.01"}};
+    }
+
+    private static Map<String, Integer> Injected(LinkFaults faults) {
+        Map<String, Integer> injected = new LinkedHashMap<>();
+        if (faults != null) {
+            injected.put("disconnects", faults.getDisconnects());
+            injected.put("saturations", faults.getSaturations());
+            injected.put("slow_reboots", faults.getSlowReboots());
+            injected.put("mtu_failures", faults.getMtuFailures());
+            injected.put("control_drops", faults.getControlDrops());
+        }
+        return injected;
+    }
+
+    @Test
+    public void fleetSurvivesInjectedFaults() throws Exception {
+        File directory = Files.createTempDirectory("soak").toFile();
+        File image = new File(directory, "app.gbl");
+        Files.write(image.toPath(), TestImages.gbl(96 * 1024));
+        List<OtaRunner.Target> targets = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            targets.add(new OtaRunner.Target(String.format("00:0B:57:00:00:%02X", i), image, 0));
+        }
+
+        SoakReport report = new SoakReport();
+        RunSummary clean = null;
+        for (String[] scenario : Scenarios()) {
+            Map<String, String> options = new LinkedHashMap<>();
+            // lossy link, verified uploads repair what the bootloader missed
+            options.put("loss", "0.001");
+            options.put("resume", "true");
+            for (int i = 1; i < scenario.length; i++) {
+                String[] option = scenario[i].split("=");
+                options.put(option[0], option[1]);
+            }
+            SimulatedTransportProvider.SimulatedLinks links = new SimulatedTransportProvider().open(options);
+            RunSummary summary = new OtaRunner(links, new OtaConfig().setUploadMode(UploadMode.Verified), CONCURRENCY, new StringBuilder())
+                    .run(targets, 24 * 3_600_000L);
+            LinkFaults faults = links.getProfile().getFaults();
+            report.add(scenario[0], summary, Injected(faults));
+
+            assertEquals(scenario[0], 0, summary.getUnfinished());
+            assertTrue(scenario[0] + " " + summary.toJson(), summary.getSucceeded() >= DEVICES * 0.9);
+            if (faults == null) {
+                assertTrue(summary.toJson(), summary.isSuccess());
+                clean = summary;
+            } else {
+                // each link loses its own packets, a fault only ever costs time
+                assertTrue(scenario[0], summary.getBytesPerSecond() <= clean.getBytesPerSecond());
+                assertTrue(scenario[0], summary.getCompletionPercentile(50) >= clean.getCompletionPercentile(50));
+                // every scenario actually hit its fault
+                int total = 0;
+                for (int count : Injected(faults).values()) {
+                    total += count;
+                }
+                assertTrue(scenario[0], total > 0);
+            }
+        }
+        String csv = report.toCsv();
+        System.out.print(csv);
+
+        String reportPath = System.getProperty("soak.report");
+        if (reportPath != null && !reportPath.isEmpty()) {
+            Files.write(new File(reportPath).toPath(), csv.getBytes(StandardCharsets.UTF_8));
+        }
+        String baselinePath = System.getProperty("soak.baseline");
+        if (baselinePath != null && !baselinePath.isEmpty()) {
+            SoakReport baseline;
+            try (Reader reader = new FileReader(baselinePath)) {
+                baseline = SoakReport.readCsv(reader);
+            }
+            List<String> regressions = report.compare(baseline, TOLERANCE);
+            assertTrue("Regressions against " + baselinePath + ": " + regressions, regressions.isEmpty());
+        }
+    }
+
+    @Test
+    public void reportRoundTripsAndFlagsRegressions() throws IOException {
+        SoakReport baseline = SoakReport.readCsv(new StringReader(
+                "scenario,devices,succeeded,success_rate,p50_ms,p90_ms,p99_ms,max_ms,bytes_per_second\n"
+                        + "clean,40,40,1.0000,9000,12000,13000,13000,30000\n"
+                        + "control_drop,40,39,0.9750,9500,13000,15000,15000,28000\n"));
+        SoakReport current = SoakReport.readCsv(new StringReader(
+                String.join(",", SoakReport.COLUMNS) + "\n"
+                        + "clean,40,40,1.0000,9100,12100,13000,13000,29500,,,,,\n"
+                        + "control_drop,40,36,0.9000,9500,14000,15000,15000,25000,0,0,0,0,14\n"
+                        + "new_scenario,40,20,0.5000,1,1,1,1,1,,,,,\n"));
+
+        assertEquals("14", current.get("control_drop", "control_drops"));
+        assertNull(baseline.get("clean", "disconnects"));
+        // within tolerance, missing baseline columns and scenarios are not compared
+        assertEquals(3, current.compare(baseline, TOLERANCE).size());
+        assertTrue(current.compare(baseline, TOLERANCE).get(0).startsWith("control_drop success_rate"));
+        assertEquals(current.toCsv(), SoakReport.readCsv(new StringReader(current.toCsv())).toCsv());
+    }
+}
@@ -0,0 +1,140 @@
+package com.sensemore.slilabs.ota.engine.runner;
+
+import com.sensemore.slilabs.ota.engine.OtaConfig;
+import com.sensemore.slilabs.ota.engine.TestImages;
+import com.sensemore.slilabs.ota.engine.sim.SimulatedTransportProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OtaRunnerTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("runner").toFile();
+    }
+
+    private File Image(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void manifestSkipsCommentsAndResolvesRelativeImages() throws IOException {
+        List<OtaRunner.Target> targets = OtaRunner.readManifest(new StringReader(
+                "# line\n\nAA:01 app.gbl\n  AA:02\t/abs/other.gbl 5  # urgent\n"), directory);
+        assertEquals(2, targets.size());
+        assertEquals("AA:01", targets.get(0).address);
+        assertEquals(new File(directory, "app.gbl"), targets.get(0).image);
+        assertEquals(0, targets.get(0).priority);
+        assertEquals(new File("/abs/other.gbl"), targets.get(1).image);
+        assertEquals(5, targets.get(1).priority);
+
+        try {
+            OtaRunner.readManifest(new StringReader("AA:01 app.gbl\nAA:02\n"), directory);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("line 2"));
+        }
+    }
+
+    @Test
+    public void updatesEveryTargetAndWritesALinePerDevice() throws Exception {
+        byte[] first = TestImages.gbl(64 * 1024, 2);
+        byte[] second = TestImages.gbl(96 * 1024, 3);
+        File firstFile = Image("first.gbl", first);
+        File secondFile = Image("second.gbl", second);
+        List<OtaRunner.Target> targets = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            targets.add(new OtaRunner.Target("DEVICE-" + i, i % 2 == 0 ? firstFile : secondFile, 0));
+        }
+        SimulatedTransportProvider.SimulatedLinks links = new SimulatedTransportProvider().open(Collections.emptyMap());
+        StringBuilder results = new StringBuilder();
+        RunSummary summary = new OtaRunner(links, new OtaConfig(), 3, results).run(targets, 3_600_000);
+
+        assertTrue(summary.isSuccess());
+        assertEquals(8, summary.getSucceeded());
+        assertEquals(4L * first.length + 4L * second.length, summary.getBytes());
+        assertTrue(summary.getBytesPerSecond() > 0);
+        assertTrue(summary.getCompletionPercentile(50) <= summary.getCompletionPercentile(99));
+        assertEquals(summary.getWallMillis(), summary.getCompletionPercentile(100));
+        // later devices waited for a slot, sessions themselves take about as long
+        assertTrue(summary.getCompletionPercentile(100) > 2 * summary.getSessionPercentile(100));
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(i % 2 == 0 ? first : second, links.getDevice("DEVICE-" + i).getApplication());
+        }
+        assertEquals(3, links.getRadio().getMaxConnectionsReached());
+
+        String[] lines = results.toString().split("\n");
+        assertEquals(8, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("{\"address\":\"DEVICE-"));
+            assertTrue(line, line.contains("\"status\":\"Succeeded\""));
+            assertTrue(line, line.contains("\"session\":{"));
+        }
+    }
+
+    @Test
+    public void timedOutTargetsAreCancelledAndReported() throws Exception {
+        File image = Image("app.gbl", TestImages.gbl(128 * 1024));
+        List<OtaRunner.Target> targets = Arrays.asList(new OtaRunner.Target("A", image, 0),
+                new OtaRunner.Target("B", image, 0), new OtaRunner.Target("C", image, 0));
+        StringBuilder results = new StringBuilder();
+        // one device takes about 3 s of link time
+        RunSummary summary = new OtaRunner(new SimulatedTransportProvider().open(Collections.emptyMap()), new OtaConfig(), 1, results)
+                .run(targets, 4000);
+
+        assertFalse(summary.isSuccess());
+        assertEquals(1, summary.getSucceeded());
+        assertEquals(2, summary.getCancelled());
+        assertEquals(0, summary.getUnfinished());
+        String[] lines = results.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("{\"address\":\"A\",\"image\":\"" + image.getPath() + "\",\"status\":\"Succeeded\""));
+        assertTrue(lines[1].contains("\"status\":\"Cancelled\""));
+        assertTrue(lines[2].contains("\"status\":\"Cancelled\""));
+    }
+
+    @Test
+    public void commandLineFindsTheSimulatorAndExitsWithTheOutcome() throws IOException {
+        Image("app.gbl", TestImages.gbl(32 * 1024));
+        File manifest = new File(directory, "targets.txt");
+        Files.write(manifest.toPath(), "A app.gbl\nB app.gbl 1\nC app.gbl\n".getBytes(StandardCharsets.UTF_8));
+        File results = new File(directory, "results.jsonl");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int status = OtaRunner.Execute(new String[]{"--concurrency", "2", "--mode", "Verified", "-o", "resume=true", "-o", "loss=0.001",
+                "--results", results.getPath(), manifest.getPath()}, new PrintStream(out), new PrintStream(err));
+
+        assertEquals(err.toString(), 0, status);
+        List<String> lines = Files.readAllLines(results.toPath());
+        assertEquals(3, lines.size());
+        for (String line : lines) {
+            assertTrue(line, line.contains("\"uploadMode\":\"Verified\""));
+        }
+        assertTrue(out.toString().startsWith("{\"devices\":3,\"succeeded\":3,"));
+
+        assertEquals(2, OtaRunner.Execute(new String[]{"--transport", "none", manifest.getPath()},
+                new PrintStream(new ByteArrayOutputStream()), new PrintStream(err)));
+        assertEquals(2, OtaRunner.Execute(new String[]{"--concurrency"},
+                new PrintStream(new ByteArrayOutputStream()), new PrintStream(err)));
+    }
+}
@@ -0,0 +1,92 @@
+package com.sensemore.slilabs.ota.engine.scan;
+
+import com.sensemore.slilabs.ota.engine.OtaProtocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DeviceTableTest {
+
+    private static final List<UUID> OTA = Collections.singletonList(OtaProtocol.OTA_SERVICE);
+
+    private DeviceTable table;
+    private List<String> appeared;
+
+    @Before
+    public void setUp() {
+        table = new DeviceTable(new AdvertisementFilter().setServiceUuid(OtaProtocol.OTA_SERVICE).setMinRssi(-90));
+        appeared = new ArrayList<>();
+        table.setListener(device -> appeared.add(device.getAddress() + (device.isDfuMode() ? " dfu" : "")));
+    }
+
+    private static Advertisement Seen(String address, String name, int rssi, long millis) {
+        return new Advertisement(address, name, rssi, OTA, millis);
+    }
+
+    @Test
+    public void keepsOneEntryPerAddressWithSignalStats() {
+        table.addAll(Arrays.asList(Seen("A", "Sensor", -60, 0), Seen("A", null, -70, 100), Seen("A", "Sensor", -50, 200)));
+
+        assertEquals(1, table.size());
+        ScannedDevice device = table.get("A");
+        assertEquals(3, device.getSightings());
+        assertEquals("Sensor", device.getName());
+        assertEquals(-50, device.getLastRssi());
+        assertEquals(-70, device.getMinRssi());
+        assertEquals(-50, device.getMaxRssi());
+        assertEquals(200, device.getLastSeenMillis());
+        assertTrue(device.getSmoothedRssi() > -70 && device.getSmoothedRssi() < -50);
+    }
+
+    @Test
+    public void dropsAdvertisementsTheFilterRejects() {
+        table.getFilter().setNamePrefix("Sen");
+        int kept = table.addAll(Arrays.asList(
+                Seen("A", "Sensor", -60, 0),
+                Seen("B", "Sensor", -95, 0),
+                new Advertisement("C", "Sensor", -60, Collections.<UUID>emptyList(), 0),
+                Seen("D", "Beacon", -60, 0)));
+
+        assertEquals(1, kept);
+        assertNotNull(table.get("A"));
+        assertNull(table.get("B"));
+    }
+
+    @Test
+    public void ranksRecentDevicesByStrongestSignal() {
+        table.addAll(Arrays.asList(Seen("FAR", "S", -85, 1000), Seen("NEAR", "S", -45, 1000), Seen("MID", "S", -65, 1000),
+                Seen("GONE", "S", -40, 0)));
+
+        List<ScannedDevice> ranked = table.bySignal(500);
+
+        assertEquals(3, ranked.size());
+        assertEquals("NEAR", ranked.get(0).getAddress());
+        assertEquals("MID", ranked.get(1).getAddress());
+        assertEquals("FAR", ranked.get(2).getAddress());
+        assertEquals(1, table.prune(500));
+        assertNull(table.get("GONE"));
+    }
+
+    @Test
+    public void reportsDeviceComingBackAndEnteringDfuMode() {
+        table.setLostAfterMillis(1000);
+        table.add(Seen("A", "Sensor", -60, 0));
+        table.add(Seen("A", "Sensor", -60, 300));
+        // silent while connected
+        table.add(Seen("A", "Sensor", -60, 5000));
+        // rebooted into the bootloader, advertising again right away
+        table.add(Seen("A", OtaProtocol.DFU_DEVICE_NAME, -60, 5400));
+        table.add(Seen("A", null, -60, 5500));
+
+        assertEquals(Arrays.asList("A", "A", "A dfu"), appeared);
+        assertTrue(table.get("A").isDfuMode());
+    }
+}